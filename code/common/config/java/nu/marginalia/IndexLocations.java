@@ -37,6 +37,21 @@ public class IndexLocations {
         return getStorage(fileStorage, FileStorageBaseType.CURRENT, "iw");
     }
 
+    /** Return the path to the delta segments of the current live index */
+    public static Path getIndexDeltasPath(FileStorageService fileStorage) {
+        return getStorage(fileStorage, FileStorageBaseType.CURRENT, "ird");
+    }
+
+    /** Return the path where the next delta segment of the index is constructed */
+    public static Path getIndexDeltaWriteArea(FileStorageService fileStorage) {
+        return getStorage(fileStorage, FileStorageBaseType.CURRENT, "irdw");
+    }
+
+    /** Return the path where the delta segments are merged into the live index */
+    public static Path getIndexCompactionArea(FileStorageService fileStorage) {
+        return getStorage(fileStorage, FileStorageBaseType.CURRENT, "irc");
+    }
+
     /** Return the path to the search sets */
     public static Path getSearchSetsPath(FileStorageService fileStorage) {
         return getStorage(fileStorage, FileStorageBaseType.CURRENT, "ss");
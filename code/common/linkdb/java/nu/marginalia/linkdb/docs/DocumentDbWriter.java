@@ -73,6 +73,48 @@ public class DocumentDbWriter {
         }
     }
 
+    /** Copy the documents of another document database, except those of the excluded domains.
+     * Documents that are already present are kept.
+     * <p></p>
+     * This is used by delta loads, where the loaded domains replace their documents in the
+     * current database, and the documents of every other domain are kept as they are.
+     */
+    public void copyDocuments(Path sourceFile, int[] excludedDomains) throws SQLException {
+        try (var stmt = connection.createStatement()) {
+            stmt.executeUpdate("CREATE TEMP TABLE EXCLUDED_DOMAIN (ID INTEGER PRIMARY KEY)");
+        }
+
+        try (var stmt = connection.prepareStatement("INSERT OR IGNORE INTO EXCLUDED_DOMAIN(ID) VALUES (?)")) {
+            for (int domainId : excludedDomains) {
+                stmt.setInt(1, domainId);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+
+        try (var stmt = connection.prepareStatement("ATTACH DATABASE ? AS SOURCE")) {
+            stmt.setString(1, sourceFile.toString());
+            stmt.execute();
+        }
+
+        // The document ids have the domain id in the bits above the document ordinal,
+        // see UrlIdCodec, and carry no ranking in the document database
+        try (var stmt = connection.createStatement()) {
+            stmt.executeUpdate("""
+                INSERT OR IGNORE INTO DOCUMENT(ID, URL, STATE, TITLE, DESCRIPTION, WORDS_TOTAL, FORMAT, FEATURES, DATA_HASH, QUALITY, PUB_YEAR)
+                SELECT ID, URL, STATE, TITLE, DESCRIPTION, WORDS_TOTAL, FORMAT, FEATURES, DATA_HASH, QUALITY, PUB_YEAR
+                FROM SOURCE.DOCUMENT
+                WHERE (ID >> 26) NOT IN (SELECT ID FROM EXCLUDED_DOMAIN)
+                """);
+        }
+        finally {
+            try (var stmt = connection.createStatement()) {
+                stmt.execute("DETACH DATABASE SOURCE");
+                stmt.executeUpdate("DROP TABLE EXCLUDED_DOMAIN");
+            }
+        }
+    }
+
     public void close() throws SQLException {
         connection.close();
     }
@@ -5,12 +5,16 @@ import nu.marginalia.linkdb.docs.DocumentDbReader;
 import nu.marginalia.linkdb.docs.DocumentDbWriter;
 import nu.marginalia.linkdb.model.DocdbUrlDetail;
 import nu.marginalia.model.EdgeDomain;
+import nu.marginalia.model.id.UrlIdCodec;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class DocumentDbWriterTest {
     @Test
@@ -41,4 +45,52 @@ public class DocumentDbWriterTest {
             Files.deleteIfExists(tempPath);
         }
     }
+
+    @Test
+    public void testCopyDocuments() throws IOException, SQLException {
+        Path sourcePath = Files.createTempFile("docdb", ".db");
+        Path destPath = Files.createTempFile("docdb", ".db");
+        try {
+            var source = new DocumentDbWriter(sourcePath);
+            source.add(List.of(
+                    document(UrlIdCodec.encodeId(1, 0), "old"),
+                    document(UrlIdCodec.encodeId(2, 0), "old"),
+                    document(UrlIdCodec.encodeId(2, 1), "old")
+            ));
+            source.close();
+
+            // Domain 2 is replaced, domain 1 is kept from the source
+            var dest = new DocumentDbWriter(destPath);
+            dest.add(document(UrlIdCodec.encodeId(2, 0), "new"));
+            dest.copyDocuments(sourcePath, new int[] { 2 });
+            dest.close();
+
+            var reader = new DocumentDbReader(destPath);
+            var deets = reader.getUrlDetails(new TLongArrayList(new long[] {
+                    UrlIdCodec.encodeId(1, 0),
+                    UrlIdCodec.encodeId(2, 0),
+                    UrlIdCodec.encodeId(2, 1)
+            }));
+
+            assertEquals(List.of("old", "new"), deets.stream().map(DocdbUrlDetail::title).toList());
+        } finally {
+            Files.deleteIfExists(sourcePath);
+            Files.deleteIfExists(destPath);
+        }
+    }
+
+    private DocdbUrlDetail document(long id, String title) {
+        return new DocdbUrlDetail(
+                id,
+                new nu.marginalia.model.EdgeUrl("http", new EdgeDomain("example.com"), null, "/" + id, null),
+                title,
+                "This is a test",
+                -4.,
+                "XHTML",
+                5,
+                2020,
+                0xF00BA3,
+                444
+        );
+    }
 }
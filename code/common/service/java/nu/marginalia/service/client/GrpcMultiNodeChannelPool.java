@@ -11,8 +11,13 @@ import nu.marginalia.service.discovery.property.ServicePartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -78,6 +83,20 @@ public class GrpcMultiNodeChannelPool<STUB> {
         return new CallBuilderBase<>(method);
     }
 
+    /** Create a new streaming call builder for the given method, where the
+     * results from each node are handed to a consumer as they arrive.
+     * <p></p>
+     * Example:
+     * <code><pre>
+     *     var calls = channelPool.callStreaming(AStub:someStreamingMethod)
+     *                   .hedgeAfter(Duration.ofMillis(100))
+     *                   .runEach(someExecutor, argumentToSomeMethod, (node, result) -> ...);
+     * </pre></code>
+     * */
+    public <T, I> CallBuilderStreaming<T, I> callStreaming(BiFunction<STUB, I, Iterator<T>> method) {
+        return new CallBuilderStreaming<>(method);
+    }
+
     public class CallBuilderBase<T, I> {
         private final BiFunction<STUB, I, T> method;
 
@@ -139,4 +158,39 @@ public class GrpcMultiNodeChannelPool<STUB> {
 
         }
     }
+
+    public class CallBuilderStreaming<T, I> {
+        private final BiFunction<STUB, I, Iterator<T>> method;
+        private Duration hedgeDelay = null;
+
+        private CallBuilderStreaming(BiFunction<STUB, I, Iterator<T>> method) {
+            this.method = method;
+        }
+
+        /** Hedge the calls to nodes that have several replicas,
+         * see {@link GrpcSingleNodeChannelPool.CallBuilderStreaming#hedgeAfter(Duration)} */
+        public CallBuilderStreaming<T, I> hedgeAfter(Duration delay) {
+            this.hedgeDelay = delay;
+            return this;
+        }
+
+        /** Run the given method on each node, handing the results to the consumer along with the
+         * node they came from.  The consumer is called concurrently for different nodes.
+         * <p></p>
+         * Returns a future for each node, which completes when the node's stream ends.
+         * Cancelling a future cancels the call to that node.
+         */
+        public Map<Integer, CompletableFuture<Void>> runEach(Executor executor, I arg, BiConsumer<Integer, T> consumer) {
+            Map<Integer, CompletableFuture<Void>> ret = new LinkedHashMap<>();
+
+            for (int node : getEligibleNodes()) {
+                ret.put(node, getPoolForNode(node)
+                        .callStreaming(method)
+                        .hedgeAfter(hedgeDelay)
+                        .run(executor, arg, result -> consumer.accept(node, result)));
+            }
+
+            return ret;
+        }
+    }
 }
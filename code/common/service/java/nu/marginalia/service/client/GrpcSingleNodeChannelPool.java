@@ -1,6 +1,7 @@
 package nu.marginalia.service.client;
 
 import com.google.common.collect.Sets;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import lombok.SneakyThrows;
 import nu.marginalia.service.discovery.ServiceRegistryIf;
@@ -17,6 +18,7 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 /** A pool of gRPC channels for a service, with a separate channel for each node.
@@ -27,6 +29,10 @@ public class GrpcSingleNodeChannelPool<STUB> extends ServiceChangeMonitor {
 
     private static final Logger logger = LoggerFactory.getLogger(GrpcSingleNodeChannelPool.class);
 
+    /** Schedules the hedged attempts of streaming calls */
+    private static final ScheduledExecutorService hedgeTimer =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("grpc-hedge-timer").daemon().factory());
+
     private final ServiceRegistryIf serviceRegistryIf;
     private final Function<InstanceAddress, ManagedChannel> channelConstructor;
     private final Function<ManagedChannel, STUB> stubConstructor;
@@ -210,6 +216,153 @@ public class GrpcSingleNodeChannelPool<STUB> extends ServiceChangeMonitor {
         throw new ServiceNotAvailableException(serviceKey);
     }
 
+    /** A streaming call, which is sent to the replicas in the same order as {@link #call(BiFunction, Object)}
+     * would try them.  If an attempt fails before it has produced anything, the next replica is tried.
+     * <p></p>
+     * With hedging, the call is also sent to the next replica if no attempt has produced anything
+     * within the hedge delay.  The first attempt to produce a result, or to end its stream, wins,
+     * and the other attempts are cancelled.  Only the winner's results are handed to the consumer.
+     */
+    private class StreamingCall<T, I> {
+        private final BiFunction<STUB, I, Iterator<T>> method;
+        private final I arg;
+        private final Consumer<T> consumer;
+        private final Executor executor;
+
+        private final List<ConnectionHolder> replicas;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        /* guarded by this */
+        private final List<Context.CancellableContext> attempts = new ArrayList<>();
+        private final List<Exception> exceptions = new ArrayList<>();
+        private int nextReplica = 0;
+        private int runningAttempts = 0;
+        private Context.CancellableContext winner = null;
+
+        StreamingCall(BiFunction<STUB, I, Iterator<T>> method, I arg, Consumer<T> consumer, Executor executor) {
+            this.method = method;
+            this.arg = arg;
+            this.consumer = consumer;
+            this.executor = executor;
+
+            replicas = new ArrayList<>(channels.values());
+            Collections.sort(replicas);
+        }
+
+        CompletableFuture<Void> start(Duration hedgeDelay) {
+            // Whichever way the call ends, including being cancelled by the caller, tear down the attempts
+            result.whenComplete((v, t) -> cancelAttempts());
+
+            synchronized (this) {
+                if (!launchNext()) {
+                    result.completeExceptionally(new ServiceNotAvailableException(serviceKey));
+                }
+            }
+
+            if (hedgeDelay != null && replicas.size() > 1) {
+                hedgeTimer.schedule(this::hedge, hedgeDelay.toMillis(), TimeUnit.MILLISECONDS);
+            }
+
+            return result;
+        }
+
+        private synchronized void hedge() {
+            if (winner == null && !result.isDone()) {
+                launchNext();
+            }
+        }
+
+        private synchronized boolean launchNext() {
+            if (nextReplica >= replicas.size())
+                return false;
+
+            var replica = replicas.get(nextReplica++);
+            var context = Context.current().withCancellation();
+
+            attempts.add(context);
+            runningAttempts++;
+
+            executor.execute(() -> context.run(() -> attempt(replica, context)));
+
+            return true;
+        }
+
+        private void attempt(ConnectionHolder replica, Context.CancellableContext context) {
+            boolean won = false;
+
+            try {
+                Iterator<T> results = method.apply(stubConstructor.apply(replica.get()), arg);
+
+                // Blocks until the first result arrives, or the stream ends
+                results.hasNext();
+
+                if (!claim(context)) {
+                    onCancelledAttempt();
+                    return;
+                }
+
+                won = true;
+
+                results.forEachRemaining(consumer);
+                result.complete(null);
+            }
+            catch (Exception e) {
+                if (won) {
+                    result.completeExceptionally(e);
+                }
+                else if (context.isCancelled()) {
+                    onCancelledAttempt();
+                }
+                else {
+                    replica.flagError();
+                    onFailedAttempt(e);
+                }
+            }
+        }
+
+        private synchronized boolean claim(Context.CancellableContext context) {
+            if (winner != null || result.isDone()) {
+                return false;
+            }
+
+            winner = context;
+
+            for (var attempt : attempts) {
+                if (attempt != winner) {
+                    attempt.cancel(null);
+                }
+            }
+
+            return true;
+        }
+
+        private synchronized void onFailedAttempt(Exception e) {
+            exceptions.add(e);
+            runningAttempts--;
+
+            if (winner != null || result.isDone())
+                return;
+
+            if (!launchNext() && runningAttempts == 0) {
+                for (var ex : exceptions) {
+                    logger.error("Failed to call service {}", serviceKey, ex);
+                }
+
+                result.completeExceptionally(new ServiceNotAvailableException(serviceKey));
+            }
+        }
+
+        private synchronized void onCancelledAttempt() {
+            runningAttempts--;
+        }
+
+        private synchronized void cancelAttempts() {
+            for (var attempt : attempts) {
+                attempt.cancel(null);
+            }
+        }
+    }
+
     /** Create a call for the given method on the given node.
      * This is a fluent method, so you can chain it with other
      * methods to specify the node and arguments */
@@ -262,4 +415,36 @@ public class GrpcSingleNodeChannelPool<STUB> extends ServiceChangeMonitor {
             return runFor(List.of(args));
         }
     }
+
+    /** Create a streaming call for the given method, where the results are handed
+     * to a consumer as they arrive instead of being returned as an iterator */
+    public <T, I> CallBuilderStreaming<T, I> callStreaming(BiFunction<STUB, I, Iterator<T>> method) {
+        return new CallBuilderStreaming<>(method);
+    }
+
+    public class CallBuilderStreaming<T, I> {
+        private final BiFunction<STUB, I, Iterator<T>> method;
+        private Duration hedgeDelay = null;
+
+        private CallBuilderStreaming(BiFunction<STUB, I, Iterator<T>> method) {
+            this.method = method;
+        }
+
+        /** If the service has several replicas, and none has produced a result
+         * within the delay, send the call to another replica as well, and keep the results
+         * of whichever responds first.  A null delay disables hedging, which is the default. */
+        public CallBuilderStreaming<T, I> hedgeAfter(Duration delay) {
+            this.hedgeDelay = delay;
+            return this;
+        }
+
+        /** Execute the call on the provided executor, which should be able to run
+         * a blocking task for each attempt, e.g. a virtual thread executor.
+         * <p></p>
+         * The returned future completes when the stream ends, and cancelling it cancels the call.
+         */
+        public CompletableFuture<Void> run(Executor executor, I arg, Consumer<T> consumer) {
+            return new StreamingCall<>(method, arg, consumer, executor).start(hedgeDelay);
+        }
+    }
 }
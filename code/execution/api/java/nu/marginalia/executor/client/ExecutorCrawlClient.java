@@ -61,10 +61,17 @@ public class ExecutorCrawlClient {
     }
 
     public void loadProcessedData(int node, List<FileStorageId> ids) {
+        loadProcessedData(node, ids, false);
+    }
+
+    /** Load processed data, with delta set replacing only the loaded domains
+     * in the index rather than the entire index */
+    public void loadProcessedData(int node, List<FileStorageId> ids, boolean delta) {
         channelPool.call(ExecutorCrawlApiBlockingStub::loadProcessedData)
                 .forNode(node)
                 .run(RpcFileStorageIds.newBuilder()
                         .addAllFileStorageIds(ids.stream().map(FileStorageId::id).toList())
+                        .setDelta(delta)
                         .build());
     }
 
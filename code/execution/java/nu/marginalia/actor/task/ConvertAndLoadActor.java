@@ -66,21 +66,26 @@ public class ConvertAndLoadActor extends RecordActorPrototype {
     public record Convert(FileStorageId crawlId, FileStorageId  processedId, long msgId) implements ActorStep {
         public Convert(FileStorageId crawlId, FileStorageId  processedId) { this(crawlId, processedId, -1); }
     }
+    /** Load processed data.  With delta set, the loaded domains replace their earlier versions
+     * and the index is built as a delta segment on top of the current index, instead of the
+     * data replacing everything that was loaded before.
+     */
     @Resume(behavior = ActorResumeBehavior.RETRY)
-    public record Load(List<FileStorageId> processedId, long msgId) implements ActorStep {
-        public Load(List<FileStorageId> processedId) { this(processedId, -1); }
+    public record Load(List<FileStorageId> processedId, boolean delta, long msgId) implements ActorStep {
+        public Load(List<FileStorageId> processedId) { this(processedId, false, -1); }
+        public Load(List<FileStorageId> processedId, boolean delta) { this(processedId, delta, -1); }
     }
 
     @Resume(behavior = ActorResumeBehavior.RETRY)
-    public record Backup(List<FileStorageId> processedIds) implements ActorStep { }
+    public record Backup(List<FileStorageId> processedIds, boolean delta) implements ActorStep { }
     @Resume(behavior = ActorResumeBehavior.RETRY)
     public record Rerank(long id) implements ActorStep { public Rerank() { this(-1); } }
     @Resume(behavior = ActorResumeBehavior.RETRY)
-    public record ReindexFwd(long id) implements ActorStep {  public ReindexFwd() { this(-1); } }
+    public record ReindexFwd(boolean delta, long id) implements ActorStep {  public ReindexFwd(boolean delta) { this(delta, -1); } }
     @Resume(behavior = ActorResumeBehavior.RETRY)
-    public record ReindexFull(long id) implements ActorStep {  public ReindexFull() { this(-1); } }
+    public record ReindexFull(boolean delta, long id) implements ActorStep {  public ReindexFull(boolean delta) { this(delta, -1); } }
     @Resume(behavior = ActorResumeBehavior.RETRY)
-    public record ReindexPrio(long id) implements ActorStep {  public ReindexPrio() { this(-1); } }
+    public record ReindexPrio(boolean delta, long id) implements ActorStep {  public ReindexPrio(boolean delta) { this(delta, -1); } }
     public record SwitchIndex() implements ActorStep {}
 
     @Override
@@ -112,12 +117,12 @@ public class ConvertAndLoadActor extends RecordActorPrototype {
 
                 yield new Load(List.of(processedId));
             }
-            case Load(List<FileStorageId> processedIds, long msgId) when msgId < 0 -> {
-                long id = mqLoaderOutbox.sendAsync(new LoadRequest(processedIds));
+            case Load(List<FileStorageId> processedIds, boolean delta, long msgId) when msgId < 0 -> {
+                long id = mqLoaderOutbox.sendAsync(new LoadRequest(processedIds, delta));
 
-                yield new Load(processedIds, id);
+                yield new Load(processedIds, delta, id);
             }
-            case Load(List<FileStorageId> processedIds, long msgId) -> {
+            case Load(List<FileStorageId> processedIds, boolean delta, long msgId) -> {
                 var rsp = processWatcher.waitResponse(mqLoaderOutbox, ProcessService.ProcessId.LOADER, msgId);
 
                 if (rsp.state() != MqMessageState.OK) {
@@ -125,11 +130,17 @@ public class ConvertAndLoadActor extends RecordActorPrototype {
                 } else {
                     cleanProcessedStorage(processedIds);
                 }
-                yield new Backup(processedIds);
+                yield new Backup(processedIds, delta);
             }
-            case Backup(List<FileStorageId> processedIds) -> {
+            case Backup(List<FileStorageId> processedIds, boolean delta) -> {
                 backupService.createBackupFromStaging(processedIds);
-                yield new Rerank();
+
+                // The domain ranks are baked into the document ids of the index, and the
+                // current index keeps the ranks it was built with, so the delta keeps them too
+                if (delta)
+                    yield new ReindexFwd(true);
+                else
+                    yield new Rerank();
             }
             case Rerank(long id) when id < 0 ->
                     new Rerank(indexOutbox.sendAsync(IndexMqEndpoints.INDEX_RERANK, ""));
@@ -139,28 +150,28 @@ public class ConvertAndLoadActor extends RecordActorPrototype {
                     yield new Error("Repartition failed");
                 }
 
-                yield new ReindexFwd();
+                yield new ReindexFwd(false);
             }
-            case ReindexFwd(long id) when id < 0 -> new ReindexFwd(createIndex(IndexName.FORWARD));
-            case ReindexFwd(long id) -> {
+            case ReindexFwd(boolean delta, long id) when id < 0 -> new ReindexFwd(delta, createIndex(IndexName.FORWARD, delta));
+            case ReindexFwd(boolean delta, long id) -> {
                 var rsp = processWatcher.waitResponse(mqIndexConstructorOutbox, ProcessService.ProcessId.INDEX_CONSTRUCTOR, id);
 
                 if (rsp.state() != MqMessageState.OK)
                     yield new Error("Repartition failed");
                 else
-                    yield new ReindexFull();
+                    yield new ReindexFull(delta);
             }
-            case ReindexFull(long id) when id < 0 -> new ReindexFull(createIndex(IndexName.REVERSE_FULL));
-            case ReindexFull(long id) -> {
+            case ReindexFull(boolean delta, long id) when id < 0 -> new ReindexFull(delta, createIndex(IndexName.REVERSE_FULL, delta));
+            case ReindexFull(boolean delta, long id) -> {
                 var rsp = processWatcher.waitResponse(mqIndexConstructorOutbox, ProcessService.ProcessId.INDEX_CONSTRUCTOR, id);
 
                 if (rsp.state() != MqMessageState.OK)
                     yield new Error("Repartition failed");
                 else
-                    yield new ReindexPrio();
+                    yield new ReindexPrio(delta);
             }
-            case ReindexPrio(long id) when id < 0 -> new ReindexPrio(createIndex(IndexName.REVERSE_PRIO));
-            case ReindexPrio(long id) -> {
+            case ReindexPrio(boolean delta, long id) when id < 0 -> new ReindexPrio(delta, createIndex(IndexName.REVERSE_PRIO, delta));
+            case ReindexPrio(boolean delta, long id) -> {
                 var rsp = processWatcher.waitResponse(mqIndexConstructorOutbox, ProcessService.ProcessId.INDEX_CONSTRUCTOR, id);
 
                 if (rsp.state() != MqMessageState.OK)
@@ -182,8 +193,8 @@ public class ConvertAndLoadActor extends RecordActorPrototype {
         };
     }
 
-    private long createIndex(IndexName index) throws Exception {
-        return mqIndexConstructorOutbox.sendAsync(new CreateIndexRequest(index));
+    private long createIndex(IndexName index, boolean delta) throws Exception {
+        return mqIndexConstructorOutbox.sendAsync(new CreateIndexRequest(index, delta));
     }
 
 
@@ -82,7 +82,8 @@ public class ExecutorCrawlGrpcService extends ExecutorCrawlApiGrpc.ExecutorCrawl
                     new ConvertAndLoadActor.Load(request.getFileStorageIdsList()
                             .stream()
                             .map(FileStorageId::of)
-                            .collect(Collectors.toList()))
+                            .collect(Collectors.toList()),
+                            request.getDelta())
             );
 
             responseObserver.onNext(Empty.getDefaultInstance());
@@ -0,0 +1,267 @@
+package nu.marginalia.atags.source;
+
+import nu.marginalia.atags.model.LinkWithText;
+
+import java.io.*;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/** Memory mapped file with the anchor texts of a set of domains, which can be
+ * looked up by any number of threads at once without locking.
+ * <p></p>
+ * The file consists of a header, a heap with the links of each domain, and a
+ * table of the domains sorted by the hash of their name:
+ * <pre>
+ * header:  MAGIC, domain count, domain table offset, 0
+ * heap:    for each domain: name, then (url, text, source) for each link
+ * table:   for each domain: hash of the name, heap offset, link count
+ * </pre>
+ * Strings are stored as their length in bytes, followed by their UTF-8 encoding;
+ * null strings have the length -1.  A domain may occur more than once in the
+ * table, if its links weren't written contiguously.
+ */
+class AnchorTagsFile implements AutoCloseable {
+    static final long MAGIC = 0x4154_4147_5346_3031L;
+
+    private static final int HEADER_SIZE = 4 * Long.BYTES;
+    private static final int TABLE_ENTRY_SIZE = 3 * Long.BYTES;
+
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final Arena arena;
+    private final MemorySegment segment;
+
+    private final long domainCount;
+    private final long tableOffset;
+
+    private AnchorTagsFile(Arena arena, MemorySegment segment) throws IOException {
+        this.arena = arena;
+        this.segment = segment;
+
+        if (segment.byteSize() < HEADER_SIZE || segment.get(LONG, 0) != MAGIC) {
+            throw new IOException("Not an anchor tags file");
+        }
+
+        domainCount = segment.get(LONG, 8);
+        tableOffset = segment.get(LONG, 16);
+    }
+
+    public static AnchorTagsFile open(Path file) throws IOException {
+        Arena arena = Arena.ofShared();
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new AnchorTagsFile(arena, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+        }
+        catch (IOException ex) {
+            arena.close();
+            throw ex;
+        }
+    }
+
+    public long domainCount() {
+        return domainCount;
+    }
+
+    /** Get the links to the domain, or an empty list if there are none */
+    public List<LinkWithText> getLinks(String domain) {
+        byte[] name = domain.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(name);
+
+        // Find the first table entry with the hash
+        long lo = 0;
+        long hi = domainCount;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (entryHash(mid) < hash) lo = mid + 1;
+            else hi = mid;
+        }
+
+        List<LinkWithText> ret = new ArrayList<>();
+
+        for (long i = lo; i < domainCount && entryHash(i) == hash; i++) {
+            long offset = segment.get(LONG, tableOffset + i * TABLE_ENTRY_SIZE + 8);
+            long linkCount = segment.get(LONG, tableOffset + i * TABLE_ENTRY_SIZE + 16);
+
+            if (!nameEquals(offset, name)) {
+                continue;
+            }
+
+            var reader = new StringReader(offset + Integer.BYTES + name.length);
+            for (long j = 0; j < linkCount; j++) {
+                String url = reader.next();
+                String text = reader.next();
+                String source = reader.next();
+
+                ret.add(new LinkWithText(url, text, source));
+            }
+        }
+
+        return ret;
+    }
+
+    private long entryHash(long i) {
+        return segment.get(LONG, tableOffset + i * TABLE_ENTRY_SIZE);
+    }
+
+    private boolean nameEquals(long offset, byte[] name) {
+        if (segment.get(INT, offset) != name.length)
+            return false;
+
+        for (int i = 0; i < name.length; i++) {
+            if (segment.get(ValueLayout.JAVA_BYTE, offset + Integer.BYTES + i) != name[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /** FNV-1a hash of the UTF-8 encoding of the domain name */
+    static long hash(byte[] name) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : name) {
+            hash ^= (b & 0xFF);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** Closes the file.  This must not be done while there are lookups in progress. */
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    private class StringReader {
+        private long pos;
+
+        StringReader(long pos) {
+            this.pos = pos;
+        }
+
+        String next() {
+            int length = segment.get(INT, pos);
+            pos += Integer.BYTES;
+
+            if (length < 0)
+                return null;
+
+            byte[] bytes = segment.asSlice(pos, length).toArray(ValueLayout.JAVA_BYTE);
+            pos += length;
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Writes an anchor tags file.  The links of a domain should be added
+     * contiguously, but this isn't required for correctness. */
+    static class Writer implements AutoCloseable {
+        private final Path file;
+        private final DataOutputStream out;
+        private long pos = 0;
+
+        private final List<DomainEntry> entries = new ArrayList<>();
+
+        private String currentDomain = null;
+        private long currentOffset;
+        private long currentLinkCount;
+
+        Writer(Path file) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)));
+
+            // Placeholder for the header, which is written last
+            out.write(new byte[HEADER_SIZE]);
+            pos += HEADER_SIZE;
+        }
+
+        public void add(String domain, String url, String text, String source) throws IOException {
+            if (!domain.equals(currentDomain)) {
+                finishDomain();
+
+                currentDomain = domain;
+                currentOffset = pos;
+                currentLinkCount = 0;
+
+                writeString(domain);
+            }
+
+            writeString(url);
+            writeString(text);
+            writeString(source);
+
+            currentLinkCount++;
+        }
+
+        private void finishDomain() {
+            if (currentDomain != null) {
+                entries.add(new DomainEntry(hash(currentDomain.getBytes(StandardCharsets.UTF_8)), currentOffset, currentLinkCount));
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+                pos += Integer.BYTES;
+                return;
+            }
+
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            pos += Integer.BYTES + bytes.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finishDomain();
+
+            // Align the table
+            while (pos % Long.BYTES != 0) {
+                out.write(0);
+                pos++;
+            }
+
+            long tableOffset = pos;
+
+            entries.sort(Comparator.comparingLong(DomainEntry::hash));
+            for (var entry : entries) {
+                out.writeLong(entry.hash());
+                out.writeLong(entry.offset());
+                out.writeLong(entry.linkCount());
+            }
+
+            out.close();
+
+            var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            header.putLong(MAGIC);
+            header.putLong(entries.size());
+            header.putLong(tableOffset);
+            header.putLong(0);
+            header.flip();
+
+            try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            }
+        }
+
+        private record DomainEntry(long hash, long offset, long linkCount) {}
+    }
+}
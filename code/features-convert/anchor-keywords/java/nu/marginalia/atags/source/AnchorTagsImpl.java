@@ -1,30 +1,46 @@
 package nu.marginalia.atags.source;
 
 import nu.marginalia.atags.model.DomainLinks;
-import nu.marginalia.atags.model.LinkWithText;
 import nu.marginalia.model.EdgeDomain;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.List;
 
+/** Anchor tag source that uses duckdb to project the atags parquet file down to the relevant
+ * domains when it's loaded, and writes the result to a memory mapped {@link AnchorTagsFile}.
+ * <p></p>
+ * Lookups only read the mapped file, and may be done by any number of threads at once.
+ */
 public class AnchorTagsImpl implements AnchorTagsSource {
-    private final Connection duckdbConnection;
+    private final Path dataFile;
+    private final AnchorTagsFile anchorTagsFile;
+
     private static final Logger logger = LoggerFactory.getLogger(AnchorTagsImpl.class);
+
     public AnchorTagsImpl(Path atagsPath,
                           List<EdgeDomain> relevantDomains)
             throws SQLException
     {
-        duckdbConnection = DriverManager.getConnection("jdbc:duckdb:");
-
         logger.info("Loading atags from " + atagsPath);
 
-        try (var stmt = duckdbConnection.createStatement()) {
+        try {
+            dataFile = Files.createTempFile("atags", ".dat");
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        try (var duckdbConnection = DriverManager.getConnection("jdbc:duckdb:");
+             var stmt = duckdbConnection.createStatement();
+             var writer = new AnchorTagsFile.Writer(dataFile))
+        {
             // Insert the domains into a temporary table, then use that to filter the atags table
 
             stmt.executeUpdate("create table domains (domain varchar)");
@@ -37,57 +53,57 @@ public class AnchorTagsImpl implements AnchorTagsSource {
 
             // Project the atags table down to only the relevant domains.  This looks like an SQL injection
             // vulnerability if you're a validation tool, but the string comes from a trusted source.
-            stmt.executeUpdate("""
-                create table atags as 
-                    select * from '%s'  
-                    where dest in (select * from domains)
+            var rs = stmt.executeQuery("""
+                select
+                    dest,
+                    unnest(text) as 'text',
+                    unnest(url) as 'url',
+                    unnest(source) as 'source'
+                from '%s'
+                where dest in (select * from domains)
                 """.formatted(atagsPath.toAbsolutePath()));
 
-            // Free up the memory used by the domains table
-            stmt.executeUpdate("drop table domains");
-
-            // Create an index on the dest column to speed up queries
-            stmt.executeUpdate("create index atags_dest on atags(dest)");
-
-            // This is probably not necessary
-            if (!duckdbConnection.getAutoCommit()) {
-                duckdbConnection.commit();
+            while (rs.next()) {
+                writer.add(rs.getString("dest"), rs.getString("url"), rs.getString("text"), rs.getString("source"));
             }
         }
+        catch (IOException ex) {
+            deleteDataFile();
+            throw new UncheckedIOException(ex);
+        }
+        catch (SQLException ex) {
+            deleteDataFile();
+            throw ex;
+        }
 
-        logger.info("Finished loading!");
+        try {
+            anchorTagsFile = AnchorTagsFile.open(dataFile);
+        }
+        catch (IOException ex) {
+            deleteDataFile();
+            throw new UncheckedIOException(ex);
+        }
 
+        logger.info("Finished loading atags for {} domains!", anchorTagsFile.domainCount());
     }
 
     @Override
-    public synchronized DomainLinks getAnchorTags(EdgeDomain domain) {
-        List<LinkWithText> links = new ArrayList<>();
-
-        try (var ps = duckdbConnection.prepareStatement("""
-            select 
-                unnest(text) as 'text', 
-                unnest(url) as 'url', 
-                unnest(source) as 'source'
-            from atags
-            where dest = ?
-            """))
-        {
-            ps.setString(1, domain.toString());
-            var rs = ps.executeQuery();
-            while (rs.next()) {
-                links.add(new LinkWithText(rs.getString("url"), rs.getString("text"), rs.getString("source")));
-            }
-            return new DomainLinks(links);
-        }
-        catch (SQLException ex) {
-            logger.warn("Failed to get atags for " + domain, ex);
-        }
-
-        return new DomainLinks();
+    public DomainLinks getAnchorTags(EdgeDomain domain) {
+        return new DomainLinks(anchorTagsFile.getLinks(domain.toString()));
     }
 
     @Override
     public void close() throws Exception {
-        duckdbConnection.close();
+        anchorTagsFile.close();
+        deleteDataFile();
+    }
+
+    private void deleteDataFile() {
+        try {
+            Files.deleteIfExists(dataFile);
+        }
+        catch (IOException ex) {
+            logger.warn("Failed to delete atags data file " + dataFile, ex);
+        }
     }
 }
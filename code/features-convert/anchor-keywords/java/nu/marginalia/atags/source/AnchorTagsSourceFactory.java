@@ -50,7 +50,7 @@ public class AnchorTagsSourceFactory {
     }
 
     // Only get domains that are assigned to this node.  This reduces the amount of data
-    // that needs to be loaded into the duckdb instance to a more manageable level, and keeps
+    // that needs to be projected out of the atags file to a more manageable level, and keeps
     // the memory footprint of the service down.
     private List<EdgeDomain> getRelevantDomainsByNodeAffinity() {
         if (dataSource == null)
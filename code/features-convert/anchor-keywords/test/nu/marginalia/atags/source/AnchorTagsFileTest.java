@@ -0,0 +1,118 @@
+package nu.marginalia.atags.source;
+
+import nu.marginalia.atags.model.LinkWithText;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnchorTagsFileTest {
+    Path tempFile;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempFile = Files.createTempFile(getClass().getSimpleName(), ".dat");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.deleteIfExists(tempFile);
+    }
+
+    @Test
+    void testLookup() throws IOException {
+        try (var writer = new AnchorTagsFile.Writer(tempFile)) {
+            writer.add("www.marginalia.nu", "www.marginalia.nu/log/", "weblog", "memex.marginalia.nu");
+            writer.add("www.marginalia.nu", "www.marginalia.nu/", "marginalia", null);
+            writer.add("search.marginalia.nu", "search.marginalia.nu/", "search engine", "news.ycombinator.com");
+            writer.add("räksmörgås.se", "räksmörgås.se/", "smörgås", "www.example.com");
+
+            // Links to a domain that has been seen before
+            writer.add("www.marginalia.nu", "www.marginalia.nu/about/", "about", "www.example.com");
+        }
+
+        try (var file = AnchorTagsFile.open(tempFile)) {
+            assertEquals(4, file.domainCount());
+
+            assertEquals(new HashSet<>(List.of(
+                    new LinkWithText("www.marginalia.nu/log/", "weblog", "memex.marginalia.nu"),
+                    new LinkWithText("www.marginalia.nu/", "marginalia", null),
+                    new LinkWithText("www.marginalia.nu/about/", "about", "www.example.com")
+            )), new HashSet<>(file.getLinks("www.marginalia.nu")));
+
+            assertEquals(List.of(new LinkWithText("search.marginalia.nu/", "search engine", "news.ycombinator.com")),
+                    file.getLinks("search.marginalia.nu"));
+            assertEquals(List.of(new LinkWithText("räksmörgås.se/", "smörgås", "www.example.com")),
+                    file.getLinks("räksmörgås.se"));
+
+            assertEquals(List.of(), file.getLinks("marginalia.nu"));
+            assertEquals(List.of(), file.getLinks(""));
+        }
+    }
+
+    @Test
+    void testEmpty() throws IOException {
+        try (var writer = new AnchorTagsFile.Writer(tempFile)) {
+            // No links
+        }
+
+        try (var file = AnchorTagsFile.open(tempFile)) {
+            assertEquals(0, file.domainCount());
+            assertEquals(List.of(), file.getLinks("www.marginalia.nu"));
+        }
+    }
+
+    @Test
+    void testBadFile() throws IOException {
+        Files.writeString(tempFile, "this is not an anchor tags file");
+
+        assertThrows(IOException.class, () -> AnchorTagsFile.open(tempFile));
+    }
+
+    @Test
+    void testConcurrentLookups() throws Exception {
+        int domains = 5_000;
+
+        try (var writer = new AnchorTagsFile.Writer(tempFile)) {
+            for (int i = 0; i < domains; i++) {
+                for (int j = 0; j <= i % 5; j++) {
+                    writer.add("www.domain" + i + ".com", "www.domain" + i + ".com/" + j, "text " + j, "www.source" + j + ".com");
+                }
+            }
+        }
+
+        try (var file = AnchorTagsFile.open(tempFile);
+             var executor = Executors.newFixedThreadPool(8))
+        {
+            List<Future<?>> tasks = new ArrayList<>();
+
+            for (int t = 0; t < 8; t++) {
+                tasks.add(executor.submit(() -> {
+                    for (int i = 0; i < domains; i++) {
+                        var links = file.getLinks("www.domain" + i + ".com");
+
+                        assertEquals(i % 5 + 1, links.size());
+                        for (int j = 0; j < links.size(); j++) {
+                            assertEquals(new LinkWithText("www.domain" + i + ".com/" + j, "text " + j, "www.source" + j + ".com"),
+                                    links.get(j));
+                        }
+                    }
+                }));
+            }
+
+            for (var task : tasks) {
+                task.get();
+            }
+        }
+    }
+}
@@ -14,14 +14,13 @@ import nu.marginalia.process.log.WorkLog;
 import nu.marginalia.storage.FileStorageService;
 import nu.marginalia.storage.model.FileStorage;
 import nu.marginalia.storage.model.FileStorageId;
+import nu.marginalia.term_frequency_dict.LongIntHashTable;
 import nu.marginalia.util.SimpleBlockingThreadPool;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -74,20 +73,21 @@ public class TermFrequencyExporter implements ExporterIf {
         var tmpFile = Files.createTempFile(destStorage.asPath(), "freqs", ".dat.tmp",
                 PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r--r--")));
 
-        try (var dos = new DataOutputStream(Files.newOutputStream(tmpFile))) {
+        // Written as a hash table that TermFrequencyDict can memory map as-is
+        try {
             synchronized (counts) {
                 counts.put(DOC_COUNT_KEY, docCount.get());
 
+                var builder = LongIntHashTable.Builder.toFile(tmpFile, counts.size());
                 counts.forEachEntry((hash, cnt) -> {
-                    try {
-                        dos.writeLong(hash);
-                        dos.writeLong(cnt);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
+                    builder.put(hash, cnt);
                     return true;
                 });
+                builder.build().close();
             }
+
+            // The builder replaces the file, so the permissions need to be set again
+            Files.setPosixFilePermissions(tmpFile, PosixFilePermissions.fromString("rw-r--r--"));
             Files.move(tmpFile, destStorage.asPath().resolve("freqs.dat"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
         }
         catch (Exception ex) {
@@ -3,9 +3,10 @@ package nu.marginalia.linkgraph;
 import gnu.trove.list.array.TIntArrayList;
 
 import java.nio.file.Path;
+import java.util.function.IntConsumer;
 
-/** A repository of source-destination pairs of domain IDs.  The database is loaded into memory from
- * a source.  The data is then kept in memory, reloading it upon switchInput().
+/** A repository of source-destination pairs of domain IDs.  The database is loaded from
+ * a source, reloading it upon switchInput().
  */
 public interface DomainLinks {
     /** Replace the current db file with the provided file.  The provided file will be deleted.
@@ -16,6 +17,9 @@ public interface DomainLinks {
     /** Find all destinations for the given source. */
     TIntArrayList findDestinations(int source);
 
+    /** Call the consumer with each destination for the given source, in ascending order. */
+    void forEachDestination(int source, IntConsumer consumer);
+
     /** Count the number of destinations for the given source. */
     int countDestinations(int source);
 
@@ -23,6 +27,9 @@ public interface DomainLinks {
     TIntArrayList findSources(int dest);
 
 
+    /** Call the consumer with each source for the given destination, in ascending order. */
+    void forEachSource(int dest, IntConsumer consumer);
+
     /** Count the number of sources for the given destination. */
     int countSources(int source);
 
@@ -61,12 +61,8 @@ public class PartitionLinkGraphService extends LinkGraphApiGrpc.LinkGraphApiImpl
     public void getLinksFromDomain(RpcDomainId request,
                                    StreamObserver<RpcDomainIdList> responseObserver) {
 
-        var links = domainLinks.findDestinations(request.getDomainId());
-
         var rspBuilder = RpcDomainIdList.newBuilder();
-        for (int i = 0; i < links.size(); i++) {
-            rspBuilder.addDomainId(links.get(i));
-        }
+        domainLinks.forEachDestination(request.getDomainId(), rspBuilder::addDomainId);
         responseObserver.onNext(rspBuilder.build());
 
         responseObserver.onCompleted();
@@ -76,12 +72,8 @@ public class PartitionLinkGraphService extends LinkGraphApiGrpc.LinkGraphApiImpl
     public void getLinksToDomain(RpcDomainId request,
                                  StreamObserver<RpcDomainIdList> responseObserver) {
 
-        var links = domainLinks.findSources(request.getDomainId());
-
         var rspBuilder = RpcDomainIdList.newBuilder();
-        for (int i = 0; i < links.size(); i++) {
-            rspBuilder.addDomainId(links.get(i));
-        }
+        domainLinks.forEachSource(request.getDomainId(), rspBuilder::addDomainId);
         responseObserver.onNext(rspBuilder.build());
 
         responseObserver.onCompleted();
@@ -7,9 +7,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.function.IntConsumer;
 
 /** DomainLinkDb that delegates a FileDomainLinkDb, but handles the case where the database
  * is not yet loaded.  This speeds up the startup of the index service, as the database is
@@ -40,7 +39,7 @@ public class DelayingDomainLinks implements DomainLinks {
 
     @Override
     public void switchInput(Path newFilename) throws Exception {
-        Files.move(newFilename, filename, StandardCopyOption.REPLACE_EXISTING);
+        FileDomainLinks.moveInput(newFilename, filename);
 
         Thread.ofPlatform().start(() -> {
             try {
@@ -63,6 +62,13 @@ public class DelayingDomainLinks implements DomainLinks {
         return currentDb.findDestinations(source);
     }
 
+    @Override
+    public void forEachDestination(int source, IntConsumer consumer) {
+        if (currentDb != null) {
+            currentDb.forEachDestination(source, consumer);
+        }
+    }
+
     @Override
     public int countDestinations(int source) {
         if (currentDb == null)
@@ -79,6 +85,13 @@ public class DelayingDomainLinks implements DomainLinks {
         return currentDb.findSources(dest);
     }
 
+    @Override
+    public void forEachSource(int dest, IntConsumer consumer) {
+        if (currentDb != null) {
+            currentDb.forEachSource(dest, consumer);
+        }
+    }
+
     @Override
     public int countSources(int source) {
         if (currentDb == null)
@@ -3,7 +3,8 @@ package nu.marginalia.linkgraph.impl;
 import com.google.inject.name.Named;
 import gnu.trove.list.array.TIntArrayList;
 import nu.marginalia.linkgraph.DomainLinks;
-import nu.marginalia.linkgraph.io.DomainLinksLoader;
+import nu.marginalia.linkgraph.io.DomainLinksGraph;
+import nu.marginalia.linkgraph.io.DomainLinksGraphWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,16 +12,19 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.util.Arrays;
-
-/** Canonical DomainLinkDb implementation.  The database is loaded into memory from
- * a file.  The database is then kept in memory, reloading it upon switchInput().
+import java.util.function.IntConsumer;
+
+/** Canonical DomainLinkDb implementation.  The database is memory mapped from
+ * the link graph file built by the loader next to the file of link pairs, and
+ * is replaced upon switchInput().
+ * <p></p>
+ * If the link graph file is missing or older than the link pairs, e.g. after
+ * restoring a backup, it is built before the database is loaded.
   */
 public class FileDomainLinks implements DomainLinks {
     private static final Logger logger = LoggerFactory.getLogger(FileDomainLinks.class);
     private final Path filename;
-    private volatile long[] sourceToDest = new long[0];
-    private volatile long[] destToSource = new long[0];
+    private volatile DomainLinksGraph graph;
 
     public FileDomainLinks(@Named("domain-linkdb-file") Path filename) throws IOException {
         this.filename = filename;
@@ -32,97 +36,102 @@ public class FileDomainLinks implements DomainLinks {
 
     @Override
     public void switchInput(Path newFilename) throws IOException {
-        Files.move(newFilename, filename, StandardCopyOption.REPLACE_EXISTING);
+        moveInput(newFilename, filename);
         loadInput(filename);
     }
 
-    public void loadInput(Path filename) throws IOException {
-        try (var loader = new DomainLinksLoader(filename)) {
-            int size = loader.size();
-
-            var newSourceToDest = new long[size];
-            var newDestToSource = new long[size];
-
-            int i = 0;
-            while (loader.next()) {
-                long source = loader.getSource();
-                long dest = loader.getDest();
+    /** Move the link pairs file and its link graph file, if present */
+    static void moveInput(Path from, Path to) throws IOException {
+        Path fromGraph = DomainLinksGraph.graphFileFor(from);
+        Path toGraph = DomainLinksGraph.graphFileFor(to);
 
-                newSourceToDest[i] = (source << 32) | dest;
-                newDestToSource[i] = (dest << 32) | source;
+        if (Files.exists(fromGraph)) {
+            Files.move(fromGraph, toGraph, StandardCopyOption.REPLACE_EXISTING);
+        }
+        else {
+            Files.deleteIfExists(toGraph);
+        }
 
-                i++;
-            }
+        Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+    }
 
-            Arrays.sort(newSourceToDest);
-            Arrays.sort(newDestToSource);
+    public void loadInput(Path filename) throws IOException {
+        Path graphFile = DomainLinksGraph.graphFileFor(filename);
 
-            sourceToDest = newSourceToDest;
-            destToSource = newDestToSource;
+        if (!Files.exists(graphFile)
+          || Files.getLastModifiedTime(graphFile).compareTo(Files.getLastModifiedTime(filename)) < 0)
+        {
+            logger.info("Link graph file {} is missing or out of date, building it", graphFile);
+            DomainLinksGraphWriter.build(filename);
         }
+
+        graph = DomainLinksGraph.open(graphFile);
     }
 
     @Override
     public TIntArrayList findDestinations(int source) {
-        return findRelated(sourceToDest, source);
+        var currentGraph = graph;
+        if (currentGraph == null)
+            return new TIntArrayList();
+
+        return findRelated(currentGraph.outgoing(), source);
     }
 
     @Override
     public TIntArrayList findSources(int dest) {
-        return findRelated(destToSource, dest);
-    }
+        var currentGraph = graph;
+        if (currentGraph == null)
+            return new TIntArrayList();
 
-    @Override
-    public int countDestinations(int source) {
-        return countRelated(sourceToDest, source);
+        return findRelated(currentGraph.incoming(), dest);
     }
 
     @Override
-    public int countSources(int dest) {
-        return countRelated(destToSource, dest);
+    public void forEachDestination(int source, IntConsumer consumer) {
+        var currentGraph = graph;
+        if (currentGraph != null) {
+            currentGraph.outgoing().forEach(source, consumer);
+        }
     }
 
     @Override
-    public void forEach(SourceDestConsumer consumer) {
-        for (long val : sourceToDest) {
-            consumer.accept((int) (val >>> 32), (int) (val & 0xFFFF_FFFFL));
+    public void forEachSource(int dest, IntConsumer consumer) {
+        var currentGraph = graph;
+        if (currentGraph != null) {
+            currentGraph.incoming().forEach(dest, consumer);
         }
     }
 
-    private TIntArrayList findRelated(long[] range, int key) {
-        long keyLong = Integer.toUnsignedLong(key) << 32;
-        long nextKeyLong = Integer.toUnsignedLong(key + 1) << 32;
-
-        int start = Arrays.binarySearch(range, keyLong);
-
-        if (start < 0) {
-            // Key is not found, get the insertion point
-            start = -start - 1;
-        }
-
-        TIntArrayList result = new TIntArrayList();
-
-        for (int i = start; i < range.length && range[i] < nextKeyLong; i++) {
-            result.add((int) (range[i] & 0xFFFF_FFFFL));
-        }
+    @Override
+    public int countDestinations(int source) {
+        var currentGraph = graph;
+        if (currentGraph == null)
+            return 0;
 
-        return result;
+        return currentGraph.outgoing().count(source);
     }
 
-    private int countRelated(long[] range, int key) {
-        long keyLong = Integer.toUnsignedLong(key) << 32;
-        long nextKeyLong = Integer.toUnsignedLong(key + 1) << 32;
+    @Override
+    public int countSources(int dest) {
+        var currentGraph = graph;
+        if (currentGraph == null)
+            return 0;
 
-        int start = Arrays.binarySearch(range, keyLong);
+        return currentGraph.incoming().count(dest);
+    }
 
-        if (start < 0) {
-            // Key is not found, get the insertion point
-            start = -start - 1;
+    @Override
+    public void forEach(SourceDestConsumer consumer) {
+        var currentGraph = graph;
+        if (currentGraph != null) {
+            currentGraph.outgoing().forEach(consumer);
         }
+    }
 
-        int num = 0;
-        for (int i = start; i < range.length && range[i] < nextKeyLong; i++, num++);
-        return num;
+    private TIntArrayList findRelated(DomainLinksGraph.Adjacency adjacency, int key) {
+        TIntArrayList result = new TIntArrayList(adjacency.count(key));
+        adjacency.forEach(key, result::add);
+        return result;
     }
 
 }
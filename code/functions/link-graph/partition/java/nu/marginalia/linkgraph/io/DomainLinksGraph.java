@@ -0,0 +1,149 @@
+package nu.marginalia.linkgraph.io;
+
+import nu.marginalia.linkgraph.DomainLinks;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntConsumer;
+
+/** Memory mapped link graph file, as written by {@link DomainLinksGraphWriter}.
+ * <p></p>
+ * The file holds the links in both directions in compressed sparse row form,
+ * with an offset per domain id into a list of the linked domain ids.  The lists
+ * are sorted and delta coded as varints, preceded by their length.
+ * <p></p>
+ * <pre>
+ * header:    magic, number of links,
+ *            [number of domains, offsets start, lists start] for outgoing links,
+ *            [number of domains, offsets start, lists start] for incoming links
+ * lists:     [varint count, varint delta...] per domain with links
+ * offsets:   long per domain, plus an end offset, relative to the lists start
+ * </pre>
+ * <p></p>
+ * The lookups don't allocate.  The mapping is released by the garbage collector
+ * once the graph is no longer referenced, so that a graph can be replaced while
+ * other threads are still reading from it.
+ */
+public class DomainLinksGraph {
+    static final long MAGIC = 0x4c4e4b4753523031L; // "LNKGSR01"
+    static final int HEADER_SIZE = 8 * 8;
+
+    static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final long numLinks;
+    private final Adjacency outgoing;
+    private final Adjacency incoming;
+
+    private DomainLinksGraph(MemorySegment segment) {
+        if (segment.byteSize() < HEADER_SIZE || segment.get(LONG_LE, 0) != MAGIC) {
+            throw new IllegalArgumentException("Not a link graph file");
+        }
+
+        numLinks = segment.get(LONG_LE, 8);
+        outgoing = new Adjacency(segment, segment.get(LONG_LE, 16), segment.get(LONG_LE, 24), segment.get(LONG_LE, 32));
+        incoming = new Adjacency(segment, segment.get(LONG_LE, 40), segment.get(LONG_LE, 48), segment.get(LONG_LE, 56));
+    }
+
+    public static DomainLinksGraph open(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new DomainLinksGraph(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), Arena.ofAuto()));
+        }
+    }
+
+    /** Returns the name of the link graph file for a file of link pairs */
+    public static Path graphFileFor(Path linksFile) {
+        return linksFile.resolveSibling(linksFile.getFileName() + ".csr");
+    }
+
+    /** The links from each domain */
+    public Adjacency outgoing() {
+        return outgoing;
+    }
+
+    /** The links to each domain */
+    public Adjacency incoming() {
+        return incoming;
+    }
+
+    public long numLinks() {
+        return numLinks;
+    }
+
+    /** The links of each domain in one direction */
+    public static class Adjacency {
+        private final MemorySegment segment;
+        private final int numDomains;
+        private final long offsetsStart;
+        private final long listsStart;
+
+        Adjacency(MemorySegment segment, long numDomains, long offsetsStart, long listsStart) {
+            this.segment = segment;
+            this.numDomains = (int) numDomains;
+            this.offsetsStart = offsetsStart;
+            this.listsStart = listsStart;
+        }
+
+        /** Returns the number of links of the domain */
+        public int count(int domainId) {
+            if (domainId < 0 || domainId >= numDomains)
+                return 0;
+
+            long pos = listsStart + segment.get(LONG_LE, offsetsStart + 8L * domainId);
+            long end = listsStart + segment.get(LONG_LE, offsetsStart + 8L * domainId + 8);
+
+            if (pos == end)
+                return 0;
+
+            int count = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = segment.get(ValueLayout.JAVA_BYTE, pos++);
+                count |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    return count;
+            }
+        }
+
+        /** Calls the consumer with the ids of the linked domains, in ascending order */
+        public void forEach(int domainId, IntConsumer consumer) {
+            if (domainId < 0 || domainId >= numDomains)
+                return;
+
+            long pos = listsStart + segment.get(LONG_LE, offsetsStart + 8L * domainId);
+            long end = listsStart + segment.get(LONG_LE, offsetsStart + 8L * domainId + 8);
+
+            if (pos == end)
+                return;
+
+            // Skip the count
+            while (segment.get(ValueLayout.JAVA_BYTE, pos++) < 0);
+
+            int id = 0;
+            while (pos < end) {
+                int delta = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = segment.get(ValueLayout.JAVA_BYTE, pos++);
+                    delta |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+
+                id += delta;
+                consumer.accept(id);
+            }
+        }
+
+        /** Calls the consumer with each link, ordered by domain id and then by linked domain id */
+        public void forEach(DomainLinks.SourceDestConsumer consumer) {
+            for (int domainId = 0; domainId < numDomains; domainId++) {
+                final int from = domainId;
+                forEach(domainId, linked -> consumer.accept(from, linked));
+            }
+        }
+    }
+}
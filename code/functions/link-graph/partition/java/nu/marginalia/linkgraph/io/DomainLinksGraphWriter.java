@@ -0,0 +1,198 @@
+package nu.marginalia.linkgraph.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/** Builds the {@link DomainLinksGraph} file for a file of link pairs, as written
+ * by {@link DomainLinksWriter}.  This is done by the loader, so that the index
+ * service only needs to map the finished file.
+ */
+public class DomainLinksGraphWriter {
+    private static final Logger logger = LoggerFactory.getLogger(DomainLinksGraphWriter.class);
+
+    /** Build the graph file {@link DomainLinksGraph#graphFileFor(Path)} for the links file */
+    public static Path build(Path linksFile) throws IOException {
+        Path graphFile = DomainLinksGraph.graphFileFor(linksFile);
+        Path tmpFile = graphFile.resolveSibling(graphFile.getFileName() + ".tmp");
+
+        long[] links = readLinks(linksFile);
+
+        try (var channel = FileChannel.open(tmpFile,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            var out = new Output(channel, DomainLinksGraph.HEADER_SIZE);
+
+            // Sort by source, then destination
+            Arrays.sort(links);
+            long[] outgoing = writeAdjacency(out, links);
+
+            // Swap the source and destination, and sort by destination, then source
+            for (int i = 0; i < links.length; i++) {
+                links[i] = (links[i] << 32) | (links[i] >>> 32);
+            }
+            Arrays.sort(links);
+            long[] incoming = writeAdjacency(out, links);
+
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(DomainLinksGraph.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(DomainLinksGraph.MAGIC);
+            header.putLong(links.length);
+            for (long val : outgoing) header.putLong(val);
+            for (long val : incoming) header.putLong(val);
+            header.flip();
+
+            for (long pos = 0; header.hasRemaining(); ) {
+                pos += channel.write(header, pos);
+            }
+            channel.force(false);
+        }
+
+        Files.move(tmpFile, graphFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        logger.info("Built link graph with {} links, {} MB", links.length, Files.size(graphFile) >> 20);
+
+        return graphFile;
+    }
+
+    /** Read the links as (source, destination) pairs packed into longs */
+    private static long[] readLinks(Path linksFile) throws IOException {
+        try (var loader = new DomainLinksLoader(linksFile)) {
+            long[] links = new long[loader.size()];
+
+            int n = 0;
+            int skipped = 0;
+
+            while (loader.next()) {
+                int source = loader.getSource();
+                int dest = loader.getDest();
+
+                // Links to or from domains without an id
+                if (source < 0 || dest < 0) {
+                    skipped++;
+                    continue;
+                }
+
+                links[n++] = ((long) source << 32) | dest;
+            }
+
+            if (skipped > 0) {
+                logger.warn("Skipped {} links with invalid domain ids", skipped);
+            }
+
+            return n == links.length ? links : Arrays.copyOf(links, n);
+        }
+    }
+
+    /** Write the lists and offsets of the sorted links, and return the header fields for them */
+    private static long[] writeAdjacency(Output out, long[] links) throws IOException {
+        final int numDomains = links.length == 0 ? 0 : (int) (links[links.length - 1] >>> 32) + 1;
+        final long[] offsets = new long[numDomains + 1];
+        final long listsStart = out.position();
+
+        int i = 0;
+        for (int domainId = 0; domainId < numDomains; domainId++) {
+            offsets[domainId] = out.position() - listsStart;
+
+            int end = i;
+            while (end < links.length && (int) (links[end] >>> 32) == domainId) {
+                end++;
+            }
+
+            if (end == i)
+                continue;
+
+            out.putVarint(end - i);
+
+            int prev = 0;
+            for (; i < end; i++) {
+                int linked = (int) links[i];
+                out.putVarint(linked - prev);
+                prev = linked;
+            }
+        }
+        offsets[numDomains] = out.position() - listsStart;
+
+        out.alignTo(8);
+
+        final long offsetsStart = out.position();
+        for (long offset : offsets) {
+            out.putLong(offset);
+        }
+
+        return new long[] { numDomains, offsetsStart, listsStart };
+    }
+
+    /** Buffered sequential writing to a file channel */
+    private static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+
+        Output(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        long position() {
+            return position;
+        }
+
+        void putVarint(int val) throws IOException {
+            ensureRemaining(5);
+
+            while ((val & ~0x7F) != 0) {
+                buffer.put((byte) ((val & 0x7F) | 0x80));
+                val >>>= 7;
+                position++;
+            }
+            buffer.put((byte) val);
+            position++;
+        }
+
+        void putLong(long val) throws IOException {
+            ensureRemaining(8);
+
+            buffer.putLong(val);
+            position += 8;
+        }
+
+        void alignTo(int alignment) throws IOException {
+            ensureRemaining(alignment);
+
+            while (position % alignment != 0) {
+                buffer.put((byte) 0);
+                position++;
+            }
+        }
+
+        private void ensureRemaining(int n) throws IOException {
+            if (buffer.remaining() < n) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+
+            long writePos = position - buffer.remaining();
+            while (buffer.hasRemaining()) {
+                writePos += channel.write(buffer, writePos);
+            }
+
+            buffer.clear();
+        }
+    }
+}
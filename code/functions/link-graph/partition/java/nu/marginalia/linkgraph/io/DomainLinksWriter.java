@@ -1,5 +1,6 @@
 package nu.marginalia.linkgraph.io;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -8,13 +9,15 @@ import java.nio.file.StandardOpenOption;
 
 public class DomainLinksWriter implements AutoCloseable {
     private final DataOutputStream stream;
+    private final Path fileName;
 
     public DomainLinksWriter(Path fileName) throws IOException {
-        this.stream = new DataOutputStream(Files.newOutputStream(fileName,
+        this.fileName = fileName;
+        this.stream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(fileName,
                 StandardOpenOption.CREATE,
                 StandardOpenOption.WRITE,
                 StandardOpenOption.TRUNCATE_EXISTING)
-        );
+        ));
     }
 
     public void write(int sourceDomainId, int destDomainId) throws IOException {
@@ -22,6 +25,14 @@ public class DomainLinksWriter implements AutoCloseable {
                           | Integer.toUnsignedLong(destDomainId));
     }
 
+    /** Close the file, and build the link graph file that is loaded by the index service
+     * from it, see {@link DomainLinksGraph} */
+    public void finish() throws IOException {
+        stream.close();
+
+        DomainLinksGraphWriter.build(fileName);
+    }
+
     @Override
     public void close() throws IOException {
         stream.close();
@@ -1,5 +1,8 @@
 package nu.marginalia.linkgraph;
 
+import gnu.trove.list.array.TIntArrayList;
+import nu.marginalia.linkgraph.impl.FileDomainLinks;
+import nu.marginalia.linkgraph.io.DomainLinksGraph;
 import nu.marginalia.linkgraph.io.DomainLinksLoader;
 import nu.marginalia.linkgraph.io.DomainLinksWriter;
 import org.junit.jupiter.api.AfterEach;
@@ -10,6 +13,9 @@ import org.junit.jupiter.api.Test;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 public class DomainLinkDbTest {
     Path fileName;
@@ -20,6 +26,7 @@ public class DomainLinkDbTest {
     @AfterEach
     public void tearDown() throws IOException {
         Files.deleteIfExists(fileName);
+        Files.deleteIfExists(DomainLinksGraph.graphFileFor(fileName));
     }
 
     @Test
@@ -49,4 +56,58 @@ public class DomainLinkDbTest {
             throw new RuntimeException(ex);
         }
     }
+
+    @Test
+    public void testGraph() throws IOException {
+        Random r = new Random(1);
+
+        List<long[]> links = new ArrayList<>();
+        try (var writer = new DomainLinksWriter(fileName)) {
+            for (int i = 0; i < 10_000; i++) {
+                // Mostly small ids with the occasional large one, to get both short and long varints
+                int source = r.nextInt(10) == 0 ? r.nextInt(1_000_000) : r.nextInt(500);
+                int dest = r.nextInt(10) == 0 ? r.nextInt(1_000_000) : r.nextInt(500);
+
+                writer.write(source, dest);
+                links.add(new long[] { source, dest });
+            }
+
+            // Duplicate links are kept
+            writer.write(3, 7);
+            writer.write(3, 7);
+            links.add(new long[] { 3, 7 });
+            links.add(new long[] { 3, 7 });
+
+            writer.finish();
+        }
+
+        var domainLinks = new FileDomainLinks(fileName);
+
+        for (int id : new int[] { 0, 3, 7, 250, 499, 500, 999_999, 1_000_000, Integer.MAX_VALUE, -1 }) {
+            assertLinks(expected(links, id, 0, 1), domainLinks.findDestinations(id), domainLinks.countDestinations(id));
+            assertLinks(expected(links, id, 1, 0), domainLinks.findSources(id), domainLinks.countSources(id));
+        }
+        for (long[] link : links.subList(0, 100)) {
+            int id = (int) link[0];
+            assertLinks(expected(links, id, 0, 1), domainLinks.findDestinations(id), domainLinks.countDestinations(id));
+            assertLinks(expected(links, id, 1, 0), domainLinks.findSources(id), domainLinks.countSources(id));
+        }
+
+        int[] count = new int[1];
+        domainLinks.forEach((source, dest) -> count[0]++);
+        Assertions.assertEquals(links.size(), count[0]);
+    }
+
+    private int[] expected(List<long[]> links, int id, int keyIdx, int valIdx) {
+        return links.stream()
+                .filter(link -> link[keyIdx] == id)
+                .mapToInt(link -> (int) link[valIdx])
+                .sorted()
+                .toArray();
+    }
+
+    private void assertLinks(int[] expected, TIntArrayList actual, int count) {
+        Assertions.assertArrayEquals(expected, actual.toArray());
+        Assertions.assertEquals(expected.length, count);
+    }
 }
@@ -4,7 +4,6 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import io.grpc.stub.StreamObserver;
 import io.prometheus.client.Histogram;
-import lombok.SneakyThrows;
 import nu.marginalia.api.searchquery.*;
 import nu.marginalia.api.searchquery.model.query.ProcessedQuery;
 import nu.marginalia.api.searchquery.model.query.QueryParams;
@@ -35,49 +34,54 @@ public class QueryGRPCService extends QueryApiGrpc.QueryApiImplBase {
     private final QueryFactory queryFactory;
     private final DomainBlacklist blacklist;
     private final IndexClient indexClient;
+    private final QueryResponseCache responseCache;
+
     @Inject
     public QueryGRPCService(QueryFactory queryFactory,
                             DomainBlacklist blacklist,
-                            IndexClient indexClient)
+                            IndexClient indexClient,
+                            QueryResponseCache responseCache)
     {
         this.queryFactory = queryFactory;
         this.blacklist = blacklist;
         this.indexClient = indexClient;
+        this.responseCache = responseCache;
     }
 
     public void query(RpcQsQuery request, StreamObserver<RpcQsResponse> responseObserver)
     {
         try {
-            wmsa_qs_query_time_grpc
+            var response = wmsa_qs_query_time_grpc
                     .labels(Integer.toString(request.getQueryLimits().getTimeoutMs()),
                             Integer.toString(request.getQueryLimits().getResultsTotal()))
-                    .time(() -> {
-                var params = QueryProtobufCodec.convertRequest(request);
-                var query = queryFactory.createQuery(params, ResultRankingParameters.sensibleDefaults());
-
-                RpcIndexQuery indexRequest = QueryProtobufCodec.convertQuery(request, query);
-                List<RpcDecoratedResultItem> bestItems = executeQueries(indexRequest, request.getQueryLimits().getResultsTotal());
-
-                var responseBuilder = RpcQsResponse.newBuilder()
-                        .addAllResults(bestItems)
-                        .setSpecs(indexRequest)
-                        .addAllSearchTermsHuman(query.searchTermsHuman);
+                    .time(() -> responseCache.getOrCompute(request, () -> executeQuery(request)));
 
-                if (query.domain != null)
-                    responseBuilder.setDomain(query.domain);
-
-                responseObserver.onNext(responseBuilder.build());
-                responseObserver.onCompleted();
-            });
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
         } catch (Exception e) {
             logger.error("Exception", e);
             responseObserver.onError(e);
         }
     }
 
-    private static final Comparator<RpcDecoratedResultItem> comparator =
-            Comparator.comparing(RpcDecoratedResultItem::getRankingScore);
+    private QueryResponseCache.QueryResult executeQuery(RpcQsQuery request) {
+        var params = QueryProtobufCodec.convertRequest(request);
+        var query = queryFactory.createQuery(params, ResultRankingParameters.sensibleDefaults());
+
+        RpcIndexQuery indexRequest = QueryProtobufCodec.convertQuery(request, query);
+        var indexResults = executeQueries(indexRequest, request.getQueryLimits().getResultsTotal());
 
+        var responseBuilder = RpcQsResponse.newBuilder()
+                .addAllResults(indexResults.results())
+                .setSpecs(indexRequest)
+                .addAllSearchTermsHuman(query.searchTermsHuman);
+
+        if (query.domain != null)
+            responseBuilder.setDomain(query.domain);
+
+        // Responses that are missing the results of an index node are not cached
+        return new QueryResponseCache.QueryResult(responseBuilder.build(), indexResults.complete());
+    }
 
     private boolean isBlacklisted(RpcDecoratedResultItem item) {
         return blacklist.isBlacklisted(UrlIdCodec.getDomainId(item.getRawItem().getCombinedId()));
@@ -94,6 +98,7 @@ public class QueryGRPCService extends QueryApiGrpc.QueryApiImplBase {
         var items = executeQueries(
                 QueryProtobufCodec.convertQuery(originalQuery, query),
                 count)
+                .results()
                 .stream().map(QueryProtobufCodec::convertQueryResult)
                 .toList();
 
@@ -103,16 +108,8 @@ public class QueryGRPCService extends QueryApiGrpc.QueryApiImplBase {
     public record DetailedDirectResult(ProcessedQuery processedQuery,
                                 List<DecoratedSearchResultItem> result) {}
 
-    @SneakyThrows
-    List<RpcDecoratedResultItem> executeQueries(RpcIndexQuery indexRequest, int totalSize) {
-        var results = indexClient.executeQueries(indexRequest);
-
-        results.sort(comparator);
-        results.removeIf(this::isBlacklisted);
-        if (results.size() > totalSize) {
-            results = results.subList(0, totalSize);
-        }
-        return results;
+    IndexClient.IndexQueryResults executeQueries(RpcIndexQuery indexRequest, int totalSize) {
+        return indexClient.executeQueries(indexRequest, totalSize, item -> !isBlacklisted(item));
     }
 
 }
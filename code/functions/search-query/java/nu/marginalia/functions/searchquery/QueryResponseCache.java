@@ -0,0 +1,137 @@
+package nu.marginalia.functions.searchquery;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Singleton;
+import io.prometheus.client.Counter;
+import nu.marginalia.api.searchquery.RpcQsQuery;
+import nu.marginalia.api.searchquery.RpcQsResponse;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/** Coalesces identical queries and caches their responses for a short while, so that
+ * bursts of the same query, e.g. from the front page or from bots, only result in a single
+ * query to the index nodes.
+ * <p></p>
+ * Requests are keyed on the entire request, including the query limits, so a response
+ * is only shared between requests that asked for exactly the same thing.  A request that
+ * arrives while an identical request is being executed waits for its response instead of
+ * running the query again, but no longer than its own timeout plus a grace period.
+ * <p></p>
+ * The cached responses are blacklist-filtered, so the time to live also bounds how long
+ * a change to the blacklist takes to show up.  The cache is configured with the system
+ * properties query.resultCacheBytes and query.resultCacheTtlSeconds; setting the former
+ * to zero disables the cache, but not the coalescing.
+ * <p></p>
+ * Responses that are missing the results of an index node, because it failed or ran out
+ * of time, are handed to the requests that are waiting for them, but are not cached.
+ */
+@Singleton
+public class QueryResponseCache {
+    private static final Counter wmsa_qs_query_cache_hits = Counter.build()
+            .name("wmsa_qs_query_cache_hits")
+            .help("QS-side query response cache hits")
+            .register();
+    private static final Counter wmsa_qs_query_cache_misses = Counter.build()
+            .name("wmsa_qs_query_cache_misses")
+            .help("QS-side query response cache misses")
+            .register();
+    private static final Counter wmsa_qs_query_coalesced = Counter.build()
+            .name("wmsa_qs_query_coalesced")
+            .help("QS-side queries that waited for an identical query in flight")
+            .register();
+
+    private static final long maxCacheBytes = Long.getLong("query.resultCacheBytes", 32 * 1024 * 1024);
+    private static final int cacheTtlSeconds = Integer.getInteger("query.resultCacheTtlSeconds", 30);
+    private static final int coalesceGraceMs = Integer.getInteger("query.coalesceGraceMs", 1000);
+
+    private final Cache<RpcQsQuery, RpcQsResponse> cache;
+    private final ConcurrentHashMap<RpcQsQuery, CompletableFuture<RpcQsResponse>> inFlight = new ConcurrentHashMap<>();
+
+    public QueryResponseCache() {
+        this(maxCacheBytes, Duration.ofSeconds(cacheTtlSeconds));
+    }
+
+    QueryResponseCache(long maxBytes, Duration ttl) {
+        if (maxBytes > 0) {
+            cache = CacheBuilder.newBuilder()
+                    .maximumWeight(maxBytes)
+                    .weigher((RpcQsQuery k, RpcQsResponse v) -> k.getSerializedSize() + v.getSerializedSize())
+                    .expireAfterWrite(ttl)
+                    .build();
+        }
+        else {
+            cache = null;
+        }
+    }
+
+    /** The response to a query, and whether it has the results of every index node
+     * and may be cached */
+    public record QueryResult(RpcQsResponse response, boolean complete) {}
+
+    /** Return the cached response to the request, the response of an identical request
+     * that is already being executed, or else the response of the query function. */
+    public RpcQsResponse getOrCompute(RpcQsQuery request, Supplier<QueryResult> query) throws Exception {
+        RpcQsResponse cached = getCached(request);
+        if (cached != null) {
+            wmsa_qs_query_cache_hits.inc();
+            return cached;
+        }
+
+        var future = new CompletableFuture<RpcQsResponse>();
+        var existing = inFlight.putIfAbsent(request, future);
+
+        if (existing != null) {
+            wmsa_qs_query_coalesced.inc();
+            return await(existing, request.getQueryLimits().getTimeoutMs());
+        }
+
+        try {
+            // An identical request may have finished between the cache lookup
+            // and the registration of the future
+            RpcQsResponse response = getCached(request);
+
+            if (response != null) {
+                wmsa_qs_query_cache_hits.inc();
+            }
+            else {
+                wmsa_qs_query_cache_misses.inc();
+
+                QueryResult result = query.get();
+                if (cache != null && result.complete()) {
+                    cache.put(request, result.response());
+                }
+                response = result.response();
+            }
+
+            future.complete(response);
+            return response;
+        }
+        catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        }
+        finally {
+            inFlight.remove(request, future);
+        }
+    }
+
+    private RpcQsResponse getCached(RpcQsQuery request) {
+        if (cache == null)
+            return null;
+        return cache.getIfPresent(request);
+    }
+
+    private RpcQsResponse await(CompletableFuture<RpcQsResponse> future, int timeoutMs) throws Exception {
+        try {
+            return future.get(Math.max(0, timeoutMs) + coalesceGraceMs, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception cause)
+                throw cause;
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package nu.marginalia.functions.searchquery;
+
+import nu.marginalia.api.searchquery.RpcQsQuery;
+import nu.marginalia.api.searchquery.RpcQsResponse;
+import nu.marginalia.api.searchquery.RpcQueryLimits;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryResponseCacheTest {
+
+    @Test
+    void testCachesResponse() throws Exception {
+        var cache = new QueryResponseCache(1024 * 1024, Duration.ofMinutes(1));
+        var calls = new AtomicInteger();
+
+        var first = cache.getOrCompute(query("foo", 10), () -> complete("foo", calls.incrementAndGet()));
+        var second = cache.getOrCompute(query("foo", 10), () -> complete("foo", calls.incrementAndGet()));
+
+        assertEquals(1, calls.get());
+        assertEquals(first, second);
+    }
+
+    @Test
+    void testRespectsLimits() throws Exception {
+        var cache = new QueryResponseCache(1024 * 1024, Duration.ofMinutes(1));
+        var calls = new AtomicInteger();
+
+        cache.getOrCompute(query("foo", 10), () -> complete("foo", calls.incrementAndGet()));
+        cache.getOrCompute(query("foo", 20), () -> complete("foo", calls.incrementAndGet()));
+        cache.getOrCompute(query("bar", 10), () -> complete("bar", calls.incrementAndGet()));
+
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void testDisabledCache() throws Exception {
+        var cache = new QueryResponseCache(0, Duration.ofMinutes(1));
+        var calls = new AtomicInteger();
+
+        cache.getOrCompute(query("foo", 10), () -> complete("foo", calls.incrementAndGet()));
+        cache.getOrCompute(query("foo", 10), () -> complete("foo", calls.incrementAndGet()));
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void testFailureIsNotCached() throws Exception {
+        var cache = new QueryResponseCache(1024 * 1024, Duration.ofMinutes(1));
+
+        assertThrows(IllegalStateException.class, () ->
+                cache.getOrCompute(query("foo", 10), () -> { throw new IllegalStateException(); }));
+
+        var response = cache.getOrCompute(query("foo", 10), () -> complete("foo", 1));
+        assertEquals(response("foo", 1), response);
+    }
+
+    @Test
+    void testIncompleteResponseIsNotCached() throws Exception {
+        var cache = new QueryResponseCache(1024 * 1024, Duration.ofMinutes(1));
+        var calls = new AtomicInteger();
+
+        var first = cache.getOrCompute(query("foo", 10),
+                () -> new QueryResponseCache.QueryResult(response("foo", calls.incrementAndGet()), false));
+        var second = cache.getOrCompute(query("foo", 10), () -> complete("foo", calls.incrementAndGet()));
+
+        assertEquals(response("foo", 1), first);
+        assertEquals(response("foo", 2), second);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void testCoalescesConcurrentQueries() throws Exception {
+        // With the cache disabled, only the coalescing keeps the query from running more than once
+        var cache = new QueryResponseCache(0, Duration.ofMinutes(1));
+        var calls = new AtomicInteger();
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var leader = executor.submit(() -> cache.getOrCompute(query("foo", 10), () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                await(release);
+                return complete("foo", 1);
+            }));
+
+            started.await();
+
+            List<Future<RpcQsResponse>> followers = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                followers.add(executor.submit(() -> cache.getOrCompute(query("foo", 10),
+                        () -> complete("foo", calls.incrementAndGet()))));
+            }
+
+            // Give the followers time to find the query in flight
+            Thread.sleep(100);
+            release.countDown();
+
+            assertEquals(response("foo", 1), leader.get());
+            for (var follower : followers) {
+                assertEquals(response("foo", 1), follower.get());
+            }
+            assertEquals(1, calls.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testCoalescedFailurePropagates() throws Exception {
+        var cache = new QueryResponseCache(1024 * 1024, Duration.ofMinutes(1));
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+
+        var executor = Executors.newFixedThreadPool(2);
+        try {
+            var leader = executor.submit(() -> cache.getOrCompute(query("foo", 10), () -> {
+                started.countDown();
+                await(release);
+                throw new IllegalStateException();
+            }));
+
+            started.await();
+            var follower = executor.submit(() -> cache.getOrCompute(query("foo", 10), () -> complete("foo", 2)));
+
+            Thread.sleep(100);
+            release.countDown();
+
+            var leaderEx = assertThrows(ExecutionException.class, leader::get);
+            assertInstanceOf(IllegalStateException.class, leaderEx.getCause());
+            var followerEx = assertThrows(ExecutionException.class, follower::get);
+            assertInstanceOf(IllegalStateException.class, followerEx.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static RpcQsQuery query(String humanQuery, int resultsTotal) {
+        return RpcQsQuery.newBuilder()
+                .setHumanQuery(humanQuery)
+                .setQueryLimits(RpcQueryLimits.newBuilder()
+                        .setResultsTotal(resultsTotal)
+                        .setTimeoutMs(250)
+                        .build())
+                .build();
+    }
+
+    private static QueryResponseCache.QueryResult complete(String humanQuery, int n) {
+        return new QueryResponseCache.QueryResult(response(humanQuery, n), true);
+    }
+
+    private static RpcQsResponse response(String humanQuery, int n) {
+        return RpcQsResponse.newBuilder()
+                .addSearchTermsHuman(humanQuery)
+                .addSearchTermsHuman(Integer.toString(n))
+                .build();
+    }
+}
@@ -2,6 +2,8 @@ package nu.marginalia.index.api;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import io.grpc.Deadline;
+import io.prometheus.client.Counter;
 import lombok.SneakyThrows;
 import nu.marginalia.api.searchquery.IndexApiGrpc;
 import nu.marginalia.api.searchquery.RpcDecoratedResultItem;
@@ -13,16 +15,38 @@ import nu.marginalia.service.discovery.property.ServicePartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 @Singleton
 public class IndexClient {
     private static final Logger logger = LoggerFactory.getLogger(IndexClient.class);
+
+    private static final Counter wmsa_qs_index_node_incomplete = Counter.build()
+            .name("wmsa_qs_index_node_incomplete")
+            .help("Queries where an index node failed or had not finished by the deadline")
+            .labelNames("node")
+            .register();
+
+    /** Time given to the index nodes on top of the query timeout, before their results are abandoned */
+    private static final long deadlineSlackMs = Long.getLong("search.indexDeadlineSlackMs", 50);
+
+    /** If a partition has replicas, query another replica as well if the first
+     * has not responded within this time.  Zero disables hedging. */
+    private static final long hedgeDelayMs = Long.getLong("search.indexHedgeDelayMs", 0);
+
     private final GrpcMultiNodeChannelPool<IndexApiGrpc.IndexApiBlockingStub> channelPool;
-    private static final ExecutorService executor = Executors.newFixedThreadPool(32);
+
+    // The calls block on the result streams, so each gets its own virtual thread
+    private static final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
     @Inject
     public IndexClient(GrpcChannelPoolFactory channelPoolFactory) {
         this.channelPool = channelPoolFactory.createMulti(
@@ -30,23 +54,69 @@ public class IndexClient {
                 IndexApiGrpc::newBlockingStub);
     }
 
+    /** The best results of a query, and whether every index node contributed to them
+     *
+     * @param results the best results that pass the filter, in ranking order
+     * @param complete false if an index node failed, or had not finished by the deadline
+     */
+    public record IndexQueryResults(List<RpcDecoratedResultItem> results, boolean complete) {}
+
+    /** Run the query on all index nodes, and return the best {@code limit} results
+     * that pass the filter, in ranking order.
+     * <p></p>
+     * The results are merged as they arrive, and the query returns as soon as the best results
+     * are known.  Nodes that have not finished by the deadline, which is the query timeout plus
+     * a small slack, are cancelled, and whatever they have sent by then is used.  The results
+     * are flagged as incomplete when this happens, or when a node fails.
+     */
     @SneakyThrows
-    public List<RpcDecoratedResultItem> executeQueries(RpcIndexQuery indexRequest) {
-        var futures =
-                channelPool.call(IndexApiGrpc.IndexApiBlockingStub::query)
-                        .async(executor)
-                        .runEach(indexRequest);
-        List<RpcDecoratedResultItem> results = new ArrayList<>();
-        for (var future : futures) {
-            try {
-                future.get().forEachRemaining(results::add);
+    public IndexQueryResults executeQueries(RpcIndexQuery indexRequest,
+                                            int limit,
+                                            Predicate<RpcDecoratedResultItem> filter)
+    {
+        final long timeoutMs = indexRequest.getQueryLimits().getTimeoutMs() + deadlineSlackMs;
+        final long deadlineMs = System.currentTimeMillis() + timeoutMs;
+        final Deadline deadline = Deadline.after(timeoutMs, TimeUnit.MILLISECONDS);
+
+        var merger = new IndexResultMerger(channelPool.getEligibleNodes());
+
+        var calls = channelPool
+                .callStreaming((IndexApiGrpc.IndexApiBlockingStub stub, RpcIndexQuery request) ->
+                        stub.withDeadline(deadline).query(request))
+                .hedgeAfter(hedgeDelayMs > 0 ? Duration.ofMillis(hedgeDelayMs) : null)
+                .runEach(executor, indexRequest, merger::add);
+
+        calls.forEach((node, call) -> call.whenComplete((v, t) -> {
+            if (t != null && !isCancellation(t)) {
+                logger.error("Downstream exception from node {}", node, t);
             }
-            catch (Exception e) {
-                logger.error("Downstream exception", e);
+            merger.finish(node);
+        }));
+
+        boolean settled = merger.awaitResults(limit, filter, deadlineMs);
+
+        // A node that failed has finished its stream, so the results may have settled without it
+        boolean complete = settled && calls.values().stream().noneMatch(CompletableFuture::isCompletedExceptionally);
+
+        // Cancel the calls that are still running, either because they ran out
+        // of time, or because they can't improve on the results we have
+        calls.forEach((node, call) -> {
+            boolean failed = call.isCompletedExceptionally();
+            boolean cancelled = call.cancel(true);
+
+            // A call cancelled before the results settled is one that ran out of time
+            if (failed || (cancelled && !settled)) {
+                wmsa_qs_index_node_incomplete.labels(Integer.toString(node)).inc();
             }
-        }
+        });
 
-        return results;
+        return new IndexQueryResults(merger.getBestResults(limit, filter), complete);
     }
 
+    private static boolean isCancellation(Throwable t) {
+        if (t instanceof CompletionException ce && ce.getCause() != null)
+            t = ce.getCause();
+
+        return t instanceof CancellationException;
+    }
 }
@@ -0,0 +1,163 @@
+package nu.marginalia.index.api;
+
+import nu.marginalia.api.searchquery.RpcDecoratedResultItem;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/** Merges the result streams of the index nodes as they arrive.
+ * <p></p>
+ * The index nodes send their results in ranking order, so the best results overall
+ * are found with a k-way merge of the streams, and it's possible to tell when the
+ * best results are known before every stream has ended.  Streams that turn out not to be
+ * ordered are sorted before the merge, but can't be used to end the query early.
+ */
+class IndexResultMerger {
+    private final Map<Integer, NodeResults> nodes = new HashMap<>();
+
+    IndexResultMerger(Collection<Integer> nodeIds) {
+        for (int node : nodeIds) {
+            nodes.put(node, new NodeResults());
+        }
+    }
+
+    /** Add a result from the given node, in the order it was received */
+    public synchronized void add(int node, RpcDecoratedResultItem item) {
+        nodes.computeIfAbsent(node, n -> new NodeResults()).add(item);
+    }
+
+    /** Flag that the stream of results from the node has ended, for whatever reason */
+    public synchronized void finish(int node) {
+        nodes.computeIfAbsent(node, n -> new NodeResults()).finished = true;
+
+        notifyAll();
+    }
+
+    /** Wait until the best results are known, either because all streams have
+     * ended, or because the streams that are still running can't produce results that
+     * would make it into the top {@code limit}.
+     *
+     * @return false if the deadline passed before the best results were known
+     */
+    public synchronized boolean awaitResults(int limit,
+                                             Predicate<RpcDecoratedResultItem> filter,
+                                             long deadlineMs) throws InterruptedException
+    {
+        while (!isSettled(limit, filter)) {
+            long timeLeft = deadlineMs - System.currentTimeMillis();
+            if (timeLeft <= 0)
+                return false;
+
+            wait(timeLeft);
+        }
+
+        return true;
+    }
+
+    synchronized boolean isSettled(int limit, Predicate<RpcDecoratedResultItem> filter) {
+        // Any result still to come from a running stream ranks worse than the last one it sent
+        double bound = Double.POSITIVE_INFINITY;
+
+        for (var results : nodes.values()) {
+            if (results.finished)
+                continue;
+
+            if (results.items.isEmpty() || !results.sorted)
+                return false;
+
+            bound = Math.min(bound, results.lastScore);
+        }
+
+        if (bound == Double.POSITIVE_INFINITY)
+            return true;
+
+        int count = 0;
+
+        for (var results : nodes.values()) {
+            for (var item : results.items) {
+                if (item.getRankingScore() >= bound)
+                    break;
+
+                if (filter.test(item) && ++count >= limit)
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    /** Get the best {@code limit} results received so far that pass the filter, in ranking order */
+    public synchronized List<RpcDecoratedResultItem> getBestResults(int limit,
+                                                                    Predicate<RpcDecoratedResultItem> filter)
+    {
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(1, nodes.size()));
+
+        for (var results : nodes.values()) {
+            if (!results.sorted) {
+                results.items.sort(Comparator.comparingDouble(RpcDecoratedResultItem::getRankingScore));
+                results.sorted = true;
+            }
+
+            if (!results.items.isEmpty()) {
+                queue.add(new Cursor(results.items));
+            }
+        }
+
+        List<RpcDecoratedResultItem> ret = new ArrayList<>(limit);
+
+        while (ret.size() < limit && !queue.isEmpty()) {
+            var cursor = queue.poll();
+            var item = cursor.current();
+
+            if (filter.test(item)) {
+                ret.add(item);
+            }
+
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+        }
+
+        return ret;
+    }
+
+    private static class NodeResults {
+        final List<RpcDecoratedResultItem> items = new ArrayList<>();
+        boolean sorted = true;
+        boolean finished = false;
+        double lastScore = Double.NEGATIVE_INFINITY;
+
+        void add(RpcDecoratedResultItem item) {
+            double score = item.getRankingScore();
+
+            if (score < lastScore) {
+                sorted = false;
+            }
+
+            lastScore = Math.max(lastScore, score);
+            items.add(item);
+        }
+    }
+
+    private static class Cursor implements Comparable<Cursor> {
+        private final List<RpcDecoratedResultItem> items;
+        private int pos = 0;
+
+        Cursor(List<RpcDecoratedResultItem> items) {
+            this.items = items;
+        }
+
+        RpcDecoratedResultItem current() {
+            return items.get(pos);
+        }
+
+        boolean advance() {
+            return ++pos < items.size();
+        }
+
+        @Override
+        public int compareTo(Cursor o) {
+            return Double.compare(current().getRankingScore(), o.current().getRankingScore());
+        }
+    }
+}
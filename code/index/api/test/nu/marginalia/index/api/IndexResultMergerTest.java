@@ -0,0 +1,82 @@
+package nu.marginalia.index.api;
+
+import nu.marginalia.api.searchquery.RpcDecoratedResultItem;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexResultMergerTest {
+
+    @Test
+    void testMerge() {
+        var merger = new IndexResultMerger(List.of(1, 2));
+
+        merger.add(1, item(1));
+        merger.add(2, item(2));
+        merger.add(1, item(3));
+        merger.add(2, item(4));
+        merger.add(2, item(5));
+        merger.finish(1);
+        merger.finish(2);
+
+        assertEquals(List.of(1., 2., 3.), scores(merger.getBestResults(3, item -> true)));
+        assertEquals(List.of(1., 3., 5.), scores(merger.getBestResults(3, item -> item.getRankingScore() % 2 == 1)));
+    }
+
+    @Test
+    void testUnorderedStream() {
+        var merger = new IndexResultMerger(List.of(1, 2));
+
+        merger.add(1, item(3));
+        merger.add(1, item(1));
+        merger.add(2, item(2));
+
+        assertFalse(merger.isSettled(1, item -> true));
+
+        merger.finish(1);
+        merger.finish(2);
+
+        assertEquals(List.of(1., 2., 3.), scores(merger.getBestResults(10, item -> true)));
+    }
+
+    @Test
+    void testSettled() {
+        var merger = new IndexResultMerger(List.of(1, 2));
+
+        // Nothing is known about node 2 yet
+        merger.add(1, item(1));
+        merger.add(1, item(2));
+        merger.finish(1);
+        assertFalse(merger.isSettled(2, item -> true));
+
+        // Anything more from node 2 ranks worse than 5
+        merger.add(2, item(5));
+        assertTrue(merger.isSettled(2, item -> true));
+        assertFalse(merger.isSettled(3, item -> true));
+        assertFalse(merger.isSettled(2, item -> item.getRankingScore() > 1));
+
+        merger.finish(2);
+        assertTrue(merger.isSettled(10, item -> true));
+    }
+
+    @Test
+    void testDeadline() throws InterruptedException {
+        var merger = new IndexResultMerger(List.of(1, 2));
+
+        merger.add(1, item(1));
+        merger.finish(1);
+
+        assertFalse(merger.awaitResults(1, item -> true, System.currentTimeMillis() + 10));
+        assertEquals(List.of(1.), scores(merger.getBestResults(10, item -> true)));
+    }
+
+    private RpcDecoratedResultItem item(double score) {
+        return RpcDecoratedResultItem.newBuilder().setRankingScore(score).build();
+    }
+
+    private List<Double> scores(List<RpcDecoratedResultItem> items) {
+        return items.stream().map(RpcDecoratedResultItem::getRankingScore).toList();
+    }
+}
@@ -1,7 +1,8 @@
 package nu.marginalia.index.forward;
 
-import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.btree.BTreeReader;
+import nu.marginalia.btree.BTreeWriter;
 import nu.marginalia.index.domainrankings.DomainRankings;
 import nu.marginalia.index.journal.reader.IndexJournalReader;
 import nu.marginalia.array.LongArray;
@@ -62,23 +63,22 @@ public class ForwardIndexConverter {
 
             progress.progress(TaskSteps.GATHER_OFFSETS);
 
-            // doc ids -> sorted list of ids
+            // doc ids -> b-tree of sorted ids, the position in the data layer is the ordinal of the id
 
-            Long2IntOpenHashMap docIdToIdx = new Long2IntOpenHashMap((int) docsFileId.size());
-            docsFileId.forEach(0, docsFileId.size(), (pos, val) -> docIdToIdx.put(val, (int) pos));
+            BTreeReader docIdToIdx = new BTreeReader(docsFileId, ForwardIndexParameters.docIdsBTreeContext, ForwardIndexParameters.DOC_IDS_BTREE_OFFSET);
 
             progress.progress(TaskSteps.SUPPLEMENTAL_INDEXES);
 
             // docIdToIdx -> file offset for id
 
-            LongArray docFileData = LongArrayFactory.mmapForWritingConfined(outputFileDocsData, ForwardIndexParameters.ENTRY_SIZE * docsFileId.size());
+            LongArray docFileData = LongArrayFactory.mmapForWritingConfined(outputFileDocsData, (long) ForwardIndexParameters.ENTRY_SIZE * docIdToIdx.numEntries());
 
             var pointer = journalReader.newPointer();
             while (pointer.nextDocument()) {
                 long docId = pointer.documentId();
                 int domainId = UrlIdCodec.getDomainId(docId);
 
-                long entryOffset = (long) ForwardIndexParameters.ENTRY_SIZE * docIdToIdx.get(docId);
+                long entryOffset = (long) ForwardIndexParameters.ENTRY_SIZE * docIdToIdx.findEntry(docId);
 
                 int ranking = domainRankings.getRanking(domainId);
                 long meta = DocumentMetadata.encodeRank(pointer.documentMeta(), ranking);
@@ -106,14 +106,27 @@ public class ForwardIndexConverter {
         Roaring64Bitmap rbm = new Roaring64Bitmap();
         journalReader.forEachDocId(rbm::add);
 
-        LongArray ret = LongArrayFactory.mmapForWritingConfined(outputFileDocs, rbm.getIntCardinality());
-        rbm.forEach(new LongConsumer() {
+        return writeDocIds(outputFileDocs, rbm);
+    }
+
+    /** Write the ids file, the b-tree of the sorted document ids */
+    static LongArray writeDocIds(Path outputFileDocs, Roaring64Bitmap rbm) throws IOException {
+        final var ctx = ForwardIndexParameters.docIdsBTreeContext;
+        final int numDocs = rbm.getIntCardinality();
+
+        LongArray ret = LongArrayFactory.mmapForWritingConfined(outputFileDocs,
+                ForwardIndexParameters.DOC_IDS_BTREE_OFFSET + ctx.calculateSize(numDocs));
+
+        ret.set(0, ForwardIndexParameters.DOC_IDS_MAGIC);
+
+        // The roaring bitmap iterates the ids in sorted order, which is what the b-tree requires
+        new BTreeWriter(ret, ctx).write(ForwardIndexParameters.DOC_IDS_BTREE_OFFSET, numDocs, slice -> rbm.forEach(new LongConsumer() {
             int offset;
             @Override
             public void accept(long value) {
-                ret.set(offset++, value);
+                slice.set(offset++, value);
             }
-        });
+        }));
 
         return ret;
     }
@@ -0,0 +1,73 @@
+package nu.marginalia.index.forward;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.btree.BTreeReader;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+/** Merges several forward indexes into one, without going through the index journal.
+ * <p></p>
+ * Each input comes with a filter that decides which of its documents to keep.  The
+ * filters are expected to let through each document id from at most one input.
+ */
+public class ForwardIndexMerger {
+    private static final Logger logger = LoggerFactory.getLogger(ForwardIndexMerger.class);
+
+    public static void merge(List<ForwardIndexReader> inputs,
+                             List<LongPredicate> filters,
+                             Path outputFileDocsId,
+                             Path outputFileDocsData) throws IOException
+    {
+        if (inputs.size() != filters.size())
+            throw new IllegalArgumentException("Expected one filter per input");
+
+        Files.deleteIfExists(outputFileDocsId);
+        Files.deleteIfExists(outputFileDocsData);
+
+        Roaring64Bitmap rbm = new Roaring64Bitmap();
+        for (int i = 0; i < inputs.size(); i++) {
+            final LongPredicate filter = filters.get(i);
+
+            inputs.get(i).forEachDocument((docId, docMeta, htmlFeatures) -> {
+                if (filter.test(docId)) {
+                    rbm.add(docId);
+                }
+            });
+        }
+
+        LongArray docsFileId = ForwardIndexConverter.writeDocIds(outputFileDocsId, rbm);
+        BTreeReader docIdToIdx = new BTreeReader(docsFileId, ForwardIndexParameters.docIdsBTreeContext, ForwardIndexParameters.DOC_IDS_BTREE_OFFSET);
+
+        LongArray docFileData = LongArrayFactory.mmapForWritingConfined(outputFileDocsData, (long) ForwardIndexParameters.ENTRY_SIZE * docIdToIdx.numEntries());
+
+        for (int i = 0; i < inputs.size(); i++) {
+            final LongPredicate filter = filters.get(i);
+
+            inputs.get(i).forEachDocument((docId, docMeta, htmlFeatures) -> {
+                if (!filter.test(docId))
+                    return;
+
+                long entryOffset = (long) ForwardIndexParameters.ENTRY_SIZE * docIdToIdx.findEntry(docId);
+
+                docFileData.set(entryOffset + ForwardIndexParameters.METADATA_OFFSET, docMeta);
+                docFileData.set(entryOffset + ForwardIndexParameters.FEATURES_OFFSET, htmlFeatures);
+            });
+        }
+
+        logger.info("Merged {} forward indexes, {} documents", inputs.size(), docIdToIdx.numEntries());
+
+        docFileData.force();
+        docsFileId.force();
+
+        docFileData.close();
+        docsFileId.close();
+    }
+}
@@ -1,8 +1,22 @@
 package nu.marginalia.index.forward;
 
+import nu.marginalia.btree.model.BTreeBlockSize;
+import nu.marginalia.btree.model.BTreeContext;
+
 class ForwardIndexParameters {
     public static final int ENTRY_SIZE = 2;
     public static final int METADATA_OFFSET = 0;
     public static final int FEATURES_OFFSET = 1;
 
+    /** The ids file is a b-tree of the sorted document ids, the position of an id
+     * in the b-tree's data layer is its ordinal in the data file.  Blocks are
+     * 512 bytes, or 64 ids, so each layer of a lookup reads a few cache lines.
+     */
+    public static final BTreeContext docIdsBTreeContext = new BTreeContext(5, 1, BTreeBlockSize.BS_512);
+
+    /** The first long of the ids file identifies its format, the b-tree follows it.  Ids files
+     * from before the b-tree are plain arrays of document ids, and must be rebuilt.
+     */
+    public static final long DOC_IDS_MAGIC = 0x4657_4449_4453_3032L; // "FWDIDS02"
+    public static final long DOC_IDS_BTREE_OFFSET = 1;
 }
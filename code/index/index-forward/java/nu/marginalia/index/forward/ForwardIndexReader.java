@@ -1,8 +1,8 @@
 package nu.marginalia.index.forward;
 
-import gnu.trove.map.hash.TLongIntHashMap;
 import nu.marginalia.array.LongArray;
 import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.btree.BTreeReader;
 import nu.marginalia.model.id.UrlIdCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,16 +17,17 @@ import static nu.marginalia.index.forward.ForwardIndexParameters.*;
  * <p/>
  * The forward index is constructed of a staggered array
  * called 'data' containing domains and document level metadata,
- * and a mapping between document identifiers to the index into the
- * data array.
+ * and a b-tree of the document identifiers, where the position
+ * of an identifier in the b-tree is its index into the data array.
  * <p/>
- * Since the total data is relatively small, this is kept in memory to
- * reduce the amount of disk thrashing.
+ * Both files are memory mapped, so there is no load step and the
+ * heap usage does not grow with the number of documents.
  * <p/>
  * The metadata is a binary encoding of {@see nu.marginalia.idx.DocumentMetadata}
  */
 public class ForwardIndexReader {
-    private final TLongIntHashMap idToOffset;
+    private final LongArray ids;
+    private final BTreeReader idToOffset;
     private final LongArray data;
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -34,12 +35,14 @@ public class ForwardIndexReader {
     public ForwardIndexReader(Path idsFile, Path dataFile) throws IOException {
         if (!Files.exists(dataFile)) {
             logger.warn("Failed to create ForwardIndexReader, {} is absent", dataFile);
+            ids = null;
             idToOffset = null;
             data = null;
             return;
         }
         else if (!Files.exists(idsFile)) {
             logger.warn("Failed to create ForwardIndexReader, {} is absent", idsFile);
+            ids = null;
             idToOffset = null;
             data = null;
             return;
@@ -47,20 +50,19 @@ public class ForwardIndexReader {
 
         logger.info("Switching forward index");
 
-        idToOffset = loadIds(idsFile);
-        data = loadData(dataFile);
-    }
-
-    private static TLongIntHashMap loadIds(Path idsFile) throws IOException {
-        try (var idsArray = LongArrayFactory.mmapForReadingShared(idsFile)) {
-            assert idsArray.size() < Integer.MAX_VALUE;
-
-            var ids = new TLongIntHashMap((int) idsArray.size(), 0.5f, -1, -1);
-            // This hash table should be of the same size as the number of documents, so typically less than 1 Gb
-            idsArray.forEach(0, idsArray.size(), (pos, val) -> ids.put(val, (int) pos));
-
-            return ids;
+        LongArray idsArray = LongArrayFactory.mmapForReadingShared(idsFile);
+        if (idsArray.size() <= DOC_IDS_BTREE_OFFSET || idsArray.get(0) != DOC_IDS_MAGIC) {
+            logger.error("Failed to create ForwardIndexReader, {} is in an outdated format, the index must be rebuilt", idsFile);
+            idsArray.close();
+            ids = null;
+            idToOffset = null;
+            data = null;
+            return;
         }
+
+        ids = idsArray;
+        idToOffset = new BTreeReader(ids, docIdsBTreeContext, DOC_IDS_BTREE_OFFSET);
+        data = loadData(dataFile);
     }
 
     private static LongArray loadData(Path dataFile) throws IOException {
@@ -85,27 +87,132 @@ public class ForwardIndexReader {
         return (int) data.get(ENTRY_SIZE * offset + FEATURES_OFFSET);
     }
 
-    private int idxForDoc(long docId) {
+    /** Look up the document metadata and html features of multiple documents at once.
+     * <p></p>
+     * The documents are located in a single pass over the ids b-tree, and since
+     * the offsets grow with the ids, the data array is read front to back.
+     * Absent documents get zero metadata and features.
+     *
+     * @param docIds sorted document ids
+     * @param docMetaOut receives the document metadata, in the order of docIds
+     * @param htmlFeaturesOut receives the html features, in the order of docIds
+     */
+    public void getDocMetaAndFeatures(long[] docIds, long[] docMetaOut, int[] htmlFeaturesOut) {
+        long[] offsets = idToOffset.findEntries(docIds);
+
+        for (int i = 0; i < offsets.length; i++) {
+            assert UrlIdCodec.getRank(docIds[i]) == 0 : "Forward Index Reader fed dirty reverse index id";
+
+            long offset = offsets[i];
+
+            if (offset < 0) {
+                docMetaOut[i] = 0;
+                htmlFeaturesOut[i] = 0;
+            }
+            else {
+                docMetaOut[i] = data.get(ENTRY_SIZE * offset + METADATA_OFFSET);
+                htmlFeaturesOut[i] = (int) data.get(ENTRY_SIZE * offset + FEATURES_OFFSET);
+            }
+        }
+    }
+
+    private long idxForDoc(long docId) {
         assert UrlIdCodec.getRank(docId) == 0 : "Forward Index Reader fed dirty reverse index id";
 
+        // The b-tree has entry size 1, so the offset into its data layer is the ordinal of the document
+        long offset = idToOffset.findEntry(docId);
+
         if (getClass().desiredAssertionStatus()) {
-            long offset = idToOffset.get(docId);
             if (offset < 0) { // Ideally we'd always check this, but this is a very hot method
                 logger.warn("Could not find offset for doc {}", docId);
             }
         }
 
-        return idToOffset.get(docId);
+        return offset;
     }
 
 
     public int totalDocCount() {
-        return idToOffset.size();
+        if (idToOffset == null)
+            return 0;
+
+        return idToOffset.numEntries();
+    }
+
+    /** Returns the number of documents of the domain in the index */
+    public int countDocuments(int domainId) {
+        if (idToOffset == null)
+            return 0;
+
+        // The ids are sorted, and the documents of a domain are contiguous
+        long start = lowerBound(UrlIdCodec.encodeId(domainId, 0));
+        long end = lowerBound(UrlIdCodec.encodeId(domainId, 0x03FF_FFFF) + 1);
+
+        return (int) (end - start);
+    }
+
+    /** Returns the position of the first document id that is not smaller than docId */
+    private long lowerBound(long docId) {
+        var docIds = idToOffset.data();
+
+        long low = 0;
+        long high = totalDocCount();
+
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+
+            if (docIds.get(mid) < docId) low = mid + 1;
+            else high = mid;
+        }
+
+        return low;
+    }
+
+    /** Returns up to n document ids, evenly spaced throughout the index.
+     * This is intended for estimating the selectivity of document level filters.
+     */
+    public long[] sampleDocIds(int n) {
+        int numDocs = totalDocCount();
+
+        if (numDocs <= 0 || n <= 0)
+            return new long[0];
+
+        n = Math.min(n, numDocs);
+
+        long[] ret = new long[n];
+        var docIds = idToOffset.data();
+
+        for (int i = 0; i < n; i++) {
+            ret[i] = docIds.get((long) i * numDocs / n);
+        }
+
+        return ret;
+    }
+
+    /** Calls the visitor with each document in the index, in order of document id */
+    public void forEachDocument(DocumentVisitor visitor) throws IOException {
+        if (data == null)
+            return;
+
+        final int numDocs = totalDocCount();
+        final var docIds = idToOffset.data();
+
+        for (int i = 0; i < numDocs; i++) {
+            visitor.visit(docIds.get(i),
+                    data.get((long) ENTRY_SIZE * i + METADATA_OFFSET),
+                    (int) data.get((long) ENTRY_SIZE * i + FEATURES_OFFSET));
+        }
+    }
+
+    public interface DocumentVisitor {
+        void visit(long docId, long docMeta, int htmlFeatures) throws IOException;
     }
 
     public void close() {
         if (data != null)
             data.close();
+        if (ids != null)
+            ids.close();
     }
 
     public boolean isLoaded() {
@@ -15,12 +15,15 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 
 class ForwardIndexConverterTest {
 
@@ -104,5 +107,56 @@ class ForwardIndexConverterTest {
 
     }
 
+    @Test
+    void testOutdatedIdsFileIsNotLoaded() throws IOException {
+
+        new ForwardIndexConverter(new FakeProcessHeartbeat(), new IndexJournalReaderSingleFile(indexFile), docsFileId, docsFileData, new DomainRankings()).convert();
+
+        // Ids files from before the b-tree were a plain array of the document ids
+        try (var ds = new DataOutputStream(Files.newOutputStream(docsFileId))) {
+            for (int i = 1; i < workSetSize; i++) {
+                ds.writeLong(createId(i, i/20));
+            }
+        }
+
+        var forwardReader = new ForwardIndexReader(docsFileId, docsFileData);
+        assertFalse(forwardReader.isLoaded());
+    }
+
+    @Test
+    void testForwardIndexMissingDocument() throws IOException {
+
+        new ForwardIndexConverter(new FakeProcessHeartbeat(), new IndexJournalReaderSingleFile(indexFile), docsFileId, docsFileData, new DomainRankings()).convert();
+
+        var forwardReader = new ForwardIndexReader(docsFileId, docsFileData);
+
+        assertEquals(workSetSize - 1, forwardReader.totalDocCount());
+        assertEquals(0, forwardReader.getDocMeta(createId(workSetSize + 1, 1)));
+        assertEquals(0, forwardReader.getHtmlFeatures(createId(workSetSize + 1, 1)));
+    }
+
+    @Test
+    void testForwardIndexBulkLookup() throws IOException {
+
+        new ForwardIndexConverter(new FakeProcessHeartbeat(), new IndexJournalReaderSingleFile(indexFile), docsFileId, docsFileData, new DomainRankings()).convert();
+
+        var forwardReader = new ForwardIndexReader(docsFileId, docsFileData);
+
+        long[] docIds = LongStream.range(36, workSetSize + 2)
+                .map(i -> createId(i, i/20))
+                .sorted()
+                .toArray();
+
+        long[] docMeta = new long[docIds.length];
+        int[] htmlFeatures = new int[docIds.length];
+
+        forwardReader.getDocMetaAndFeatures(docIds, docMeta, htmlFeatures);
+
+        for (int i = 0; i < docIds.length; i++) {
+            assertEquals(forwardReader.getDocMeta(docIds[i]), docMeta[i]);
+            assertEquals(forwardReader.getHtmlFeatures(docIds[i]), htmlFeatures[i]);
+        }
+    }
+
 
 }
\ No newline at end of file
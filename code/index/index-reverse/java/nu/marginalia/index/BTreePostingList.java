@@ -0,0 +1,66 @@
+package nu.marginalia.index;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.btree.BTreeReader;
+import nu.marginalia.index.query.EntrySource;
+
+/** A posting list stored as a b-tree of (docId, termMeta) pairs, followed by
+ * its block summaries.  This is the original format of the documents file.
+ * <p></p>
+ * Documents files with block summaries start with {@link #MAGIC}.  Files written before
+ * the block summaries were added have the b-tree of the first term at the start of the
+ * file instead, and can still be queried, but not with block-max early termination.
+ */
+public class BTreePostingList implements PostingList {
+    /** Marks a documents file as containing b-trees followed by block summaries */
+    public static final long MAGIC = 0x5249_4458_4254_0001L;
+
+    private final LongArray documents;
+    private final BTreeReader reader;
+
+    public BTreePostingList(LongArray documents, long offset) {
+        this.documents = documents;
+        this.reader = new BTreeReader(documents, ReverseIndexParameters.docsBTreeContext, offset);
+    }
+
+    /** Returns true if the documents file has block summaries after each b-tree */
+    public static boolean hasBlockSummaries(LongArray documents) {
+        return documents.size() > 0 && documents.get(0) == MAGIC;
+    }
+
+    @Override
+    public int numEntries() {
+        return reader.numEntries();
+    }
+
+    @Override
+    public EntrySource createEntrySource(String name, long termId) {
+        return new ReverseIndexEntrySource(name, reader, 2, termId);
+    }
+
+    @Override
+    public void retainEntries(LongQueryBuffer buffer) {
+        reader.retainEntries(buffer);
+    }
+
+    @Override
+    public void rejectEntries(LongQueryBuffer buffer) {
+        reader.rejectEntries(buffer);
+    }
+
+    @Override
+    public boolean contains(long docId) {
+        return reader.findEntry(docId) >= 0;
+    }
+
+    @Override
+    public long[] getTermMeta(long[] docIds) {
+        return reader.queryData(docIds, 1);
+    }
+
+    @Override
+    public ReverseIndexBlockMeta blockMeta() {
+        return new ReverseIndexBlockMeta(documents, reader);
+    }
+}
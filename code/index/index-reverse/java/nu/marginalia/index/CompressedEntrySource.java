@@ -0,0 +1,106 @@
+package nu.marginalia.index;
+
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.index.query.BlockMaxFilter;
+import nu.marginalia.index.query.EntrySource;
+
+import static java.lang.Math.min;
+
+/** Reads the documents of a compressed posting list in order,
+ * see {@link CompressedPostingList} */
+public class CompressedEntrySource implements EntrySource {
+    private final String name;
+    private final CompressedPostingList postings;
+    private final long wordId;
+
+    private int block = 0;
+    private int posInBlock = 0;
+
+    private BlockMaxFilter blockMaxFilter = null;
+
+    public CompressedEntrySource(String name,
+                                 CompressedPostingList postings,
+                                 long wordId) {
+        this.name = name;
+        this.postings = postings;
+        this.wordId = wordId;
+    }
+
+    @Override
+    public void skip(int n) {
+        posInBlock += n;
+
+        while (block < postings.numBlocks() && posInBlock >= blockSize(block)) {
+            posInBlock -= blockSize(block);
+            block++;
+        }
+    }
+
+    @Override
+    public void setBlockMaxFilter(BlockMaxFilter filter) {
+        this.blockMaxFilter = filter;
+    }
+
+    @Override
+    public void read(LongQueryBuffer buffer) {
+        if (blockMaxFilter != null) {
+            skipNonCompetitiveBlocks();
+        }
+
+        final int capacity = buffer.end;
+        int n = 0;
+
+        while (block < postings.numBlocks() && n < capacity) {
+            int count = postings.decodeBlock(block);
+            long[] ids = postings.decodedIds();
+
+            int take = min(count - posInBlock, capacity - n);
+            for (int i = 0; i < take; i++) {
+                buffer.data.set(n++, ids[posInBlock + i]);
+            }
+
+            posInBlock += take;
+
+            if (posInBlock == count) {
+                block++;
+                posInBlock = 0;
+
+                // Don't read past the current block, so that the next block gets evaluated separately
+                if (blockMaxFilter != null)
+                    break;
+            }
+        }
+
+        buffer.end = n;
+        buffer.uniq();
+    }
+
+    /** Advance past the blocks whose documents are rejected by the block max filter */
+    private void skipNonCompetitiveBlocks() {
+        // A block that has been partially read has already been accepted
+        if (posInBlock != 0)
+            return;
+
+        while (block < postings.numBlocks()) {
+            if (blockMaxFilter.test(postings.firstId(block), postings.lastId(block))) {
+                return;
+            }
+
+            block++;
+        }
+    }
+
+    private int blockSize(int block) {
+        return min(CompressedPostingList.BLOCK_SIZE, postings.numEntries() - block * CompressedPostingList.BLOCK_SIZE);
+    }
+
+    @Override
+    public boolean hasMore() {
+        return block < postings.numBlocks();
+    }
+
+    @Override
+    public String indexName() {
+        return name + ":" + Long.toHexString(wordId);
+    }
+}
@@ -0,0 +1,413 @@
+package nu.marginalia.index;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.index.query.EntrySource;
+
+import java.util.Arrays;
+
+/** A compressed posting list in the documents file of the reverse index.
+ * <p></p>
+ * The documents are split into blocks of {@link #BLOCK_SIZE} ids.  Within a block, the ids
+ * are delta coded and bit packed with the smallest width that fits the largest delta.  The block
+ * headers act as a skip list, so that lookups only need to decode the blocks that may
+ * contain the ids that are looked up.  The term metadata is stored separately, uncompressed,
+ * as it is only read for the documents that are ranked.
+ * <p></p>
+ * Layout, in longs, relative to the offset of the posting list:
+ * <pre>
+ * [0]                    numEntries
+ * [1, 1+nb)              the last id of each block
+ * [1+nb, 1+2nb)          the first id of each block
+ * [1+2nb, 1+3nb)         (offset of the packed deltas of the block) &lt;&lt; 8 | bit width
+ * [1+3nb, 1+4nb)         the block summaries of the term metadata, see {@link ReverseIndexBlockMeta}
+ * [1+4nb, 1+4nb+n)       the term metadata of each document
+ * [1+4nb+n, ...)         the packed deltas of each block
+ * </pre>
+ * where nb is the number of blocks and n the number of documents.
+ * <p></p>
+ * Documents files in this format start with {@link #MAGIC}, which can't
+ * be mistaken for the header of a b-tree.
+ */
+public class CompressedPostingList implements PostingList {
+    /** Marks a documents file as containing compressed posting lists */
+    public static final long MAGIC = 0x5249_4458_4350_0001L;
+
+    /** The number of documents in each block */
+    public static final int BLOCK_SIZE = 128;
+
+    private final LongArray documents;
+    private final long offset;
+
+    private final int numEntries;
+    private final int numBlocks;
+
+    private final long lastIdsOffset;
+    private final long firstIdsOffset;
+    private final long pointersOffset;
+    private final long summariesOffset;
+    private final long metaOffset;
+
+    /** The most recently decoded block */
+    private final long[] blockIds = new long[BLOCK_SIZE];
+    private final long[] packedWords = new long[BLOCK_SIZE];
+    private int decodedBlock = -1;
+    private int decodedCount = 0;
+
+    public CompressedPostingList(LongArray documents, long offset) {
+        this.documents = documents;
+        this.offset = offset;
+
+        numEntries = (int) documents.get(offset);
+        numBlocks = numBlocks(numEntries);
+
+        lastIdsOffset = offset + 1;
+        firstIdsOffset = lastIdsOffset + numBlocks;
+        pointersOffset = firstIdsOffset + numBlocks;
+        summariesOffset = pointersOffset + numBlocks;
+        metaOffset = summariesOffset + numBlocks;
+    }
+
+    /** Returns true if the documents file contains compressed posting lists */
+    public static boolean isCompressed(LongArray documents) {
+        return documents.size() > 0 && documents.get(0) == MAGIC;
+    }
+
+    static int numBlocks(int numEntries) {
+        return (numEntries + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /** Returns an upper bound of the number of longs needed to
+     * store a posting list with numEntries documents */
+    public static long sizeUpperBound(int numEntries) {
+        // The packed deltas of a block never need more than a long per document
+        return 1 + 4L * numBlocks(numEntries) + 2L * numEntries;
+    }
+
+    @Override
+    public int numEntries() {
+        return numEntries;
+    }
+
+    int numBlocks() {
+        return numBlocks;
+    }
+
+    long firstId(int block) {
+        return documents.get(firstIdsOffset + block);
+    }
+
+    long lastId(int block) {
+        return documents.get(lastIdsOffset + block);
+    }
+
+    @Override
+    public EntrySource createEntrySource(String name, long termId) {
+        return new CompressedEntrySource(name, this, termId);
+    }
+
+    @Override
+    public ReverseIndexBlockMeta blockMeta() {
+        return new ReverseIndexBlockMeta(
+                documents.range(summariesOffset, summariesOffset + numBlocks),
+                documents.range(lastIdsOffset, lastIdsOffset + numBlocks));
+    }
+
+    @Override
+    public void retainEntries(LongQueryBuffer buffer) {
+        int block = 0;
+
+        while (buffer.hasMore()) {
+            long val = buffer.currentValue();
+
+            block = findBlock(val, block);
+
+            if (block >= numBlocks) {
+                // All remaining values are greater than the last id
+                while (buffer.hasMore()) {
+                    buffer.rejectAndAdvance();
+                }
+                return;
+            }
+
+            if (indexInBlock(block, val) >= 0) {
+                buffer.retainAndAdvance();
+            }
+            else {
+                buffer.rejectAndAdvance();
+            }
+        }
+    }
+
+    @Override
+    public void rejectEntries(LongQueryBuffer buffer) {
+        int block = 0;
+
+        while (buffer.hasMore()) {
+            long val = buffer.currentValue();
+
+            block = findBlock(val, block);
+
+            if (block >= numBlocks) {
+                // All remaining values are greater than the last id
+                while (buffer.hasMore()) {
+                    buffer.retainAndAdvance();
+                }
+                return;
+            }
+
+            if (indexInBlock(block, val) >= 0) {
+                buffer.rejectAndAdvance();
+            }
+            else {
+                buffer.retainAndAdvance();
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(long docId) {
+        int block = findBlock(docId, 0);
+
+        return block < numBlocks && indexInBlock(block, docId) >= 0;
+    }
+
+    @Override
+    public long[] getTermMeta(long[] docIds) {
+        long[] ret = new long[docIds.length];
+
+        int block = 0;
+        for (int i = 0; i < docIds.length; i++) {
+            block = findBlock(docIds[i], block);
+
+            if (block >= numBlocks)
+                break;
+
+            int idx = indexInBlock(block, docIds[i]);
+            if (idx >= 0) {
+                ret[i] = documents.get(metaOffset + (long) block * BLOCK_SIZE + idx);
+            }
+        }
+
+        return ret;
+    }
+
+    /** Find the first block at or after fromBlock whose last id is greater than
+     * or equal to id, or numBlocks if there is no such block */
+    int findBlock(long id, int fromBlock) {
+        // Consecutive lookups tend to hit the same block
+        if (fromBlock < numBlocks && lastId(fromBlock) >= id)
+            return fromBlock;
+
+        int low = fromBlock;
+        int high = numBlocks;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (lastId(mid) < id) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /** Returns the position of the id within the block, or a negative value if absent */
+    private int indexInBlock(int block, long id) {
+        // The id falls in the gap before the block, and there is no need to decode it
+        if (id < firstId(block))
+            return -1;
+
+        int count = decodeBlock(block);
+
+        return Arrays.binarySearch(blockIds, 0, count, id);
+    }
+
+    /** Decode the ids of the block into blockIds
+     *
+     * @return the number of ids in the block
+     */
+    int decodeBlock(int block) {
+        if (block == decodedBlock)
+            return decodedCount;
+
+        final int count = Math.min(BLOCK_SIZE, numEntries - block * BLOCK_SIZE);
+
+        final long pointer = documents.get(pointersOffset + block);
+        final int width = (int) (pointer & 0xFF);
+        final long dataStart = offset + (pointer >>> 8);
+
+        long prev = firstId(block);
+        blockIds[0] = prev;
+
+        if (width == 0) {
+            // The block consists of duplicates of the same id
+            Arrays.fill(blockIds, 1, count, prev);
+        }
+        else {
+            final int numWords = packedSize(count, width);
+            final long mask = width == 64 ? -1L : (1L << width) - 1;
+
+            documents.get(dataStart, dataStart + numWords, packedWords);
+
+            int wi = 0;
+            int bit = 0;
+
+            for (int i = 1; i < count; i++) {
+                long val = packedWords[wi] >>> bit;
+
+                bit += width;
+                if (bit >= 64) {
+                    bit -= 64;
+                    wi++;
+
+                    if (bit > 0) { // the value straddles two words
+                        val |= packedWords[wi] << (width - bit);
+                    }
+                }
+
+                prev += val & mask;
+                blockIds[i] = prev;
+            }
+        }
+
+        decodedBlock = block;
+        decodedCount = count;
+
+        return count;
+    }
+
+    /** Gives access to the ids decoded by the last call to decodeBlock */
+    long[] decodedIds() {
+        return blockIds;
+    }
+
+    /** The number of longs needed for the packed deltas of a block of count ids */
+    private static int packedSize(int count, int width) {
+        return (int) (((long) (count - 1) * width + 63) / 64);
+    }
+
+    /** Writes a compressed posting list.  The documents are added one at a time, in
+     * ascending order of their ids, and a block is written every {@link #BLOCK_SIZE} documents. */
+    public static class Writer {
+        private final LongArray dest;
+        private final long offset;
+        private final int numEntries;
+
+        private final long lastIdsOffset;
+        private final long firstIdsOffset;
+        private final long pointersOffset;
+        private final long summariesOffset;
+        private final long metaOffset;
+
+        private final long[] ids = new long[BLOCK_SIZE];
+        private final long[] metas = new long[BLOCK_SIZE];
+        private int count = 0;
+
+        private int block = 0;
+        private int added = 0;
+        private long dataPos;
+
+        public Writer(LongArray dest, long offset, int numEntries) {
+            this.dest = dest;
+            this.offset = offset;
+            this.numEntries = numEntries;
+
+            int numBlocks = numBlocks(numEntries);
+
+            lastIdsOffset = offset + 1;
+            firstIdsOffset = lastIdsOffset + numBlocks;
+            pointersOffset = firstIdsOffset + numBlocks;
+            summariesOffset = pointersOffset + numBlocks;
+            metaOffset = summariesOffset + numBlocks;
+
+            dataPos = metaOffset + numEntries;
+
+            dest.set(offset, numEntries);
+        }
+
+        public void add(long docId, long termMeta) {
+            assert added < numEntries : "Too many entries added";
+            assert count == 0 || docId >= ids[count - 1] : "Entries must be added in order";
+
+            ids[count] = docId;
+            metas[count] = termMeta;
+            added++;
+
+            if (++count == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        /** Write the last block
+         *
+         * @return the size of the posting list in longs
+         */
+        public long finish() {
+            if (count > 0) {
+                writeBlock();
+            }
+
+            if (added != numEntries) {
+                throw new IllegalStateException("Expected " + numEntries + " entries, got " + added);
+            }
+
+            return dataPos - offset;
+        }
+
+        private void writeBlock() {
+            long maxDelta = 0;
+            long summary = 0;
+
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    maxDelta |= ids[i] - ids[i - 1];
+                }
+                summary |= metas[i];
+            }
+
+            final int width = 64 - Long.numberOfLeadingZeros(maxDelta);
+
+            dest.set(lastIdsOffset + block, ids[count - 1]);
+            dest.set(firstIdsOffset + block, ids[0]);
+            dest.set(pointersOffset + block, ((dataPos - offset) << 8) | width);
+            dest.set(summariesOffset + block, summary);
+
+            final long blockMetaOffset = metaOffset + (long) block * BLOCK_SIZE;
+            for (int i = 0; i < count; i++) {
+                dest.set(blockMetaOffset + i, metas[i]);
+            }
+
+            if (width > 0) {
+                long word = 0;
+                int bit = 0;
+
+                for (int i = 1; i < count; i++) {
+                    long val = ids[i] - ids[i - 1];
+
+                    word |= val << bit;
+                    bit += width;
+
+                    if (bit >= 64) {
+                        dest.set(dataPos++, word);
+                        bit -= 64;
+
+                        // Carry the bits of the value that didn't fit
+                        word = bit > 0 ? val >>> (width - bit) : 0;
+                    }
+                }
+
+                if (bit > 0) {
+                    dest.set(dataPos++, word);
+                }
+            }
+
+            block++;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package nu.marginalia.index;
+
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.index.query.EntrySource;
+
+/** The documents of a term in the reverse index, and their term metadata.
+ * <p></p>
+ * There are two formats of the documents file, where the documents
+ * of a term are stored either as a b-tree ({@link BTreePostingList}) or as a
+ * compressed posting list ({@link CompressedPostingList}).
+ */
+public interface PostingList {
+
+    /** The number of documents */
+    int numEntries();
+
+    /** Create an entry source that reads the documents in order */
+    EntrySource createEntrySource(String name, long termId);
+
+    /** Keeps all items in buffer that are in the posting list.
+     * The buffer is assumed to be sorted. */
+    void retainEntries(LongQueryBuffer buffer);
+
+    /** Removes all items in buffer that are in the posting list.
+     * The buffer is assumed to be sorted. */
+    void rejectEntries(LongQueryBuffer buffer);
+
+    /** Returns true if the document is in the posting list */
+    boolean contains(long docId);
+
+    /** Returns the term metadata for each of the documents, or zero for documents
+     * that are not in the posting list.  The docIds are assumed to be sorted. */
+    long[] getTermMeta(long[] docIds);
+
+    /** Returns the block summaries of the term metadata, for use in block-max early termination */
+    ReverseIndexBlockMeta blockMeta();
+}
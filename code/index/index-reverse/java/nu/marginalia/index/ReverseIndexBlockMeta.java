@@ -0,0 +1,208 @@
+package nu.marginalia.index;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.btree.BTreeReader;
+import nu.marginalia.btree.model.BTreeContext;
+
+/** Per-block summaries of the term metadata in the documents b-trees of the reverse index,
+ * for use in block-max early termination of queries.
+ * <p></p>
+ * For terms with more than one block of documents, the documents b-tree is followed
+ * by one long per data block, containing the bitwise OR of the term metadata of the
+ * documents in the block.  Since the ranking function is monotonic in the flags and positions
+ * of the term metadata, the summary can be used to calculate an upper bound for how well
+ * any document in the block can rank for the term.
+ * <p></p>
+ * Terms with a single block of documents have no stored summary, instead it is calculated
+ * from the documents when the term is looked up.
+ * <p></p>
+ * The blocks are aligned with the lowest index layer of the b-tree.
+ * <p></p>
+ * Compressed posting lists always store the summaries, along with the last id
+ * of each block, see {@link CompressedPostingList}.  Documents files from before the
+ * summaries were added don't have them, see {@link BTreePostingList#MAGIC}, and their
+ * terms get summaries that don't rule out any block.
+ */
+public class ReverseIndexBlockMeta {
+    private static final BTreeContext ctx = ReverseIndexParameters.docsBTreeContext;
+
+    /** The number of documents in each block */
+    public static final int BLOCK_SIZE = ctx.pageSize();
+
+    private final BTreeReader reader;
+    private final LongArray lastIds;
+    private final LongArray summaries;
+    private final long termMeta;
+    private final int numBlocks;
+
+    /** Returns the number of longs needed to store the block summaries of a term with numEntries documents */
+    public static int summarySize(int numEntries) {
+        if (numEntries <= BLOCK_SIZE)
+            return 0;
+
+        return (numEntries + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /** Calculate the block summaries of the data section of a documents b-tree,
+     * and write them to dest at destOffset.
+     *
+     * @return the number of longs written
+     */
+    public static int writeSummaries(LongArray data, int numEntries, LongArray dest, long destOffset) {
+        final int numBlocks = summarySize(numEntries);
+
+        for (int block = 0; block < numBlocks; block++) {
+            long start = (long) block * BLOCK_SIZE;
+            long end = Math.min(numEntries, start + BLOCK_SIZE);
+
+            dest.set(destOffset + block, orTermMeta(data, start, end));
+        }
+
+        return numBlocks;
+    }
+
+    private static long orTermMeta(LongArray data, long start, long end) {
+        long meta = 0;
+
+        for (long i = start; i < end; i++) {
+            meta |= data.get(ctx.entrySize * i + 1);
+        }
+
+        return meta;
+    }
+
+    /** Summaries for a term that is absent from the index */
+    private ReverseIndexBlockMeta() {
+        this(0L);
+    }
+
+    /** Summaries with the same term metadata for every block */
+    private ReverseIndexBlockMeta(long termMeta) {
+        this.reader = null;
+        this.lastIds = null;
+        this.summaries = null;
+        this.termMeta = termMeta;
+        this.numBlocks = 0;
+    }
+
+    /** Summaries for the term whose documents b-tree is read by reader */
+    ReverseIndexBlockMeta(LongArray documents, BTreeReader reader) {
+        this.reader = reader;
+        this.lastIds = null;
+
+        int numEntries = reader.numEntries();
+        int summarySize = summarySize(numEntries);
+
+        if (summarySize == 0) {
+            this.summaries = null;
+            this.termMeta = orTermMeta(reader.data(), 0, numEntries);
+            this.numBlocks = 1;
+        }
+        else {
+            long summariesStart = reader.getHeader().dataOffsetLongs() + (long) ctx.entrySize * numEntries;
+
+            this.summaries = documents.range(summariesStart, summariesStart + summarySize);
+            this.termMeta = 0;
+            this.numBlocks = summarySize;
+        }
+    }
+
+    /** Summaries for a compressed posting list, with one summary and last id per block */
+    ReverseIndexBlockMeta(LongArray summaries, LongArray lastIds) {
+        this.reader = null;
+        this.lastIds = lastIds;
+        this.summaries = summaries;
+        this.termMeta = 0;
+        this.numBlocks = (int) summaries.size();
+    }
+
+    /** Summaries for a sequence of blocks, given the summary and the last id of each block */
+    public static ReverseIndexBlockMeta forBlocks(LongArray summaries, LongArray lastIds) {
+        return new ReverseIndexBlockMeta(summaries, lastIds);
+    }
+
+    static ReverseIndexBlockMeta absent() {
+        return new ReverseIndexBlockMeta();
+    }
+
+    /** Summaries for a term whose block summaries aren't known, which have every bit
+     * of the term metadata set, so that no block is skipped */
+    static ReverseIndexBlockMeta unknown() {
+        return new ReverseIndexBlockMeta(~0L);
+    }
+
+    /** Summaries for a term in several indexes, which bound the term metadata of
+     * the documents of the term in any of them */
+    public static ReverseIndexBlockMeta union(ReverseIndexBlockMeta... metas) {
+        return new Union(metas);
+    }
+
+    private static class Union extends ReverseIndexBlockMeta {
+        private final ReverseIndexBlockMeta[] metas;
+
+        Union(ReverseIndexBlockMeta[] metas) {
+            this.metas = metas;
+        }
+
+        @Override
+        public long metaForRange(long firstId, long lastId) {
+            long meta = 0;
+
+            for (var blockMeta : metas) {
+                meta |= blockMeta.metaForRange(firstId, lastId);
+            }
+
+            return meta;
+        }
+    }
+
+    /** Returns the bitwise OR of the term metadata of the blocks that
+     * may contain documents with ids in the range [firstId, lastId].
+     */
+    public long metaForRange(long firstId, long lastId) {
+        if (summaries == null)
+            return termMeta;
+
+        int firstBlock = blockFor(firstId);
+        int lastBlock = blockFor(lastId);
+
+        long meta = 0;
+        for (int block = firstBlock; block <= lastBlock; block++) {
+            meta |= summaries.get(block);
+        }
+        return meta;
+    }
+
+    /** Find the first block whose last id is greater than or equal to the id,
+     * or the last block if there is no such block */
+    private int blockFor(long id) {
+        int low = 0;
+        int high = numBlocks - 1;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (lastIdInBlock(mid) < id) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private long lastIdInBlock(int block) {
+        if (lastIds != null) {
+            return lastIds.get(block);
+        }
+
+        if (reader.getHeader().layers() > 0) {
+            // The lowest index layer holds the last id of each full block
+            return reader.lastKeyInBlock(block);
+        }
+
+        return reader.data().get(ctx.entrySize * ((long) block * BLOCK_SIZE + BLOCK_SIZE - 1));
+    }
+}
@@ -2,6 +2,7 @@ package nu.marginalia.index;
 
 import nu.marginalia.array.page.LongQueryBuffer;
 import nu.marginalia.btree.BTreeReader;
+import nu.marginalia.index.query.BlockMaxFilter;
 import nu.marginalia.index.query.EntrySource;
 
 import static java.lang.Math.min;
@@ -16,6 +17,8 @@ public class ReverseIndexEntrySource implements EntrySource {
     final int entrySize;
     private final long wordId;
 
+    private BlockMaxFilter blockMaxFilter = null;
+
     public ReverseIndexEntrySource(String name,
                                    BTreeReader reader,
                                    int entrySize,
@@ -34,8 +37,20 @@ public class ReverseIndexEntrySource implements EntrySource {
         pos += n;
     }
 
+    @Override
+    public void setBlockMaxFilter(BlockMaxFilter filter) {
+        this.blockMaxFilter = filter;
+    }
+
     @Override
     public void read(LongQueryBuffer buffer) {
+        if (blockMaxFilter != null) {
+            skipNonCompetitiveBlocks();
+
+            // Don't read past the current block, so that the next block gets evaluated separately
+            buffer.end = (int) min(buffer.end, blockEnd(pos) - pos);
+        }
+
         buffer.end = min(buffer.end, endOffset - pos);
         reader.readData(buffer.data, buffer.end, pos);
         pos += buffer.end;
@@ -44,6 +59,28 @@ public class ReverseIndexEntrySource implements EntrySource {
         buffer.uniq();
     }
 
+    /** Advance past the blocks whose documents are rejected by the block max filter */
+    private void skipNonCompetitiveBlocks() {
+        var data = reader.data();
+
+        while (pos < endOffset) {
+            long blockEnd = blockEnd(pos);
+
+            if (blockMaxFilter.test(data.get(pos), data.get(blockEnd - entrySize))) {
+                return;
+            }
+
+            pos = (int) blockEnd;
+        }
+    }
+
+    /** Returns the end offset of the block containing the offset */
+    private long blockEnd(long offset) {
+        long blockSizeLongs = (long) entrySize * ReverseIndexBlockMeta.BLOCK_SIZE;
+
+        return min(endOffset, (offset / blockSizeLongs + 1) * blockSizeLongs);
+    }
+
     private void destagger(LongQueryBuffer buffer) {
         if (entrySize == 1)
             return;
@@ -2,9 +2,21 @@ package nu.marginalia.index;
 
 import nu.marginalia.btree.model.BTreeBlockSize;
 import nu.marginalia.btree.model.BTreeContext;
+import nu.marginalia.btree.model.BTreeIndexLayout;
 
 public class ReverseIndexParameters
 {
-    public static final BTreeContext docsBTreeContext = new BTreeContext(5, 2, BTreeBlockSize.BS_2048);
-    public static final BTreeContext wordsBTreeContext = new BTreeContext(5, 2, BTreeBlockSize.BS_2048);
+    /** The layout of the index pages of the b-trees written by the index construction.  The layout
+     * is recorded in the header of each b-tree, so the reader handles either regardless of this setting. */
+    private static final BTreeIndexLayout btreeIndexLayout = Boolean.getBoolean("index.fixedFanoutBTree")
+            ? BTreeIndexLayout.FIXED_FANOUT
+            : BTreeIndexLayout.SORTED;
+
+    public static final BTreeContext docsBTreeContext = new BTreeContext(5, 2, BTreeBlockSize.BS_2048, btreeIndexLayout);
+    public static final BTreeContext wordsBTreeContext = new BTreeContext(5, 2, BTreeBlockSize.BS_2048, btreeIndexLayout);
+
+    /** Write the documents as compressed posting lists rather than b-trees, see PostingList.
+     * The reader detects the format of the documents file, so both formats can be read
+     * regardless of this setting. */
+    public static final boolean compressedDocs = Boolean.getBoolean("index.compressedDocs");
 }
@@ -27,6 +27,12 @@ public class ReverseIndexReader {
     private final BTreeReader wordsBTreeReader;
     private final String name;
 
+    /** Whether the documents are stored as compressed posting lists or b-trees, see PostingList */
+    private final boolean compressed;
+
+    /** Whether the documents file has block summaries, see ReverseIndexBlockMeta */
+    private final boolean blockSummaries;
+
     public ReverseIndexReader(String name, Path words, Path documents) throws IOException {
         this.name = name;
 
@@ -35,6 +41,8 @@ public class ReverseIndexReader {
             this.documents = null;
             this.wordsBTreeReader = null;
             this.wordsDataOffset = -1;
+            this.compressed = false;
+            this.blockSummaries = false;
             return;
         }
 
@@ -42,12 +50,20 @@ public class ReverseIndexReader {
 
         this.words = LongArrayFactory.mmapForReadingShared(words);
         this.documents = LongArrayFactory.mmapForReadingShared(documents);
+        this.compressed = CompressedPostingList.isCompressed(this.documents);
+        this.blockSummaries = compressed || BTreePostingList.hasBlockSummaries(this.documents);
+
+        if (!blockSummaries) {
+            logger.warn("The {} documents file {} predates the block summaries, block-max is disabled for it until the index is rebuilt",
+                    name, documents);
+        }
 
         wordsBTreeReader = new BTreeReader(this.words, ReverseIndexParameters.wordsBTreeContext, 0);
         wordsDataOffset = wordsBTreeReader.getHeader().dataOffsetLongs();
 
         if (getClass().desiredAssertionStatus()) {
-            if (Boolean.getBoolean("index-self-test")) {
+            // The self test only understands the b-tree format
+            if (Boolean.getBoolean("index-self-test") && !compressed) {
                 Executors.newSingleThreadExecutor().execute(this::selfTest);
             }
         }
@@ -92,7 +108,7 @@ public class ReverseIndexReader {
         if (offset < 0) // No documents
             return new EmptyEntrySource();
 
-        return new ReverseIndexEntrySource(name, createReaderNew(offset), 2, termId);
+        return postingList(offset).createEntrySource(name, termId);
     }
 
     /** Create a filter step requiring the specified termId to exist in the documents */
@@ -102,7 +118,7 @@ public class ReverseIndexReader {
         if (offset < 0) // No documents
             return new QueryFilterNoPass();
 
-        return new ReverseIndexRetainFilter(createReaderNew(offset), name, termId);
+        return new ReverseIndexRetainFilter(postingList(offset), name, termId);
     }
 
     /** Create a filter step requiring the specified termId to be absent from the documents */
@@ -112,7 +128,24 @@ public class ReverseIndexReader {
         if (offset < 0) // No documents
             return new QueryFilterLetThrough();
 
-        return new ReverseIndexRejectFilter(createReaderNew(offset));
+        return new ReverseIndexRejectFilter(postingList(offset));
+    }
+
+    /** Returns the block summaries of the term metadata for the termId,
+     * for use in block-max early termination */
+    public ReverseIndexBlockMeta blockMeta(long termId) {
+        if (null == words)
+            return ReverseIndexBlockMeta.absent();
+
+        long offset = wordOffset(termId);
+
+        if (offset < 0) // No documents
+            return ReverseIndexBlockMeta.absent();
+
+        if (!blockSummaries)
+            return ReverseIndexBlockMeta.unknown();
+
+        return postingList(offset).blockMeta();
     }
 
     /** Return the number of documents with the termId in the index */
@@ -122,15 +155,16 @@ public class ReverseIndexReader {
         if (offset < 0)
             return 0;
 
-        return createReaderNew(offset).numEntries();
+        return postingList(offset).numEntries();
     }
 
-    /** Create a BTreeReader for the document offset associated with a termId */
-    private BTreeReader createReaderNew(long offset) {
-        return new BTreeReader(
-                documents,
-                ReverseIndexParameters.docsBTreeContext,
-                offset);
+    /** Create a reader for the documents at the offset associated with a termId */
+    private PostingList postingList(long offset) {
+        if (compressed) {
+            return new CompressedPostingList(documents, offset);
+        }
+
+        return new BTreePostingList(documents, offset);
     }
 
     public long[] getTermMeta(long termId, long[] docIds) {
@@ -144,8 +178,7 @@ public class ReverseIndexReader {
 
         assert isUniqueAndSorted(docIds) : "The input array docIds is assumed to be unique and sorted, was " + Arrays.toString(docIds);
 
-        var reader = createReaderNew(offset);
-        return reader.queryData(docIds, 1);
+        return postingList(offset).getTermMeta(docIds);
     }
 
     private boolean isUniqueAndSorted(long[] ids) {
@@ -160,6 +193,126 @@ public class ReverseIndexReader {
         return true;
     }
 
+    /** Calls the visitor with each term in the index and its documents, in order of term id */
+    public void forEachTerm(TermVisitor visitor) throws IOException {
+        if (null == words)
+            return;
+
+        final int numWords = wordsBTreeReader.numEntries();
+
+        for (int i = 0; i < numWords; i++) {
+            long termId = words.get(wordsDataOffset + 2L * i);
+            long offset = words.get(wordsDataOffset + 2L * i + 1);
+
+            visitor.visit(termId, postingList(offset));
+        }
+    }
+
+    public interface TermVisitor {
+        void visit(long termId, PostingList postings) throws IOException;
+    }
+
+    /** The number of terms in the index */
+    public int numTerms() {
+        if (null == words)
+            return 0;
+
+        return wordsBTreeReader.numEntries();
+    }
+
+    /** Load the words file into memory, so that looking up the terms of the first
+     * queries against a freshly switched index doesn't page fault.
+     */
+    public void preloadWords() {
+        if (null == words)
+            return;
+
+        words.preload(0, words.size());
+    }
+
+    /** Load the first headSize longs of the posting lists of the numTerms terms with the
+     * most documents into memory.  This is where the b-tree index or the block headers
+     * of a posting list are found, which every lookup against the term passes through.
+     *
+     * @return the number of longs loaded
+     */
+    public long preloadLargestPostingLists(int numTerms, long headSize) {
+        if (null == words || numTerms <= 0)
+            return 0;
+
+        final int numWords = wordsBTreeReader.numEntries();
+
+        // The posting lists are written in the order of the term ids, so the size of a posting list
+        // is the distance to the offset of the next term.  Keep the numTerms largest in a min-heap
+        // of (size, offset) pairs.
+        long[] heapSize = new long[numTerms];
+        long[] heapOffset = new long[numTerms];
+        int heapCount = 0;
+
+        for (int i = 0; i < numWords; i++) {
+            long offset = words.get(wordsDataOffset + 2L * i + 1);
+            long end = (i + 1 < numWords) ? words.get(wordsDataOffset + 2L * i + 3) : documents.size();
+            long size = end - offset;
+
+            if (heapCount < numTerms) {
+                heapSize[heapCount] = size;
+                heapOffset[heapCount] = offset;
+                siftUp(heapSize, heapOffset, heapCount++);
+            }
+            else if (size > heapSize[0]) {
+                heapSize[0] = size;
+                heapOffset[0] = offset;
+                siftDown(heapSize, heapOffset, heapCount);
+            }
+        }
+
+        long loaded = 0;
+        for (int i = 0; i < heapCount; i++) {
+            long start = heapOffset[i];
+            long end = Math.min(documents.size(), start + Math.min(heapSize[i], headSize));
+
+            documents.preload(start, end);
+            loaded += end - start;
+        }
+
+        return loaded;
+    }
+
+    private static void siftUp(long[] keys, long[] vals, int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (keys[parent] <= keys[pos])
+                break;
+
+            swap(keys, vals, parent, pos);
+            pos = parent;
+        }
+    }
+
+    private static void siftDown(long[] keys, long[] vals, int count) {
+        int pos = 0;
+        for (;;) {
+            int smallest = pos;
+            int left = 2 * pos + 1;
+            int right = left + 1;
+
+            if (left < count && keys[left] < keys[smallest])
+                smallest = left;
+            if (right < count && keys[right] < keys[smallest])
+                smallest = right;
+            if (smallest == pos)
+                break;
+
+            swap(keys, vals, smallest, pos);
+            pos = smallest;
+        }
+    }
+
+    private static void swap(long[] keys, long[] vals, int a, int b) {
+        long tk = keys[a]; keys[a] = keys[b]; keys[b] = tk;
+        long tv = vals[a]; vals[a] = vals[b]; vals[b] = tv;
+    }
+
     public void close() {
         if (documents != null)
             documents.close();
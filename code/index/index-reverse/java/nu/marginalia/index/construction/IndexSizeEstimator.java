@@ -2,8 +2,10 @@ package nu.marginalia.index.construction;
 
 import nu.marginalia.array.algo.LongArrayTransformations;
 import nu.marginalia.btree.model.BTreeContext;
+import nu.marginalia.index.ReverseIndexBlockMeta;
 
-/** Calculates the necessary size of an index from an array of offsets (@see CountToOffsetTransformer)<p>
+/** Calculates the necessary size of an index from an array of offsets (@see CountToOffsetTransformer),
+ * including the block summaries (@see ReverseIndexBlockMeta)<p>
  *
  * Used with LongArray.fold()
  * */
@@ -22,7 +24,10 @@ public class IndexSizeEstimator implements LongArrayTransformations.LongBinaryOp
     public long apply(long start, long end) {
         if (end == start) return end;
 
-        size += bTreeContext.calculateSize((int) (end - start) / entrySize);
+        int numEntries = (int) (end - start) / entrySize;
+
+        size += bTreeContext.calculateSize(numEntries);
+        size += ReverseIndexBlockMeta.summarySize(numEntries);
 
         return end;
     }
@@ -4,27 +4,36 @@ import nu.marginalia.array.LongArray;
 import nu.marginalia.array.algo.LongArrayTransformations;
 import nu.marginalia.btree.BTreeWriter;
 import nu.marginalia.btree.model.BTreeContext;
+import nu.marginalia.index.BTreePostingList;
+import nu.marginalia.index.ReverseIndexBlockMeta;
 
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 
-/** Constructs the BTrees in a reverse index */
+/** Constructs the BTrees in a reverse index, each followed
+ * by its block summaries (@see ReverseIndexBlockMeta) */
 public class ReverseIndexBTreeTransformer implements LongArrayTransformations.LongIOTransformer {
     private final BTreeWriter writer;
+    private final LongArray urlsFileMap;
     private final FileChannel intermediateChannel;
 
     private final int entrySize;
 
     long start = 0;
-    long writeOffset = 0;
+
+    /** The first long of the file is reserved for the format marker */
+    long writeOffset = 1;
 
     public ReverseIndexBTreeTransformer(LongArray urlsFileMap,
                                         int entrySize,
                                         BTreeContext bTreeContext,
                                         FileChannel intermediateChannel) {
         this.writer = new BTreeWriter(urlsFileMap, bTreeContext);
+        this.urlsFileMap = urlsFileMap;
         this.entrySize = entrySize;
         this.intermediateChannel = intermediateChannel;
+
+        urlsFileMap.set(0, BTreePostingList.MAGIC);
     }
 
     @Override
@@ -42,6 +51,10 @@ public class ReverseIndexBTreeTransformer implements LongArrayTransformations.Lo
                 mapRegion -> mapRegion.transferFrom(intermediateChannel, start, 0, end - start)
         );
 
+        // The data section ends where the b-tree ends, and the block summaries go right after it
+        var data = urlsFileMap.range(writeOffset - (long) size * entrySize, writeOffset);
+        writeOffset += ReverseIndexBlockMeta.writeSummaries(data, size, urlsFileMap, writeOffset);
+
         start = end;
         return offsetForBlock;
     }
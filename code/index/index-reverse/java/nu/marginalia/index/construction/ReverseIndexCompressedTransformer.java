@@ -0,0 +1,80 @@
+package nu.marginalia.index.construction;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.algo.LongArrayTransformations;
+import nu.marginalia.index.CompressedPostingList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/** Constructs the compressed posting lists of a reverse index (@see CompressedPostingList),
+ * streaming the (docId, termMeta) pairs of each word from the intermediate documents file */
+public class ReverseIndexCompressedTransformer implements LongArrayTransformations.LongIOTransformer {
+    private final LongArray docsFileMap;
+    private final FileChannel intermediateChannel;
+
+    /** Room for one block worth of (docId, termMeta) pairs */
+    private final ByteBuffer readBuffer = ByteBuffer
+            .allocateDirect(2 * CompressedPostingList.BLOCK_SIZE * LongArray.WORD_SIZE)
+            .order(ByteOrder.nativeOrder());
+
+    long start = 0;
+
+    /** The first long of the file is reserved for the format marker */
+    long writeOffset = 1;
+
+    public ReverseIndexCompressedTransformer(LongArray docsFileMap,
+                                             FileChannel intermediateChannel) {
+        this.docsFileMap = docsFileMap;
+        this.intermediateChannel = intermediateChannel;
+
+        docsFileMap.set(0, CompressedPostingList.MAGIC);
+    }
+
+    @Override
+    public long transform(long pos, long end) throws IOException {
+
+        final int size = (int) ((end - start) / 2);
+
+        if (size == 0) {
+            return -1;
+        }
+
+        final long offsetForWord = writeOffset;
+
+        var writer = new CompressedPostingList.Writer(docsFileMap, writeOffset, size);
+
+        for (long readPos = start; readPos < end; ) {
+            readBuffer.clear();
+            readBuffer.limit((int) Math.min(readBuffer.capacity(), (end - readPos) * LongArray.WORD_SIZE));
+
+            while (readBuffer.hasRemaining()) {
+                int n = intermediateChannel.read(readBuffer, readPos * LongArray.WORD_SIZE + readBuffer.position());
+                if (n < 0)
+                    throw new IOException("Unexpected end of intermediate documents file");
+            }
+
+            readBuffer.flip();
+
+            LongBuffer pairs = readBuffer.asLongBuffer();
+            while (pairs.hasRemaining()) {
+                writer.add(pairs.get(), pairs.get());
+            }
+
+            readPos += pairs.limit();
+        }
+
+        writeOffset += writer.finish();
+
+        start = end;
+        return offsetForWord;
+    }
+
+    /** The number of longs written so far */
+    public long size() {
+        return writeOffset;
+    }
+}
@@ -8,6 +8,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ReverseIndexConstructor {
@@ -16,6 +18,7 @@ public class ReverseIndexConstructor {
 
     public enum CreateReverseIndexSteps {
         CONSTRUCT,
+        MERGE,
         FINALIZE,
         FINISHED
     }
@@ -52,22 +55,31 @@ public class ReverseIndexConstructor {
 
             heartbeat.progress(CreateReverseIndexSteps.CONSTRUCT);
 
+            List<ReversePreindexReference> preindexes;
+
             try (var preindexHeartbeat = processHeartbeat.createAdHocTaskHeartbeat("constructPreindexes")) {
 
                 AtomicInteger progress = new AtomicInteger(0);
-                inputs
+                preindexes = inputs
                     .parallelStream()
                     .map(in -> {
-                        preindexHeartbeat.progress("PREINDEX/MERGE", progress.incrementAndGet(), inputs.size());
+                        preindexHeartbeat.progress("PREINDEX", progress.incrementAndGet(), inputs.size());
                         return construct(in);
                     })
-                    .reduce(this::merge)
-                    .ifPresent((index) -> {
-                        heartbeat.progress(CreateReverseIndexSteps.FINALIZE);
-                        finalizeIndex(index);
-                        heartbeat.progress(CreateReverseIndexSteps.FINISHED);
-                    });
+                    .toList();
             }
+
+            heartbeat.progress(CreateReverseIndexSteps.MERGE);
+
+            ReversePreindexReference merged;
+
+            try (var mergeHeartbeat = processHeartbeat.createAdHocTaskHeartbeat("mergePreindexes")) {
+                merged = merge(preindexes, (bytesMerged, bytesTotal) ->
+                        mergeHeartbeat.progress("MERGE (MB)", (int) (bytesMerged >> 20), (int) (bytesTotal >> 20)));
+            }
+
+            heartbeat.progress(CreateReverseIndexSteps.FINALIZE);
+            finalizeIndex(merged);
             heartbeat.progress(CreateReverseIndexSteps.FINISHED);
         }
     }
@@ -79,21 +91,28 @@ public class ReverseIndexConstructor {
                 .closeToReference();
     }
 
-    @SneakyThrows
-    private ReversePreindexReference merge(ReversePreindexReference leftR, ReversePreindexReference rightR) {
+    /** Merge all the preindexes in one pass, see {@link ReversePreindex#merge(Path, List, ReversePreindex.MergeProgressListener)} */
+    private ReversePreindexReference merge(List<ReversePreindexReference> preindexRefs,
+                                           ReversePreindex.MergeProgressListener progressListener) throws IOException
+    {
+        if (preindexRefs.size() == 1) {
+            return preindexRefs.getFirst();
+        }
 
-        var left = leftR.open();
-        var right = rightR.open();
+        List<ReversePreindex> preindexes = new ArrayList<>(preindexRefs.size());
 
         try {
-            return ReversePreindex.merge(tmpDir, left, right).closeToReference();
+            for (var ref : preindexRefs) {
+                preindexes.add(ref.open());
+            }
+
+            return ReversePreindex.merge(tmpDir, preindexes, progressListener).closeToReference();
         }
         finally {
-            left.delete();
-            right.delete();
+            for (var preindex : preindexes) {
+                preindex.delete();
+            }
         }
-
-
     }
 
     @SneakyThrows
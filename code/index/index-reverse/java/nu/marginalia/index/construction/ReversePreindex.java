@@ -2,8 +2,11 @@ package nu.marginalia.index.construction;
 
 import nu.marginalia.array.LongArray;
 import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.array.page.LongQueryBuffer;
 import nu.marginalia.btree.BTreeWriter;
+import nu.marginalia.index.CompressedPostingList;
 import nu.marginalia.index.ReverseIndexParameters;
+import nu.marginalia.index.ReverseIndexReader;
 import nu.marginalia.index.journal.reader.IndexJournalReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +16,8 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.LongPredicate;
 
 import static nu.marginalia.array.algo.TwoArrayOperations.*;
 
@@ -52,6 +57,80 @@ public class ReversePreindex {
         return new ReversePreindex(segments, docs);
     }
 
+    /** Constructs a preindex from the documents of a finalized reverse index that pass docFilter,
+     * so that it can be merged with other preindexes and finalized again.  This is how the delta
+     * segments of the index are compacted into the base segment.
+     */
+    public static ReversePreindex fromReverseIndex(ReverseIndexReader index,
+                                                   LongPredicate docFilter,
+                                                   Path workDir) throws IOException
+    {
+        Path segmentWordsFile = Files.createTempFile(workDir, "segment_words", ".dat");
+        Path segmentCountsFile = Files.createTempFile(workDir, "segment_counts", ".dat");
+        Path docsFile = Files.createTempFile(workDir, "docs", ".dat");
+
+        // Upper bounds for the sizes of the files, before filtering
+        long[] sizes = new long[2];
+        index.forEachTerm((termId, postings) -> {
+            sizes[0]++;
+            sizes[1] += postings.numEntries();
+        });
+
+        final LongArray wordIdsOut = LongArrayFactory.mmapForWritingConfined(segmentWordsFile, Math.max(1, sizes[0]));
+        final LongArray countsOut = LongArrayFactory.mmapForWritingConfined(segmentCountsFile, Math.max(1, sizes[0]));
+        final LongArray documentsOut = LongArrayFactory.mmapForWritingConfined(docsFile, Math.max(1, 2 * sizes[1]));
+
+        LongQueryBuffer buffer = new LongQueryBuffer(8192);
+
+        // Number of words and longs of document data written
+        long[] written = new long[2];
+
+        index.forEachTerm((termId, postings) -> {
+            var source = postings.createEntrySource("preindex", termId);
+            long count = 0;
+
+            while (source.hasMore()) {
+                buffer.reset();
+                source.read(buffer);
+
+                while (buffer.hasMore()) {
+                    if (docFilter.test(buffer.currentValue())) {
+                        buffer.retainAndAdvance();
+                    }
+                    else {
+                        buffer.rejectAndAdvance();
+                    }
+                }
+                buffer.finalizeFiltering();
+
+                long[] docIds = buffer.copyData();
+                long[] termMeta = postings.getTermMeta(docIds);
+
+                for (int i = 0; i < docIds.length; i++) {
+                    documentsOut.set(written[1]++, docIds[i]);
+                    documentsOut.set(written[1]++, termMeta[i]);
+                }
+
+                count += docIds.length;
+            }
+
+            if (count > 0) {
+                wordIdsOut.set(written[0], termId);
+                countsOut.set(written[0], count);
+                written[0]++;
+            }
+        });
+
+        LongArray wordIds = shrinkMergedDocuments(wordIdsOut, segmentWordsFile, written[0]);
+        LongArray counts = shrinkMergedDocuments(countsOut, segmentCountsFile, written[0]);
+        LongArray documents = shrinkMergedDocuments(documentsOut, docsFile, written[1]);
+
+        return new ReversePreindex(
+                new ReversePreindexWordSegments(wordIds, counts, segmentWordsFile, segmentCountsFile),
+                new ReversePreindexDocuments(documents, docsFile)
+        );
+    }
+
     /**  Close the associated memory mapped areas and return
      * a dehydrated version of this object that can be re-opened
      * later.
@@ -70,24 +149,27 @@ public class ReversePreindex {
 
     /** Transform the preindex into a reverse index */
     public void finalizeIndex(Path outputFileDocs, Path outputFileWords) throws IOException {
+        finalizeIndex(outputFileDocs, outputFileWords, ReverseIndexParameters.compressedDocs);
+    }
+
+    /** Transform the preindex into the final index files
+     *
+     * @param compressed whether to write the documents as compressed posting lists
+     *                   instead of b-trees, see {@link nu.marginalia.index.PostingList}
+     */
+    public void finalizeIndex(Path outputFileDocs, Path outputFileWords, boolean compressed) throws IOException {
         var offsets = segments.counts;
 
         Files.deleteIfExists(outputFileDocs);
         Files.deleteIfExists(outputFileWords);
 
-        // Estimate the size of the docs index data
         offsets.transformEach(0, offsets.size(), new CountToOffsetTransformer(2));
-        IndexSizeEstimator sizeEstimator = new IndexSizeEstimator(ReverseIndexParameters.docsBTreeContext, 2);
-        offsets.fold(0, 0, offsets.size(), sizeEstimator);
 
-        // Write the docs file
-        LongArray finalDocs = LongArrayFactory.mmapForWritingConfined(outputFileDocs, sizeEstimator.size);
-        try (var intermediateDocChannel = documents.createDocumentsFileChannel()) {
-            offsets.transformEachIO(0, offsets.size(),
-                    new ReverseIndexBTreeTransformer(finalDocs, 2,
-                            ReverseIndexParameters.docsBTreeContext,
-                            intermediateDocChannel));
-            intermediateDocChannel.force(false);
+        if (compressed) {
+            writeCompressedDocs(outputFileDocs, offsets);
+        }
+        else {
+            writeBTreeDocs(outputFileDocs, offsets);
         }
 
         LongArray wordIds = segments.wordIds;
@@ -112,13 +194,60 @@ public class ReversePreindex {
             }
         });
 
-        finalDocs.force();
-        finalDocs.close();
         wordsArray.force();
         wordsArray.close();
 
     }
 
+    /** Write the docs file as b-trees, transforming the offsets
+     * into the intermediate docs file into offsets into the docs file */
+    private void writeBTreeDocs(Path outputFileDocs, LongArray offsets) throws IOException {
+        // Estimate the size of the docs index data
+        IndexSizeEstimator sizeEstimator = new IndexSizeEstimator(ReverseIndexParameters.docsBTreeContext, 2);
+        offsets.fold(0, 0, offsets.size(), sizeEstimator);
+
+        // One more long for the format marker, see BTreePostingList
+        LongArray finalDocs = LongArrayFactory.mmapForWritingConfined(outputFileDocs, 1 + sizeEstimator.size);
+        try (var intermediateDocChannel = documents.createDocumentsFileChannel()) {
+            offsets.transformEachIO(0, offsets.size(),
+                    new ReverseIndexBTreeTransformer(finalDocs, 2,
+                            ReverseIndexParameters.docsBTreeContext,
+                            intermediateDocChannel));
+            intermediateDocChannel.force(false);
+        }
+
+        finalDocs.force();
+        finalDocs.close();
+    }
+
+    /** Write the docs file as compressed posting lists, transforming the offsets
+     * into the intermediate docs file into offsets into the docs file */
+    private void writeCompressedDocs(Path outputFileDocs, LongArray offsets) throws IOException {
+        // The size of the compressed data isn't known in advance, so the file is
+        // allocated for the worst case, and truncated to the actual size afterwards
+        long numWords = offsets.size();
+        long numEntries = numWords == 0 ? 0 : offsets.get(numWords - 1) / 2;
+
+        // Each word needs at most 1 + 4 * ceil(n / BLOCK_SIZE) + 2n longs, see CompressedPostingList
+        long maxSize = 1 + 5 * numWords + 4 * (numEntries / CompressedPostingList.BLOCK_SIZE) + 2 * numEntries;
+
+        LongArray finalDocs = LongArrayFactory.mmapForWritingConfined(outputFileDocs, maxSize);
+        long size;
+
+        try (var intermediateDocChannel = documents.createDocumentsFileChannel()) {
+            var transformer = new ReverseIndexCompressedTransformer(finalDocs, intermediateDocChannel);
+            offsets.transformEachIO(0, offsets.size(), transformer);
+            size = transformer.size();
+        }
+
+        finalDocs.force();
+        finalDocs.close();
+
+        try (var channel = FileChannel.open(outputFileDocs, StandardOpenOption.WRITE)) {
+            channel.truncate(size * LongArray.WORD_SIZE);
+        }
+    }
+
     /** Delete all files associated with this pre-index */
     public void delete() throws IOException {
         segments.delete();
@@ -203,6 +332,26 @@ public class ReversePreindex {
         );
     }
 
+    /** Merge any number of preindexes into one in a single pass, writing each document once
+     * rather than once per level as when merging them pairwise.  The documents are merged
+     * in parallel by ranges of words, using the number of threads given by the
+     * index.merge.threads system property, or all available processors by default.
+     *
+     * @param progressListener is told about the progress of the merge as word ranges finish
+     */
+    public static ReversePreindex merge(Path destDir,
+                                        List<ReversePreindex> inputs,
+                                        MergeProgressListener progressListener) throws IOException
+    {
+        int numThreads = Integer.getInteger("index.merge.threads", Runtime.getRuntime().availableProcessors());
+
+        return new ReversePreindexMerger(destDir, inputs, progressListener, numThreads).merge();
+    }
+
+    public interface MergeProgressListener {
+        void onProgress(long bytesMerged, long bytesTotal);
+    }
+
     /** Create a segment word file with each word from both inputs, with zero counts for all the data.
      * This is an intermediate product in merging.
      */
@@ -233,7 +382,7 @@ public class ReversePreindex {
     /** It's possible we overestimated the necessary size of the documents file,
      * this will permit us to shrink it down to the smallest necessary size.
      */
-    private static LongArray shrinkMergedDocuments(LongArray mergedDocuments, Path docsFile, long sizeLongs) throws IOException {
+    static LongArray shrinkMergedDocuments(LongArray mergedDocuments, Path docsFile, long sizeLongs) throws IOException {
 
         mergedDocuments.force();
 
@@ -0,0 +1,505 @@
+package nu.marginalia.index.construction;
+
+import lombok.SneakyThrows;
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static nu.marginalia.array.algo.TwoArrayOperations.mergeArrays2;
+
+/** Merges any number of preindexes into one in a single pass, see
+ * {@link ReversePreindex#merge(Path, List, ReversePreindex.MergeProgressListener)}.
+ * <p></p>
+ * The word segments of the inputs are first merged with a heap to produce the word list
+ * of the result, along with an upper bound of the size of each word's documents.  This
+ * also splits the words into partitions of roughly equal size, remembering where each input
+ * is at the start of each partition.  The partitions are then merged in parallel, each
+ * into its own region of the documents file, and finally moved together in case duplicate
+ * documents made any partition smaller than its upper bound.
+ */
+class ReversePreindexMerger {
+    private static final int RECORD_SIZE_LONGS = 2;
+    private static final int PARTITIONS_PER_THREAD = 8;
+
+    private static final Logger logger = LoggerFactory.getLogger(ReversePreindexMerger.class);
+
+    private final Path destDir;
+    private final List<ReversePreindex> inputs;
+    private final ReversePreindex.MergeProgressListener progressListener;
+    private final int numThreads;
+
+    private final AtomicLong bytesMerged = new AtomicLong();
+    private final long bytesTotal;
+
+    ReversePreindexMerger(Path destDir,
+                          List<ReversePreindex> inputs,
+                          ReversePreindex.MergeProgressListener progressListener,
+                          int numThreads)
+    {
+        this.destDir = destDir;
+        this.inputs = inputs;
+        this.progressListener = progressListener;
+        this.numThreads = numThreads;
+
+        this.bytesTotal = JAVA_LONG.byteSize() * inputs.stream().mapToLong(input -> input.documents.size()).sum();
+    }
+
+    /** The state of the merge at the start of a range of words */
+    private record Partition(long wordStart,
+                             long docsStart,
+                             long[] inputIdx,
+                             long[] inputOffset)
+    {}
+
+    public ReversePreindex merge() throws IOException {
+        long numWords = countDistinctWords();
+
+        Path segmentWordsFile = Files.createTempFile(destDir, "segment_words", ".dat");
+        Path segmentCountsFile = Files.createTempFile(destDir, "segment_counts", ".dat");
+        Path docsFile = Files.createTempFile(destDir, "docs", ".dat");
+
+        LongArray wordIds = LongArrayFactory.mmapForWritingShared(segmentWordsFile, numWords);
+        LongArray counts = LongArrayFactory.mmapForWritingShared(segmentCountsFile, numWords);
+
+        List<Partition> partitions = new ArrayList<>();
+        long docsSize = mergeWords(wordIds, counts, partitions);
+
+        LongArray mergedDocuments = LongArrayFactory.mmapForWritingShared(docsFile, docsSize);
+
+        long[] partitionSizes = mergeDocuments(wordIds, counts, mergedDocuments, partitions, numWords, docsSize);
+
+        long actualSize = compact(mergedDocuments, partitions, partitionSizes);
+
+        wordIds.force();
+        counts.force();
+
+        // We may have overestimated the size of the merged docs size in the case there were
+        // duplicates in the data, so we need to shrink it to the actual size we wrote.
+        mergedDocuments = ReversePreindex.shrinkMergedDocuments(mergedDocuments, docsFile, actualSize);
+
+        return new ReversePreindex(
+                new ReversePreindexWordSegments(wordIds, counts, segmentWordsFile, segmentCountsFile),
+                new ReversePreindexDocuments(mergedDocuments, docsFile)
+        );
+    }
+
+    /** Count the distinct words in all inputs, we need this to size the words file */
+    private long countDistinctWords() {
+        var heap = new SegmentIteratorHeap(inputIterators());
+        int[] current = new int[inputs.size()];
+
+        long distinct = 0;
+        while (!heap.isEmpty()) {
+            heap.advance(current, heap.popWord(current));
+            distinct++;
+        }
+
+        return distinct;
+    }
+
+    /** Write the merged word list along with upper bounds of the document counts,
+     * and split it into partitions.
+     *
+     * @return the upper bound of the size of the merged documents
+     */
+    private long mergeWords(LongArray wordIds, LongArray counts, List<Partition> partitions) {
+        var iterators = inputIterators();
+        var heap = new SegmentIteratorHeap(iterators);
+        int[] current = new int[inputs.size()];
+
+        final long totalSize = bytesTotal / JAVA_LONG.byteSize();
+        final long partitionSize = Math.max(1, totalSize / ((long) numThreads * PARTITIONS_PER_THREAD));
+
+        long docsOffset = 0;
+        long nextPartitionStart = 0;
+
+        for (long wordIdx = 0; !heap.isEmpty(); wordIdx++) {
+            if (docsOffset >= nextPartitionStart) {
+                partitions.add(snapshot(iterators, wordIdx, docsOffset));
+                nextPartitionStart = docsOffset + partitionSize;
+            }
+
+            long wordId = heap.wordId();
+            int n = heap.popWord(current);
+
+            long size = 0;
+            for (int i = 0; i < n; i++) {
+                size += iterators[current[i]].size();
+            }
+
+            wordIds.set(wordIdx, wordId);
+            counts.set(wordIdx, size / RECORD_SIZE_LONGS);
+
+            docsOffset += size;
+
+            heap.advance(current, n);
+        }
+
+        return docsOffset;
+    }
+
+    private Partition snapshot(ReversePreindexWordSegments.SegmentIterator[] iterators, long wordIdx, long docsOffset) {
+        long[] inputIdx = new long[iterators.length];
+        long[] inputOffset = new long[iterators.length];
+
+        for (int i = 0; i < iterators.length; i++) {
+            inputIdx[i] = iterators[i].idx();
+            inputOffset[i] = iterators[i].startOffset;
+        }
+
+        return new Partition(wordIdx, docsOffset, inputIdx, inputOffset);
+    }
+
+    /** Merge the documents of each partition in parallel
+     *
+     * @return the actual size of the documents of each partition
+     */
+    @SneakyThrows
+    private long[] mergeDocuments(LongArray wordIds,
+                                  LongArray counts,
+                                  LongArray mergedDocuments,
+                                  List<Partition> partitions,
+                                  long numWords,
+                                  long docsSize)
+    {
+        long[] partitionSizes = new long[partitions.size()];
+        List<Future<Long>> results = new ArrayList<>(partitions.size());
+
+        try (ExecutorService mergeWorkers = Executors.newFixedThreadPool(numThreads)) {
+            for (int p = 0; p < partitions.size(); p++) {
+                final Partition partition = partitions.get(p);
+                final long wordEnd = p + 1 < partitions.size() ? partitions.get(p + 1).wordStart : numWords;
+                final long docsEnd = p + 1 < partitions.size() ? partitions.get(p + 1).docsStart : docsSize;
+
+                results.add(mergeWorkers.submit(() ->
+                        mergePartition(wordIds, counts, mergedDocuments, partition, wordEnd, docsEnd)));
+            }
+
+            for (int p = 0; p < partitions.size(); p++) {
+                partitionSizes[p] = results.get(p).get();
+            }
+        }
+
+        return partitionSizes;
+    }
+
+    /** Merge the documents for the words in a partition into the partition's region of
+     * the merged documents, and replace the upper bounds in counts with the actual counts.
+     *
+     * @return the size of the documents written
+     */
+    private long mergePartition(LongArray wordIds,
+                                LongArray counts,
+                                LongArray mergedDocuments,
+                                Partition partition,
+                                long wordEnd,
+                                long docsEnd)
+    {
+        var iterators = new ReversePreindexWordSegments.SegmentIterator[inputs.size()];
+        for (int i = 0; i < iterators.length; i++) {
+            iterators[i] = inputs.get(i).segments.iterator(RECORD_SIZE_LONGS,
+                    partition.inputIdx[i],
+                    partition.inputOffset[i]);
+        }
+
+        var heap = new SegmentIteratorHeap(iterators);
+        var docsMerger = new DocumentsMerger(inputs.size());
+        int[] current = new int[inputs.size()];
+
+        long outPos = partition.docsStart;
+
+        for (long wordIdx = partition.wordStart; wordIdx < wordEnd; wordIdx++) {
+            assert heap.wordId() == wordIds.get(wordIdx) : "Partition out of sync with word list";
+
+            int n = heap.popWord(current);
+            long size;
+
+            if (n == 1) {
+                var iter = iterators[current[0]];
+
+                size = iter.size();
+                MemorySegment.copy(inputs.get(current[0]).documents.documents.getMemorySegment(), 8 * iter.startOffset,
+                        mergedDocuments.getMemorySegment(), 8 * outPos,
+                        8 * size);
+            }
+            else if (n == 2) {
+                var left = iterators[current[0]];
+                var right = iterators[current[1]];
+
+                size = mergeArrays2(mergedDocuments,
+                        inputs.get(current[0]).documents.documents,
+                        inputs.get(current[1]).documents.documents,
+                        outPos,
+                        left.startOffset, left.endOffset,
+                        right.startOffset, right.endOffset);
+            }
+            else {
+                size = docsMerger.merge(mergedDocuments, outPos, iterators, current, n);
+            }
+
+            counts.set(wordIdx, size / RECORD_SIZE_LONGS);
+            outPos += size;
+
+            heap.advance(current, n);
+        }
+
+        progressListener.onProgress(
+                bytesMerged.addAndGet(JAVA_LONG.byteSize() * (docsEnd - partition.docsStart)),
+                bytesTotal);
+
+        return outPos - partition.docsStart;
+    }
+
+    /** Move the partitions together so that the documents are contiguous
+     *
+     * @return the size of the documents
+     */
+    private long compact(LongArray mergedDocuments, List<Partition> partitions, long[] partitionSizes) {
+        var segment = mergedDocuments.getMemorySegment();
+
+        long pos = 0;
+        for (int p = 0; p < partitions.size(); p++) {
+            long start = partitions.get(p).docsStart;
+
+            if (start != pos) {
+                MemorySegment.copy(segment, 8 * start, segment, 8 * pos, 8 * partitionSizes[p]);
+            }
+
+            pos += partitionSizes[p];
+        }
+
+        if (pos != mergedDocuments.size()) {
+            logger.info("Removed {} duplicate documents", (mergedDocuments.size() - pos) / RECORD_SIZE_LONGS);
+        }
+
+        return pos;
+    }
+
+    private ReversePreindexWordSegments.SegmentIterator[] inputIterators() {
+        var iterators = new ReversePreindexWordSegments.SegmentIterator[inputs.size()];
+        for (int i = 0; i < iterators.length; i++) {
+            iterators[i] = inputs.get(i).segments.iterator(RECORD_SIZE_LONGS);
+        }
+        return iterators;
+    }
+
+    /** Merges the documents of a word that is present in more than two inputs.  Like
+     * for {@link nu.marginalia.array.algo.TwoArrayOperations#mergeArrays2}, when a document
+     * is present in several inputs, the metadata from the first input is kept.
+     */
+    private class DocumentsMerger {
+        private final long[] pos;
+        private final long[] end;
+        private final LongArray[] source;
+
+        /** Binary heap of the cursors ordered by their current document id, then by input order */
+        private final int[] heap;
+        private int heapSize;
+
+        DocumentsMerger(int maxInputs) {
+            pos = new long[maxInputs];
+            end = new long[maxInputs];
+            source = new LongArray[maxInputs];
+            heap = new int[maxInputs];
+        }
+
+        long merge(LongArray dest,
+                   long outStart,
+                   ReversePreindexWordSegments.SegmentIterator[] iterators,
+                   int[] current,
+                   int n)
+        {
+            heapSize = 0;
+
+            for (int i = 0; i < n; i++) {
+                pos[i] = iterators[current[i]].startOffset;
+                end[i] = iterators[current[i]].endOffset;
+                source[i] = inputs.get(current[i]).documents.documents;
+
+                if (pos[i] < end[i]) {
+                    heap[heapSize] = i;
+                    siftUp(heapSize++);
+                }
+            }
+
+            long outPos = outStart;
+            long lastValue = 0;
+
+            while (heapSize > 0) {
+                final int top = heap[0];
+                final long val = source[top].get(pos[top]);
+
+                if (val != lastValue || outPos == outStart) {
+                    dest.set(outPos++, val);
+                    dest.set(outPos++, source[top].get(pos[top] + 1));
+                    lastValue = val;
+                }
+
+                pos[top] += RECORD_SIZE_LONGS;
+                if (pos[top] >= end[top]) {
+                    heap[0] = heap[--heapSize];
+                }
+                if (heapSize > 0) {
+                    siftDown(0);
+                }
+            }
+
+            return outPos - outStart;
+        }
+
+        private boolean less(int a, int b) {
+            long aVal = source[a].get(pos[a]);
+            long bVal = source[b].get(pos[b]);
+
+            return aVal < bVal || (aVal == bVal && a < b);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!less(heap[i], heap[parent]))
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            for (;;) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+
+                if (left < heapSize && less(heap[left], heap[smallest]))
+                    smallest = left;
+                if (right < heapSize && less(heap[right], heap[smallest]))
+                    smallest = right;
+                if (smallest == i)
+                    break;
+
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int tmp = heap[i];
+            heap[i] = heap[j];
+            heap[j] = tmp;
+        }
+    }
+
+    /** Binary heap of segment iterators ordered by their current word id, then by input order */
+    static class SegmentIteratorHeap {
+        private final ReversePreindexWordSegments.SegmentIterator[] iterators;
+        private final int[] heap;
+        private int heapSize = 0;
+
+        /** Creates a heap of the iterators, advancing each of them onto its first word */
+        SegmentIteratorHeap(ReversePreindexWordSegments.SegmentIterator[] iterators) {
+            this.iterators = iterators;
+            this.heap = new int[iterators.length];
+
+            for (int i = 0; i < iterators.length; i++) {
+                if (iterators[i].next()) {
+                    heap[heapSize] = i;
+                    siftUp(heapSize++);
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return heapSize == 0;
+        }
+
+        /** The smallest current word id */
+        long wordId() {
+            return iterators[heap[0]].wordId;
+        }
+
+        /** Remove the iterators that are positioned on the smallest word id from the heap,
+         * and put their indexes in input order into out.
+         *
+         * @return the number of iterators removed
+         */
+        int popWord(int[] out) {
+            final long wordId = wordId();
+
+            int n = 0;
+            while (heapSize > 0 && iterators[heap[0]].wordId == wordId) {
+                out[n++] = heap[0];
+
+                heap[0] = heap[--heapSize];
+                if (heapSize > 0) {
+                    siftDown(0);
+                }
+            }
+
+            return n;
+        }
+
+        /** Advance the indicated iterators to their next word, and put them back in the heap */
+        void advance(int[] which, int n) {
+            for (int i = 0; i < n; i++) {
+                if (iterators[which[i]].next()) {
+                    heap[heapSize] = which[i];
+                    siftUp(heapSize++);
+                }
+            }
+        }
+
+        private boolean less(int a, int b) {
+            long aWord = iterators[a].wordId;
+            long bWord = iterators[b].wordId;
+
+            return aWord < bWord || (aWord == bWord && a < b);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!less(heap[i], heap[parent]))
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            for (;;) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+
+                if (left < heapSize && less(heap[left], heap[smallest]))
+                    smallest = left;
+                if (right < heapSize && less(heap[right], heap[smallest]))
+                    smallest = right;
+                if (smallest == i)
+                    break;
+
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int tmp = heap[i];
+            heap[i] = heap[j];
+            heap[j] = tmp;
+        }
+    }
+}
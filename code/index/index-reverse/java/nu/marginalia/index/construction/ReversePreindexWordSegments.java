@@ -85,6 +85,17 @@ public class ReversePreindexWordSegments {
     public SegmentIterator iterator(int recordSize) {
         return new SegmentIterator(recordSize);
     }
+
+    /** Create an iterator that resumes at the word with index idx, whose data begins at startOffset,
+     * e.g. from the idx() and startOffset of another iterator.  The first call to next() positions
+     * the iterator on that word.
+     */
+    public SegmentIterator iterator(int recordSize, long idx, long startOffset) {
+        var iter = new SegmentIterator(recordSize);
+        iter.i = idx - 1;
+        iter.endOffset = startOffset;
+        return iter;
+    }
     public SegmentConstructionIterator constructionIterator(int recordSize) {
         return new SegmentConstructionIterator(recordSize);
     }
@@ -1,10 +1,10 @@
 package nu.marginalia.index.query;
 
 import nu.marginalia.array.page.LongQueryBuffer;
-import nu.marginalia.btree.BTreeReader;
+import nu.marginalia.index.PostingList;
 import nu.marginalia.index.query.filter.QueryFilterStepIf;
 
-public record ReverseIndexRejectFilter(BTreeReader range) implements QueryFilterStepIf {
+public record ReverseIndexRejectFilter(PostingList range) implements QueryFilterStepIf {
 
     @Override
     public void apply(LongQueryBuffer buffer) {
@@ -13,7 +13,7 @@ public record ReverseIndexRejectFilter(BTreeReader range) implements QueryFilter
     }
 
     public boolean test(long id) {
-        return range.findEntry(id) < 0;
+        return !range.contains(id);
     }
 
     @Override
@@ -0,0 +1,132 @@
+package nu.marginalia.index;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.array.page.LongQueryBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressedPostingListTest {
+
+    @Test
+    void testRoundTrip() {
+        Random r = new Random(1);
+
+        for (int n : new int[] { 1, 2, 127, 128, 129, 1000 }) {
+            // Mix small gaps with the occasional huge gap, which forces the maximum bit width
+            long[] ids = new long[n];
+            long id = r.nextLong(100);
+            for (int i = 0; i < n; i++) {
+                id += (i % 50 == 49) ? r.nextLong(1L << 58) : r.nextInt(1, 1000);
+                ids[i] = id;
+            }
+
+            var postings = write(ids);
+
+            assertEquals(n, postings.numEntries());
+            assertArrayEquals(ids, readAll(postings));
+            assertArrayEquals(LongStream.of(ids).map(i -> ~i).toArray(), postings.getTermMeta(ids));
+
+            for (long docId : ids) {
+                assertTrue(postings.contains(docId));
+            }
+        }
+    }
+
+    @Test
+    void testDuplicatesAndExtremes() {
+        long[] ids = new long[] { 0, 5, 5, 5, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+
+        var postings = write(ids);
+
+        assertArrayEquals(new long[] { 0, 5, Long.MAX_VALUE - 1, Long.MAX_VALUE }, readAll(postings));
+        assertTrue(postings.contains(Long.MAX_VALUE));
+        assertFalse(postings.contains(4));
+    }
+
+    @Test
+    void testRetainReject() {
+        long[] ids = LongStream.range(0, 1000).map(i -> 3 * i).toArray();
+        var postings = write(ids);
+
+        long[] query = LongStream.range(0, 4000).toArray();
+
+        var buffer = new LongQueryBuffer(query, query.length);
+        postings.retainEntries(buffer);
+        buffer.finalizeFiltering();
+        assertArrayEquals(ids, buffer.copyData());
+
+        buffer = new LongQueryBuffer(query, query.length);
+        postings.rejectEntries(buffer);
+        buffer.finalizeFiltering();
+        assertArrayEquals(LongStream.range(0, 4000).filter(i -> i % 3 != 0 || i >= 3000).toArray(), buffer.copyData());
+    }
+
+    @Test
+    void testTermMetaMissing() {
+        var postings = write(new long[] { 10, 20, 30 });
+
+        assertArrayEquals(new long[] { 0, ~10, 0, ~30, 0 }, postings.getTermMeta(new long[] { 5, 10, 15, 30, 40 }));
+    }
+
+    @Test
+    void testBlockSkipping() {
+        int blockSize = CompressedPostingList.BLOCK_SIZE;
+
+        long[] ids = LongStream.range(0, 3 * blockSize).toArray();
+        var postings = write(ids);
+
+        var blockMeta = postings.blockMeta();
+        assertEquals(~0L, blockMeta.metaForRange(0, 0));
+
+        var source = postings.createEntrySource("test", 0);
+        source.setBlockMaxFilter((first, last) -> first != blockSize);
+
+        var buffer = new LongQueryBuffer(4 * blockSize);
+
+        // The block filter limits each read to a single block
+        source.read(buffer);
+        assertEquals(blockSize, buffer.size());
+        assertEquals(0, buffer.data.get(0));
+
+        buffer.reset();
+        source.read(buffer);
+        assertEquals(blockSize, buffer.size());
+        assertEquals(2 * blockSize, buffer.data.get(0));
+
+        assertFalse(source.hasMore());
+    }
+
+    private CompressedPostingList write(long[] ids) {
+        LongArray array = LongArrayFactory.onHeapShared(CompressedPostingList.sizeUpperBound(ids.length) + 1);
+
+        var writer = new CompressedPostingList.Writer(array, 1, ids.length);
+        for (long id : ids) {
+            writer.add(id, ~id);
+        }
+        long size = writer.finish();
+
+        assertTrue(size <= CompressedPostingList.sizeUpperBound(ids.length));
+
+        return new CompressedPostingList(array, 1);
+    }
+
+    private long[] readAll(CompressedPostingList postings) {
+        var source = postings.createEntrySource("test", 0);
+        var buffer = new LongQueryBuffer(100);
+
+        LongStream.Builder ret = LongStream.builder();
+        while (source.hasMore()) {
+            buffer.reset();
+            source.read(buffer);
+            for (int i = 0; i < buffer.size(); i++) {
+                ret.add(buffer.data.get(i));
+            }
+        }
+        return ret.build().toArray();
+    }
+}
@@ -78,6 +78,100 @@ class ReverseIndexReaderTest {
 
     }
 
+    @Test
+    public void test2x2Compressed() throws IOException {
+
+        var indexReader = createIndex(true,
+                new EntryDataWithWordMeta(100, 101, wm(50, 51), wm(51, 52)),
+                new EntryDataWithWordMeta(101, 101, wm(51, 53), wm(52, 54))
+        );
+
+        assertEquals(1, indexReader.numDocuments(50));
+        assertEquals(2, indexReader.numDocuments(51));
+        assertEquals(1, indexReader.numDocuments(52));
+        assertEquals(0, indexReader.numDocuments(53));
+
+        assertArrayEquals(new long[] { 51 }, indexReader.getTermMeta(50, new long[] { 100 }));
+        assertArrayEquals(new long[] { 100 }, readEntries(indexReader, 50));
+
+        assertArrayEquals(new long[] { 52, 53 }, indexReader.getTermMeta(51, new long[] { 100, 101 }));
+        assertArrayEquals(new long[] { 100, 101 }, readEntries(indexReader, 51));
+
+        assertArrayEquals(new long[] { 0, 54 }, indexReader.getTermMeta(52, new long[] { 100, 101 }));
+        assertArrayEquals(new long[] { 101 }, readEntries(indexReader, 52));
+
+        var buffer = new LongQueryBuffer(new long[] { 99, 100, 101, 102 }, 4);
+        indexReader.also(52).apply(buffer);
+        assertArrayEquals(new long[] { 101 }, buffer.copyData());
+
+        buffer = new LongQueryBuffer(new long[] { 99, 100, 101, 102 }, 4);
+        indexReader.not(52).apply(buffer);
+        assertArrayEquals(new long[] { 99, 100, 102 }, buffer.copyData());
+
+        assertEquals(51 | 53, indexReader.blockMeta(51).metaForRange(0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPreload() throws IOException {
+        var indexReader = createIndex(
+                new EntryDataWithWordMeta(100, 101, wm(50, 51), wm(51, 52)),
+                new EntryDataWithWordMeta(101, 101, wm(51, 53), wm(52, 54)),
+                new EntryDataWithWordMeta(102, 101, wm(51, 55))
+        );
+
+        assertEquals(3, indexReader.numTerms());
+
+        indexReader.preloadWords();
+
+        // Only the head of each posting list is loaded
+        assertEquals(1, indexReader.preloadLargestPostingLists(1, 1));
+        assertEquals(3, indexReader.preloadLargestPostingLists(3, 1));
+
+        // Term 51 has the largest posting list
+        long largest = indexReader.preloadLargestPostingLists(1, Long.MAX_VALUE);
+        long all = indexReader.preloadLargestPostingLists(3, Long.MAX_VALUE);
+        assertTrue(largest > (all - largest) / 2, largest + " of " + all);
+
+        // The query results are unaffected
+        assertArrayEquals(new long[] { 100, 101, 102 }, readEntries(indexReader, 51));
+    }
+
+    @Test
+    public void testBlockMeta() throws IOException {
+        int blockSize = ReverseIndexBlockMeta.BLOCK_SIZE;
+
+        // Word 50 has the meta 1 in the first block, and 2 in the rest; word 51 has a single block
+        var scenario = new ArrayList<EntryDataWithWordMeta>();
+        for (int i = 0; i < 3 * blockSize; i++) {
+            long meta = i < blockSize ? 1 : 2;
+            if (i < 10) {
+                scenario.add(new EntryDataWithWordMeta(100 + i, 101, wm(50, meta), wm(51, 4)));
+            }
+            else {
+                scenario.add(new EntryDataWithWordMeta(100 + i, 101, wm(50, meta)));
+            }
+        }
+
+        var indexReader = createIndex(scenario.toArray(EntryDataWithWordMeta[]::new));
+
+        var blockMeta = indexReader.blockMeta(50);
+        assertEquals(1, blockMeta.metaForRange(100, 100 + blockSize - 1));
+        assertEquals(3, blockMeta.metaForRange(100, 100 + blockSize));
+        assertEquals(2, blockMeta.metaForRange(100 + blockSize, 100 + 3 * blockSize));
+
+        assertEquals(4, indexReader.blockMeta(51).metaForRange(0, Long.MAX_VALUE));
+        assertEquals(0, indexReader.blockMeta(52).metaForRange(0, Long.MAX_VALUE));
+
+        // Skip the first block
+        var source = indexReader.documents(50);
+        source.setBlockMaxFilter((first, last) -> first > 100);
+
+        LongQueryBuffer buffer = new LongQueryBuffer(2 * blockSize);
+        source.read(buffer);
+
+        assertEquals(100 + blockSize, buffer.data.get(0));
+    }
+
     private long[] readEntries(ReverseIndexReader reader, long wordId) {
         var es = reader.documents(wordId);
         assertTrue(es.hasMore());
@@ -88,6 +182,10 @@ class ReverseIndexReaderTest {
     }
 
     private ReverseIndexReader createIndex(EntryDataWithWordMeta... scenario) throws IOException {
+        return createIndex(false, scenario);
+    }
+
+    private ReverseIndexReader createIndex(boolean compressed, EntryDataWithWordMeta... scenario) throws IOException {
         var reader = journalFactory.createReader(scenario);
         var preindex = ReversePreindex.constructPreindex(reader, DocIdRewriter.identity(), tempDir);
 
@@ -95,7 +193,7 @@ class ReverseIndexReaderTest {
         Path docsFile = tempDir.resolve("docs.dat");
         Path wordsFile = tempDir.resolve("words.dat");
 
-        preindex.finalizeIndex(docsFile, wordsFile);
+        preindex.finalizeIndex(docsFile, wordsFile, compressed);
         preindex.delete();
 
         return new ReverseIndexReader("test", wordsFile, docsFile);
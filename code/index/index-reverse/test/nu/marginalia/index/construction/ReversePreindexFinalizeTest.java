@@ -4,6 +4,7 @@ package nu.marginalia.index.construction;
 import nu.marginalia.array.LongArrayFactory;
 import nu.marginalia.btree.BTreeReader;
 import nu.marginalia.btree.model.BTreeHeader;
+import nu.marginalia.index.BTreePostingList;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -69,7 +70,10 @@ class ReversePreindexFinalizeTest {
         var docsArray = LongArrayFactory.mmapForReadingConfined(docsFile);
         var wordsArray = LongArrayFactory.mmapForReadingConfined(wordsFile);
 
-        var docsHeader = new BTreeHeader(docsArray, 0);
+        // The b-tree of the first word follows the format marker
+        assertEquals(BTreePostingList.MAGIC, docsArray.get(0));
+
+        var docsHeader = new BTreeHeader(docsArray, 1);
         var wordsHeader = new BTreeHeader(wordsArray, 0);
 
         assertEquals(1, docsHeader.numEntries());
@@ -78,7 +82,7 @@ class ReversePreindexFinalizeTest {
         assertEquals(100, docsArray.get(docsHeader.dataOffsetLongs() + 0));
         assertEquals(51, docsArray.get(docsHeader.dataOffsetLongs() + 1));
         assertEquals(50, wordsArray.get(wordsHeader.dataOffsetLongs()));
-        assertEquals(0, wordsArray.get(wordsHeader.dataOffsetLongs() + 1));
+        assertEquals(1, wordsArray.get(wordsHeader.dataOffsetLongs() + 1));
     }
 
 
@@ -117,9 +121,9 @@ class ReversePreindexFinalizeTest {
         long offset2 = wordsArray.get(wordsHeader.dataOffsetLongs() + 3);
 
         assertEquals(50, wordsArray.get(wordsHeader.dataOffsetLongs()));
-        assertEquals(0, wordsArray.get(wordsHeader.dataOffsetLongs() + 1));
+        assertEquals(1, wordsArray.get(wordsHeader.dataOffsetLongs() + 1));
         assertEquals(50, wordsArray.get(wordsHeader.dataOffsetLongs()));
-        assertEquals(0, wordsArray.get(wordsHeader.dataOffsetLongs() + 1));
+        assertEquals(1, wordsArray.get(wordsHeader.dataOffsetLongs() + 1));
 
         BTreeHeader docsHeader;
 
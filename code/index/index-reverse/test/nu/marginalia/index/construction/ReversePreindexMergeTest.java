@@ -306,6 +306,65 @@ class ReversePreindexMergeTest {
     }
 
 
+    @Test
+    public void testMultiMergeFuzz() throws IOException {
+        Random r = new Random();
+        int maxDocs = 150;
+        int maxWords = 160;
+        int nIters = 100;
+
+        for (int i = 0; i < nIters; i++) {
+            int nInputs = 1 + r.nextInt(8);
+
+            IdSequence docIds = new IdSequence();
+            IdSequence docMetas = new IdSequence();
+            IdSequence wordMetas = new IdSequence();
+            IdSequence wordIds = new IdSequence();
+
+            List<ReversePreindex> inputs = new ArrayList<>();
+
+            for (int k = 0; k < nInputs; k++) {
+                IdSequence inputDocIds = new IdSequence();
+
+                int nDocs = 1 + r.nextInt(maxDocs);
+                List<EntryDataWithWordMeta> sequence = new ArrayList<>(nDocs);
+                for (int j = 0; j < nDocs; j++) {
+                    WordWithMeta[] words = new WordWithMeta[r.nextInt(1, maxWords)];
+                    Arrays.setAll(words, idx -> {
+                        long wordId = wordIds.seenWithP(0.5);
+                        long wordMeta = wordMetas.nextUniqueAssociatedWithKey(wordId);
+                        return wm(wordId, wordMeta);
+                    });
+
+                    // Some documents are present in several inputs
+                    long docId = inputDocIds.seenWithP(docIds, 0.1);
+                    docIds.seen.add(docId);
+                    long docMeta = docMetas.nextUniqueAssociatedWithKey(docId);
+                    sequence.add(new EntryDataWithWordMeta(docId, docMeta, words));
+                }
+
+                var reader = journalFactory.createReader(sequence.toArray(EntryDataWithWordMeta[]::new));
+                inputs.add(ReversePreindex.constructPreindex(reader, DocIdRewriter.identity(), tempDir).closeToReference().open());
+            }
+
+            ReversePreindex expected = inputs.getFirst();
+            for (int k = 1; k < nInputs; k++) {
+                expected = ReversePreindex.merge(tempDir, expected, inputs.get(k));
+            }
+
+            long[] progress = new long[2];
+            var actual = new ReversePreindexMerger(tempDir, inputs, (merged, total) -> {
+                synchronized (progress) {
+                    progress[0] = Math.max(progress[0], merged);
+                    progress[1] = total;
+                }
+            }, 3).merge();
+
+            assertEquals(getData(expected), getData(actual));
+            assertEquals(progress[1], progress[0]);
+        }
+    }
+
     public List<TestSegmentData> simulateMerge(
             Collection<EntryDataWithWordMeta> leftInputs,
             Collection<EntryDataWithWordMeta> rightInputs
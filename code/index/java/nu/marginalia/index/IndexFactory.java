@@ -14,81 +14,206 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
 @Singleton
 public class IndexFactory {
+    private static final Logger logger = LoggerFactory.getLogger(IndexFactory.class);
+
     private final FileStorageService fileStorageService;
     private final Path liveStorage;
+    private final Path deltasStorage;
 
     @Inject
     public IndexFactory(FileStorageService fileStorageService) {
 
         this.fileStorageService = fileStorageService;
         this.liveStorage = IndexLocations.getCurrentIndex(fileStorageService);
+        this.deltasStorage = IndexLocations.getIndexDeltasPath(fileStorageService);
     }
 
+    /** Opens the live index together with its delta segments */
     public CombinedIndexReader getCombinedIndexReader() throws IOException {
+        List<CombinedIndexReader> deltas = new ArrayList<>();
+
+        for (Path deltaDir : findDeltas()) {
+            deltas.add(getCombinedIndexReader(deltaDir));
+        }
+
         return new CombinedIndexReader(
                 getForwardIndexReader(),
                 getReverseIndexReader(),
-                getReverseIndexPrioReader()
+                getReverseIndexPrioReader(),
+                deltas
+        );
+    }
+
+    private CombinedIndexReader getCombinedIndexReader(Path dir) throws IOException {
+        return new CombinedIndexReader(
+                getForwardIndexReader(dir),
+                getReverseIndexReader(dir),
+                getReverseIndexPrioReader(dir)
         );
     }
 
+    /** Returns the directories of the delta segments of the live index, oldest first */
+    public List<Path> findDeltas() throws IOException {
+        try (var files = Files.list(deltasStorage)) {
+            return files.filter(Files::isDirectory)
+                    .sorted(Comparator.comparing(Path::getFileName))
+                    .toList();
+        }
+    }
+
     public Path getSearchSetsBase() {
         return IndexLocations.getSearchSetsPath(fileStorageService);
     }
 
     public ReverseIndexReader getReverseIndexReader() throws IOException {
+        return getReverseIndexReader(liveStorage);
+    }
 
+    private ReverseIndexReader getReverseIndexReader(Path dir) throws IOException {
         return new ReverseIndexReader("full",
-                ReverseIndexFullFileNames.resolve(liveStorage, ReverseIndexFullFileNames.FileIdentifier.WORDS, ReverseIndexFullFileNames.FileVersion.CURRENT),
-                ReverseIndexFullFileNames.resolve(liveStorage, ReverseIndexFullFileNames.FileIdentifier.DOCS, ReverseIndexFullFileNames.FileVersion.CURRENT)
+                ReverseIndexFullFileNames.resolve(dir, ReverseIndexFullFileNames.FileIdentifier.WORDS, ReverseIndexFullFileNames.FileVersion.CURRENT),
+                ReverseIndexFullFileNames.resolve(dir, ReverseIndexFullFileNames.FileIdentifier.DOCS, ReverseIndexFullFileNames.FileVersion.CURRENT)
         );
     }
 
     public ReverseIndexReader getReverseIndexPrioReader() throws IOException {
+        return getReverseIndexPrioReader(liveStorage);
+    }
+
+    private ReverseIndexReader getReverseIndexPrioReader(Path dir) throws IOException {
         return new ReverseIndexReader("prio",
-                ReverseIndexPrioFileNames.resolve(liveStorage, ReverseIndexPrioFileNames.FileIdentifier.WORDS, ReverseIndexPrioFileNames.FileVersion.CURRENT),
-                ReverseIndexPrioFileNames.resolve(liveStorage, ReverseIndexPrioFileNames.FileIdentifier.DOCS, ReverseIndexPrioFileNames.FileVersion.CURRENT)
+                ReverseIndexPrioFileNames.resolve(dir, ReverseIndexPrioFileNames.FileIdentifier.WORDS, ReverseIndexPrioFileNames.FileVersion.CURRENT),
+                ReverseIndexPrioFileNames.resolve(dir, ReverseIndexPrioFileNames.FileIdentifier.DOCS, ReverseIndexPrioFileNames.FileVersion.CURRENT)
         );
     }
 
     public ForwardIndexReader getForwardIndexReader() throws IOException {
+        return getForwardIndexReader(liveStorage);
+    }
+
+    private ForwardIndexReader getForwardIndexReader(Path dir) throws IOException {
         return new ForwardIndexReader(
-                ForwardIndexFileNames.resolve(liveStorage, ForwardIndexFileNames.FileIdentifier.DOC_ID, ForwardIndexFileNames.FileVersion.CURRENT),
-                ForwardIndexFileNames.resolve(liveStorage, ForwardIndexFileNames.FileIdentifier.DOC_DATA, ForwardIndexFileNames.FileVersion.CURRENT)
+                ForwardIndexFileNames.resolve(dir, ForwardIndexFileNames.FileIdentifier.DOC_ID, ForwardIndexFileNames.FileVersion.CURRENT),
+                ForwardIndexFileNames.resolve(dir, ForwardIndexFileNames.FileIdentifier.DOC_DATA, ForwardIndexFileNames.FileVersion.CURRENT)
         );
     }
 
-    /** Switches the current index to the next index */
-    public void switchFiles() throws IOException {
+    /** Switches the current index to the next index, and picks up any newly
+     * constructed delta segment.
+     * <p></p>
+     * Replacing the live index makes the delta segments built on top of it
+     * obsolete, so they are removed.
+     *
+     * @return true if the live index was replaced
+     */
+    public boolean switchFiles() throws IOException {
+        boolean replaced = switchFiles(liveStorage, liveStorage);
+
+        if (replaced) {
+            for (Path deltaDir : findDeltas()) {
+                deleteDelta(deltaDir);
+            }
+        }
+
+        Path deltaWriteArea = IndexLocations.getIndexDeltaWriteArea(fileStorageService);
+        if (hasNextFiles(deltaWriteArea)) {
+            List<Path> deltas = findDeltas();
+
+            int nextNumber = deltas.isEmpty() ? 0 : Integer.parseInt(deltas.getLast().getFileName().toString()) + 1;
+            Path deltaDir = Files.createDirectories(deltasStorage.resolve(String.format("%04d", nextNumber)));
+
+            switchFiles(deltaWriteArea, deltaDir);
+
+            logger.info("Added index delta segment {}", deltaDir);
+        }
+
+        return replaced;
+    }
+
+    /** Returns the area where the delta segments are merged into the live index */
+    public Path getCompactionArea() {
+        return IndexLocations.getIndexCompactionArea(fileStorageService);
+    }
+
+    /** Switches the live index to the compacted index in the compaction area,
+     * and removes the delta segments that were merged into it.
+     */
+    public void switchCompactedFiles(List<Path> mergedDeltas) throws IOException {
+        switchFiles(getCompactionArea(), liveStorage);
+
+        for (Path deltaDir : mergedDeltas) {
+            deleteDelta(deltaDir);
+        }
+    }
+
+    /** Moves the NEXT version of the index files in one directory to the CURRENT version in another
+     *
+     * @return true if any file was moved
+     */
+    private boolean switchFiles(Path from, Path to) throws IOException {
+        boolean moved = false;
 
         for (var file : ReverseIndexFullFileNames.FileIdentifier.values()) {
-            switchFile(
-                    ReverseIndexFullFileNames.resolve(liveStorage, file, ReverseIndexFullFileNames.FileVersion.NEXT),
-                    ReverseIndexFullFileNames.resolve(liveStorage, file, ReverseIndexFullFileNames.FileVersion.CURRENT)
+            moved |= switchFile(
+                    ReverseIndexFullFileNames.resolve(from, file, ReverseIndexFullFileNames.FileVersion.NEXT),
+                    ReverseIndexFullFileNames.resolve(to, file, ReverseIndexFullFileNames.FileVersion.CURRENT)
             );
         }
         for (var file : ReverseIndexPrioFileNames.FileIdentifier.values()) {
-            switchFile(
-                    ReverseIndexPrioFileNames.resolve(liveStorage, file, ReverseIndexPrioFileNames.FileVersion.NEXT),
-                    ReverseIndexPrioFileNames.resolve(liveStorage, file, ReverseIndexPrioFileNames.FileVersion.CURRENT)
+            moved |= switchFile(
+                    ReverseIndexPrioFileNames.resolve(from, file, ReverseIndexPrioFileNames.FileVersion.NEXT),
+                    ReverseIndexPrioFileNames.resolve(to, file, ReverseIndexPrioFileNames.FileVersion.CURRENT)
             );
         }
         for (var file : ForwardIndexFileNames.FileIdentifier.values()) {
-            switchFile(
-                    ForwardIndexFileNames.resolve(liveStorage, file, ForwardIndexFileNames.FileVersion.NEXT),
-                    ForwardIndexFileNames.resolve(liveStorage, file, ForwardIndexFileNames.FileVersion.CURRENT)
+            moved |= switchFile(
+                    ForwardIndexFileNames.resolve(from, file, ForwardIndexFileNames.FileVersion.NEXT),
+                    ForwardIndexFileNames.resolve(to, file, ForwardIndexFileNames.FileVersion.CURRENT)
             );
         }
+
+        return moved;
     }
 
-    public void switchFile(Path from, Path to) throws IOException {
-        if (Files.exists(from)) {
-            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+    /** Returns true if the directory holds a complete set of NEXT index files */
+    private boolean hasNextFiles(Path dir) {
+        for (var file : ReverseIndexFullFileNames.FileIdentifier.values()) {
+            if (!Files.exists(ReverseIndexFullFileNames.resolve(dir, file, ReverseIndexFullFileNames.FileVersion.NEXT)))
+                return false;
         }
+        for (var file : ReverseIndexPrioFileNames.FileIdentifier.values()) {
+            if (!Files.exists(ReverseIndexPrioFileNames.resolve(dir, file, ReverseIndexPrioFileNames.FileVersion.NEXT)))
+                return false;
+        }
+        for (var file : ForwardIndexFileNames.FileIdentifier.values()) {
+            if (!Files.exists(ForwardIndexFileNames.resolve(dir, file, ForwardIndexFileNames.FileVersion.NEXT)))
+                return false;
+        }
+        return true;
     }
 
+    private void deleteDelta(Path deltaDir) throws IOException {
+        try (var files = Files.list(deltaDir)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(deltaDir);
 
+        logger.info("Removed index delta segment {}", deltaDir);
+    }
+
+    public boolean switchFile(Path from, Path to) throws IOException {
+        if (Files.exists(from)) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+        return false;
+    }
 }
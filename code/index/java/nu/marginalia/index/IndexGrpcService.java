@@ -6,7 +6,6 @@ import io.grpc.stub.StreamObserver;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
 import io.prometheus.client.Histogram;
-import it.unimi.dsi.fastutil.longs.LongArrayList;
 import lombok.SneakyThrows;
 import nu.marginalia.api.searchquery.*;
 import nu.marginalia.api.searchquery.model.compiled.CompiledQuery;
@@ -20,6 +19,7 @@ import nu.marginalia.index.model.SearchParameters;
 import nu.marginalia.index.model.SearchTerms;
 import nu.marginalia.index.query.IndexQuery;
 import nu.marginalia.index.query.IndexSearchBudget;
+import nu.marginalia.index.results.IndexResultValuationContext;
 import nu.marginalia.index.results.IndexResultValuatorService;
 import nu.marginalia.index.results.model.ids.CombinedDocIdList;
 import nu.marginalia.index.searchset.SearchSetsService;
@@ -33,11 +33,8 @@ import org.slf4j.MarkerFactory;
 
 import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 @Singleton
@@ -78,26 +75,42 @@ public class IndexGrpcService extends IndexApiGrpc.IndexApiImplBase {
             .labelNames("node")
             .register();
 
+    private static final Histogram wmsa_index_query_exec_queue_depth = Histogram.build()
+            .name("wmsa_index_query_exec_queue_depth")
+            .linearBuckets(0, 1, 9)
+            .labelNames("node")
+            .help("Largest number of result batches waiting to be ranked during a query")
+            .register();
+
     private final StatefulIndex statefulIndex;
     private final SearchSetsService searchSetsService;
 
     private final IndexResultValuatorService resultValuator;
+    private final IndexQueryResultCache resultCache;
 
     private final String nodeName;
 
     private static final int indexValuationThreads = Integer.getInteger("index.valuationThreads", 8);
 
+    /** The number of worker threads shared by all queries, see QueryScheduler */
+    private static final int indexQueryThreads = Integer.getInteger("index.queryThreads", indexValuationThreads*4);
+
+    /** Skip blocks of documents that can't make it into the results, see IndexResultBlockMaxFilter */
+    private static final boolean useBlockMax = Boolean.getBoolean("index.blockMax");
+
     @Inject
     public IndexGrpcService(ServiceConfiguration serviceConfiguration,
                             StatefulIndex statefulIndex,
                             SearchSetsService searchSetsService,
-                            IndexResultValuatorService resultValuator)
+                            IndexResultValuatorService resultValuator,
+                            IndexQueryResultCache resultCache)
     {
         var nodeId = serviceConfiguration.node();
         this.nodeName = Integer.toString(nodeId);
         this.statefulIndex = statefulIndex;
         this.searchSetsService = searchSetsService;
         this.resultValuator = resultValuator;
+        this.resultCache = resultCache;
     }
 
     // GRPC endpoint
@@ -129,6 +142,7 @@ public class IndexGrpcService extends IndexApiGrpc.IndexApiImplBase {
             }
 
             // Send the results back to the client
+            boolean isFirstResult = true;
             for (var result : results.results) {
 
                 var rawResult = result.rawIndexResult;
@@ -169,6 +183,13 @@ public class IndexGrpcService extends IndexApiGrpc.IndexApiImplBase {
                 if (result.pubYear != null) {
                     decoratedBuilder.setPubYear(result.pubYear);
                 }
+
+                // The query plan is the same for every result, so it's only sent once
+                if (isFirstResult) {
+                    decoratedBuilder.addAllQueryPlan(params.queryPlan);
+                    isFirstResult = false;
+                }
+
                 responseObserver.onNext(decoratedBuilder.build());
             }
 
@@ -212,6 +233,12 @@ public class IndexGrpcService extends IndexApiGrpc.IndexApiImplBase {
             return new SearchResultSet(List.of());
         }
 
+        var cacheKey = resultCache.createKey(params);
+        var cachedResults = cacheKey.flatMap(resultCache::get);
+        if (cachedResults.isPresent()) {
+            return cachedResults.get();
+        }
+
         ResultRankingContext rankingContext = createRankingContext(params.rankingParams,
                 params.compiledQuery,
                 params.compiledQueryIds);
@@ -226,36 +253,72 @@ public class IndexGrpcService extends IndexApiGrpc.IndexApiImplBase {
         wmsa_index_query_exec_stall_time
                 .labels(nodeName)
                 .set(queryExecution.getStallTime() / 1000.);
+        wmsa_index_query_exec_queue_depth
+                .labels(nodeName)
+                .observe(queryExecution.getMaxQueueDepth());
+
+        // Results from queries that ran out of time may be incomplete, and are not cached
+        if (cacheKey.isPresent() && params.budget.hasTimeLeft()) {
+            resultCache.put(cacheKey.get(), ret);
+        }
 
         return ret;
     }
 
-    /** This class is responsible for executing a search query. It uses a thread pool to
-     * execute the subqueries and their valuation in parallel. The results are then combined
-     * into a bounded priority queue, and finally the best results are returned.
+    /** This class is responsible for executing a search query. The subqueries and the valuation
+     * of their results are run as short tasks on the shared {@link QueryScheduler}, which
+     * interleaves the tasks of concurrent queries.  The results are combined into a bounded
+     * priority queue, and finally the best results are returned.
+     * <p></p>
+     * The index lookups hand batches of documents to the result rankers through a small queue.
+     * When the queue is full, the lookups are parked until a ranker takes a batch, and the
+     * rankers are only scheduled while there are batches waiting, so no task ever blocks
+     * or polls.  The query thread is signalled when all work is done, or cancels the
+     * remaining work when the time budget runs out.
      */
     private class QueryExecution {
-        private static final Executor workerPool = Executors.newWorkStealingPool(indexValuationThreads*4);
+        private static final QueryScheduler scheduler = new QueryScheduler("index-query", indexQueryThreads);
+
+        /** The maximum number of batches waiting to be ranked before the lookups are parked */
+        private static final int maxQueuedBatches = 8;
+
+        /** How long to wait for the running tasks to wind down after the query has been cancelled */
+        private static final long cancellationGraceMs = 50;
 
-        /** The queue where the results from the index lookup threads are placed,
-         * pending ranking by the result ranker threads */
-        private final ArrayBlockingQueue<CombinedDocIdList> resultCandidateQueue
-                = new ArrayBlockingQueue<>(8);
+        private final QueryScheduler.Lane lane = scheduler.newLane();
 
         private final ResultPriorityQueue resultHeap;
         private final ResultRankingContext resultRankingContext;
 
-        private final AtomicInteger remainingIndexTasks = new AtomicInteger(0);
-        private final AtomicInteger remainingValuationTasks = new AtomicInteger(0);
+        /* The following state is guarded by the QueryExecution monitor */
+
+        /** The results from the index lookups, pending ranking by the result rankers */
+        private final ArrayDeque<QueuedBatch> resultCandidates = new ArrayDeque<>(maxQueuedBatches);
+        /** Index lookups that are waiting for room in resultCandidates */
+        private final ArrayDeque<IndexLookup> parkedLookups = new ArrayDeque<>();
+        /** Result rankers that are not scheduled */
+        private final ArrayDeque<ResultRanker> idleRankers = new ArrayDeque<>(indexValuationThreads);
+
+        private int remainingLookups = 0;
+        private int maxQueueDepth = 0;
+        private boolean cancelled = false;
+
+        private final CountDownLatch completion = new CountDownLatch(1);
 
         private final AtomicLong blockTime = new AtomicLong(0);
         private final AtomicLong stallTime = new AtomicLong(0);
 
+        /** Time the index lookups have spent parked waiting for the result rankers */
+        public long getBlockTime() {
+            return blockTime.get();
+        }
+        /** Time the result batches have spent waiting to be ranked */
         public long getStallTime() {
             return stallTime.get();
         }
-        public long getBlockTime() {
-            return blockTime.get();
+        /** The largest number of batches that were waiting to be ranked at the same time */
+        public synchronized int getMaxQueueDepth() {
+            return maxQueueDepth;
         }
 
         private QueryExecution(ResultRankingContext resultRankingContext, int maxResults) {
@@ -269,157 +332,224 @@ public class IndexGrpcService extends IndexApiGrpc.IndexApiImplBase {
             var terms = new SearchTerms(parameters.query, parameters.compiledQueryIds);
 
             var currentIndex = statefulIndex.get();
-            for (var indexQuery : currentIndex.createQueries(terms, parameters.queryParams)) {
-                workerPool.execute(new IndexLookup(indexQuery, parameters.budget));
+            var indexQueries = currentIndex.createQueries(terms, parameters.queryParams);
+
+            if (parameters.rankingParams.exportDebugData) {
+                parameters.queryPlan = indexQueries.stream().map(IndexQuery::toString).toList();
             }
 
-            for (int i = 0; i < indexValuationThreads; i++) {
-                workerPool.execute(new ResultRanker(parameters, resultRankingContext));
+            if (useBlockMax) {
+                // The filters have scratch buffers, and the index queries run concurrently
+                for (var indexQuery : indexQueries) {
+                    indexQuery.setBlockMaxFilter(resultValuator.createBlockMaxFilter(parameters, resultRankingContext, resultHeap));
+                }
             }
 
-            // Wait for all tasks to complete
-            awaitCompletion();
+            synchronized (this) {
+                for (int i = 0; i < indexValuationThreads; i++) {
+                    idleRankers.add(new ResultRanker(parameters, resultRankingContext));
+                }
 
-            // Return the best results
-            return new SearchResultSet(
-                    resultValuator.selectBestResults(parameters,
-                            resultRankingContext,
-                            resultHeap));
+                for (var indexQuery : indexQueries) {
+                    remainingLookups++;
+                    lane.submit(new IndexLookup(indexQuery, parameters.budget));
+                }
+
+                checkCompletion();
+            }
+
+            awaitCompletion(parameters.budget);
+
+            var bestResults = resultValuator.selectBestResults(parameters,
+                    resultRankingContext,
+                    resultHeap);
+
+            // The results are sent in ranking order, which lets the query service
+            // merge the results of the index nodes as they arrive
+            bestResults.sort(null);
+
+            return new SearchResultSet(bestResults);
         }
 
-        /** Wait for all tasks to complete */
-        private void awaitCompletion() throws InterruptedException {
-            synchronized (remainingValuationTasks) {
-                while (remainingValuationTasks.get() > 0) {
-                    remainingValuationTasks.wait(20);
-                }
+        /** Wait for all tasks to complete, or cancel them if the time budget runs out */
+        private void awaitCompletion(IndexSearchBudget budget) throws InterruptedException {
+            if (completion.await(Math.max(0, budget.timeLeft()), TimeUnit.MILLISECONDS)) {
+                return;
+            }
+
+            cancel();
+
+            // Give the tasks that are running a moment to finish, the result heap is safe to read
+            // even if they don't, but the results may then differ slightly between runs
+            if (!completion.await(cancellationGraceMs, TimeUnit.MILLISECONDS)) {
+                logger.warn(queryMarker, "Query tasks did not finish after cancellation");
+            }
+        }
+
+        /** Stop the query, discarding the batches that have not yet been ranked.
+         * The lookups that are queued in the scheduler terminate as soon as they
+         * are run. */
+        private synchronized void cancel() {
+            cancelled = true;
+
+            resultCandidates.clear();
+
+            while (!parkedLookups.isEmpty()) {
+                parkedLookups.removeFirst().finish();
+                remainingLookups--;
+            }
+
+            checkCompletion();
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /** Signal the query thread if all lookups are done, and all rankers are idle */
+        private void checkCompletion() {
+            assert Thread.holdsLock(this);
+
+            if (remainingLookups == 0
+                && resultCandidates.isEmpty()
+                && idleRankers.size() == indexValuationThreads)
+            {
+                completion.countDown();
+            }
+        }
+
+        /** Add a batch of results to the queue, waking up a ranker if one is idle */
+        private synchronized void enqueueResults(CombinedDocIdList resultIds) {
+            if (cancelled)
+                return;
+
+            resultCandidates.addLast(new QueuedBatch(resultIds, System.currentTimeMillis()));
+            maxQueueDepth = Math.max(maxQueueDepth, resultCandidates.size());
+
+            if (!idleRankers.isEmpty()) {
+                lane.submit(idleRankers.removeFirst());
             }
         }
 
+        /** Re-schedule a lookup after it's done a step, or park it if
+         * the rankers are falling behind */
+        private synchronized void afterLookupStep(IndexLookup lookup, boolean hasMore) {
+            if (!hasMore || cancelled) {
+                lookup.finish();
+                remainingLookups--;
+                checkCompletion();
+            }
+            else if (resultCandidates.size() >= maxQueuedBatches) {
+                lookup.parkedTime = System.currentTimeMillis();
+                parkedLookups.addLast(lookup);
+            }
+            else {
+                lane.submit(lookup);
+            }
+        }
+
+        /** Take the next batch to rank, un-parking a lookup as there is now room in the queue.
+         * If there is nothing to rank, the ranker goes idle and null is returned. */
+        private synchronized CombinedDocIdList takeBatch(ResultRanker ranker) {
+            if (cancelled || resultCandidates.isEmpty()) {
+                idleRankers.addLast(ranker);
+                checkCompletion();
+                return null;
+            }
+
+            long now = System.currentTimeMillis();
+
+            var batch = resultCandidates.removeFirst();
+            stallTime.addAndGet(now - batch.queuedTime());
+
+            if (!parkedLookups.isEmpty()) {
+                var lookup = parkedLookups.removeFirst();
+                blockTime.addAndGet(now - lookup.parkedTime);
+                lane.submit(lookup);
+            }
+
+            return batch.resultIds();
+        }
+
+        private record QueuedBatch(CombinedDocIdList resultIds, long queuedTime) {}
+
         /** This class is responsible for executing a subquery and adding the results to the
-         * resultCandidateQueue, which depending on the state of the valuator threads may
-         * or may not block */
+         * result candidate queue.  Each run reads one buffer worth of results, after which
+         * the lookup is re-scheduled or parked */
         class IndexLookup implements Runnable {
             private final IndexQuery query;
             private final IndexSearchBudget budget;
 
+            // These queries are different indices for one subquery
+            private final LongQueryBuffer buffer = new LongQueryBuffer(512);
+
+            private long parkedTime;
+
             IndexLookup(IndexQuery query,
                         IndexSearchBudget budget) {
                 this.query = query;
                 this.budget = budget;
-
-                remainingIndexTasks.incrementAndGet();
             }
 
             public void run() {
-                try {
-                    executeSearch();
-                }
-                finally {
-                    synchronized (remainingIndexTasks) {
-                        if (remainingIndexTasks.decrementAndGet() == 0) {
-                            remainingIndexTasks.notifyAll();
-                        }
-                    }
-                }
-            }
-
-            private void executeSearch() {
-                final LongArrayList results = new LongArrayList(512);
+                boolean hasMore = false;
 
-                // These queries are different indices for one subquery
-                final LongQueryBuffer buffer = new LongQueryBuffer(512);
-
-                while (query.hasMore() && budget.hasTimeLeft())
-                {
-                    buffer.reset();
-                    query.getMoreResults(buffer);
+                try {
+                    if (!isCancelled() && query.hasMore() && budget.hasTimeLeft()) {
+                        buffer.reset();
+                        query.getMoreResults(buffer);
 
-                    for (int i = 0; i < buffer.end; i++) {
-                        results.add(buffer.data.get(i));
-                    }
+                        if (!buffer.isEmpty()) {
+                            enqueueResults(new CombinedDocIdList(buffer.copyData()));
+                        }
 
-                    if (results.size() < 512) {
-                        enqueueResults(new CombinedDocIdList(results));
-                        results.clear();
+                        hasMore = query.hasMore() && budget.hasTimeLeft();
                     }
                 }
-
-                buffer.dispose();
-
-                if (!results.isEmpty()) {
-                    enqueueResults(new CombinedDocIdList(results));
+                finally {
+                    afterLookupStep(this, hasMore);
                 }
             }
 
-            private void enqueueResults(CombinedDocIdList resultIds) {
-                long remainingTime = budget.timeLeft();
-
-                try {
-                    if (!resultCandidateQueue.offer(resultIds)) {
-                        long start = System.currentTimeMillis();
-                        resultCandidateQueue.offer(resultIds, remainingTime, TimeUnit.MILLISECONDS);
-                        blockTime.addAndGet(System.currentTimeMillis() - start);
-                    }
-                }
-                catch (InterruptedException e) {
-                    logger.warn("Interrupted while waiting to offer resultIds to queue", e);
-                }
+            void finish() {
+                buffer.dispose();
             }
         }
 
         /** This class is responsible for ranking the results and adding the best results to the
-         * resultHeap, which depending on the state of the indexLookup threads may or may not block
+         * resultHeap.  Each run ranks one batch, after which the ranker re-schedules itself,
+         * or goes idle if there is nothing more to rank.
          */
         class ResultRanker implements Runnable {
             private final SearchParameters parameters;
             private final ResultRankingContext rankingContext;
 
+            /** Created the first time the ranker runs, and reused for every batch it ranks;
+             * a ranker is never run by more than one thread at a time */
+            private IndexResultValuationContext valuationContext;
+
             ResultRanker(SearchParameters parameters, ResultRankingContext rankingContext) {
                 this.parameters = parameters;
                 this.rankingContext = rankingContext;
-
-                remainingValuationTasks.incrementAndGet();
             }
 
             public void run() {
-                try {
-                    while (parameters.budget.timeLeft() > 0 && execute());
-                }
-                catch (InterruptedException e) {
-                    logger.warn("Interrupted while waiting to poll resultIds from queue", e);
-                }
-                finally {
-                    synchronized (remainingValuationTasks) {
-                        if (remainingValuationTasks.decrementAndGet() == 0)
-                            remainingValuationTasks.notifyAll();
-                    }
-                }
-            }
-
-            private boolean execute() throws InterruptedException {
-                long start = System.currentTimeMillis();
-
-                // Do a relatively short poll to ensure we terminate in a timely manner
-                // in the event all work is done
-                final long pollTime = Math.clamp(parameters.budget.timeLeft(), 1, 5);
-                CombinedDocIdList resultIds = resultCandidateQueue.poll(pollTime, TimeUnit.MILLISECONDS);
+                CombinedDocIdList resultIds = takeBatch(this);
 
                 if (resultIds == null) {
-                    // check if we are done and can terminate
-                    if (remainingIndexTasks.get() == 0 && resultCandidateQueue.isEmpty()) {
-                        return false;
-                    }
+                    return;
                 }
-                else {
-                    stallTime.addAndGet(System.currentTimeMillis() - start);
 
-                    resultHeap.addAll(
-                            resultValuator.rankResults(parameters, rankingContext, resultIds)
-                    );
-                }
+                try {
+                    if (valuationContext == null) {
+                        valuationContext = resultValuator.createValuationContext(parameters, rankingContext);
+                    }
 
-                return true; // keep going
+                    resultValuator.rankResults(valuationContext, resultIds, resultHeap);
+                }
+                finally {
+                    lane.submit(this);
+                }
             }
         }
 
@@ -0,0 +1,170 @@
+package nu.marginalia.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.prometheus.client.Counter;
+import nu.marginalia.api.searchquery.model.query.SearchQuery;
+import nu.marginalia.api.searchquery.model.results.DecoratedSearchResultItem;
+import nu.marginalia.api.searchquery.model.results.ResultRankingParameters;
+import nu.marginalia.api.searchquery.model.results.SearchResultSet;
+import nu.marginalia.index.model.QueryParams;
+import nu.marginalia.index.model.SearchParameters;
+import nu.marginalia.service.module.ServiceConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A bounded cache of the decorated results of index queries, so that popular queries
+ * don't need to redo the index lookup, valuation and decoration every time they are
+ * run against this node.
+ * <p></p>
+ * The cache is keyed on a normalized form of the search parameters, and
+ * is flushed by {@link nu.marginalia.index.index.StatefulIndex} whenever the index is switched.
+ * Queries that started before a flush are not allowed to populate the cache after it.
+ * <p></p>
+ * The size of the cache is limited by an estimate of the memory used by the results,
+ * configurable with the system property index.resultCacheBytes.  Setting it to zero
+ * disables the cache.
+ */
+@Singleton
+public class IndexQueryResultCache {
+    private static final Counter wmsa_index_query_cache_hits = Counter.build()
+            .name("wmsa_index_query_cache_hits")
+            .help("Query result cache hits")
+            .labelNames("node")
+            .register();
+    private static final Counter wmsa_index_query_cache_misses = Counter.build()
+            .name("wmsa_index_query_cache_misses")
+            .help("Query result cache misses")
+            .labelNames("node")
+            .register();
+    private static final Counter wmsa_index_query_cache_evictions = Counter.build()
+            .name("wmsa_index_query_cache_evictions")
+            .help("Query result cache evictions")
+            .labelNames("node")
+            .register();
+
+    private static final long maxCacheBytes = Long.getLong("index.resultCacheBytes", 64 * 1024 * 1024);
+
+    private final String nodeName;
+
+    /** Incremented whenever the cache is flushed, to keep queries
+     * that started before the flush from populating the cache */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final Cache<Key, SearchResultSet> cache;
+
+    @Inject
+    public IndexQueryResultCache(ServiceConfiguration serviceConfiguration) {
+        this.nodeName = Integer.toString(serviceConfiguration.node());
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxCacheBytes)
+                .weigher(IndexQueryResultCache::estimateSize)
+                .removalListener(this::onRemoval)
+                .build();
+    }
+
+    /** Create a cache key for the parameters, or empty if the query should not be cached */
+    public Optional<Key> createKey(SearchParameters params) {
+        if (maxCacheBytes <= 0)
+            return Optional.empty();
+
+        // The debug data includes the query plan, which is not part of the cached results
+        if (params.rankingParams.exportDebugData)
+            return Optional.empty();
+
+        return Optional.of(new Key(generation.get(),
+                normalize(params.query),
+                params.queryParams,
+                params.rankingParams,
+                params.fetchSize,
+                params.limitByDomain,
+                params.limitTotal));
+    }
+
+    public Optional<SearchResultSet> get(Key key) {
+        var ret = cache.getIfPresent(key);
+
+        if (ret == null) {
+            wmsa_index_query_cache_misses.labels(nodeName).inc();
+        }
+        else {
+            wmsa_index_query_cache_hits.labels(nodeName).inc();
+        }
+
+        return Optional.ofNullable(ret);
+    }
+
+    public void put(Key key, SearchResultSet results) {
+        // The cache was flushed while the query was running, so the results may be stale
+        if (key.generation() != generation.get())
+            return;
+
+        cache.put(key, results);
+    }
+
+    /** Remove all entries from the cache.  Queries that are running
+     * while this happens will not have their results cached. */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    private void onRemoval(RemovalNotification<Key, SearchResultSet> notification) {
+        if (notification.wasEvicted()) {
+            wmsa_index_query_cache_evictions.labels(nodeName).inc();
+        }
+    }
+
+    /** The exclude, advice and priority terms are order-insensitive, so they are sorted
+     * to let queries that only differ in the order of these terms share a cache entry */
+    private static SearchQuery normalize(SearchQuery query) {
+        return new SearchQuery(query.compiledQuery,
+                query.searchTermsInclude,
+                sorted(query.searchTermsExclude),
+                sorted(query.searchTermsAdvice),
+                sorted(query.searchTermsPriority),
+                query.searchTermCoherences);
+    }
+
+    private static List<String> sorted(List<String> terms) {
+        var ret = new ArrayList<>(terms);
+        ret.sort(String::compareTo);
+        return ret;
+    }
+
+    /** A rough estimate of the number of bytes used by a cache entry */
+    private static int estimateSize(Key key, SearchResultSet results) {
+        long size = 256 + 2L * key.query().compiledQuery.length();
+
+        for (DecoratedSearchResultItem item : results.results) {
+            size += 256;
+            size += 2L * (item.title.length() + item.description.length() + item.format.length());
+            size += 2L * item.url.path.length() + 64;
+            size += 48L * item.keywordScores().size();
+        }
+
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    /** The normalized search parameters.
+     * <p></p>
+     * The search set is compared by identity, except for the SmallSearchSet, which is compared
+     * by value; which is fine since the named search sets are long-lived, and replaced
+     * with new instances when they are recalculated.
+     */
+    public record Key(long generation,
+                      SearchQuery query,
+                      QueryParams queryParams,
+                      ResultRankingParameters rankingParams,
+                      int fetchSize,
+                      int limitByDomain,
+                      int limitTotal)
+    {
+    }
+}
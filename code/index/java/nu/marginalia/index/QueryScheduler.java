@@ -0,0 +1,103 @@
+package nu.marginalia.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** A fixed pool of worker threads shared by all queries, that schedules the work
+ * of the queries fairly.
+ * <p></p>
+ * Each query gets its own {@link Lane} to submit tasks to.  The workers visit the lanes
+ * with pending tasks in a round-robin fashion, running one task from each lane per visit,
+ * so a query with many subqueries can't starve the queries that arrive after it.
+ * <p></p>
+ * The tasks are expected to be short, and to never block.  A task that wants to keep
+ * going should do a bounded amount of work and then re-submit itself to its lane.
+ */
+public class QueryScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(QueryScheduler.class);
+
+    /** The lanes with pending tasks, each lane is present at most once */
+    private final LinkedBlockingQueue<Lane> readyLanes = new LinkedBlockingQueue<>();
+
+    public QueryScheduler(String name, int numThreads) {
+        for (int i = 0; i < numThreads; i++) {
+            Thread.ofPlatform()
+                    .name(name + "-" + i)
+                    .daemon()
+                    .start(this::runWorker);
+        }
+    }
+
+    /** Create a new lane, typically one per query */
+    public Lane newLane() {
+        return new Lane();
+    }
+
+    /** The number of lanes that currently have pending tasks */
+    public int backlog() {
+        return readyLanes.size();
+    }
+
+    private void runWorker() {
+        for (;;) {
+            Runnable task;
+
+            try {
+                task = readyLanes.take().next();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            if (task == null)
+                continue;
+
+            try {
+                task.run();
+            }
+            catch (Throwable t) {
+                logger.error("Error in query task", t);
+            }
+        }
+    }
+
+    public class Lane {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        private Lane() {}
+
+        /** Submit a task for execution.  Tasks submitted to the same lane are started in
+         * submission order, but may run concurrently on different worker threads. */
+        public synchronized void submit(Runnable task) {
+            tasks.addLast(task);
+
+            if (!scheduled) {
+                scheduled = true;
+                readyLanes.add(this);
+            }
+        }
+
+        /** The number of tasks waiting to be run */
+        public synchronized int pendingTasks() {
+            return tasks.size();
+        }
+
+        /** Take the next task, and put the lane at the back of the line if it has more */
+        private synchronized Runnable next() {
+            Runnable task = tasks.pollFirst();
+
+            if (tasks.isEmpty()) {
+                scheduled = false;
+            }
+            else {
+                readyLanes.add(this);
+            }
+
+            return task;
+        }
+    }
+}
@@ -2,12 +2,13 @@ package nu.marginalia.index;
 
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import nu.marginalia.api.searchquery.model.results.SearchResultItem;
+import nu.marginalia.model.id.UrlIdCodec;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
 
-/** A priority queue for search results. This class is not thread-safe,
- * in general, except for concurrent use of the addAll method.
+/** A bounded priority queue for search results. This class is not thread-safe,
+ * in general, except for concurrent use of the addAll, offer and getScoreThreshold methods.
  * <p></p>
  * The class implements a subset of the Collection interface, and
  * is intended to be used as a priority queue for search results,
@@ -16,32 +17,68 @@ import java.util.*;
  * Since the expected use case is to add a large number of items
  * and then iterate over the items, the class is optimized for
  * this scenario, and does not implement other mutating methods
- * than addAll().
+ * than addAll() and offer().
+ * <p></p>
+ * To reduce lock contention between the ranking threads, the queue is split into
+ * stripes by document id.  Each stripe is a bounded heap with the worst item at its root,
+ * and keeps track of the ids it has seen, so that a document is only ever added once.
+ * This includes the ids of items that were rejected for scoring worse than the threshold,
+ * so only the first item offered for a document is ever considered.
+ * Since the same document id always ends up in the same stripe, this retains the
+ * de-duplication semantics of a single queue.  The stripes are merged lazily when
+ * the queue is read.
+ * <p></p>
+ * Once a stripe is full, no item scoring worse than its worst item can make it into
+ * the final results, which lets the caller skip constructing items that
+ * would be discarded anyway, see {@link #getScoreThreshold()}.
  */
 public class ResultPriorityQueue implements Iterable<SearchResultItem>,
         Collection<SearchResultItem> {
+    private static final int defaultStripeCount = Integer.getInteger("index.resultQueueStripes", 8);
+
     private final int limit;
-    private final ArrayList<SearchResultItem> backingList = new ArrayList<>();
-    private final LongOpenHashSet idsInSet = new LongOpenHashSet();
+    private final Stripe[] stripes;
+
+    /** The lowest score threshold of all the stripes */
+    private volatile double scoreThreshold = Double.MAX_VALUE;
+
+    /** The merged results, lazily calculated when the queue is read */
+    private volatile List<SearchResultItem> mergedResults = null;
 
     public ResultPriorityQueue(int limit) {
+        this(limit, defaultStripeCount);
+    }
+
+    public ResultPriorityQueue(int limit, int stripeCount) {
         this.limit = limit;
+        this.stripes = new Stripe[Math.max(1, stripeCount)];
+
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(limit);
+        }
+    }
+
+    /** Returns the score an item must be less than or equal to in order to
+     * have a chance of making it into the queue.  This is a thread-safe operation.
+     */
+    public double getScoreThreshold() {
+        return scoreThreshold;
     }
 
     public Iterator<SearchResultItem> iterator() {
-        return backingList.iterator();
+        return mergedResults().iterator();
     }
 
     @NotNull
     @Override
     public Object[] toArray() {
-        return backingList.toArray();
+        return mergedResults().toArray();
     }
 
     @NotNull
     @Override
     public <T> T[] toArray(@NotNull T[] a) {
-        return backingList.toArray(a);
+        return mergedResults().toArray(a);
     }
 
     @Override
@@ -56,33 +93,105 @@ public class ResultPriorityQueue implements Iterable<SearchResultItem>,
 
     @Override
     public boolean containsAll(@NotNull Collection<?> c) {
-        return idsInSet.containsAll(c);
+        for (var item : c) {
+            if (!contains(item))
+                return false;
+        }
+        return true;
     }
 
     /** Adds all items to the queue, and returns true if any items were added.
      * This is a thread-safe operation.
      */
     @Override
-    public synchronized boolean addAll(@NotNull Collection<? extends SearchResultItem> items) {
+    public boolean addAll(@NotNull Collection<? extends SearchResultItem> items) {
         boolean itemsAdded = false;
+
         for (var item: items) {
-            if (idsInSet.add(item.getDocumentId())) {
-                backingList.add(item);
-                itemsAdded = true;
+            var stripe = stripeFor(item.getDocumentId());
+
+            if (item.getScore() > scoreThreshold) {
+                stripe.markSeen(item.getDocumentId());
+                continue;
             }
+
+            itemsAdded |= stripe.offer(item);
         }
+
         if (!itemsAdded) {
             return false;
         }
 
-        backingList.sort(Comparator.naturalOrder());
-        if (backingList.size() > limit) {
-            backingList.subList(limit, backingList.size()).clear();
+        mergedResults = null;
+        updateScoreThreshold();
+
+        return true;
+    }
+
+    /** Constructs the item for a result once it's known that it will be added to the queue */
+    public interface ItemFactory {
+        SearchResultItem create();
+    }
+
+    /** Offer a result to the queue, constructing its item with the factory only if
+     * it makes it into the queue.  The constructed item must have the provided combined id
+     * and score.  This is a thread-safe operation.
+     * <p></p>
+     * As with addAll, a document that has been offered once is not accepted again,
+     * even if it was rejected for scoring worse than the threshold.
+     *
+     * @return true if the result was added
+     */
+    public boolean offer(long combinedId, double score, ItemFactory itemFactory) {
+        long documentId = UrlIdCodec.removeRank(combinedId);
+        var stripe = stripeFor(documentId);
+
+        if (score > scoreThreshold) {
+            stripe.markSeen(documentId);
+            return false;
         }
 
+        if (!stripe.offer(combinedId, score, itemFactory))
+            return false;
+
+        mergedResults = null;
+        updateScoreThreshold();
+
         return true;
     }
 
+    private void updateScoreThreshold() {
+        double threshold = Double.MAX_VALUE;
+
+        for (var stripe : stripes) {
+            threshold = Math.min(threshold, stripe.scoreThreshold);
+        }
+
+        scoreThreshold = threshold;
+    }
+
+    private Stripe stripeFor(long documentId) {
+        return stripes[(int) Long.remainderUnsigned(Long.hashCode(documentId) * 0x9E3779B9L, stripes.length)];
+    }
+
+    private List<SearchResultItem> mergedResults() {
+        var ret = mergedResults;
+        if (ret != null)
+            return ret;
+
+        ret = new ArrayList<>();
+        for (var stripe : stripes) {
+            stripe.copyTo(ret);
+        }
+
+        ret.sort(Comparator.naturalOrder());
+        if (ret.size() > limit) {
+            ret.subList(limit, ret.size()).clear();
+        }
+
+        return mergedResults = ret;
+    }
+
     @Override
     public boolean removeAll(@NotNull Collection<?> c) {
         throw new UnsupportedOperationException();
@@ -95,22 +204,91 @@ public class ResultPriorityQueue implements Iterable<SearchResultItem>,
 
     @Override
     public void clear() {
-        backingList.clear();
-        idsInSet.clear();
+        for (var stripe : stripes) {
+            stripe.clear();
+        }
+        scoreThreshold = Double.MAX_VALUE;
+        mergedResults = null;
     }
 
     public int size() {
-        return backingList.size();
+        return mergedResults().size();
     }
 
     @Override
     public boolean isEmpty() {
-        return backingList.isEmpty();
+        return size() == 0;
     }
 
     @Override
     public boolean contains(Object o) {
-        return backingList.contains(o);
+        return mergedResults().contains(o);
     }
 
+    /** A bounded heap of results, with the worst result at the root */
+    private static class Stripe {
+        private final int limit;
+        private final PriorityQueue<SearchResultItem> heap;
+        private final LongOpenHashSet idsInSet = new LongOpenHashSet();
+
+        /** The score of the worst item in the stripe once it is full */
+        private volatile double scoreThreshold = Double.MAX_VALUE;
+
+        Stripe(int limit) {
+            this.limit = limit;
+            this.heap = new PriorityQueue<>(Math.max(1, limit), Comparator.reverseOrder());
+        }
+
+        /** Record a document that was rejected without being offered, so that it isn't added later */
+        synchronized void markSeen(long documentId) {
+            idsInSet.add(documentId);
+        }
+
+        synchronized boolean offer(SearchResultItem item) {
+            return offer(item.combinedId, item.getScore(), () -> item);
+        }
+
+        synchronized boolean offer(long combinedId, double score, ItemFactory itemFactory) {
+            if (!idsInSet.add(UrlIdCodec.removeRank(combinedId)))
+                return false;
+
+            if (heap.size() >= limit) {
+                // The item is worse than the worst item in the full stripe, same order as SearchResultItem.compareTo
+                if (heap.isEmpty() || isWorseOrEqual(combinedId, score, heap.peek()))
+                    return false;
+
+                heap.poll();
+            }
+
+            SearchResultItem item = itemFactory.create();
+
+            assert item.combinedId == combinedId && item.getScore() == score : "Item does not match the offered result";
+
+            heap.add(item);
+
+            if (heap.size() >= limit) {
+                scoreThreshold = heap.peek().getScore();
+            }
+
+            return true;
+        }
+
+        private static boolean isWorseOrEqual(long combinedId, double score, SearchResultItem other) {
+            int diff = Double.compare(score, other.getScore());
+            if (diff != 0)
+                return diff > 0;
+
+            return combinedId >= other.combinedId;
+        }
+
+        synchronized void copyTo(List<SearchResultItem> dest) {
+            dest.addAll(heap);
+        }
+
+        synchronized void clear() {
+            heap.clear();
+            idsInSet.clear();
+            scoreThreshold = Double.MAX_VALUE;
+        }
+    }
 }
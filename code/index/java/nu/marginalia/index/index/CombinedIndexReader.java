@@ -1,16 +1,17 @@
 package nu.marginalia.index.index;
 
-import it.unimi.dsi.fastutil.longs.LongArrayList;
-import it.unimi.dsi.fastutil.longs.LongList;
-import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import nu.marginalia.api.searchquery.model.compiled.aggregate.CompiledQueryAggregates;
+import nu.marginalia.index.ReverseIndexBlockMeta;
 import nu.marginalia.index.ReverseIndexReader;
 import nu.marginalia.index.forward.ForwardIndexReader;
 import nu.marginalia.index.model.QueryParams;
 import nu.marginalia.index.model.SearchTerms;
 import nu.marginalia.index.query.IndexQuery;
 import nu.marginalia.index.query.IndexQueryBuilder;
+import nu.marginalia.index.query.filter.QueryFilterStepExcludeFromPredicate;
 import nu.marginalia.index.query.filter.QueryFilterStepIf;
 import nu.marginalia.index.query.limit.SpecificationLimitType;
 import nu.marginalia.index.results.model.ids.CombinedDocIdList;
@@ -20,14 +21,22 @@ import nu.marginalia.model.idx.DocumentMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Predicate;
+import java.util.function.LongPredicate;
 
 /** A reader for the combined forward and reverse indexes.
+ * <p></p>
+ * The index may have delta segments, which are smaller indexes built from newly loaded
+ * data on top of it.  A delta segment replaces the documents of the domains it contains
+ * in the segments below it, so these documents are masked out when querying the older
+ * segments, and lookups of document data are routed to the newest segment with the domain.
  * <p></p>
  * This class does not deal with the lifecycle of the indexes,
  * that is the responsibility of {@link StatefulIndex}.
@@ -40,12 +49,90 @@ public class CombinedIndexReader {
     private final ReverseIndexReader reverseIndexFullReader;
     private final ReverseIndexReader reverseIndexPriorityReader;
 
+    /** The delta segments, oldest first */
+    private final List<CombinedIndexReader> deltas;
+
+    /** The domains present in each delta segment */
+    private final List<IntSet> deltaDomains;
+
+    /** The number of documents in the index, counting each replaced document once */
+    private final int totalDocCount;
+
+    private volatile DocumentSample documentSample;
+
     public CombinedIndexReader(ForwardIndexReader forwardIndexReader,
                                ReverseIndexReader reverseIndexFullReader,
                                ReverseIndexReader reverseIndexPriorityReader) {
         this.forwardIndexReader = forwardIndexReader;
         this.reverseIndexFullReader = reverseIndexFullReader;
         this.reverseIndexPriorityReader = reverseIndexPriorityReader;
+        this.deltas = List.of();
+        this.deltaDomains = List.of();
+        this.totalDocCount = forwardIndexReader.totalDocCount();
+    }
+
+    /**
+     * @param deltas the delta segments on top of this index, oldest first
+     */
+    public CombinedIndexReader(ForwardIndexReader forwardIndexReader,
+                               ReverseIndexReader reverseIndexFullReader,
+                               ReverseIndexReader reverseIndexPriorityReader,
+                               List<CombinedIndexReader> deltas) throws IOException {
+        this.forwardIndexReader = forwardIndexReader;
+        this.reverseIndexFullReader = reverseIndexFullReader;
+        this.reverseIndexPriorityReader = reverseIndexPriorityReader;
+        this.deltas = List.copyOf(deltas);
+
+        List<IntSet> domainSets = new ArrayList<>(deltas.size());
+        for (var delta : deltas) {
+            IntSet domains = new IntOpenHashSet();
+            delta.forwardIndexReader.forEachDocument((docId, docMeta, htmlFeatures) ->
+                    domains.add(UrlIdCodec.getDomainId(docId)));
+            domainSets.add(domains);
+        }
+        this.deltaDomains = domainSets;
+        this.totalDocCount = countOwnedDocuments();
+    }
+
+    /** Count the documents of each segment, except those of the domains in a newer segment */
+    private int countOwnedDocuments() {
+        IntSet replaced = new IntOpenHashSet();
+        int count = 0;
+
+        for (int i = deltas.size() - 1; i >= -1; i--) {
+            var segmentIndex = segment(i).forwardIndexReader;
+
+            count += segmentIndex.totalDocCount();
+            for (int domainId : replaced) {
+                count -= segmentIndex.countDocuments(domainId);
+            }
+
+            if (i >= 0) {
+                replaced.addAll(deltaDomains.get(i));
+            }
+        }
+
+        return count;
+    }
+
+    /** Returns the segment holding the documents of the domain, as an index
+     * into the deltas, or -1 for this index */
+    private int segmentFor(int domainId) {
+        for (int i = deltas.size() - 1; i >= 0; i--) {
+            if (deltaDomains.get(i).contains(domainId))
+                return i;
+        }
+        return -1;
+    }
+
+    private CombinedIndexReader segment(int segment) {
+        return segment < 0 ? this : deltas.get(segment);
+    }
+
+    /** Returns a predicate that is true for the document ids the segment holds the current
+     * version of, as opposed to those replaced by a newer segment */
+    LongPredicate ownedBy(int segment) {
+        return id -> segmentFor(UrlIdCodec.getDomainId(id)) == segment;
     }
 
     public IndexQueryBuilderImpl newQueryBuilder(IndexQuery query) {
@@ -75,15 +162,52 @@ public class CombinedIndexReader {
     }
 
     /** Creates a parameter matching filter step for the provided parameters */
-    public QueryFilterStepIf filterForParams(QueryParams params) {
-        return new ParamMatchingQueryFilter(params, forwardIndexReader);
+    public ParamMatchingQueryFilter filterForParams(QueryParams params) {
+        return new ParamMatchingQueryFilter(params, forwardIndexReader, documentSample().docMeta());
+    }
+
+    /** Creates a filter step for the search set of the provided parameters */
+    SearchSetQueryFilter filterForSearchSet(QueryParams params) {
+        return new SearchSetQueryFilter(params.searchSet(), forwardIndexReader.totalDocCount(), documentSample().docIds());
+    }
+
+    /** A sample of the documents in the forward index and their metadata */
+    private record DocumentSample(long[] docIds, long[] docMeta) {}
+
+    /** Returns a sample of the documents in the forward index, used to estimate the selectivity
+     * of the filters.  The sample is taken once for each index, along with the metadata of the
+     * documents, so that the estimates don't need any lookups in the forward index. */
+    private DocumentSample documentSample() {
+        var sample = documentSample;
+
+        if (sample == null) {
+            long[] docIds = forwardIndexReader.sampleDocIds(ParamMatchingQueryFilter.SAMPLE_SIZE);
+            long[] docMeta = new long[docIds.length];
+
+            for (int i = 0; i < docIds.length; i++) {
+                docMeta[i] = forwardIndexReader.getDocMeta(docIds[i]);
+            }
+
+            sample = documentSample = new DocumentSample(docIds, docMeta);
+        }
+
+        return sample;
     }
 
     /** Returns the number of occurrences of the word in the full index */
     public int numHits(long word) {
-        return reverseIndexFullReader.numDocuments(word);
+        int hits = reverseIndexFullReader.numDocuments(word);
+        for (var delta : deltas) {
+            hits += delta.reverseIndexFullReader.numDocuments(word);
+        }
+        return hits;
     }
 
+    /** Creates the index queries for the provided search terms and parameters.
+     * <p></p>
+     * The queries are planned by {@link IndexQueryPlanner}, which decides which paths through
+     * the query to evaluate against which index, and in which order to apply the filter steps.
+     */
     public List<IndexQuery> createQueries(SearchTerms terms, QueryParams params) {
 
         if (!isLoaded()) {
@@ -91,101 +215,236 @@ public class CombinedIndexReader {
             return Collections.emptyList();
         }
 
-        List<IndexQueryBuilder> queryHeads = new ArrayList<>(10);
-
-        final long[] termPriority = terms.sortedDistinctIncludes(this::compareKeywords);
         List<LongSet> paths = CompiledQueryAggregates.queriesAggregate(terms.compiledQuery());
 
-        // Remove any paths that do not contain all prioritized terms, as this means
-        // the term is missing from the index and can never be found
-        paths.removeIf(containsAll(termPriority).negate());
+        List<IndexQuery> queries = new ArrayList<>(2 * paths.size() * (1 + deltas.size()));
 
-        for (var path : paths) {
-            LongList elements = new LongArrayList(path);
+        queries.addAll(createSegmentQueries(paths, terms, params, maskForSegment(-1)));
+        for (int i = 0; i < deltas.size(); i++) {
+            queries.addAll(deltas.get(i).createSegmentQueries(paths, terms, params, maskForSegment(i)));
+        }
 
-            elements.sort((a, b) -> {
-                for (int i = 0; i < termPriority.length; i++) {
-                    if (termPriority[i] == a)
-                        return -1;
-                    if (termPriority[i] == b)
-                        return 1;
-                }
-                return 0;
-            });
+        return queries;
+    }
 
-            var head = findFullWord(elements.getLong(0));
-            for (int i = 1; i < elements.size(); i++) {
-                head.addInclusionFilter(hasWordFull(elements.getLong(i)));
-            }
-            queryHeads.add(head);
+    /** Returns a filter step that removes the documents replaced by segments newer than the given one,
+     * or null if there are no such segments */
+    private QueryFilterStepIf maskForSegment(int segment) {
+        if (segment + 1 >= deltas.size())
+            return null;
 
-            // If there are few paths, we can afford to check the priority index as well
-            if (paths.size() < 4) {
-                var prioHead = findPriorityWord(elements.getLong(0));
-                for (int i = 1; i < elements.size(); i++) {
-                    prioHead.addInclusionFilter(hasWordPrio(elements.getLong(i)));
-                }
-                queryHeads.add(prioHead);
-            }
+        return new QueryFilterStepExcludeFromPredicate(id -> segmentFor(UrlIdCodec.getDomainId(id)) > segment);
+    }
+
+    /** Creates the index queries against this segment alone, planned from its own term statistics */
+    private List<IndexQuery> createSegmentQueries(List<LongSet> paths, SearchTerms terms, QueryParams params, QueryFilterStepIf mask) {
+        var paramsFilter = filterForParams(params);
+        var searchSetFilter = filterForSearchSet(params);
+        var planner = new IndexQueryPlanner(reverseIndexFullReader::numDocuments,
+                reverseIndexPriorityReader::numDocuments,
+                forwardIndexReader.totalDocCount());
+
+        List<IndexQuery> queries = new ArrayList<>(2 * paths.size());
+
+        for (var plannedQuery : planner.plan(paths, terms.advice(), terms.excludes(), paramsFilter.selectivity(), searchSetFilter.selectivity())) {
+            queries.add(materialize(plannedQuery, paramsFilter, searchSetFilter, mask));
         }
 
-        // Add additional conditions to the query heads
-        for (var query : queryHeads) {
+        return queries;
+    }
 
-            // Advice terms are a special case, mandatory but not ranked, and exempt from re-writing
-            for (long term : terms.advice()) {
-                query = query.also(term);
-            }
+    /** Construct an executable query from a planned query */
+    private IndexQuery materialize(IndexQueryPlanner.PlannedQuery plannedQuery,
+                                   QueryFilterStepIf paramsFilter,
+                                   QueryFilterStepIf searchSetFilter,
+                                   QueryFilterStepIf mask) {
+        final boolean isPrio = plannedQuery.index() == IndexQueryPlanner.IndexType.PRIORITY;
 
-            for (long term : terms.excludes()) {
-                query = query.not(term);
-            }
+        var head = isPrio
+                ? findPriorityWord(plannedQuery.drivingTerm())
+                : findFullWord(plannedQuery.drivingTerm());
 
-            // Run these filter steps last, as they'll worst-case cause as many page faults as there are
-            // items in the buffer
-            query.addInclusionFilter(filterForParams(params));
+        if (mask != null) {
+            head.addInclusionFilter(mask);
         }
 
-        return queryHeads
-                .stream()
-                .map(IndexQueryBuilder::build)
-                .toList();
-    }
+        for (var step : plannedQuery.steps()) {
+            switch (step.type()) {
+                case RETAIN -> head.addInclusionFilter(isPrio
+                        ? hasWordPrio(step.termId())
+                        : hasWordFull(step.termId()));
+                case ADVICE -> head.addInclusionFilter(hasWordFull(step.termId()));
+                case REJECT -> head.not(step.termId());
+                case PARAMS -> head.addInclusionFilter(paramsFilter);
+                case SEARCH_SET -> head.addInclusionFilter(searchSetFilter);
+            }
+        }
 
-    private Predicate<LongSet> containsAll(long[] permitted) {
-        LongSet permittedTerms = new LongOpenHashSet(permitted);
-        return permittedTerms::containsAll;
+        var query = head.build();
+        query.setEstimates(plannedQuery.estimatedCost(), plannedQuery.estimatedYield());
+        return query;
     }
 
-    private int compareKeywords(long a, long b) {
-        return Long.compare(
-                numHits(a),
-                numHits(b)
-        );
-    }
     /** Returns the number of occurrences of the word in the priority index */
     public int numHitsPrio(long word) {
-        return reverseIndexPriorityReader.numDocuments(word);
+        int hits = reverseIndexPriorityReader.numDocuments(word);
+        for (var delta : deltas) {
+            hits += delta.reverseIndexPriorityReader.numDocuments(word);
+        }
+        return hits;
     }
 
     /** Retrieves the term metadata for the specified word for the provided documents */
     public DocMetadataList getMetadata(long wordId, CombinedDocIdList docIds) {
-        return new DocMetadataList(reverseIndexFullReader.getTermMeta(wordId, docIds.array()));
+        if (deltas.isEmpty()) {
+            return new DocMetadataList(reverseIndexFullReader.getTermMeta(wordId, docIds.array()));
+        }
+
+        final long[] metaOut = new long[docIds.size()];
+
+        splitBySegment(docIds.array(), (segment, positions, ids) -> {
+            long[] meta = segment.reverseIndexFullReader.getTermMeta(wordId, ids);
+            for (int i = 0; i < positions.length; i++) {
+                metaOut[positions[i]] = meta[i];
+            }
+        });
+
+        return new DocMetadataList(metaOut);
+    }
+
+    /** Retrieves the block summaries of the term metadata for the specified word,
+     * for use in block-max early termination */
+    public ReverseIndexBlockMeta getBlockMeta(long wordId) {
+        if (deltas.isEmpty()) {
+            return reverseIndexFullReader.blockMeta(wordId);
+        }
+
+        ReverseIndexBlockMeta[] metas = new ReverseIndexBlockMeta[1 + deltas.size()];
+        metas[0] = reverseIndexFullReader.blockMeta(wordId);
+        for (int i = 0; i < deltas.size(); i++) {
+            metas[i + 1] = deltas.get(i).reverseIndexFullReader.blockMeta(wordId);
+        }
+
+        return ReverseIndexBlockMeta.union(metas);
     }
 
     /** Retrieves the document metadata for the specified document */
     public long getDocumentMetadata(long docId) {
-        return forwardIndexReader.getDocMeta(docId);
+        return segment(segmentFor(UrlIdCodec.getDomainId(docId))).forwardIndexReader.getDocMeta(docId);
     }
 
-    /** Returns the total number of documents in the index */
+    /** Retrieves the document metadata and HTML features for a list of documents.
+     * <p></p>
+     * The documents are looked up in the order of their ids, rather than the order
+     * of the combined ids, which also depends on the ranking bits.  The output
+     * arrays are in the order of the combined ids.
+     */
+    public void getDocumentMetadata(CombinedDocIdList combinedIds, long[] docMetaOut, int[] htmlFeaturesOut) {
+        if (deltas.isEmpty()) {
+            getSegmentDocumentMetadata(combinedIds.array(), docMetaOut, htmlFeaturesOut);
+            return;
+        }
+
+        splitBySegment(combinedIds.array(), (segment, positions, ids) -> {
+            long[] docMeta = new long[ids.length];
+            int[] htmlFeatures = new int[ids.length];
+
+            segment.getSegmentDocumentMetadata(ids, docMeta, htmlFeatures);
+
+            for (int i = 0; i < positions.length; i++) {
+                docMetaOut[positions[i]] = docMeta[i];
+                htmlFeaturesOut[positions[i]] = htmlFeatures[i];
+            }
+        });
+    }
+
+    private void getSegmentDocumentMetadata(long[] ids, long[] docMetaOut, int[] htmlFeaturesOut) {
+        final long[] docIds = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            docIds[i] = UrlIdCodec.removeRank(ids[i]);
+        }
+
+        final long[] sortedDocIds = docIds.clone();
+        Arrays.sort(sortedDocIds);
+
+        if (Arrays.equals(docIds, sortedDocIds)) {
+            forwardIndexReader.getDocMetaAndFeatures(docIds, docMetaOut, htmlFeaturesOut);
+            return;
+        }
+
+        final long[] sortedDocMeta = new long[ids.length];
+        final int[] sortedHtmlFeatures = new int[ids.length];
+
+        forwardIndexReader.getDocMetaAndFeatures(sortedDocIds, sortedDocMeta, sortedHtmlFeatures);
+
+        for (int i = 0; i < ids.length; i++) {
+            int pos = Arrays.binarySearch(sortedDocIds, docIds[i]);
+
+            docMetaOut[i] = sortedDocMeta[pos];
+            htmlFeaturesOut[i] = sortedHtmlFeatures[pos];
+        }
+    }
+
+    /** Splits the ids by the segment holding them, and invokes the action once per segment
+     * with the ids it holds, in their original order, and their positions in the input */
+    private void splitBySegment(long[] ids, SegmentAction action) {
+        // segment + 1, so that this index is 0
+        final int[] segmentOf = new int[ids.length];
+        final int[] counts = new int[1 + deltas.size()];
+
+        for (int i = 0; i < ids.length; i++) {
+            segmentOf[i] = segmentFor(UrlIdCodec.getDomainId(ids[i])) + 1;
+            counts[segmentOf[i]]++;
+        }
+
+        for (int s = 0; s < counts.length; s++) {
+            if (counts[s] == 0)
+                continue;
+
+            int[] positions = new int[counts[s]];
+            long[] segmentIds = new long[counts[s]];
+
+            for (int i = 0, n = 0; i < ids.length; i++) {
+                if (segmentOf[i] == s) {
+                    positions[n] = i;
+                    segmentIds[n++] = ids[i];
+                }
+            }
+
+            action.apply(segment(s - 1), positions, segmentIds);
+        }
+    }
+
+    private interface SegmentAction {
+        void apply(CombinedIndexReader segment, int[] positions, long[] ids);
+    }
+
+    /** Returns the total number of documents in the index.  Documents that have been
+     * replaced by a delta segment are only counted in the segment that replaced them. */
     public int totalDocCount() {
-        return forwardIndexReader.totalDocCount();
+        return totalDocCount;
     }
 
     /** Retrieves the HTML features for the specified document */
     public int getHtmlFeatures(long docId) {
-        return forwardIndexReader.getHtmlFeatures(docId);
+        return segment(segmentFor(UrlIdCodec.getDomainId(docId))).forwardIndexReader.getHtmlFeatures(docId);
+    }
+
+    ForwardIndexReader forwardIndex() {
+        return forwardIndexReader;
+    }
+
+    ReverseIndexReader fullReverseIndex() {
+        return reverseIndexFullReader;
+    }
+
+    ReverseIndexReader priorityReverseIndex() {
+        return reverseIndexPriorityReader;
+    }
+
+    /** Returns the delta segments, oldest first */
+    List<CombinedIndexReader> deltas() {
+        return deltas;
     }
 
     /** Close the indexes (this is not done immediately)
@@ -202,6 +461,10 @@ public class CombinedIndexReader {
         delayedCall(forwardIndexReader::close, Duration.ofMinutes(1));
         delayedCall(reverseIndexFullReader::close, Duration.ofMinutes(1));
         delayedCall(reverseIndexPriorityReader::close, Duration.ofMinutes(1));
+
+        for (var delta : deltas) {
+            delta.close();
+        }
     }
 
 
@@ -223,28 +486,66 @@ public class CombinedIndexReader {
     }
 }
 
+/** Filter step for the document metadata parameters of a query, which are looked up
+ * in the forward index.  The search set is applied separately, by {@link SearchSetQueryFilter}. */
 class ParamMatchingQueryFilter implements QueryFilterStepIf {
+    static final int SAMPLE_SIZE = 256;
+
     private final QueryParams params;
     private final ForwardIndexReader forwardIndexReader;
+    private final double selectivity;
+    private final int totalDocCount;
 
+    /**
+     * @param sampleMeta the metadata of a sample of the documents in the index, used to estimate the selectivity of the filter
+     */
     public ParamMatchingQueryFilter(QueryParams params,
-                                    ForwardIndexReader forwardIndexReader)
+                                    ForwardIndexReader forwardIndexReader,
+                                    long[] sampleMeta)
     {
         this.params = params;
         this.forwardIndexReader = forwardIndexReader;
+        this.totalDocCount = forwardIndexReader.totalDocCount();
+        this.selectivity = estimateSelectivity(sampleMeta);
+    }
+
+    private double estimateSelectivity(long[] sampleMeta) {
+        if (sampleMeta.length == 0 || acceptsAll())
+            return 1.;
+
+        int passed = 0;
+        for (long meta : sampleMeta) {
+            if (testMeta(meta)) {
+                passed++;
+            }
+        }
+
+        // Add-one smoothing, so that a filter that is very selective
+        // isn't estimated to reject everything
+        return (passed + 1.) / (sampleMeta.length + 1.);
+    }
+
+    /** Returns true if the filter trivially accepts every document */
+    private boolean acceptsAll() {
+        return params.qualityLimit().type() == SpecificationLimitType.NONE
+            && params.year().type() == SpecificationLimitType.NONE
+            && params.size().type() == SpecificationLimitType.NONE
+            && params.rank().type() == SpecificationLimitType.NONE;
+    }
+
+    /** Returns the estimated fraction of documents in the index that pass the filter */
+    public double selectivity() {
+        return selectivity;
     }
 
     @Override
     public boolean test(long combinedId) {
         long docId = UrlIdCodec.removeRank(combinedId);
-        int domainId = UrlIdCodec.getDomainId(docId);
 
-        long meta = forwardIndexReader.getDocMeta(docId);
-
-        if (!validateDomain(domainId, meta)) {
-            return false;
-        }
+        return testMeta(forwardIndexReader.getDocMeta(docId));
+    }
 
+    private boolean testMeta(long meta) {
         if (!validateQuality(meta)) {
             return false;
         }
@@ -264,10 +565,6 @@ class ParamMatchingQueryFilter implements QueryFilterStepIf {
         return true;
     }
 
-    private boolean validateDomain(int domainId, long meta) {
-        return params.searchSet().contains(domainId, meta);
-    }
-
     private boolean validateQuality(long meta) {
         final var limit = params.qualityLimit();
 
@@ -307,13 +604,15 @@ class ParamMatchingQueryFilter implements QueryFilterStepIf {
         return params.rank().test(postVal);
     }
 
+    /** Returns the estimated number of documents in the index that pass the filter,
+     * analogous to the cost of the reverse index filters */
     @Override
     public double cost() {
-        return 32;
+        return selectivity * totalDocCount;
     }
 
     @Override
     public String describe() {
-        return getClass().getSimpleName();
+        return String.format(Locale.ROOT, "%s[%.2f]", getClass().getSimpleName(), selectivity);
     }
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+package nu.marginalia.index.index;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import nu.marginalia.index.ReverseIndexFullFileNames;
+import nu.marginalia.index.ReverseIndexPrioFileNames;
+import nu.marginalia.index.ReverseIndexReader;
+import nu.marginalia.index.construction.ReversePreindex;
+import nu.marginalia.index.forward.ForwardIndexFileNames;
+import nu.marginalia.index.forward.ForwardIndexMerger;
+import nu.marginalia.service.control.ServiceHeartbeat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+
+/** Merges the delta segments of an index into its base segment.
+ * <p></p>
+ * The documents each segment holds the current version of are read back out of the
+ * segment's finalized index, and merged into a new set of index files.  This is a lot
+ * cheaper than reconstructing the index from the journal, as the documents are
+ * already sorted and deduplicated.
+ */
+@Singleton
+public class IndexDeltaCompactor {
+    private static final Logger logger = LoggerFactory.getLogger(IndexDeltaCompactor.class);
+
+    private final ServiceHeartbeat heartbeat;
+
+    public enum CompactionSteps {
+        FORWARD,
+        REVERSE_FULL,
+        REVERSE_PRIO,
+        DONE
+    }
+
+    @Inject
+    public IndexDeltaCompactor(ServiceHeartbeat heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    /** Merge the index and its delta segments into the NEXT version of the index files in outputDir */
+    public void compact(CombinedIndexReader index, Path outputDir) throws IOException {
+        long start = System.currentTimeMillis();
+
+        List<CombinedIndexReader> segments = new ArrayList<>(1 + index.deltas().size());
+        List<LongPredicate> filters = new ArrayList<>(1 + index.deltas().size());
+
+        segments.add(index);
+        filters.add(index.ownedBy(-1));
+        for (int i = 0; i < index.deltas().size(); i++) {
+            segments.add(index.deltas().get(i));
+            filters.add(index.ownedBy(i));
+        }
+
+        Path tmpDir = outputDir.resolve("tmp");
+        Files.createDirectories(tmpDir);
+
+        try (var hb = heartbeat.createServiceTaskHeartbeat(CompactionSteps.class, "Index Compaction")) {
+            hb.progress(CompactionSteps.FORWARD);
+            ForwardIndexMerger.merge(
+                    segments.stream().map(CombinedIndexReader::forwardIndex).toList(),
+                    filters,
+                    ForwardIndexFileNames.resolve(outputDir, ForwardIndexFileNames.FileIdentifier.DOC_ID, ForwardIndexFileNames.FileVersion.NEXT),
+                    ForwardIndexFileNames.resolve(outputDir, ForwardIndexFileNames.FileIdentifier.DOC_DATA, ForwardIndexFileNames.FileVersion.NEXT)
+            );
+
+            hb.progress(CompactionSteps.REVERSE_FULL);
+            compactReverse(segments, CombinedIndexReader::fullReverseIndex, filters, tmpDir,
+                    ReverseIndexFullFileNames.resolve(outputDir, ReverseIndexFullFileNames.FileIdentifier.DOCS, ReverseIndexFullFileNames.FileVersion.NEXT),
+                    ReverseIndexFullFileNames.resolve(outputDir, ReverseIndexFullFileNames.FileIdentifier.WORDS, ReverseIndexFullFileNames.FileVersion.NEXT)
+            );
+
+            hb.progress(CompactionSteps.REVERSE_PRIO);
+            compactReverse(segments, CombinedIndexReader::priorityReverseIndex, filters, tmpDir,
+                    ReverseIndexPrioFileNames.resolve(outputDir, ReverseIndexPrioFileNames.FileIdentifier.DOCS, ReverseIndexPrioFileNames.FileVersion.NEXT),
+                    ReverseIndexPrioFileNames.resolve(outputDir, ReverseIndexPrioFileNames.FileIdentifier.WORDS, ReverseIndexPrioFileNames.FileVersion.NEXT)
+            );
+
+            hb.progress(CompactionSteps.DONE);
+        }
+
+        logger.info("Compacted {} index delta segments in {} ms",
+                index.deltas().size(),
+                System.currentTimeMillis() - start);
+    }
+
+    private void compactReverse(List<CombinedIndexReader> segments,
+                                Function<CombinedIndexReader, ReverseIndexReader> reverseIndex,
+                                List<LongPredicate> filters,
+                                Path tmpDir,
+                                Path outputFileDocs,
+                                Path outputFileWords) throws IOException
+    {
+        List<ReversePreindex> preindexes = new ArrayList<>(segments.size());
+
+        try {
+            for (int i = 0; i < segments.size(); i++) {
+                var preindex = ReversePreindex.fromReverseIndex(reverseIndex.apply(segments.get(i)), filters.get(i), tmpDir);
+
+                // Re-open the preindex with shared access, as the merge is multithreaded
+                preindexes.add(preindex.closeToReference().open());
+            }
+
+            ReversePreindex merged = ReversePreindex.merge(tmpDir, preindexes, (bytesMerged, bytesTotal) -> {});
+
+            try {
+                merged.finalizeIndex(outputFileDocs, outputFileWords);
+            }
+            finally {
+                merged.delete();
+            }
+        }
+        finally {
+            for (var preindex : preindexes) {
+                preindex.delete();
+            }
+        }
+    }
+
+}
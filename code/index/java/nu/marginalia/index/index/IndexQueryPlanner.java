@@ -0,0 +1,259 @@
+package nu.marginalia.index.index;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.LongToIntFunction;
+
+/** A cost based planner for index queries.
+ * <p></p>
+ * Each path through the compiled query is a conjunction of terms, which can be
+ * evaluated against the full index, the priority index, or both.  The planner
+ * estimates how many documents each such query will need to read and how many
+ * it will yield based on the document frequencies of the terms, assuming the
+ * terms are independent, and uses this to
+ * <ul>
+ *     <li>drop queries that can never yield a result, e.g. because one of their terms is absent from the index,</li>
+ *     <li>decide which paths can afford to also be evaluated against the priority index,</li>
+ *     <li>order the filter steps of each query so that the cheapest and most selective steps run first.</li>
+ * </ul>
+ * The planner only deals with estimates, and is agnostic to how the queries are
+ * materialized, see {@link CombinedIndexReader#createQueries}.
+ */
+class IndexQueryPlanner {
+    /** Relative cost of evaluating a filter step that needs to look up document metadata
+     * in the forward index, compared to intersecting with a posting list.  The forward index
+     * lookup is a random access, and worst case causes a page fault per document.
+     */
+    static final double FORWARD_INDEX_STEP_COST = 8.;
+
+    /** Relative cost of intersecting a document with a posting list */
+    static final double POSTING_STEP_COST = 1.;
+
+    /** Relative cost of looking up the domain of a document in the search set bitmap,
+     * which is mostly done once per run of documents from the same domain */
+    static final double SEARCH_SET_STEP_COST = 0.25;
+
+    /** The priority index queries are always permitted to read this many documents in total */
+    private static final long priorityMinBudget = Long.getLong("index.planner.priorityMinBudget", 50_000);
+
+    /** Beyond the minimum budget, the priority index queries are permitted to cost this
+     * fraction of the full index queries */
+    private static final double priorityCostRatio = Double.parseDouble(System.getProperty("index.planner.priorityCostRatio", "0.25"));
+
+    private final LongToIntFunction fullDocCount;
+    private final LongToIntFunction prioDocCount;
+    private final double totalDocCount;
+
+    /**
+     * @param fullDocCount  the number of documents for a term in the full index
+     * @param prioDocCount  the number of documents for a term in the priority index
+     * @param totalDocCount the number of documents in the index
+     */
+    IndexQueryPlanner(LongToIntFunction fullDocCount,
+                      LongToIntFunction prioDocCount,
+                      int totalDocCount)
+    {
+        this.fullDocCount = fullDocCount;
+        this.prioDocCount = prioDocCount;
+        this.totalDocCount = Math.max(1, totalDocCount);
+    }
+
+    /** Plan the queries for a search set that contains every domain,
+     * see {@link #plan(List, LongList, LongList, double, double)} */
+    List<PlannedQuery> plan(List<LongSet> paths,
+                            LongList advice,
+                            LongList excludes,
+                            double paramsSelectivity)
+    {
+        return plan(paths, advice, excludes, paramsSelectivity, 1.);
+    }
+
+    /** Plan the queries for the provided paths through the compiled query.
+     *
+     * @param paths the paths through the compiled query, each is a set of terms that must all be present
+     * @param advice terms that must be present, but that are not ranked
+     * @param excludes terms that must be absent
+     * @param paramsSelectivity the estimated fraction of documents that pass the parameter filter
+     * @param searchSetSelectivity the estimated fraction of documents in the domains of the search set,
+     *                             if this is 1 the search set contains every domain and is not filtered by
+     *
+     * @return the planned queries, in ascending order of estimated cost
+     */
+    List<PlannedQuery> plan(List<LongSet> paths,
+                            LongList advice,
+                            LongList excludes,
+                            double paramsSelectivity,
+                            double searchSetSelectivity)
+    {
+        List<PlannedQuery> fullQueries = new ArrayList<>(paths.size());
+        List<PlannedQuery> prioQueries = new ArrayList<>(paths.size());
+
+        for (var path : paths) {
+            if (path.isEmpty())
+                continue;
+
+            var fullQuery = planQuery(IndexType.FULL, fullDocCount, path, advice, excludes, paramsSelectivity, searchSetSelectivity);
+            if (fullQuery.estimatedYield() <= 0) {
+                // A term is missing from the index, so this path can never yield a result,
+                // and since the priority index is a subset of the full index, neither can
+                // its priority query
+                continue;
+            }
+            fullQueries.add(fullQuery);
+
+            var prioQuery = planQuery(IndexType.PRIORITY, prioDocCount, path, advice, excludes, paramsSelectivity, searchSetSelectivity);
+            if (prioQuery.estimatedYield() > 0) {
+                prioQueries.add(prioQuery);
+            }
+        }
+
+        double fullCost = fullQueries.stream().mapToDouble(PlannedQuery::estimatedCost).sum();
+        double prioBudget = Math.max(priorityMinBudget, priorityCostRatio * fullCost);
+
+        List<PlannedQuery> ret = new ArrayList<>(fullQueries.size() + prioQueries.size());
+        ret.addAll(fullQueries);
+
+        // Spend the priority budget on the queries that are expected to yield the most per unit of cost
+        prioQueries.sort(Comparator.comparingDouble(PlannedQuery::yieldPerCost).reversed());
+        for (var query : prioQueries) {
+            if (query.estimatedCost() > prioBudget)
+                continue;
+
+            prioBudget -= query.estimatedCost();
+            ret.add(query);
+        }
+
+        ret.sort(Comparator.comparingDouble(PlannedQuery::estimatedCost));
+
+        return ret;
+    }
+
+    private PlannedQuery planQuery(IndexType indexType,
+                                   LongToIntFunction docCount,
+                                   LongSet path,
+                                   LongList advice,
+                                   LongList excludes,
+                                   double paramsSelectivity,
+                                   double searchSetSelectivity)
+    {
+        LongList terms = new LongArrayList(path);
+        LongSet seen = new LongOpenHashSet(path);
+
+        // Drive the query from the rarest term, as the number of documents read
+        // from the source bounds the cost of the entire query
+        terms.sort((a, b) -> Integer.compare(docCount.applyAsInt(a), docCount.applyAsInt(b)));
+
+        long drivingTerm = terms.getLong(0);
+        int drivingCount = docCount.applyAsInt(drivingTerm);
+
+        if (drivingCount <= 0) {
+            return new PlannedQuery(indexType, drivingTerm, List.of(), 0, 0);
+        }
+
+        List<PlannedStep> steps = new ArrayList<>(terms.size() + advice.size() + excludes.size() + 2);
+
+        for (int i = 1; i < terms.size(); i++) {
+            long term = terms.getLong(i);
+            steps.add(new PlannedStep(StepType.RETAIN, term, docCount.applyAsInt(term) / totalDocCount, POSTING_STEP_COST));
+        }
+
+        for (long term : advice) {
+            if (seen.add(term)) {
+                steps.add(new PlannedStep(StepType.ADVICE, term, fullDocCount.applyAsInt(term) / totalDocCount, POSTING_STEP_COST));
+            }
+        }
+
+        for (long term : excludes) {
+            steps.add(new PlannedStep(StepType.REJECT, term, 1. - fullDocCount.applyAsInt(term) / totalDocCount, POSTING_STEP_COST));
+        }
+
+        steps.add(new PlannedStep(StepType.PARAMS, 0, paramsSelectivity, FORWARD_INDEX_STEP_COST));
+
+        if (searchSetSelectivity < 1.) {
+            steps.add(new PlannedStep(StepType.SEARCH_SET, 0, searchSetSelectivity, SEARCH_SET_STEP_COST));
+        }
+
+        steps.sort(Comparator.comparingDouble(PlannedStep::rank));
+
+        // Estimate the number of documents flowing through each step of the query
+        double flow = drivingCount;
+        double cost = drivingCount;
+
+        for (var step : steps) {
+            cost += flow * step.unitCost();
+            flow *= step.passRate();
+        }
+
+        return new PlannedQuery(indexType, drivingTerm, steps, cost, flow);
+    }
+
+    enum IndexType {
+        FULL,
+        PRIORITY
+    }
+
+    enum StepType {
+        /** Retain documents that contain the term, in the index being queried */
+        RETAIN,
+        /** Retain documents that contain the term, in the full index */
+        ADVICE,
+        /** Reject documents that contain the term */
+        REJECT,
+        /** Retain documents that match the query parameters */
+        PARAMS,
+        /** Retain documents from the domains of the search set */
+        SEARCH_SET
+    }
+
+    /** A filter step in a planned query.
+     *
+     * @param type     the type of the step
+     * @param termId   the term the step concerns, if any
+     * @param passRate the estimated fraction of documents that pass the step
+     * @param unitCost the relative cost of evaluating the step for a document
+     */
+    record PlannedStep(StepType type, long termId, double passRate, double unitCost) {
+        PlannedStep {
+            passRate = Math.clamp(passRate, 0., 1.);
+        }
+
+        /** Rank the steps so that evaluating them in ascending order of rank
+         * minimizes the expected cost, which is the classic ordering of independent
+         * predicates by their cost per rejected document.
+         */
+        double rank() {
+            double rejectRate = 1. - passRate;
+            if (rejectRate <= 0.)
+                return Double.MAX_VALUE;
+
+            return unitCost / rejectRate;
+        }
+    }
+
+    /** A planned query.
+     *
+     * @param index          the index to query
+     * @param drivingTerm    the term whose documents are read from the index
+     * @param steps          the filter steps, in the order they should be applied
+     * @param estimatedCost  the estimated cost of the query, roughly in documents read
+     * @param estimatedYield the estimated number of documents the query will yield
+     */
+    record PlannedQuery(IndexType index,
+                        long drivingTerm,
+                        List<PlannedStep> steps,
+                        double estimatedCost,
+                        double estimatedYield)
+    {
+        double yieldPerCost() {
+            if (estimatedCost <= 0)
+                return 0;
+            return estimatedYield / estimatedCost;
+        }
+    }
+}
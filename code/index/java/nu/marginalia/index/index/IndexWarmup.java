@@ -0,0 +1,98 @@
+package nu.marginalia.index.index;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import nu.marginalia.service.control.ServiceHeartbeat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Loads the parts of a freshly opened index that the queries are sure to touch into memory,
+ * before it's put into service.
+ * <p></p>
+ * Every query starts by looking up its terms in the words b-tree of the reverse index, and the
+ * most common terms are in most queries.  Right after an index switch those pages are cold, and
+ * the first queries stall on page faults.  The warm-up loads the words files, and the first pages
+ * of the posting lists of the terms with the most documents, of the base segment of the index
+ * and of each of its delta segments, since every query reads all of them.
+ * <p></p>
+ * This is disabled by default, and is enabled with -Dindex.warmup=true
+ */
+@Singleton
+public class IndexWarmup {
+    private static final Logger logger = LoggerFactory.getLogger(IndexWarmup.class);
+
+    private static final boolean enabled = Boolean.getBoolean("index.warmup");
+
+    /** The number of terms, from each of the full and priority index, whose posting lists are loaded */
+    private static final int numTerms = Integer.getInteger("index.warmup.numTerms", 2000);
+
+    /** The number of longs loaded from the start of each posting list */
+    private static final long headSize = Long.getLong("index.warmup.headSize", 16384);
+
+    public enum WarmupSteps {
+        WORDS_FULL,
+        WORDS_PRIO,
+        POSTINGS_FULL,
+        POSTINGS_PRIO,
+        DONE
+    }
+
+    private final ServiceHeartbeat heartbeat;
+
+    @Inject
+    public IndexWarmup(ServiceHeartbeat heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Load the hot parts of the index into memory.  This blocks until done. */
+    public void warmUp(CombinedIndexReader index) {
+        long start = System.currentTimeMillis();
+
+        try (var hb = heartbeat.createServiceTaskHeartbeat(WarmupSteps.class, "Index Warmup")) {
+            List<CombinedIndexReader> segments = new ArrayList<>(1 + index.deltas().size());
+            segments.add(index);
+            segments.addAll(index.deltas());
+
+            hb.progress(WarmupSteps.WORDS_FULL);
+            for (var segment : segments) {
+                segment.fullReverseIndex().preloadWords();
+            }
+
+            hb.progress(WarmupSteps.WORDS_PRIO);
+            for (var segment : segments) {
+                segment.priorityReverseIndex().preloadWords();
+            }
+
+            long loadedFull = 0;
+            long loadedPrio = 0;
+
+            hb.progress(WarmupSteps.POSTINGS_FULL);
+            for (var segment : segments) {
+                loadedFull += segment.fullReverseIndex().preloadLargestPostingLists(numTerms, headSize);
+            }
+
+            hb.progress(WarmupSteps.POSTINGS_PRIO);
+            for (var segment : segments) {
+                loadedPrio += segment.priorityReverseIndex().preloadLargestPostingLists(numTerms, headSize);
+            }
+
+            hb.progress(WarmupSteps.DONE);
+
+            logger.info("Index warm-up of {} segments done in {} ms, loaded {} MB of posting lists",
+                    segments.size(),
+                    System.currentTimeMillis() - start,
+                    (loadedFull + loadedPrio) * 8 / (1024 * 1024));
+        }
+        catch (Exception ex) {
+            // The index works without the warm-up, it's just slower at first
+            logger.error("Index warm-up failed", ex);
+        }
+    }
+}
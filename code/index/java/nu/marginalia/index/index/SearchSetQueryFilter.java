@@ -0,0 +1,70 @@
+package nu.marginalia.index.index;
+
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.index.query.filter.QueryFilterStepIf;
+import nu.marginalia.index.searchset.SearchSet;
+import nu.marginalia.model.id.UrlIdCodec;
+
+import java.util.Locale;
+
+/** Filter step that retains the documents of the domains in a search set.
+ * <p></p>
+ * Unlike {@link ParamMatchingQueryFilter}, this only needs the document ids, so it's
+ * cheap enough to run early in the query, in bulk over the buffer.
+ */
+class SearchSetQueryFilter implements QueryFilterStepIf {
+    private final SearchSet searchSet;
+    private final double selectivity;
+    private final int totalDocCount;
+
+    /**
+     * @param sample a sample of document ids from the index, used to estimate the selectivity of the filter
+     */
+    SearchSetQueryFilter(SearchSet searchSet, int totalDocCount, long[] sample) {
+        this.searchSet = searchSet;
+        this.totalDocCount = totalDocCount;
+        this.selectivity = estimateSelectivity(sample);
+    }
+
+    private double estimateSelectivity(long[] sample) {
+        if (searchSet.containsAll())
+            return 1.;
+
+        int passed = 0;
+        for (long docId : sample) {
+            if (test(docId)) {
+                passed++;
+            }
+        }
+
+        // Add-one smoothing in both directions, as the filter can't be omitted
+        // on account of every document in the sample passing it
+        return (passed + 1.) / (sample.length + 2.);
+    }
+
+    /** Returns the estimated fraction of documents in the index that pass the filter,
+     * or 1 if the search set contains every domain */
+    public double selectivity() {
+        return selectivity;
+    }
+
+    @Override
+    public boolean test(long combinedId) {
+        return searchSet.contains(UrlIdCodec.getDomainId(combinedId));
+    }
+
+    @Override
+    public void apply(LongQueryBuffer buffer) {
+        searchSet.retain(buffer);
+    }
+
+    @Override
+    public double cost() {
+        return selectivity * totalDocCount;
+    }
+
+    @Override
+    public String describe() {
+        return String.format(Locale.ROOT, "%s[%s, %.2f]", getClass().getSimpleName(), searchSet, selectivity);
+    }
+}
@@ -3,14 +3,21 @@ package nu.marginalia.index.index;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import nu.marginalia.index.IndexFactory;
+import nu.marginalia.index.IndexQueryResultCache;
 import nu.marginalia.service.control.ServiceEventLog;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /** This class holds {@link CombinedIndexReader} and deals with the stateful nature of the index,
@@ -21,18 +28,42 @@ public class StatefulIndex {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    /** The number of delta segments at which a switch schedules a compaction, zero disables it */
+    private static final int compactAfterDeltas = Integer.getInteger("index.delta.compactAfter", 4);
+
     private final ReadWriteLock indexReplacementLock = new ReentrantReadWriteLock();
+
+    /** Held while moving index files around and swapping in a reader for them, so that a compaction
+     * doesn't clobber a concurrent switch, and a stale reader is never installed over a newer one */
+    private final Lock fileSwitchLock = new ReentrantLock();
+
     @NotNull
     private final IndexFactory servicesFactory;
     private final ServiceEventLog eventLog;
+    private final IndexQueryResultCache resultCache;
+    private final IndexWarmup warmup;
+    private final IndexDeltaCompactor compactor;
+
+    private final AtomicBoolean compactionRunning = new AtomicBoolean(false);
+    private final ExecutorService compactionExecutor =
+            Executors.newSingleThreadExecutor(Thread.ofPlatform().name("index-compaction").daemon().factory());
+
+    /** Incremented whenever the base segment of the index is replaced */
+    private long baseGeneration = 0;
 
     private volatile CombinedIndexReader combinedIndexReader;
 
     @Inject
     public StatefulIndex(@NotNull IndexFactory servicesFactory,
-                         ServiceEventLog eventLog) {
+                         ServiceEventLog eventLog,
+                         IndexQueryResultCache resultCache,
+                         IndexWarmup warmup,
+                         IndexDeltaCompactor compactor) {
         this.servicesFactory = servicesFactory;
         this.eventLog = eventLog;
+        this.resultCache = resultCache;
+        this.warmup = warmup;
+        this.compactor = compactor;
     }
 
     public void init() {
@@ -58,32 +89,162 @@ public class StatefulIndex {
         }
     }
 
+    /** Switch to the next index.
+     * <p></p>
+     * The current index keeps serving queries while the next one is opened and warmed up, as
+     * its files stay mapped after they've been replaced, and is closed once the new index has
+     * been swapped in.
+     * <p></p>
+     * If the new index has index.delta.compactAfter delta segments or more, a compaction
+     * of them is started in the background.
+     */
     public boolean switchIndex() throws IOException {
         eventLog.logEvent("INDEX-SWITCH-BEGIN", "");
-        Lock lock = indexReplacementLock.writeLock();
-        try {
-            lock.lock();
 
-            if (combinedIndexReader != null)
-                combinedIndexReader.close();
+        fileSwitchLock.lock();
+        try {
+            if (servicesFactory.switchFiles()) {
+                baseGeneration++;
+            }
 
-            servicesFactory.switchFiles();
+            CombinedIndexReader newReader = servicesFactory.getCombinedIndexReader();
 
-            combinedIndexReader = servicesFactory.getCombinedIndexReader();
+            if (warmup.isEnabled()) {
+                warmup.warmUp(newReader);
+            }
 
+            replaceReader(newReader);
             eventLog.logEvent("INDEX-SWITCH-OK", "");
+
+            if (compactAfterDeltas > 0 && newReader.deltas().size() >= compactAfterDeltas) {
+                compactionExecutor.submit(this::compactInBackground);
+            }
         }
         catch (Exception ex) {
             eventLog.logEvent("INDEX-SWITCH-ERR", "");
             logger.error("Uncaught exception", ex);
         }
         finally {
-            lock.unlock();
+            fileSwitchLock.unlock();
         }
 
         return true;
     }
 
+    /** Merge the delta segments of the index into its base segment, and switch to the result.
+     * <p></p>
+     * This is scheduled by {@link #switchIndex()} once enough delta segments have accumulated.
+     * <p></p>
+     * The index keeps serving queries from its segments while this runs.  If the base segment
+     * is replaced by a switch in the meantime, the result is discarded.
+     *
+     * @return true if the index was compacted
+     */
+    public boolean compactDeltas() throws IOException {
+        if (!compactionRunning.compareAndSet(false, true)) {
+            logger.info("Index compaction already running");
+            return false;
+        }
+
+        CombinedIndexReader sourceReader = null;
+
+        try {
+            long generation;
+            List<Path> mergedDeltas;
+
+            // The compaction reads from its own instance of the index, since the one serving
+            // queries may be closed by a switch while the compaction is running
+            fileSwitchLock.lock();
+            try {
+                generation = baseGeneration;
+                mergedDeltas = servicesFactory.findDeltas();
+
+                if (mergedDeltas.isEmpty())
+                    return false;
+
+                sourceReader = servicesFactory.getCombinedIndexReader();
+            }
+            finally {
+                fileSwitchLock.unlock();
+            }
+
+            eventLog.logEvent("INDEX-COMPACT-BEGIN", Integer.toString(mergedDeltas.size()));
+
+            compactor.compact(sourceReader, servicesFactory.getCompactionArea());
+
+            fileSwitchLock.lock();
+            try {
+                if (generation != baseGeneration) {
+                    logger.info("Index replaced during compaction, discarding the result");
+                    eventLog.logEvent("INDEX-COMPACT-ERR", "Index replaced");
+                    return false;
+                }
+
+                servicesFactory.switchCompactedFiles(mergedDeltas);
+                replaceReader(servicesFactory.getCombinedIndexReader());
+            }
+            finally {
+                fileSwitchLock.unlock();
+            }
+
+            eventLog.logEvent("INDEX-COMPACT-OK", "");
+
+            return true;
+        }
+        catch (IOException ex) {
+            eventLog.logEvent("INDEX-COMPACT-ERR", "");
+            throw ex;
+        }
+        finally {
+            compactionRunning.set(false);
+
+            if (sourceReader != null) {
+                closeReader(sourceReader);
+            }
+        }
+    }
+
+    private void compactInBackground() {
+        try {
+            compactDeltas();
+        }
+        catch (Exception ex) {
+            logger.error("Index compaction failed", ex);
+        }
+    }
+
+    /** Swap in a new index reader, and close the old one.  Must be called with the fileSwitchLock held. */
+    private void replaceReader(CombinedIndexReader newReader) {
+        CombinedIndexReader oldReader;
+
+        Lock lock = indexReplacementLock.writeLock();
+        try {
+            lock.lock();
+
+            oldReader = combinedIndexReader;
+            combinedIndexReader = newReader;
+        }
+        finally {
+            // Cached results refer to the old index
+            resultCache.invalidateAll();
+
+            lock.unlock();
+        }
+
+        if (oldReader != null) {
+            closeReader(oldReader);
+        }
+    }
+
+    private void closeReader(CombinedIndexReader reader) {
+        try {
+            reader.close();
+        }
+        catch (InterruptedException ex) {
+            logger.error("Interrupted while closing the old index", ex);
+        }
+    }
+
 
     /** Returns true if the service has initialized */
     public boolean isAvailable() {
@@ -12,6 +12,8 @@ import nu.marginalia.index.query.IndexSearchBudget;
 import nu.marginalia.index.query.limit.QueryStrategy;
 import nu.marginalia.index.searchset.SearchSet;
 
+import java.util.List;
+
 import static nu.marginalia.api.searchquery.IndexProtobufCodec.convertSpecLimit;
 
 public class SearchParameters {
@@ -38,6 +40,12 @@ public class SearchParameters {
      */
     public long dataCost = 0;
 
+    /**
+     * A description of the executed index queries, only populated if
+     * the ranking parameters request debug data
+     */
+    public List<String> queryPlan = List.of();
+
     public SearchParameters(SearchSpecification specsSet, SearchSet searchSet) {
         var limits = specsSet.queryLimits;
 
@@ -0,0 +1,117 @@
+package nu.marginalia.index.results;
+
+import nu.marginalia.api.searchquery.model.compiled.CompiledQuery;
+import nu.marginalia.api.searchquery.model.compiled.CompiledQueryLong;
+import nu.marginalia.api.searchquery.model.compiled.aggregate.CqBooleanAggregate;
+import nu.marginalia.api.searchquery.model.compiled.aggregate.CqIntMaxMinOperator;
+import nu.marginalia.api.searchquery.model.results.ResultRankingContext;
+import nu.marginalia.index.ReverseIndexBlockMeta;
+import nu.marginalia.index.ResultPriorityQueue;
+import nu.marginalia.index.index.CombinedIndexReader;
+import nu.marginalia.index.query.BlockMaxFilter;
+import nu.marginalia.model.idx.WordFlags;
+import nu.marginalia.model.idx.WordMetadata;
+import nu.marginalia.ranking.results.ResultValuator;
+import nu.marginalia.ranking.results.ScoringArena;
+
+/** Rejects blocks of documents that can't make it into the result heap,
+ * based on the block summaries of the term metadata in the reverse index.
+ * <p></p>
+ * For each term in the query, the term metadata of the blocks that overlap the
+ * range of documents is combined into an upper bound for the term metadata of
+ * any document in the range, which gives a lower bound for the score via
+ * {@link ResultValuator#calculateScoreLowerBound}.  If it's worse than the
+ * worst result in the full result heap, no document in the range can
+ * make it into the results.
+ * <p></p>
+ * The same bounds also let us reject blocks that can't contain a document
+ * that satisfies the checks in {@link IndexResultValuationContext#calculatePreliminaryScore},
+ * which is done regardless of the state of the heap.
+ * <p></p>
+ * The filter reuses its scratch buffers between blocks, so each index query
+ * that may run concurrently with another needs its own instance.
+ */
+public class IndexResultBlockMaxFilter implements BlockMaxFilter {
+    private static final long flagsFilterMask =
+            WordFlags.Title.asBit() | WordFlags.Subjects.asBit() | WordFlags.UrlDomain.asBit() | WordFlags.UrlPath.asBit() | WordFlags.ExternalLink.asBit();
+
+    private final ResultValuator searchResultValuator;
+    private final ResultPriorityQueue resultHeap;
+
+    private final ReverseIndexBlockMeta[] blockMetas;
+
+    /** Scratch space for the term metadata bounds of the block currently being tested */
+    private final ScoringArena arena;
+    private final long[] wordMetas;
+    private final CompiledQueryLong wordMetasQuery;
+
+    /** Reusable aggregates over wordMetasQuery */
+    private final CqBooleanAggregate allSyntheticAggregate;
+    private final CqIntMaxMinOperator flagsCountAggregate;
+    private final CqIntMaxMinOperator positionsCountAggregate;
+
+    public IndexResultBlockMaxFilter(CombinedIndexReader index,
+                                     ResultValuator searchResultValuator,
+                                     ResultRankingContext rankingContext,
+                                     CompiledQuery<String> compiledQuery,
+                                     CompiledQueryLong compiledQueryIds,
+                                     ResultPriorityQueue resultHeap)
+    {
+        this(blockMetas(index, compiledQueryIds), searchResultValuator, rankingContext, compiledQuery, resultHeap);
+    }
+
+    IndexResultBlockMaxFilter(ReverseIndexBlockMeta[] blockMetas,
+                              ResultValuator searchResultValuator,
+                              ResultRankingContext rankingContext,
+                              CompiledQuery<String> compiledQuery,
+                              ResultPriorityQueue resultHeap)
+    {
+        this.searchResultValuator = searchResultValuator;
+        this.resultHeap = resultHeap;
+        this.blockMetas = blockMetas;
+
+        this.arena = searchResultValuator.createArena(compiledQuery, IndexResultValuationContext.DOCUMENT_LENGTH, rankingContext);
+        this.wordMetas = arena.wordMetas;
+        this.wordMetasQuery = arena.wordMetasQuery;
+
+        this.allSyntheticAggregate = new CqBooleanAggregate(wordMetasQuery, WordFlags.Synthetic::isPresent);
+        this.flagsCountAggregate = new CqIntMaxMinOperator(wordMetasQuery, wordMeta -> Long.bitCount(wordMeta & flagsFilterMask));
+        this.positionsCountAggregate = new CqIntMaxMinOperator(wordMetasQuery, wordMeta -> Long.bitCount(WordMetadata.decodePositions(wordMeta)));
+    }
+
+    private static ReverseIndexBlockMeta[] blockMetas(CombinedIndexReader index, CompiledQueryLong compiledQueryIds) {
+        var blockMetas = new ReverseIndexBlockMeta[compiledQueryIds.size()];
+        for (int i = 0; i < blockMetas.length; i++) {
+            blockMetas[i] = index.getBlockMeta(compiledQueryIds.at(i));
+        }
+        return blockMetas;
+    }
+
+    @Override
+    public boolean test(long firstId, long lastId) {
+        for (int i = 0; i < wordMetas.length; i++) {
+            wordMetas[i] = blockMetas[i].metaForRange(firstId, lastId);
+        }
+
+        // Mirror the checks in IndexResultValuationContext, these are all monotonic in the bits of the term metadata
+        boolean allSynthetic = wordMetasQuery.root.visit(allSyntheticAggregate);
+        int flagsCount = wordMetasQuery.root.visit(flagsCountAggregate);
+        int positionsCount = wordMetasQuery.root.visit(positionsCountAggregate);
+
+        if (flagsCount == 0 && !allSynthetic && positionsCount == 0)
+            return false;
+
+        final double scoreThreshold = resultHeap.getScoreThreshold();
+
+        // The heap is not full yet, so anything goes
+        if (scoreThreshold == Double.MAX_VALUE)
+            return true;
+
+        double bestPossibleScore = searchResultValuator.calculateScoreLowerBound(arena);
+
+        // Documents with a priority term get their score scaled down
+        bestPossibleScore *= IndexResultValuationContext.PRIORITY_TERM_FACTOR;
+
+        return bestPossibleScore <= scoreThreshold;
+    }
+}
@@ -1,10 +1,12 @@
 package nu.marginalia.index.results;
 
 import nu.marginalia.api.searchquery.model.compiled.*;
-import nu.marginalia.api.searchquery.model.compiled.aggregate.CompiledQueryAggregates;
+import nu.marginalia.api.searchquery.model.compiled.aggregate.CqBooleanAggregate;
+import nu.marginalia.api.searchquery.model.compiled.aggregate.CqIntMaxMinOperator;
 import nu.marginalia.api.searchquery.model.results.ResultRankingContext;
 import nu.marginalia.api.searchquery.model.results.SearchResultItem;
 import nu.marginalia.api.searchquery.model.results.SearchResultKeywordScore;
+import nu.marginalia.index.ResultPriorityQueue;
 import nu.marginalia.index.index.CombinedIndexReader;
 import nu.marginalia.index.index.StatefulIndex;
 import nu.marginalia.index.model.SearchParameters;
@@ -17,34 +19,71 @@ import nu.marginalia.model.idx.WordFlags;
 import nu.marginalia.model.idx.WordMetadata;
 import nu.marginalia.index.query.limit.QueryStrategy;
 import nu.marginalia.ranking.results.ResultValuator;
+import nu.marginalia.ranking.results.ScoringArena;
 
-import javax.annotation.Nullable;
 import java.util.List;
 
 /** This class is responsible for calculating the score of a search result.
  * It holds the data required to perform the scoring, as there is strong
- * reasons to cache this data, and performs the calculations */
+ * reasons to cache this data, and performs the calculations.
+ * <p></p>
+ * A context is owned by a single ranking thread for the duration of a query, and is
+ * fed batches of documents with {@link #loadBatch(CombinedDocIdList)}.  The buffers holding
+ * the document metadata and the term metadata are reused between documents and batches,
+ * and a SearchResultItem is only constructed for documents that make it into the result heap.
+ */
 public class IndexResultValuationContext {
+    /** The document length is not present in the index, so a dummy value is used */
+    static final int DOCUMENT_LENGTH = 5000;
+
+    /** The score of documents with a priority term is scaled by this factor */
+    static final double PRIORITY_TERM_FACTOR = 0.75;
+
+    private static final long flagsFilterMask =
+            WordFlags.Title.asBit() | WordFlags.Subjects.asBit() | WordFlags.UrlDomain.asBit() | WordFlags.UrlPath.asBit() | WordFlags.ExternalLink.asBit();
+
+    private final IndexMetadataService metadataService;
     private final CombinedIndexReader index;
     private final QueryParams queryParams;
 
-    private final TermMetadataForCombinedDocumentIds termMetadataForCombinedDocumentIds;
     private final QuerySearchTerms searchTerms;
 
-    private final ResultRankingContext rankingContext;
     private final ResultValuator searchResultValuator;
     private final CompiledQuery<String> compiledQuery;
     private final CompiledQueryLong compiledQueryIds;
 
+    /** Scratch space for the term metadata of the document currently being valued */
+    private final ScoringArena arena;
+    private final long[] wordMetas;
+    private final CompiledQueryLong wordMetasQuery;
+
+    /** Reusable aggregates over wordMetasQuery */
+    private final CqBooleanAggregate allSyntheticAggregate;
+    private final CqIntMaxMinOperator flagsCountAggregate;
+    private final CqIntMaxMinOperator positionsCountAggregate;
+    private final CqBooleanAggregate queryStrategyAggregate;
+
+    /** The current batch of documents, and their document metadata and html features */
+    private TermMetadataForCombinedDocumentIds termMetadataForCombinedDocumentIds;
+    private long[] combinedIds = new long[0];
+    private int batchSize = 0;
+    private long[] docMetadata = new long[0];
+    private int[] htmlFeatures = new int[0];
+
+    /** The document currently being offered to the result heap */
+    private int currentIdx;
+    private double currentScore;
+    private boolean currentHasPrioTerm;
+    private final ResultPriorityQueue.ItemFactory currentItemFactory = this::createCurrentItem;
+
     public IndexResultValuationContext(IndexMetadataService metadataService,
                                        ResultValuator searchResultValuator,
-                                       CombinedDocIdList ids,
                                        StatefulIndex statefulIndex,
                                        ResultRankingContext rankingContext,
                                        SearchParameters params
                                ) {
+        this.metadataService = metadataService;
         this.index = statefulIndex.get();
-        this.rankingContext = rankingContext;
         this.searchResultValuator = searchResultValuator;
 
         this.queryParams = params.queryParams;
@@ -53,73 +92,123 @@ public class IndexResultValuationContext {
 
         this.searchTerms = metadataService.getSearchTerms(params.compiledQuery, params.query);
 
+        this.arena = searchResultValuator.createArena(compiledQuery, DOCUMENT_LENGTH, rankingContext);
+        this.wordMetas = arena.wordMetas;
+        this.wordMetasQuery = arena.wordMetasQuery;
+
+        this.allSyntheticAggregate = new CqBooleanAggregate(wordMetasQuery, WordFlags.Synthetic::isPresent);
+        this.flagsCountAggregate = new CqIntMaxMinOperator(wordMetasQuery, wordMeta -> Long.bitCount(wordMeta & flagsFilterMask));
+        this.positionsCountAggregate = new CqIntMaxMinOperator(wordMetasQuery, wordMeta -> Long.bitCount(WordMetadata.decodePositions(wordMeta)));
+
+        final QueryStrategy queryStrategy = queryParams.queryStrategy();
+        this.queryStrategyAggregate = new CqBooleanAggregate(wordMetasQuery, wordMeta -> meetsQueryStrategyRequirements(wordMeta, queryStrategy));
+    }
+
+    /** Load the term metadata, document metadata and html features of a batch of documents,
+     * replacing the previous batch. */
+    public void loadBatch(CombinedDocIdList ids) {
         this.termMetadataForCombinedDocumentIds = metadataService.getTermMetadataForDocuments(ids,
                 searchTerms.termIdsAll);
-    }
 
-    private final long flagsFilterMask =
-            WordFlags.Title.asBit() | WordFlags.Subjects.asBit() | WordFlags.UrlDomain.asBit() | WordFlags.UrlPath.asBit() | WordFlags.ExternalLink.asBit();
+        this.combinedIds = ids.array();
+        this.batchSize = combinedIds.length;
 
-    @Nullable
-    public SearchResultItem calculatePreliminaryScore(long combinedId) {
+        if (docMetadata.length < batchSize) {
+            docMetadata = new long[batchSize];
+            htmlFeatures = new int[batchSize];
+        }
 
-        long docId = UrlIdCodec.removeRank(combinedId);
+        index.getDocumentMetadata(ids, docMetadata, htmlFeatures);
+    }
 
-        if (!searchTerms.coherences.test(termMetadataForCombinedDocumentIds, combinedId))
-            return null;
+    /** The number of documents in the current batch */
+    public int size() {
+        return batchSize;
+    }
 
-        long docMetadata = index.getDocumentMetadata(docId);
-        int htmlFeatures = index.getHtmlFeatures(docId);
+    /** Calculate the score of the document at position idx in the current batch,
+     * and offer it to the result heap.
+     * <p></p>
+     * The threshold check is done before the SearchResultItem is constructed,
+     * so that no allocations are wasted on documents that can't make it into
+     * the results.
+     *
+     * @return true if the document was added to the result heap
+     */
+    public boolean rankResult(int idx, ResultPriorityQueue resultHeap) {
+        double score = calculatePreliminaryScore(idx);
+
+        // The heap rejects scores above its threshold before the item is constructed,
+        // and remembers the document either way
+        currentIdx = idx;
+        currentScore = score;
+
+        return resultHeap.offer(UrlIdCodec.removeRank(combinedIds[idx]), score, currentItemFactory);
+    }
 
-        SearchResultItem searchResult = new SearchResultItem(docId,
-                docMetadata,
-                htmlFeatures,
-                hasPrioTerm(combinedId));
+    /** Calculate the score of the document at position idx in the current batch,
+     * returning Double.MAX_VALUE if the document does not qualify.
+     * <p></p>
+     * Leaves the term metadata of the document in wordMetas, and
+     * whether it has a priority term in currentHasPrioTerm.
+     */
+    double calculatePreliminaryScore(int idx) {
 
-        long[] wordMetas = new long[compiledQuery.size()];
-        SearchResultKeywordScore[] scores = new SearchResultKeywordScore[compiledQuery.size()];
+        final long combinedId = combinedIds[idx];
 
-        for (int i = 0; i < wordMetas.length; i++) {
-            final long termId = compiledQueryIds.at(i);
-            final String term = compiledQuery.at(i);
+        if (!searchTerms.coherences.test(termMetadataForCombinedDocumentIds, combinedId))
+            return Double.MAX_VALUE;
 
-            wordMetas[i] = termMetadataForCombinedDocumentIds.getTermMetadata(termId, combinedId);
-            scores[i] = new SearchResultKeywordScore(term, termId, wordMetas[i]);
+        for (int i = 0; i < wordMetas.length; i++) {
+            wordMetas[i] = termMetadataForCombinedDocumentIds.getTermMetadata(compiledQueryIds.at(i), combinedId);
         }
 
+        if (!meetsQueryStrategyRequirements(wordMetasQuery, queryParams.queryStrategy())) {
+            return Double.MAX_VALUE;
+        }
 
-        // DANGER: IndexResultValuatorService assumes that searchResult.keywordScores has this specific order, as it needs
-        // to be able to re-construct its own CompiledQuery<SearchResultKeywordScore> for re-ranking the results.  This is
-        // a very flimsy assumption.
-        searchResult.keywordScores.addAll(List.of(scores));
+        boolean allSynthetic = wordMetasQuery.root.visit(allSyntheticAggregate);
+        int flagsCount = wordMetasQuery.root.visit(flagsCountAggregate);
+        int positionsCount = wordMetasQuery.root.visit(positionsCountAggregate);
 
-        CompiledQueryLong wordMetasQuery = new CompiledQueryLong(compiledQuery.root, new CqDataLong(wordMetas));
+        if (flagsCount == 0 && !allSynthetic && positionsCount == 0)
+            return Double.MAX_VALUE;
 
+        double score = searchResultValuator.calculateSearchResultValue(arena,
+                docMetadata[idx],
+                htmlFeatures[idx]);
 
-        boolean allSynthetic = CompiledQueryAggregates.booleanAggregate(wordMetasQuery, WordFlags.Synthetic::isPresent);
-        int flagsCount = CompiledQueryAggregates.intMaxMinAggregate(wordMetasQuery, wordMeta -> Long.bitCount(wordMeta & flagsFilterMask));
-        int positionsCount = CompiledQueryAggregates.intMaxMinAggregate(wordMetasQuery, wordMeta -> Long.bitCount(WordMetadata.decodePositions(wordMeta)));
+        currentHasPrioTerm = hasPrioTerm(combinedId);
 
-        if (!meetsQueryStrategyRequirements(wordMetasQuery, queryParams.queryStrategy())) {
-            return null;
+        if (currentHasPrioTerm) {
+            score = PRIORITY_TERM_FACTOR * score;
         }
 
-        if (flagsCount == 0 && !allSynthetic && positionsCount == 0)
-            return null;
-
-        double score = searchResultValuator.calculateSearchResultValue(
-                wordMetasQuery,
-                docMetadata,
-                htmlFeatures,
-                5000, // use a dummy value here as it's not present in the index
-                rankingContext,
-                null);
-
-        if (searchResult.hasPrioTerm) {
-            score = 0.75 * score;
+        return score;
+    }
+
+    /** Construct the SearchResultItem for the document being offered to the result heap,
+     * this is only called once it's known that it will be added */
+    private SearchResultItem createCurrentItem() {
+        final long docId = UrlIdCodec.removeRank(combinedIds[currentIdx]);
+
+        SearchResultItem searchResult = new SearchResultItem(docId,
+                docMetadata[currentIdx],
+                htmlFeatures[currentIdx],
+                currentHasPrioTerm);
+
+        SearchResultKeywordScore[] scores = new SearchResultKeywordScore[compiledQuery.size()];
+
+        for (int i = 0; i < wordMetas.length; i++) {
+            scores[i] = new SearchResultKeywordScore(compiledQuery.at(i), compiledQueryIds.at(i), wordMetas[i]);
         }
 
-        searchResult.setScore(score);
+        // DANGER: IndexResultValuatorService assumes that searchResult.keywordScores has this specific order, as it needs
+        // to be able to re-construct its own CompiledQuery<SearchResultKeywordScore> for re-ranking the results.  This is
+        // a very flimsy assumption.
+        searchResult.keywordScores.addAll(List.of(scores));
+
+        searchResult.setScore(currentScore);
 
         return searchResult;
     }
@@ -142,11 +231,10 @@ public class IndexResultValuationContext {
             return true;
         }
 
-        return CompiledQueryAggregates.booleanAggregate(queryGraphScores,
-                docs -> meetsQueryStrategyRequirements(docs, queryParams.queryStrategy()));
+        return queryGraphScores.root.visit(queryStrategyAggregate);
     }
 
-    private boolean meetsQueryStrategyRequirements(long wordMeta, QueryStrategy queryStrategy) {
+    private static boolean meetsQueryStrategyRequirements(long wordMeta, QueryStrategy queryStrategy) {
         if (queryStrategy == QueryStrategy.REQUIRE_FIELD_SITE) {
             return WordFlags.Site.isPresent(wordMeta);
         }
@@ -14,6 +14,7 @@ import nu.marginalia.api.searchquery.model.results.DecoratedSearchResultItem;
 import nu.marginalia.api.searchquery.model.results.ResultRankingContext;
 import nu.marginalia.api.searchquery.model.results.SearchResultItem;
 import nu.marginalia.api.searchquery.model.results.debug.ResultRankingDetails;
+import nu.marginalia.index.ResultPriorityQueue;
 import nu.marginalia.index.index.StatefulIndex;
 import nu.marginalia.index.model.SearchParameters;
 import nu.marginalia.index.results.model.ids.CombinedDocIdList;
@@ -49,37 +50,56 @@ public class IndexResultValuatorService {
         this.statefulIndex = statefulIndex;
     }
 
-    public List<SearchResultItem> rankResults(SearchParameters params,
-                                              ResultRankingContext rankingContext,
-                                              CombinedDocIdList resultIds)
+    /** Create a context for ranking results.  The context is meant to be
+     * owned by a single thread, which reuses it for every batch of results
+     * it ranks during the query.
+     */
+    public IndexResultValuationContext createValuationContext(SearchParameters params,
+                                                              ResultRankingContext rankingContext)
     {
-        final var evaluator = createValuationContext(params, rankingContext, resultIds);
+        return new IndexResultValuationContext(metadataService,
+                resultValuator,
+                statefulIndex,
+                rankingContext,
+                params);
+    }
 
-        List<SearchResultItem> results = new ArrayList<>(resultIds.size());
+    /** Rank the provided results, and add those that make it into the resultHeap to it.
+     * No SearchResultItem is constructed for results that would not make it into the heap.
+     *
+     * @return the number of results added to the heap
+     */
+    public int rankResults(IndexResultValuationContext evaluator,
+                           CombinedDocIdList resultIds,
+                           ResultPriorityQueue resultHeap)
+    {
+        evaluator.loadBatch(resultIds);
+
+        int added = 0;
 
-        for (long id : resultIds.array()) {
-            var score = evaluator.calculatePreliminaryScore(id);
-            if (score != null) {
-                results.add(score);
+        for (int i = 0; i < evaluator.size(); i++) {
+            if (evaluator.rankResult(i, resultHeap)) {
+                added++;
             }
         }
 
-        return results;
+        return added;
     }
 
-    private IndexResultValuationContext createValuationContext(SearchParameters params,
-                                                               ResultRankingContext rankingContext,
-                                                               CombinedDocIdList resultIds)
+    /** Create a filter that lets the index queries skip blocks of documents
+     * that can't make it into the resultHeap */
+    public IndexResultBlockMaxFilter createBlockMaxFilter(SearchParameters params,
+                                                          ResultRankingContext rankingContext,
+                                                          ResultPriorityQueue resultHeap)
     {
-        return new IndexResultValuationContext(metadataService,
+        return new IndexResultBlockMaxFilter(statefulIndex.get(),
                 resultValuator,
-                resultIds,
-                statefulIndex,
                 rankingContext,
-                params);
+                params.compiledQuery,
+                params.compiledQueryIds,
+                resultHeap);
     }
 
-
     public List<DecoratedSearchResultItem> selectBestResults(SearchParameters params,
                                                      ResultRankingContext rankingContext,
                                                      Collection<SearchResultItem> results) throws SQLException {
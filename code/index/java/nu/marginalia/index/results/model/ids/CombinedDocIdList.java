@@ -18,6 +18,10 @@ public final class CombinedDocIdList {
     public CombinedDocIdList(LongArrayList data) {
         this.data = data.toLongArray();
     }
+    /** Create a list backed by the given array, which must not be modified afterwards */
+    public CombinedDocIdList(long[] data) {
+        this.data = data;
+    }
     public CombinedDocIdList(Roaring64Bitmap data) {
         this.data = data.toArray();
     }
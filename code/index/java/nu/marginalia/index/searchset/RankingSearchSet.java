@@ -1,32 +1,48 @@
 package nu.marginalia.index.searchset;
 
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 
 /** A serializable bit map of domains corresponding to a method of ranking the domains
+ * <p></p>
+ * The file holds a magic number followed by the bitmap in the portable RoaringBitmap
+ * format, and the bitmap is used straight from a memory mapping of the file.  Files in
+ * the older format, a list of domain ids, are loaded into memory.
  *
  * @see SearchSetIdentifier
  *
  * */
 public class RankingSearchSet implements SearchSet {
 
+    private static final long MAGIC = 0x5345_5453_4E52_3031L; // "SETSNR01"
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
-    private final IntOpenHashSet set;
+    private final ImmutableRoaringBitmap set;
     public final String name;
     public final Path source;
 
-    public RankingSearchSet(String name, Path source, IntOpenHashSet set) {
+    /** Create a set with the given domains.  The bitmap is copied, and may be reused by the caller. */
+    public RankingSearchSet(String name, Path source, RoaringBitmap set) {
         this.name = name;
         this.source = source;
-        this.set = set;
+
+        var copy = set.toMutableRoaringBitmap();
+        copy.runOptimize();
+        this.set = copy;
     }
 
     public RankingSearchSet(String name, Path source) throws IOException {
@@ -34,7 +50,7 @@ public class RankingSearchSet implements SearchSet {
         this.source = source;
 
         if (!Files.exists(source)) {
-            set = new IntOpenHashSet();
+            set = new MutableRoaringBitmap();
         }
         else {
             set = load(source);
@@ -45,8 +61,23 @@ public class RankingSearchSet implements SearchSet {
         }
     }
 
-    private static IntOpenHashSet load(Path source) throws IOException {
-        var set = new IntOpenHashSet();
+    private static ImmutableRoaringBitmap load(Path source) throws IOException {
+        try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            while (header.hasRemaining() && channel.read(header) >= 0);
+
+            if (header.position() == 8 && header.getLong(0) == MAGIC) {
+                // The mapping remains valid after the channel is closed
+                var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 8, channel.size() - 8);
+                return new ImmutableRoaringBitmap(buffer);
+            }
+        }
+
+        return loadLegacy(source);
+    }
+
+    private static ImmutableRoaringBitmap loadLegacy(Path source) throws IOException {
+        var set = new MutableRoaringBitmap();
         try (var ds = new DataInputStream(Files.newInputStream(source, StandardOpenOption.READ))) {
             for (;;) {
                 try {
@@ -55,31 +86,40 @@ public class RankingSearchSet implements SearchSet {
                 catch (IOException ex) { break; }
             }
         }
+        set.runOptimize();
         return set;
     }
 
+    /** An empty set is interpreted as containing every domain */
     @Override
-    public boolean contains(int domainId, long documentMetadata) {
+    public boolean containsAll() {
+        return set.isEmpty();
+    }
 
-        // This is the main check
-        if (set.contains(domainId) || set.isEmpty()) {
-            return true;
-        }
+    @Override
+    public boolean contains(int domainId) {
+        return set.isEmpty() || set.contains(domainId);
+    }
 
-        // TODO
-        return false;
+    public int size() {
+        return set.getCardinality();
     }
 
+    /** Write the set to its source file.  The file is replaced rather than overwritten,
+     * as it may be mapped by a previous instance of the set. */
     public void write() throws IOException {
-        try (var ds = new DataOutputStream(Files.newOutputStream(source,
+        Path tmpFile = source.resolveSibling(source.getFileName() + ".tmp");
+
+        try (var ds = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile,
                 StandardOpenOption.WRITE,
                 StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING)))
+                StandardOpenOption.TRUNCATE_EXISTING))))
         {
-            for (var iter = set.intIterator(); iter.hasNext();) {
-                ds.writeInt(iter.nextInt());
-            }
+            ds.writeLong(MAGIC);
+            set.serialize(ds);
         }
+
+        Files.move(tmpFile, source, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     public String toString() {
@@ -1,12 +1,55 @@
 package nu.marginalia.index.searchset;
 
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.model.id.UrlIdCodec;
+
+/** A set of domains that a search is limited to.
+ * <p></p>
+ * Membership is decided by the domain alone; constraints on the document metadata
+ * are checked against the forward index by the query parameter filter.
+ */
 public interface SearchSet {
 
     /**
      *  Returns true if the given domainId is contained in the set
-     *  or if the documentMetadata vibes with the set
-     *
      */
-    boolean contains(int domainId, long documentMetadata);
+    boolean contains(int domainId);
+
+    /** Returns true if the set contains every domain, in which case
+     * there is no need to filter by it.
+     */
+    default boolean containsAll() {
+        return false;
+    }
+
+    /** For each document id in the buffer from READ to END, retain the ids
+     * whose domain is in the set, with the same contract as
+     * {@link nu.marginalia.index.query.filter.QueryFilterStepIf#apply(LongQueryBuffer)}.
+     * <p></p>
+     * The document ids are sorted, so the documents of a domain mostly come in runs,
+     * and the set is only consulted once per run.
+     */
+    default void retain(LongQueryBuffer buffer) {
+        int lastDomainId = -1;
+        boolean lastContained = false;
+
+        while (buffer.hasMore()) {
+            int domainId = UrlIdCodec.getDomainId(buffer.currentValue());
+
+            if (domainId != lastDomainId) {
+                lastDomainId = domainId;
+                lastContained = contains(domainId);
+            }
+
+            if (lastContained) {
+                buffer.retainAndAdvance();
+            }
+            else {
+                buffer.rejectAndAdvance();
+            }
+        }
+
+        buffer.finalizeFiltering();
+    }
 
 }
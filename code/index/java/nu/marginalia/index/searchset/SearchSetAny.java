@@ -1,11 +1,24 @@
 package nu.marginalia.index.searchset;
 
+import nu.marginalia.array.page.LongQueryBuffer;
+
 public class SearchSetAny implements SearchSet {
     @Override
-    public boolean contains(int domainId, long meta) {
+    public boolean contains(int domainId) {
+        return true;
+    }
+
+    @Override
+    public boolean containsAll() {
         return true;
     }
 
+    @Override
+    public void retain(LongQueryBuffer buffer) {
+        buffer.retainAll();
+        buffer.finalizeFiltering();
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName();
@@ -3,19 +3,19 @@ package nu.marginalia.index.searchset;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import gnu.trove.list.TIntList;
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import nu.marginalia.db.DomainRankingSetsService;
 import nu.marginalia.db.DomainTypes;
 import nu.marginalia.index.IndexFactory;
 import nu.marginalia.index.domainrankings.DomainRankings;
 import nu.marginalia.ranking.domains.PageRankDomainRanker;
 import nu.marginalia.ranking.domains.accumulator.RankingResultHashMapAccumulator;
-import nu.marginalia.ranking.domains.accumulator.RankingResultHashSetAccumulator;
+import nu.marginalia.ranking.domains.accumulator.RankingResultBitSetAccumulator;
 import nu.marginalia.ranking.domains.data.GraphSource;
 import nu.marginalia.ranking.domains.data.LinkGraphSource;
 import nu.marginalia.ranking.domains.data.SimilarityGraphSource;
 import nu.marginalia.service.control.ServiceEventLog;
 import nu.marginalia.service.module.ServiceConfiguration;
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -145,7 +145,7 @@ public class SearchSetsService {
 
         var data = PageRankDomainRanker
                 .forDomainNames(source, domains)
-                .calculate(rankingSet.depth(), RankingResultHashSetAccumulator::new);
+                .calculate(rankingSet.depth(), RankingResultBitSetAccumulator::new);
 
         var set = new RankingSearchSet(rankingSet.name(), rankingSet.fileName(indexFactory.getSearchSetsBase()), data);
         rankingSets.put(rankingSet.name(), set);
@@ -170,7 +170,7 @@ public class SearchSetsService {
         }
 
         synchronized (this) {
-            var blogSet = new RankingSearchSet(rankingSet.name(), rankingSet.fileName(indexFactory.getSearchSetsBase()), new IntOpenHashSet(knownDomains.toArray()));
+            var blogSet = new RankingSearchSet(rankingSet.name(), rankingSet.fileName(indexFactory.getSearchSetsBase()), RoaringBitmap.bitmapOf(knownDomains.toArray()));
             rankingSets.put(rankingSet.name(), blogSet);
             blogSet.write();
         }
@@ -14,10 +14,22 @@ public class SmallSearchSet implements SearchSet {
     }
 
     @Override
-    public boolean contains(int domainId, long meta) {
+    public boolean contains(int domainId) {
         return entries.contains(domainId);
     }
 
+    @Override
+    public boolean equals(Object other) {
+        if (other == this) return true;
+        if (!(other instanceof SmallSearchSet otherSet)) return false;
+        return entries.equals(otherSet.entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return entries.hashCode();
+    }
+
     public String toString() {
         return getClass().getSimpleName() + Arrays.toString(entries.toArray());
     }
@@ -1,22 +1,16 @@
 package nu.marginalia.ranking.domains;
 
-import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TIntArrayList;
 import nu.marginalia.ranking.domains.accumulator.RankingResultAccumulator;
+import nu.marginalia.ranking.domains.csr.CsrGraph;
+import nu.marginalia.ranking.domains.csr.CsrPageRank;
 import nu.marginalia.ranking.domains.data.GraphSource;
-import nu.marginalia.ranking.domains.jgrapht.PersonalizedPageRank;
-import org.jgrapht.Graph;
-import org.jgrapht.alg.interfaces.VertexScoringAlgorithm;
-import org.jgrapht.alg.scoring.PageRank;
 
-import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 import java.util.function.Supplier;
 
 public class PageRankDomainRanker implements RankingAlgorithm {
     private final List<Integer> influenceSet;
-    private final Graph<Integer, ?> graph;
+    private final CsrGraph graph;
 
     public PageRankDomainRanker(GraphSource source,
                                 List<Integer> influenceSet)
@@ -33,26 +27,14 @@ public class PageRankDomainRanker implements RankingAlgorithm {
 
     @Override
     public <T> T calculate(int resultCount, Supplier<RankingResultAccumulator<T>> accumulatorP) {
-        VertexScoringAlgorithm<Integer, Double> pageRank;
+        // Personalized PageRank if there is an influence set, otherwise regular PageRank
+        var pageRank = new CsrPageRank(graph, influenceSet);
 
-        if (influenceSet != null && !influenceSet.isEmpty()) {
-            pageRank = new PersonalizedPageRank<>(graph, influenceSet);
-        }
-        else {
-            pageRank = new PageRank<>(graph);
-        }
-
-        TIntList results = new TIntArrayList(resultCount);
-        pageRank.getScores().entrySet()
-                .stream()
-                .sorted(Comparator.comparing((Map.Entry<Integer, Double> e) -> -e.getValue()))
-                .limit(resultCount)
-                .map(Map.Entry::getKey)
-                .forEach(results::add);
+        int[] results = pageRank.topK(resultCount);
 
         var accumulator = accumulatorP.get();
-        for (int i = 0; i < results.size(); i++) {
-            accumulator.add(results.get(i), i);
+        for (int i = 0; i < results.length; i++) {
+            accumulator.add(graph.domainId(results[i]), i);
         }
         return accumulator.get();
     }
@@ -0,0 +1,342 @@
+package nu.marginalia.ranking.domains.csr;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+import java.util.Arrays;
+
+/** Immutable domain graph in compressed sparse row form, for ranking domains.
+ * <p></p>
+ * The vertices are indexed [0, numVertices) in ascending order of their domain ids, and
+ * the graph stores the incoming edges of each vertex, as that is what the PageRank
+ * power iteration consumes.  For each vertex the sum of the weights of its outgoing
+ * edges is also stored, which for an unweighted graph is the out degree.
+ * <p></p>
+ * Graphs are constructed via {@link #directedBuilder()} or {@link #undirectedWeightedBuilder()}.
+ */
+public class CsrGraph {
+    private final int[] domainIds;
+    private final int[] inOffsets;
+    private final int[] inNeighbors;
+    private final double[] inWeights;
+    private final double[] outWeights;
+
+    private CsrGraph(int[] domainIds, int[] inOffsets, int[] inNeighbors, double[] inWeights, double[] outWeights) {
+        this.domainIds = domainIds;
+        this.inOffsets = inOffsets;
+        this.inNeighbors = inNeighbors;
+        this.inWeights = inWeights;
+        this.outWeights = outWeights;
+    }
+
+    /** Create a builder for a directed graph without edge weights */
+    public static Builder directedBuilder() {
+        return new Builder(false, false);
+    }
+
+    /** Create a builder for an undirected graph with edge weights,
+     * each edge is stored once in each direction */
+    public static Builder undirectedWeightedBuilder() {
+        return new Builder(true, true);
+    }
+
+    public int numVertices() {
+        return domainIds.length;
+    }
+
+    public int numEdges() {
+        return inNeighbors.length;
+    }
+
+    public boolean isWeighted() {
+        return inWeights != null;
+    }
+
+    /** Returns the domain id of the vertex with the given index */
+    public int domainId(int vertex) {
+        return domainIds[vertex];
+    }
+
+    /** Returns the vertex index of the domain id, or -1 if it is not in the graph */
+    public int vertexIndex(int domainId) {
+        int idx = Arrays.binarySearch(domainIds, domainId);
+        return idx < 0 ? -1 : idx;
+    }
+
+    public boolean containsVertex(int domainId) {
+        return vertexIndex(domainId) >= 0;
+    }
+
+    public boolean containsEdge(int sourceDomainId, int destDomainId) {
+        return edgePosition(sourceDomainId, destDomainId) >= 0;
+    }
+
+    /** Returns the weight of the edge, 1 for an unweighted graph,
+     * or 0 if there is no such edge */
+    public double edgeWeight(int sourceDomainId, int destDomainId) {
+        int pos = edgePosition(sourceDomainId, destDomainId);
+
+        if (pos < 0)
+            return 0.;
+        if (inWeights == null)
+            return 1.;
+
+        return inWeights[pos];
+    }
+
+    private int edgePosition(int sourceDomainId, int destDomainId) {
+        int source = vertexIndex(sourceDomainId);
+        int dest = vertexIndex(destDomainId);
+
+        if (source < 0 || dest < 0)
+            return -1;
+
+        // The incoming edges of each vertex are sorted by source
+        int pos = Arrays.binarySearch(inNeighbors, inOffsets[dest], inOffsets[dest + 1], source);
+        return pos < 0 ? -1 : pos;
+    }
+
+    /** The start of the incoming edges of each vertex in {@link #inNeighbors()},
+     * with an additional end offset at numVertices */
+    int[] inOffsets() {
+        return inOffsets;
+    }
+
+    /** The source vertex of each incoming edge */
+    int[] inNeighbors() {
+        return inNeighbors;
+    }
+
+    /** The weight of each incoming edge, or null if the graph is unweighted */
+    double[] inWeights() {
+        return inWeights;
+    }
+
+    /** The sum of the weights of the outgoing edges of each vertex */
+    double[] outWeights() {
+        return outWeights;
+    }
+
+    public static class Builder {
+        private final boolean weighted;
+        private final boolean undirected;
+
+        private final IntOpenHashSet vertices = new IntOpenHashSet();
+
+        private int numEdges = 0;
+        private int[] sources = new int[1024];
+        private int[] dests = new int[1024];
+        private double[] weights;
+
+        private Builder(boolean weighted, boolean undirected) {
+            this.weighted = weighted;
+            this.undirected = undirected;
+
+            if (weighted) {
+                weights = new double[1024];
+            }
+        }
+
+        public void addVertex(int domainId) {
+            vertices.add(domainId);
+        }
+
+        public boolean containsVertex(int domainId) {
+            return vertices.contains(domainId);
+        }
+
+        /** Add an edge with weight 1.  Edges between domains that aren't
+         * vertices of the graph are ignored, as are duplicate edges. */
+        public void addEdge(int sourceDomainId, int destDomainId) {
+            addEdge(sourceDomainId, destDomainId, 1.);
+        }
+
+        /** Add an edge with a weight.  Edges between domains that aren't
+         * vertices of the graph are ignored, as are duplicate edges. */
+        public void addEdge(int sourceDomainId, int destDomainId, double weight) {
+            if (numEdges == sources.length) {
+                int newSize = (int) Math.min(Integer.MAX_VALUE - 8, 2L * sources.length);
+                if (newSize == numEdges) {
+                    throw new IllegalStateException("Too many edges");
+                }
+
+                sources = Arrays.copyOf(sources, newSize);
+                dests = Arrays.copyOf(dests, newSize);
+                if (weighted) {
+                    weights = Arrays.copyOf(weights, newSize);
+                }
+            }
+
+            sources[numEdges] = sourceDomainId;
+            dests[numEdges] = destDomainId;
+            if (weighted) {
+                weights[numEdges] = weight;
+            }
+            numEdges++;
+        }
+
+        public CsrGraph build() {
+            final int[] domainIds = vertices.toIntArray();
+            Arrays.sort(domainIds);
+
+            final int n = domainIds.length;
+
+            // Translate the edges to vertex indexes, dropping unknown vertices
+            final VertexIndexer indexer = new VertexIndexer(domainIds);
+            int m = 0;
+            for (int i = 0; i < numEdges; i++) {
+                int source = indexer.vertexIndex(sources[i]);
+                int dest = indexer.vertexIndex(dests[i]);
+
+                if (source < 0 || dest < 0)
+                    continue;
+
+                sources[m] = source;
+                dests[m] = dest;
+                if (weighted) {
+                    weights[m] = weights[i];
+                }
+                m++;
+            }
+
+            // Count the incoming edges of each vertex, in both directions for undirected graphs
+            final int[] offsets = new int[n + 1];
+            long totalEdges = 0;
+            for (int i = 0; i < m; i++) {
+                offsets[dests[i] + 1]++;
+                totalEdges++;
+
+                if (undirected && sources[i] != dests[i]) {
+                    offsets[sources[i] + 1]++;
+                    totalEdges++;
+                }
+            }
+
+            if (totalEdges > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Too many edges");
+            }
+
+            for (int i = 0; i < n; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+
+            // Scatter the edges into their rows
+            final int[] neighbors = new int[(int) totalEdges];
+            final double[] edgeWeights = weighted ? new double[(int) totalEdges] : null;
+            final int[] fill = Arrays.copyOf(offsets, n);
+
+            for (int i = 0; i < m; i++) {
+                int pos = fill[dests[i]]++;
+                neighbors[pos] = sources[i];
+                if (weighted) edgeWeights[pos] = weights[i];
+
+                if (undirected && sources[i] != dests[i]) {
+                    pos = fill[sources[i]]++;
+                    neighbors[pos] = dests[i];
+                    if (weighted) edgeWeights[pos] = weights[i];
+                }
+            }
+
+            // The edge arrays are no longer needed, release them before compacting
+            sources = dests = null;
+            weights = null;
+            numEdges = 0;
+
+            return compact(domainIds, offsets, neighbors, edgeWeights);
+        }
+
+        /** Translates domain ids to vertex indexes.  A binary search per edge dominates
+         * the construction of large graphs, so as long as the domain ids aren't too sparse,
+         * a lookup table is used instead. */
+        private static class VertexIndexer {
+            private final int[] domainIds;
+            private final int minId;
+            private final int[] table;
+
+            VertexIndexer(int[] domainIds) {
+                this.domainIds = domainIds;
+
+                if (domainIds.length == 0) {
+                    minId = 0;
+                    table = null;
+                    return;
+                }
+
+                minId = domainIds[0];
+                long span = (long) domainIds[domainIds.length - 1] - minId + 1;
+
+                if (span <= 16L * domainIds.length + 1024) {
+                    table = new int[(int) span];
+                    Arrays.fill(table, -1);
+                    for (int i = 0; i < domainIds.length; i++) {
+                        table[domainIds[i] - minId] = i;
+                    }
+                }
+                else {
+                    table = null;
+                }
+            }
+
+            /** Returns the vertex index of the domain id, or a negative value if it's unknown */
+            int vertexIndex(int domainId) {
+                if (table == null) {
+                    return Arrays.binarySearch(domainIds, domainId);
+                }
+
+                long offset = (long) domainId - minId;
+                if (offset < 0 || offset >= table.length)
+                    return -1;
+
+                return table[(int) offset];
+            }
+        }
+
+        /** Sort each row by source and remove duplicate edges */
+        private CsrGraph compact(int[] domainIds, int[] offsets, int[] neighbors, double[] edgeWeights) {
+            final int n = domainIds.length;
+            final double[] outWeights = new double[n];
+
+            int out = 0;
+            int start = 0;
+            for (int v = 0; v < n; v++) {
+                final int end = offsets[v + 1];
+
+                if (edgeWeights == null) {
+                    Arrays.sort(neighbors, start, end);
+                }
+                else {
+                    it.unimi.dsi.fastutil.Arrays.quickSort(start, end,
+                            (a, b) -> Integer.compare(neighbors[a], neighbors[b]),
+                            (a, b) -> {
+                                int tn = neighbors[a]; neighbors[a] = neighbors[b]; neighbors[b] = tn;
+                                double tw = edgeWeights[a]; edgeWeights[a] = edgeWeights[b]; edgeWeights[b] = tw;
+                            });
+                }
+
+                offsets[v] = out;
+                for (int i = start; i < end; i++) {
+                    if (i > start && neighbors[i] == neighbors[i - 1])
+                        continue;
+
+                    neighbors[out] = neighbors[i];
+                    if (edgeWeights != null) {
+                        edgeWeights[out] = edgeWeights[i];
+                        outWeights[neighbors[i]] += edgeWeights[i];
+                    }
+                    else {
+                        outWeights[neighbors[i]] += 1.;
+                    }
+                    out++;
+                }
+
+                start = end;
+            }
+            offsets[n] = out;
+
+            return new CsrGraph(domainIds,
+                    offsets,
+                    out == neighbors.length ? neighbors : Arrays.copyOf(neighbors, out),
+                    edgeWeights == null || out == edgeWeights.length ? edgeWeights : Arrays.copyOf(edgeWeights, out),
+                    outWeights);
+        }
+    }
+}
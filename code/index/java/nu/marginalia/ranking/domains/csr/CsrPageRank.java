@@ -0,0 +1,356 @@
+package nu.marginalia.ranking.domains.csr;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** PageRank and Personalized PageRank by power iteration over a {@link CsrGraph}.
+ * <p></p>
+ * Each iteration pulls the scores of a vertex from its incoming edges, so the vertices
+ * can be split into ranges that are computed in parallel without synchronization.  The
+ * ranges are balanced by the number of edges and run on a fork-join pool.  The iteration
+ * stops when the L1 norm of the change in the scores falls below the tolerance, or after
+ * the maximum number of iterations.
+ * <p></p>
+ * With an influence set, the teleportation, including the score of dangling vertices, only
+ * goes to the vertices of the influence set.  The teleportation is then subtracted from
+ * their final scores, so that they don't rank highly merely for being in the set.
+ */
+public class CsrPageRank {
+    public static final double DAMPING_FACTOR_DEFAULT = 0.85;
+    public static final int MAX_ITERATIONS_DEFAULT = 100;
+    public static final double TOLERANCE_DEFAULT = 1e-6;
+
+    private final CsrGraph graph;
+    private final BitSet influenceSet;
+    private final int influenceSetSize;
+    private final double dampingFactor;
+    private final int maxIterations;
+    private final double tolerance;
+    private final ForkJoinPool pool;
+
+    private double[] scores;
+    private int iterations;
+
+    /** Create an instance of PageRank, or Personalized PageRank if the influence set
+     * is not empty.
+     *
+     * @param graph the input graph
+     * @param influenceSet domain ids to personalize the calculation for, ids that
+     *                     are not in the graph are ignored
+     */
+    public CsrPageRank(CsrGraph graph, Collection<Integer> influenceSet) {
+        this(graph, influenceSet, DAMPING_FACTOR_DEFAULT, MAX_ITERATIONS_DEFAULT, TOLERANCE_DEFAULT, ForkJoinPool.commonPool());
+    }
+
+    public CsrPageRank(CsrGraph graph,
+                       Collection<Integer> influenceSet,
+                       double dampingFactor,
+                       int maxIterations,
+                       double tolerance,
+                       ForkJoinPool pool)
+    {
+        if (maxIterations <= 0) {
+            throw new IllegalArgumentException("Maximum iterations must be positive");
+        }
+        if (dampingFactor < 0.0 || dampingFactor > 1.0) {
+            throw new IllegalArgumentException("Damping factor not valid");
+        }
+        if (tolerance <= 0.0) {
+            throw new IllegalArgumentException("Tolerance not valid, must be positive");
+        }
+
+        this.graph = graph;
+        this.dampingFactor = dampingFactor;
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+        this.pool = pool;
+
+        this.influenceSet = new BitSet(graph.numVertices());
+        if (influenceSet != null) {
+            for (int domainId : influenceSet) {
+                int vertex = graph.vertexIndex(domainId);
+                if (vertex >= 0) {
+                    this.influenceSet.set(vertex);
+                }
+            }
+        }
+        this.influenceSetSize = this.influenceSet.cardinality();
+    }
+
+    /** Returns the score of each vertex, indexed as the vertices of the graph */
+    public double[] getScores() {
+        if (scores == null) {
+            scores = new Algorithm().run();
+        }
+        return scores;
+    }
+
+    /** Returns the score of a domain, or 0 if it's not in the graph */
+    public double getDomainScore(int domainId) {
+        int vertex = graph.vertexIndex(domainId);
+        if (vertex < 0)
+            return 0.;
+
+        return getScores()[vertex];
+    }
+
+    /** Returns the number of iterations the calculation ran for */
+    public int getIterations() {
+        getScores();
+        return iterations;
+    }
+
+    /** Returns the vertices with the k highest scores, highest score first.
+     * Vertices with equal scores are ordered by domain id.
+     */
+    public int[] topK(int k) {
+        final double[] scores = getScores();
+        final int n = scores.length;
+
+        k = Math.min(k, n);
+        if (k <= 0)
+            return new int[0];
+
+        // Min-heap of the best vertices seen so far, with the worst of them at the root
+        final int[] heap = new int[k];
+        int size = 0;
+
+        for (int v = 0; v < n; v++) {
+            if (size < k) {
+                heap[size] = v;
+                siftUp(heap, size++, scores);
+            }
+            else if (isBetter(v, heap[0], scores)) {
+                heap[0] = v;
+                siftDown(heap, size, scores);
+            }
+        }
+
+        // Pop the worst vertex to the end of the heap until it is sorted best first
+        for (int end = size - 1; end > 0; end--) {
+            int tmp = heap[0];
+            heap[0] = heap[end];
+            heap[end] = tmp;
+            siftDown(heap, end, scores);
+        }
+
+        return heap;
+    }
+
+    /** A vertex is better than another if it has a higher score, or the same score and a lower index */
+    private static boolean isBetter(int a, int b, double[] scores) {
+        int cmp = Double.compare(scores[a], scores[b]);
+        return cmp > 0 || (cmp == 0 && a < b);
+    }
+
+    private static void siftUp(int[] heap, int pos, double[] scores) {
+        int v = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!isBetter(heap[parent], v, scores))
+                break;
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = v;
+    }
+
+    private static void siftDown(int[] heap, int size, double[] scores) {
+        int v = heap[0];
+        int pos = 0;
+        for (;;) {
+            int child = 2 * pos + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && isBetter(heap[child], heap[child + 1], scores))
+                child++;
+            if (!isBetter(v, heap[child], scores))
+                break;
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = v;
+    }
+
+    /** The state of the calculation, kept apart from the instance so that
+     * it can be garbage collected once the scores are calculated */
+    private class Algorithm {
+        private final int n = graph.numVertices();
+        private final int[] inOffsets = graph.inOffsets();
+        private final int[] inNeighbors = graph.inNeighbors();
+        private final double[] inWeights = graph.inWeights();
+        private final double[] outWeights = graph.outWeights();
+
+        private double[] curScore = new double[n];
+        private double[] nextScore = new double[n];
+
+        /** The score each vertex passes along each unit of edge weight, d * score / out weight */
+        private double[] curContribution = new double[n];
+        private double[] nextContribution = new double[n];
+
+        private final int[] chunkStarts;
+        private final double[] chunkChange;
+        private final double[] chunkTeleport;
+
+        Algorithm() {
+            chunkStarts = partition(Math.max(1, pool.getParallelism() * 8));
+            chunkChange = new double[chunkStarts.length - 1];
+            chunkTeleport = new double[chunkStarts.length - 1];
+        }
+
+        double[] run() {
+            iterations = 0;
+
+            if (n == 0)
+                return curScore;
+
+            double teleport = 0;
+            for (int v = 0; v < n; v++) {
+                curScore[v] = 1.0 / n;
+                curContribution[v] = contribution(v, curScore[v]);
+                teleport += teleportation(v, curScore[v]);
+            }
+
+            while (iterations < maxIterations) {
+                final double teleportPerVertex = teleportPerVertex(teleport);
+
+                pool.invoke(new IterationTask(0, chunkChange.length, teleportPerVertex));
+
+                double change = 0;
+                teleport = 0;
+                for (int i = 0; i < chunkChange.length; i++) {
+                    change += chunkChange[i];
+                    teleport += chunkTeleport[i];
+                }
+
+                swapScores();
+                iterations++;
+
+                if (change < tolerance)
+                    break;
+            }
+
+            // Remove the influence factor from the scores
+            if (influenceSetSize > 0) {
+                final double teleportPerVertex = teleportPerVertex(teleport);
+                for (int v = influenceSet.nextSetBit(0); v >= 0; v = influenceSet.nextSetBit(v + 1)) {
+                    curScore[v] -= teleportPerVertex;
+                }
+            }
+
+            return curScore;
+        }
+
+        /** Compute the next scores for the vertices of the chunk */
+        void iterate(int chunk, double teleportPerVertex) {
+            final int start = chunkStarts[chunk];
+            final int end = chunkStarts[chunk + 1];
+            final boolean personalized = influenceSetSize > 0;
+
+            double change = 0;
+            double teleport = 0;
+
+            for (int v = start; v < end; v++) {
+                double score = 0;
+
+                if (inWeights == null) {
+                    for (int i = inOffsets[v]; i < inOffsets[v + 1]; i++) {
+                        score += curContribution[inNeighbors[i]];
+                    }
+                }
+                else {
+                    for (int i = inOffsets[v]; i < inOffsets[v + 1]; i++) {
+                        score += curContribution[inNeighbors[i]] * inWeights[i];
+                    }
+                }
+
+                if (!personalized || influenceSet.get(v)) {
+                    score += teleportPerVertex;
+                }
+
+                change += Math.abs(score - curScore[v]);
+                teleport += teleportation(v, score);
+
+                nextScore[v] = score;
+                nextContribution[v] = contribution(v, score);
+            }
+
+            chunkChange[chunk] = change;
+            chunkTeleport[chunk] = teleport;
+        }
+
+        private double contribution(int v, double score) {
+            return outWeights[v] > 0 ? dampingFactor * score / outWeights[v] : 0;
+        }
+
+        /** The part of the score of the vertex that is teleported rather than passed along its edges;
+         * all of it for dangling vertices */
+        private double teleportation(int v, double score) {
+            return outWeights[v] > 0 ? (1 - dampingFactor) * score : score;
+        }
+
+        private double teleportPerVertex(double teleport) {
+            return teleport / (influenceSetSize > 0 ? influenceSetSize : n);
+        }
+
+        /** Split the vertices into ranges with roughly the same amount of work */
+        private int[] partition(int numChunks) {
+            final long totalWork = (long) n + inNeighbors.length;
+            final long workPerChunk = Math.max(1, totalWork / numChunks);
+
+            int[] starts = new int[numChunks + 1];
+            int chunks = 0;
+
+            long nextBoundary = 0;
+            for (int v = 0; v < n && chunks < numChunks; v++) {
+                long work = (long) v + inOffsets[v];
+                if (work >= nextBoundary) {
+                    starts[chunks++] = v;
+                    nextBoundary = work + workPerChunk;
+                }
+            }
+
+            starts[chunks] = n;
+
+            return Arrays.copyOf(starts, chunks + 1);
+        }
+
+        private void swapScores() {
+            double[] tmp = curScore;
+            curScore = nextScore;
+            nextScore = tmp;
+
+            tmp = curContribution;
+            curContribution = nextContribution;
+            nextContribution = tmp;
+        }
+
+        /** Computes the chunks [startChunk, endChunk), splitting the range in half until it's a single chunk */
+        private class IterationTask extends RecursiveAction {
+            private final int startChunk;
+            private final int endChunk;
+            private final double teleportPerVertex;
+
+            IterationTask(int startChunk, int endChunk, double teleportPerVertex) {
+                this.startChunk = startChunk;
+                this.endChunk = endChunk;
+                this.teleportPerVertex = teleportPerVertex;
+            }
+
+            @Override
+            protected void compute() {
+                if (endChunk - startChunk == 1) {
+                    iterate(startChunk, teleportPerVertex);
+                }
+                else {
+                    int mid = (startChunk + endChunk) >>> 1;
+                    invokeAll(new IterationTask(startChunk, mid, teleportPerVertex),
+                              new IterationTask(mid, endChunk, teleportPerVertex));
+                }
+            }
+        }
+    }
+}
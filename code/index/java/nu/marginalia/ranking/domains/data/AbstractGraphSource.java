@@ -1,7 +1,7 @@
 package nu.marginalia.ranking.domains.data;
 
 import com.zaxxer.hikari.HikariDataSource;
-import org.jgrapht.Graph;
+import nu.marginalia.ranking.domains.csr.CsrGraph;
 
 import java.sql.SQLException;
 import java.util.*;
@@ -14,10 +14,10 @@ public abstract class AbstractGraphSource implements GraphSource {
     }
 
     @Override
-    public abstract Graph<Integer, ?> getGraph();
+    public abstract CsrGraph getGraph();
 
     /** Adds all indexed domain ids as vertices to the graph. */
-    protected void addVertices(Graph<Integer, ?> graph) throws SQLException {
+    protected void addVertices(CsrGraph.Builder graph) throws SQLException {
         try (var conn = dataSource.getConnection();
              var stmt = conn.prepareStatement("""
                 SELECT ID 
@@ -1,6 +1,6 @@
 package nu.marginalia.ranking.domains.data;
 
-import org.jgrapht.Graph;
+import nu.marginalia.ranking.domains.csr.CsrGraph;
 
 import java.util.List;
 
@@ -9,7 +9,7 @@ import java.util.List;
 public interface GraphSource {
 
     /** Construct the graph */
-    Graph<Integer, ?> getGraph();
+    CsrGraph getGraph();
 
     /** Return a list of domain ids for the given domain names.
      *  The function will also accept SQL-style wildcards,
@@ -4,9 +4,7 @@ import com.google.inject.Inject;
 import com.zaxxer.hikari.HikariDataSource;
 import lombok.SneakyThrows;
 import nu.marginalia.api.linkgraph.AggregateLinkGraphClient;
-import org.jgrapht.Graph;
-import org.jgrapht.graph.DefaultDirectedGraph;
-import org.jgrapht.graph.DefaultEdge;
+import nu.marginalia.ranking.domains.csr.CsrGraph;
 
 
 /** A source for the inverted link graph,
@@ -22,8 +20,8 @@ public class InvertedLinkGraphSource extends AbstractGraphSource {
     }
     @SneakyThrows
     @Override
-    public Graph<Integer, ?> getGraph() {
-        Graph<Integer, ?> graph = new DefaultDirectedGraph<>(DefaultEdge.class);
+    public CsrGraph getGraph() {
+        CsrGraph.Builder graph = CsrGraph.directedBuilder();
 
         addVertices(graph);
 
@@ -41,6 +39,6 @@ public class InvertedLinkGraphSource extends AbstractGraphSource {
             graph.addEdge(iter.dest(), iter.source());
         }
 
-        return graph;
+        return graph.build();
     }
 }
@@ -4,9 +4,7 @@ import com.google.inject.Inject;
 import com.zaxxer.hikari.HikariDataSource;
 import lombok.SneakyThrows;
 import nu.marginalia.api.linkgraph.AggregateLinkGraphClient;
-import org.jgrapht.Graph;
-import org.jgrapht.graph.DefaultDirectedGraph;
-import org.jgrapht.graph.DefaultEdge;
+import nu.marginalia.ranking.domains.csr.CsrGraph;
 
 /** A source for the regular link graph. */
 public class LinkGraphSource extends AbstractGraphSource {
@@ -20,8 +18,8 @@ public class LinkGraphSource extends AbstractGraphSource {
 
     @SneakyThrows
     @Override
-    public Graph<Integer, ?> getGraph() {
-        Graph<Integer, ?> graph = new DefaultDirectedGraph<>(DefaultEdge.class);
+    public CsrGraph getGraph() {
+        CsrGraph.Builder graph = CsrGraph.directedBuilder();
 
         addVertices(graph);
 
@@ -38,6 +36,6 @@ public class LinkGraphSource extends AbstractGraphSource {
             graph.addEdge(iter.source(), iter.dest());
         }
 
-        return graph;
+        return graph.build();
     }
 }
@@ -3,9 +3,7 @@ package nu.marginalia.ranking.domains.data;
 import com.google.inject.Inject;
 import com.zaxxer.hikari.HikariDataSource;
 import lombok.SneakyThrows;
-import org.jgrapht.Graph;
-import org.jgrapht.graph.DefaultUndirectedWeightedGraph;
-import org.jgrapht.graph.DefaultWeightedEdge;
+import nu.marginalia.ranking.domains.csr.CsrGraph;
 
 import java.sql.SQLException;
 
@@ -37,8 +35,8 @@ public class SimilarityGraphSource extends AbstractGraphSource {
 
     @SneakyThrows
     @Override
-    public Graph<Integer, ?> getGraph() {
-        Graph<Integer, ?> graph = new DefaultUndirectedWeightedGraph<>(DefaultWeightedEdge.class);
+    public CsrGraph getGraph() {
+        CsrGraph.Builder graph = CsrGraph.undirectedWeightedBuilder();
 
         addVertices(graph);
 
@@ -62,12 +60,11 @@ public class SimilarityGraphSource extends AbstractGraphSource {
 
                     double weight = rs.getDouble(3);
 
-                    graph.addEdge(src, dest);
-                    graph.setEdgeWeight(src, dest, weight);
+                    graph.addEdge(src, dest, weight);
                 }
             }
         }
 
-        return graph;
+        return graph.build();
     }
 }
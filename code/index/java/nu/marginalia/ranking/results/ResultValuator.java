@@ -1,5 +1,6 @@
 package nu.marginalia.ranking.results;
 
+import nu.marginalia.api.searchquery.model.compiled.CompiledQuery;
 import nu.marginalia.api.searchquery.model.compiled.CompiledQueryLong;
 import nu.marginalia.api.searchquery.model.results.ResultRankingContext;
 import nu.marginalia.api.searchquery.model.results.ResultRankingParameters;
@@ -50,6 +51,69 @@ public class ResultValuator {
 
         var rankingParams = ctx.params;
 
+        double tcfOverlap = rankingParams.tcfOverlapWeight * termCoherenceFactor.calculateOverlap(wordMeta);
+        double tcfJaccard = rankingParams.tcfJaccardWeight * termCoherenceFactor.calculateAvgMutualJaccard(wordMeta, ctx);
+
+        double bM25F = rankingParams.bm25FullWeight * wordMeta.root.visit(Bm25FullGraphVisitor.forRegular(rankingParams.fullParams, wordMeta.data, length, ctx));
+        double bM25N = rankingParams.bm25NgramWeight * wordMeta.root.visit(Bm25FullGraphVisitor.forNgrams(rankingParams.fullParams, wordMeta.data, length, ctx));
+        double bM25P = rankingParams.bm25PrioWeight * wordMeta.root.visit(new Bm25PrioGraphVisitor(rankingParams.prioParams, wordMeta.data, ctx));
+
+        return calculateSearchResultValue(documentMetadata, features, length, ctx,
+                tcfOverlap, tcfJaccard, bM25F, bM25N, bM25P,
+                detailsConsumer);
+    }
+
+    /** Create a scoring arena for valuing many documents against the same query, see
+     * {@link #calculateSearchResultValue(ScoringArena, long, int)}
+     */
+    public ScoringArena createArena(CompiledQuery<?> compiledQuery, int length, ResultRankingContext ctx) {
+        if (length < 0) {
+            length = 5000;
+        }
+
+        return new ScoringArena(compiledQuery.root, compiledQuery.size(), length, ctx);
+    }
+
+    /** Allocation-free version of calculateSearchResultValue, for the term metadata
+     * that has been written to the arena's wordMetas array.
+     */
+    public double calculateSearchResultValue(ScoringArena arena,
+                                             long documentMetadata,
+                                             int features)
+    {
+        final CompiledQueryLong wordMeta = arena.wordMetasQuery;
+
+        if (wordMeta.isEmpty())
+            return Double.MAX_VALUE;
+
+        var ctx = arena.ctx;
+        var rankingParams = ctx.params;
+
+        double tcfOverlap = rankingParams.tcfOverlapWeight * termCoherenceFactor.calculateOverlap(wordMeta, arena.positionsOperator);
+        double tcfJaccard = rankingParams.tcfJaccardWeight * termCoherenceFactor.calculateAvgMutualJaccard(wordMeta, ctx);
+
+        double bM25F = rankingParams.bm25FullWeight * wordMeta.root.visit(arena.bm25Regular);
+        double bM25N = rankingParams.bm25NgramWeight * wordMeta.root.visit(arena.bm25Ngrams);
+        double bM25P = rankingParams.bm25PrioWeight * wordMeta.root.visit(arena.bm25Prio);
+
+        return calculateSearchResultValue(documentMetadata, features, arena.length, ctx,
+                tcfOverlap, tcfJaccard, bM25F, bM25N, bM25P,
+                null);
+    }
+
+    private double calculateSearchResultValue(long documentMetadata,
+                                              int features,
+                                              int length,
+                                              ResultRankingContext ctx,
+                                              double tcfOverlap,
+                                              double tcfJaccard,
+                                              double bM25F,
+                                              double bM25N,
+                                              double bM25P,
+                                              @Nullable Consumer<ResultRankingDetails> detailsConsumer)
+    {
+        var rankingParams = ctx.params;
+
         int rank = DocumentMetadata.decodeRank(documentMetadata);
         int asl = DocumentMetadata.decodeAvgSentenceLength(documentMetadata);
         int quality = DocumentMetadata.decodeQuality(documentMetadata);
@@ -82,13 +146,6 @@ public class ResultValuator {
                            + temporalBias
                            + flagsPenalty;
 
-        double tcfOverlap = rankingParams.tcfOverlapWeight * termCoherenceFactor.calculateOverlap(wordMeta);
-        double tcfJaccard = rankingParams.tcfJaccardWeight * termCoherenceFactor.calculateAvgMutualJaccard(wordMeta, ctx);
-
-        double bM25F = rankingParams.bm25FullWeight * wordMeta.root.visit(Bm25FullGraphVisitor.forRegular(rankingParams.fullParams, wordMeta.data, length, ctx));
-        double bM25N = rankingParams.bm25NgramWeight * wordMeta.root.visit(Bm25FullGraphVisitor.forNgrams(rankingParams.fullParams, wordMeta.data, length, ctx));
-        double bM25P = rankingParams.bm25PrioWeight * wordMeta.root.visit(new Bm25PrioGraphVisitor(rankingParams.prioParams, wordMeta.data, ctx));
-
         double overallPartPositive = Math.max(0, overallPart);
         double overallPartNegative = -Math.min(0, overallPart);
 
@@ -142,6 +199,116 @@ public class ResultValuator {
         }
     }
 
+    /** Calculate a lower bound for the value calculateSearchResultValue will return for any document
+     * where the term metadata of each term is a subset of the bits in wordMetaBound.
+     * <p></p>
+     * The term dependent factors are monotonic in the flags and positions of the term
+     * metadata, except the mutual Jaccard index, which is bounded by 1.  The document
+     * dependent factors are bounded by their best possible values.
+     * <p></p>
+     * If the ranking parameters are such that no meaningful bound can be given, 0 is returned.
+     */
+    public double calculateScoreLowerBound(CompiledQueryLong wordMetaBound,
+                                           int length,
+                                           ResultRankingContext ctx)
+    {
+        if (wordMetaBound.isEmpty())
+            return Double.MAX_VALUE;
+
+        if (!hasScoreLowerBound(ctx))
+            return 0;
+
+        var rankingParams = ctx.params;
+
+        double tcfOverlap = termCoherenceFactor.calculateOverlap(wordMetaBound);
+
+        double bM25F = wordMetaBound.root.visit(Bm25FullGraphVisitor.forRegular(rankingParams.fullParams, wordMetaBound.data, length, ctx));
+        double bM25N = wordMetaBound.root.visit(Bm25FullGraphVisitor.forNgrams(rankingParams.fullParams, wordMetaBound.data, length, ctx));
+        double bM25P = wordMetaBound.root.visit(new Bm25PrioGraphVisitor(rankingParams.prioParams, wordMetaBound.data, ctx));
+
+        return calculateScoreLowerBound(length, ctx, tcfOverlap, bM25F, bM25N, bM25P);
+    }
+
+    /** Allocation-free version of calculateScoreLowerBound, for the term metadata bound
+     * that has been written to the arena's wordMetas array.
+     */
+    public double calculateScoreLowerBound(ScoringArena arena) {
+        final CompiledQueryLong wordMetaBound = arena.wordMetasQuery;
+
+        if (wordMetaBound.isEmpty())
+            return Double.MAX_VALUE;
+
+        var ctx = arena.ctx;
+
+        if (!hasScoreLowerBound(ctx))
+            return 0;
+
+        double tcfOverlap = termCoherenceFactor.calculateOverlap(wordMetaBound, arena.positionsOperator);
+
+        double bM25F = wordMetaBound.root.visit(arena.bm25Regular);
+        double bM25N = wordMetaBound.root.visit(arena.bm25Ngrams);
+        double bM25P = wordMetaBound.root.visit(arena.bm25Prio);
+
+        return calculateScoreLowerBound(arena.length, ctx, tcfOverlap, bM25F, bM25N, bM25P);
+    }
+
+    /** The BM25 factors are only monotonic in the number of positions for positive k, and
+     * terms with more matching documents than there are documents have a negative IDF.
+     * A negative temporal bias weight has no useful upper bound.
+     */
+    private boolean hasScoreLowerBound(ResultRankingContext ctx) {
+        var rankingParams = ctx.params;
+
+        if (rankingParams.fullParams.k() <= 0
+         || rankingParams.prioParams.k() <= 0
+         || rankingParams.temporalBiasWeight < 0)
+        {
+            return false;
+        }
+
+        final int docCount = ctx.termFreqDocCount();
+        for (int i = 0; i < ctx.fullCounts.size(); i++) {
+            if (ctx.fullCounts.get(i) > docCount)
+                return false;
+        }
+
+        return true;
+    }
+
+    private double calculateScoreLowerBound(int length,
+                                            ResultRankingContext ctx,
+                                            double tcfOverlap,
+                                            double bM25F,
+                                            double bM25N,
+                                            double bM25P)
+    {
+        var rankingParams = ctx.params;
+
+        final double documentLengthPenalty = length > rankingParams.shortDocumentThreshold ? 0 : -rankingParams.shortDocumentPenalty;
+
+        double overallPartBound = Math.max(0, -rankingParams.shortSentencePenalty) // averageSentenceLengthPenalty
+                + documentLengthPenalty
+                + Math.max(0, -rankingParams.qualityPenalty * 15 * 20)         // qualityPenalty
+                + Math.max(0, 255. * rankingParams.domainRankBonus)            // rankingBonus
+                + Math.log(1 + 255)                                              // topologyBonus
+                + 2;                                                             // flagsPenalty
+
+        double ret = normalize(
+                Math.max(0, rankingParams.tcfOverlapWeight) * tcfOverlap
+                + Math.max(0, rankingParams.tcfJaccardWeight)
+                + Math.max(0, rankingParams.bm25FullWeight) * bM25F
+                + Math.max(0, rankingParams.bm25PrioWeight) * bM25P
+                + Math.max(0, rankingParams.bm25NgramWeight) * bM25N
+                + Math.max(0, overallPartBound),
+                0);
+
+        if (Double.isNaN(ret)) {
+            return 0;
+        }
+
+        return ret;
+    }
+
     private double calculateQualityPenalty(int size, int quality, ResultRankingParameters rankingParams) {
         if (size < 400) {
             if (quality < 5)
@@ -0,0 +1,48 @@
+package nu.marginalia.ranking.results;
+
+import nu.marginalia.api.searchquery.model.compiled.CompiledQueryLong;
+import nu.marginalia.api.searchquery.model.compiled.CqDataLong;
+import nu.marginalia.api.searchquery.model.compiled.CqExpression;
+import nu.marginalia.api.searchquery.model.compiled.aggregate.CqLongBitmaskOperator;
+import nu.marginalia.api.searchquery.model.results.ResultRankingContext;
+import nu.marginalia.ranking.results.factors.Bm25FullGraphVisitor;
+import nu.marginalia.ranking.results.factors.Bm25PrioGraphVisitor;
+import nu.marginalia.ranking.results.factors.TermCoherenceFactor;
+
+/** Scratch space for valuing a sequence of documents against the same query,
+ * see {@link ResultValuator#calculateSearchResultValue(ScoringArena, long, int)}.
+ * <p></p>
+ * The caller writes the term metadata of each document to {@link #wordMetas} before
+ * valuing it.  The visitors that calculate the term dependent factors are bound to this
+ * array when the arena is created, so valuing a document does not allocate.
+ * <p></p>
+ * An arena is not thread-safe, and is meant to be owned by a single ranking thread.
+ */
+public class ScoringArena {
+    /** The term metadata of the document being valued, in the order of the compiled query */
+    public final long[] wordMetas;
+    public final CompiledQueryLong wordMetasQuery;
+
+    final ResultRankingContext ctx;
+    final int length;
+
+    final Bm25FullGraphVisitor bm25Regular;
+    final Bm25FullGraphVisitor bm25Ngrams;
+    final Bm25PrioGraphVisitor bm25Prio;
+    final CqLongBitmaskOperator positionsOperator;
+
+    ScoringArena(CqExpression root, int querySize, int length, ResultRankingContext ctx) {
+        this.ctx = ctx;
+        this.length = length;
+
+        this.wordMetas = new long[querySize];
+        this.wordMetasQuery = new CompiledQueryLong(root, new CqDataLong(wordMetas));
+
+        var rankingParams = ctx.params;
+
+        this.bm25Regular = Bm25FullGraphVisitor.forRegular(rankingParams.fullParams, wordMetasQuery.data, length, ctx);
+        this.bm25Ngrams = Bm25FullGraphVisitor.forNgrams(rankingParams.fullParams, wordMetasQuery.data, length, ctx);
+        this.bm25Prio = new Bm25PrioGraphVisitor(rankingParams.prioParams, wordMetasQuery.data, ctx);
+        this.positionsOperator = TermCoherenceFactor.positionsOperator(wordMetasQuery);
+    }
+}
@@ -1,7 +1,7 @@
 package nu.marginalia.ranking.results.factors;
 
 import nu.marginalia.api.searchquery.model.compiled.CompiledQueryLong;
-import nu.marginalia.api.searchquery.model.compiled.aggregate.CompiledQueryAggregates;
+import nu.marginalia.api.searchquery.model.compiled.aggregate.CqLongBitmaskOperator;
 import nu.marginalia.api.searchquery.model.results.ResultRankingContext;
 import nu.marginalia.model.idx.WordMetadata;
 
@@ -17,12 +17,25 @@ public class TermCoherenceFactor {
         if (wordMetadataQuery.size() < 2)
             return 0;
 
-        long mask = CompiledQueryAggregates.longBitmaskAggregate(wordMetadataQuery,
-                score -> score >>> WordMetadata.POSITIONS_SHIFT);
+        return calculateOverlap(wordMetadataQuery, positionsOperator(wordMetadataQuery));
+    }
+
+    /** Version of calculateOverlap that reuses an operator created with positionsOperator(),
+     * to avoid allocating a new one for each call. */
+    public double calculateOverlap(CompiledQueryLong wordMetadataQuery, CqLongBitmaskOperator positionsOperator) {
+        if (wordMetadataQuery.size() < 2)
+            return 0;
+
+        long mask = wordMetadataQuery.root.visit(positionsOperator);
 
         return bitsSetFactor(mask);
     }
 
+    /** Create the operator that calculateOverlap uses to aggregate the positions of the terms in the query */
+    public static CqLongBitmaskOperator positionsOperator(CompiledQueryLong wordMetadataQuery) {
+        return new CqLongBitmaskOperator(wordMetadataQuery, score -> score >>> WordMetadata.POSITIONS_SHIFT);
+    }
+
     /** Calculate a factor that rewards the best average mutual Jaccard index
      * between the terms in the query.  This is high when the several terms are frequently
      * found in the same sentences.
@@ -0,0 +1,14 @@
+package nu.marginalia.index.query;
+
+/** Decides whether a block of documents may contain results that are competitive
+ * with the results found so far.  This is used by the block-max execution mode of
+ * {@link IndexQuery}, where the sources skip the blocks the filter rejects.
+ * <p></p>
+ * The filter must never reject a block that contains a document that would
+ * make it into the results, but may accept blocks that don't.
+ */
+public interface BlockMaxFilter {
+    /** Returns true if any document with an id in the range [firstId, lastId]
+     * may be competitive with the results found so far */
+    boolean test(long firstId, long lastId);
+}
@@ -16,4 +16,9 @@ public interface EntrySource {
 
     /** Returns the name of the index, for debugging purposes. */
     String indexName();
+
+    /** Let the source skip blocks of entries that are rejected by the filter.
+     * Sources that are not able to skip blocks may ignore this.
+     */
+    default void setBlockMaxFilter(BlockMaxFilter filter) {}
 }
@@ -5,6 +5,7 @@ import nu.marginalia.array.page.LongQueryBuffer;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.stream.Collectors;
 
 /** A query to the index.  The query is composed of a list of sources
@@ -37,9 +38,33 @@ public class IndexQuery {
         inclusionFilter.add(filter);
     }
 
+    /** Enables the block-max execution mode, where the sources skip
+     * blocks of documents that the filter deems non-competitive.
+     *
+     * @param filter The filter that decides which blocks to read
+     */
+    public void setBlockMaxFilter(BlockMaxFilter filter) {
+        for (var source : sources) {
+            source.setBlockMaxFilter(filter);
+        }
+    }
+
+    /** Sets the planner's estimates for the query, for diagnostic purposes.
+     *
+     * @param estimatedCost  The estimated cost of the query
+     * @param estimatedYield The estimated number of documents yielded by the query
+     */
+    public void setEstimates(double estimatedCost, double estimatedYield) {
+        this.estimatedCost = estimatedCost;
+        this.estimatedYield = estimatedYield;
+    }
+
     private int si = 0;
     private int dataCost;
 
+    private double estimatedCost = -1;
+    private double estimatedYield = -1;
+
     /** Returns true if there are more results to read from the sources.
      *  May return true even if there are no more results, but will eventually
      *  return false.
@@ -102,6 +127,10 @@ public class IndexQuery {
         sb.append(" -> ");
         sb.append(inclusionFilter.stream().map(QueryFilterStepIf::describe).collect(Collectors.joining(", ", "[", "]")));
 
+        if (estimatedCost >= 0) {
+            sb.append(String.format(Locale.ROOT, " {est. cost %.0f, est. yield %.1f}", estimatedCost, estimatedYield));
+        }
+
         return sb.toString();
     }
 }
@@ -0,0 +1,93 @@
+package nu.marginalia.index;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.btree.BTreeReader;
+import nu.marginalia.btree.BTreeWriter;
+import nu.marginalia.btree.model.BTreeBlockSize;
+import nu.marginalia.btree.model.BTreeContext;
+import nu.marginalia.btree.model.BTreeIndexLayout;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Compares the sorted and fixed fanout index page layouts of the b-tree, for
+ * single key lookups like the term lookups in the reverse index, and for
+ * batched lookups of sorted keys like the forward index document lookups.
+ */
+public class BTreeLookupBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class BTreeState {
+        @Param({"SORTED", "FIXED_FANOUT"})
+        BTreeIndexLayout layout;
+
+        /** Roughly the number of terms in the words b-tree of an index partition */
+        int numEntries = 50_000_000;
+
+        BTreeReader reader;
+
+        long[] randomKeys;
+        long[] sortedKeys;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            var ctx = new BTreeContext(5, 2, BTreeBlockSize.BS_2048, layout);
+
+            Random r = new Random(1);
+
+            long[] keys = new long[numEntries];
+            for (int i = 0; i < numEntries; i++) {
+                keys[i] = r.nextLong();
+            }
+            Arrays.sort(keys);
+
+            LongArray array = LongArrayFactory.onHeapShared(ctx.calculateSize(numEntries));
+            new BTreeWriter(array, ctx).write(0, numEntries, slice -> {
+                for (int i = 0; i < numEntries; i++) {
+                    slice.set(2L * i, keys[i]);
+                    slice.set(2L * i + 1, i);
+                }
+            });
+
+            reader = new BTreeReader(array, ctx, 0);
+
+            randomKeys = new long[4096];
+            for (int i = 0; i < randomKeys.length; i++) {
+                randomKeys[i] = keys[r.nextInt(numEntries)];
+            }
+
+            sortedKeys = Arrays.copyOf(randomKeys, randomKeys.length);
+            Arrays.sort(sortedKeys);
+        }
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public long findEntry(BTreeState state) {
+        long sum = 0;
+        for (long key : state.randomKeys) {
+            sum += state.reader.findEntry(key);
+        }
+        return sum;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public long[] findEntries(BTreeState state) {
+        return state.reader.findEntries(state.sortedKeys);
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public long[] queryData(BTreeState state) {
+        return state.reader.queryData(state.sortedKeys, 1);
+    }
+}
@@ -0,0 +1,126 @@
+package nu.marginalia.index;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.btree.BTreeWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Compares the b-tree and compressed posting list formats of the reverse index
+ * documents file, on a synthetic posting list where the ids are clustered by
+ * domain the way the real document ids are.
+ */
+public class PostingListBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class PostingState {
+        /** The number of documents in the posting list */
+        @Param({"10000", "1000000"})
+        int numDocs;
+
+        LongArray btreeData;
+        LongArray compressedData;
+
+        long[] ids;
+        long[] queries;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Random r = new Random(1);
+
+            ids = new long[numDocs];
+
+            long id = 0;
+            for (int i = 0; i < numDocs; i++) {
+                // Mostly small gaps within a domain, with the occasional jump to the next domain
+                id += r.nextInt(10) == 0 ? (1L << 26) + r.nextInt(1, 1000) : r.nextInt(1, 64);
+                ids[i] = id;
+            }
+
+            btreeData = LongArrayFactory.onHeapShared(ReverseIndexParameters.docsBTreeContext.calculateSize(numDocs));
+            new BTreeWriter(btreeData, ReverseIndexParameters.docsBTreeContext)
+                    .write(0, numDocs, slice -> {
+                        for (int i = 0; i < numDocs; i++) {
+                            slice.set(2L * i, ids[i]);
+                            slice.set(2L * i + 1, ids[i] & 0xFFFF);
+                        }
+                    });
+
+            compressedData = LongArrayFactory.onHeapShared(CompressedPostingList.sizeUpperBound(numDocs));
+            var writer = new CompressedPostingList.Writer(compressedData, 0, numDocs);
+            for (long docId : ids) {
+                writer.add(docId, docId & 0xFFFF);
+            }
+            writer.finish();
+
+            // Half of the queries hit the posting list
+            queries = new long[4096];
+            for (int i = 0; i < queries.length; i++) {
+                long docId = ids[r.nextInt(numDocs)];
+                queries[i] = r.nextBoolean() ? docId : docId + 1;
+            }
+            Arrays.sort(queries);
+        }
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public long scanBTree(PostingState state) {
+        return scan(new BTreePostingList(state.btreeData, 0));
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public long scanCompressed(PostingState state) {
+        return scan(new CompressedPostingList(state.compressedData, 0));
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int retainBTree(PostingState state) {
+        return retain(new BTreePostingList(state.btreeData, 0), state.queries);
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int retainCompressed(PostingState state) {
+        return retain(new CompressedPostingList(state.compressedData, 0), state.queries);
+    }
+
+    private static long scan(PostingList postings) {
+        var source = postings.createEntrySource("bench", 0);
+        var buffer = new LongQueryBuffer(512);
+
+        long sum = 0;
+        while (source.hasMore()) {
+            buffer.reset();
+            source.read(buffer);
+
+            for (int i = 0; i < buffer.end; i++) {
+                sum += buffer.data.get(i);
+            }
+        }
+
+        return sum;
+    }
+
+    private static int retain(PostingList postings, long[] queries) {
+        var buffer = new LongQueryBuffer(queries, queries.length);
+
+        postings.retainEntries(buffer);
+        buffer.finalizeFiltering();
+
+        return buffer.end;
+    }
+}
@@ -0,0 +1,140 @@
+package nu.marginalia.index;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import nu.marginalia.api.searchquery.model.results.SearchResultItem;
+import nu.marginalia.model.id.UrlIdCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** This benchmark simulates the result ranker threads in the index service
+ * offering batches of results to the result queue, comparing the striped
+ * bounded heap with the previous sort-on-every-batch implementation.
+ */
+public class ResultPriorityQueueBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class QueueState {
+        @Param({"8", "16", "32"})
+        int threads;
+
+        int limit = 512;
+        int batchesPerThread = 64;
+        int batchSize = 512;
+
+        List<List<SearchResultItem>> batches;
+        ExecutorService executor;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            executor = Executors.newFixedThreadPool(threads);
+
+            Random r = new Random(1);
+            batches = new ArrayList<>();
+
+            for (int i = 0; i < threads * batchesPerThread; i++) {
+                List<SearchResultItem> batch = new ArrayList<>(batchSize);
+                for (int j = 0; j < batchSize; j++) {
+                    long id = UrlIdCodec.encodeId(r.nextInt(0, 100_000), r.nextInt(0, 1000));
+                    batch.add(new SearchResultItem(id, 0, 0, List.of(), 0, false, r.nextDouble()));
+                }
+                batches.add(batch);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            executor.shutdown();
+        }
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int stripedHeap(QueueState state) throws Exception {
+        var queue = new ResultPriorityQueue(state.limit);
+
+        runBatches(state, batch -> {
+            // Emulate the ranker skipping items that can't make it into the queue
+            List<SearchResultItem> accepted = new ArrayList<>(batch.size());
+            for (var item : batch) {
+                if (item.getScore() <= queue.getScoreThreshold()) {
+                    accepted.add(item);
+                }
+            }
+            queue.addAll(accepted);
+        });
+
+        return queue.size();
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int sortingList(QueueState state) throws Exception {
+        var queue = new SortingResultQueue(state.limit);
+
+        runBatches(state, queue::addAll);
+
+        return queue.size();
+    }
+
+    private void runBatches(QueueState state, BatchConsumer consumer) throws Exception {
+        List<Future<?>> tasks = new ArrayList<>(state.threads);
+
+        for (int t = 0; t < state.threads; t++) {
+            final int start = t * state.batchesPerThread;
+            tasks.add(state.executor.submit(() -> {
+                for (int i = start; i < start + state.batchesPerThread; i++) {
+                    consumer.accept(state.batches.get(i));
+                }
+            }));
+        }
+
+        for (var task : tasks) {
+            task.get();
+        }
+    }
+
+    interface BatchConsumer {
+        void accept(List<SearchResultItem> batch);
+    }
+
+    /** The previous ResultPriorityQueue implementation, kept as a baseline */
+    static class SortingResultQueue {
+        private final int limit;
+        private final ArrayList<SearchResultItem> backingList = new ArrayList<>();
+        private final LongOpenHashSet idsInSet = new LongOpenHashSet();
+
+        SortingResultQueue(int limit) {
+            this.limit = limit;
+        }
+
+        public synchronized void addAll(List<SearchResultItem> items) {
+            boolean itemsAdded = false;
+            for (var item: items) {
+                if (idsInSet.add(item.getDocumentId())) {
+                    backingList.add(item);
+                    itemsAdded = true;
+                }
+            }
+            if (!itemsAdded) {
+                return;
+            }
+
+            backingList.sort(Comparator.naturalOrder());
+            if (backingList.size() > limit) {
+                backingList.subList(limit, backingList.size()).clear();
+            }
+        }
+
+        public synchronized int size() {
+            return backingList.size();
+        }
+    }
+}
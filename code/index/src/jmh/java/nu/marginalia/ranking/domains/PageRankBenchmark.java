@@ -0,0 +1,135 @@
+package nu.marginalia.ranking.domains;
+
+import nu.marginalia.ranking.domains.csr.CsrGraph;
+import nu.marginalia.ranking.domains.csr.CsrPageRank;
+import org.jgrapht.Graph;
+import org.jgrapht.alg.scoring.PageRank;
+import org.jgrapht.graph.DefaultDirectedGraph;
+import org.jgrapht.graph.DefaultEdge;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/** Compares building the domain graph and ranking it with the CSR PageRank,
+ * and with the JGraphT graph and PageRank implementation it replaced, on a
+ * synthetic link graph with 10M edges, where the link targets are skewed
+ * towards a small number of popular domains.
+ */
+public class PageRankBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class GraphState {
+        int numDomains = 1_000_000;
+        int numLinks = 10_000_000;
+        int resultCount = 100_000;
+
+        int[] domainIds;
+        int[] sources;
+        int[] dests;
+
+        CsrGraph csrGraph;
+        Graph<Integer, DefaultEdge> jgraphtGraph;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random r = new Random(1);
+
+            domainIds = new int[numDomains];
+            for (int i = 0; i < numDomains; i++) {
+                domainIds[i] = 2 * i + r.nextInt(2);
+            }
+
+            sources = new int[numLinks];
+            dests = new int[numLinks];
+            for (int i = 0; i < numLinks; i++) {
+                sources[i] = domainIds[r.nextInt(numDomains)];
+                // Roughly a power law distribution of incoming links
+                dests[i] = domainIds[(int) (numDomains * Math.pow(r.nextDouble(), 3))];
+            }
+
+            csrGraph = buildCsrGraph(this);
+            jgraphtGraph = buildJGraphTGraph(this);
+        }
+    }
+
+    @Fork(value = 1, jvmArgsAppend = { "-Xmx16G" })
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public CsrGraph csrBuildGraph(GraphState state) {
+        return buildCsrGraph(state);
+    }
+
+    @Fork(value = 1, jvmArgsAppend = { "-Xmx16G" })
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public Graph<Integer, DefaultEdge> jgraphtBuildGraph(GraphState state) {
+        return buildJGraphTGraph(state);
+    }
+
+    @Fork(value = 1, jvmArgsAppend = { "-Xmx16G" })
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public int[] csrPageRank(GraphState state) {
+        return new CsrPageRank(state.csrGraph, List.of()).topK(state.resultCount);
+    }
+
+    @Fork(value = 1, jvmArgsAppend = { "-Xmx16G" })
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public int[] csrPersonalizedPageRank(GraphState state) {
+        var influenceSet = List.of(state.domainIds[0], state.domainIds[1000], state.domainIds[500_000]);
+        return new CsrPageRank(state.csrGraph, influenceSet).topK(state.resultCount);
+    }
+
+    @Fork(value = 1, jvmArgsAppend = { "-Xmx16G" })
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public List<Integer> jgraphtPageRank(GraphState state) {
+        // As previously done by PageRankDomainRanker
+        return new PageRank<>(state.jgraphtGraph).getScores().entrySet()
+                .stream()
+                .sorted(Comparator.comparing((Map.Entry<Integer, Double> e) -> -e.getValue()))
+                .limit(state.resultCount)
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
+    private static CsrGraph buildCsrGraph(GraphState state) {
+        var builder = CsrGraph.directedBuilder();
+
+        for (int id : state.domainIds) {
+            builder.addVertex(id);
+        }
+        for (int i = 0; i < state.numLinks; i++) {
+            builder.addEdge(state.sources[i], state.dests[i]);
+        }
+
+        return builder.build();
+    }
+
+    private static Graph<Integer, DefaultEdge> buildJGraphTGraph(GraphState state) {
+        Graph<Integer, DefaultEdge> graph = new DefaultDirectedGraph<>(DefaultEdge.class);
+
+        for (int id : state.domainIds) {
+            graph.addVertex(id);
+        }
+        for (int i = 0; i < state.numLinks; i++) {
+            graph.addEdge(state.sources[i], state.dests[i]);
+        }
+
+        return graph;
+    }
+}
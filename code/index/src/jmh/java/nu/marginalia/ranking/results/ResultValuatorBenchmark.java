@@ -0,0 +1,126 @@
+package nu.marginalia.ranking.results;
+
+import nu.marginalia.api.searchquery.model.compiled.CompiledQuery;
+import nu.marginalia.api.searchquery.model.compiled.CompiledQueryLong;
+import nu.marginalia.api.searchquery.model.compiled.CompiledQueryParser;
+import nu.marginalia.api.searchquery.model.compiled.CqDataInt;
+import nu.marginalia.api.searchquery.model.compiled.CqDataLong;
+import nu.marginalia.api.searchquery.model.results.ResultRankingContext;
+import nu.marginalia.api.searchquery.model.results.ResultRankingParameters;
+import nu.marginalia.model.idx.DocumentFlags;
+import nu.marginalia.model.idx.DocumentMetadata;
+import nu.marginalia.model.idx.WordFlags;
+import nu.marginalia.model.idx.WordMetadata;
+import nu.marginalia.ranking.results.factors.TermCoherenceFactor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.Random;
+
+/** This benchmark measures the throughput of ResultValuator.calculateSearchResultValue
+ * for the allocating version that is given a new CompiledQueryLong for each document,
+ * and the version that reuses a ScoringArena.
+ * <p></p>
+ * Run with the gc profiler (-prof gc) to see the allocation rate of each version.
+ */
+public class ResultValuatorBenchmark {
+
+    @State(Scope.Thread)
+    public static class ValuatorState {
+        @Param({"1", "3", "6"})
+        int numTerms;
+
+        final int numDocs = 4096;
+
+        ResultValuator valuator;
+        ResultRankingContext rankingContext;
+        CompiledQuery<String> compiledQuery;
+        ScoringArena arena;
+
+        long[][] wordMetas;
+        long[] docMetas;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random r = new Random(1);
+
+            StringBuilder query = new StringBuilder();
+            for (int i = 0; i < numTerms; i++) {
+                if (i > 0) query.append(' ');
+                query.append("term").append(i);
+            }
+
+            compiledQuery = CompiledQueryParser.parse(query.toString());
+
+            int[] counts = new int[compiledQuery.size()];
+            BitSet regularMask = new BitSet();
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = r.nextInt(1, 100_000);
+                regularMask.set(i);
+            }
+
+            rankingContext = new ResultRankingContext(1_000_000,
+                    ResultRankingParameters.sensibleDefaults(),
+                    new BitSet(),
+                    regularMask,
+                    new CqDataInt(counts),
+                    new CqDataInt(counts));
+
+            valuator = new ResultValuator(new TermCoherenceFactor());
+            arena = valuator.createArena(compiledQuery, 5000, rankingContext);
+
+            wordMetas = new long[numDocs][compiledQuery.size()];
+            docMetas = new long[numDocs];
+
+            for (int doc = 0; doc < numDocs; doc++) {
+                for (int term = 0; term < compiledQuery.size(); term++) {
+                    var flags = r.nextBoolean() ? EnumSet.of(WordFlags.Title) : EnumSet.noneOf(WordFlags.class);
+                    wordMetas[doc][term] = new WordMetadata(r.nextLong() & 0xFF_FFFF_FFFF_FFFFL, flags).encode();
+                }
+                docMetas[doc] = new DocumentMetadata(r.nextInt(0, 8), r.nextInt(0, 256), r.nextInt(0, 16), EnumSet.noneOf(DocumentFlags.class)).encode();
+            }
+        }
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public double allocating(ValuatorState state) {
+        double sum = 0;
+
+        for (int doc = 0; doc < state.numDocs; doc++) {
+            var wordMetasQuery = new CompiledQueryLong(state.compiledQuery.root, new CqDataLong(state.wordMetas[doc].clone()));
+
+            sum += state.valuator.calculateSearchResultValue(wordMetasQuery,
+                    state.docMetas[doc],
+                    0,
+                    5000,
+                    state.rankingContext,
+                    null);
+        }
+
+        return sum;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public double arena(ValuatorState state) {
+        double sum = 0;
+
+        final ScoringArena arena = state.arena;
+
+        for (int doc = 0; doc < state.numDocs; doc++) {
+            System.arraycopy(state.wordMetas[doc], 0, arena.wordMetas, 0, arena.wordMetas.length);
+
+            sum += state.valuator.calculateSearchResultValue(arena,
+                    state.docMetas[doc],
+                    0);
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,96 @@
+package nu.marginalia.index;
+
+import nu.marginalia.api.searchquery.model.query.SearchQuery;
+import nu.marginalia.api.searchquery.model.query.SearchSpecification;
+import nu.marginalia.api.searchquery.model.results.ResultRankingParameters;
+import nu.marginalia.api.searchquery.model.results.SearchResultSet;
+import nu.marginalia.index.model.SearchParameters;
+import nu.marginalia.index.query.limit.QueryLimits;
+import nu.marginalia.index.query.limit.QueryStrategy;
+import nu.marginalia.index.query.limit.SpecificationLimit;
+import nu.marginalia.index.searchset.SmallSearchSet;
+import nu.marginalia.service.ServiceId;
+import nu.marginalia.service.module.ServiceConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexQueryResultCacheTest {
+    private final IndexQueryResultCache cache = new IndexQueryResultCache(
+            new ServiceConfiguration(ServiceId.Index, 0, "127.0.0.1", "127.0.0.1", 0, UUID.randomUUID())
+    );
+
+    @Test
+    void testPutGet() {
+        var key = cache.createKey(params(query(List.of("a", "b")), List.of(1, 2))).orElseThrow();
+        var results = new SearchResultSet();
+
+        assertTrue(cache.get(key).isEmpty());
+        cache.put(key, results);
+        assertSame(results, cache.get(key).orElseThrow());
+    }
+
+    @Test
+    void testNormalizedKeys() {
+        var key1 = cache.createKey(params(query(List.of("a", "b")), List.of(1, 2))).orElseThrow();
+        var key2 = cache.createKey(params(query(List.of("b", "a")), List.of(2, 1))).orElseThrow();
+        var key3 = cache.createKey(params(query(List.of("a", "c")), List.of(1, 2))).orElseThrow();
+        var key4 = cache.createKey(params(query(List.of("a", "b")), List.of(1, 3))).orElseThrow();
+
+        assertEquals(key1, key2);
+        assertNotEquals(key1, key3);
+        assertNotEquals(key1, key4);
+    }
+
+    @Test
+    void testInvalidation() {
+        var key = cache.createKey(params(query(List.of("a")), List.of(1))).orElseThrow();
+
+        cache.put(key, new SearchResultSet());
+        cache.invalidateAll();
+        assertTrue(cache.get(key).isEmpty());
+
+        // A query that started before the invalidation must not populate the cache
+        cache.put(key, new SearchResultSet());
+        assertTrue(cache.get(key).isEmpty());
+        assertTrue(cache.get(cache.createKey(params(query(List.of("a")), List.of(1))).orElseThrow()).isEmpty());
+    }
+
+    @Test
+    void testDebugQueriesNotCached() {
+        var rankingParams = ResultRankingParameters.sensibleDefaults();
+        rankingParams.exportDebugData = true;
+
+        var spec = spec(query(List.of("a")), rankingParams);
+
+        assertTrue(cache.createKey(new SearchParameters(spec, new SmallSearchSet(List.of(1)))).isEmpty());
+    }
+
+    private SearchParameters params(SearchQuery query, List<Integer> domains) {
+        return new SearchParameters(spec(query, ResultRankingParameters.sensibleDefaults()),
+                new SmallSearchSet(domains));
+    }
+
+    private SearchSpecification spec(SearchQuery query, ResultRankingParameters rankingParams) {
+        return SearchSpecification.builder()
+                .query(query)
+                .queryLimits(new QueryLimits(10, 10, Integer.MAX_VALUE, 4000))
+                .queryStrategy(QueryStrategy.SENTENCE)
+                .year(SpecificationLimit.none())
+                .quality(SpecificationLimit.none())
+                .size(SpecificationLimit.none())
+                .rank(SpecificationLimit.none())
+                .rankingParams(rankingParams)
+                .domains(new ArrayList<>())
+                .searchSetIdentifier("NONE")
+                .build();
+    }
+
+    private SearchQuery query(List<String> excludes) {
+        return new SearchQuery("hello", List.of("hello"), excludes, List.of(), List.of(), List.of());
+    }
+}
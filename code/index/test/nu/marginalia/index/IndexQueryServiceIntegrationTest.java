@@ -13,10 +13,12 @@ import nu.marginalia.index.construction.DocIdRewriter;
 import nu.marginalia.index.construction.ReverseIndexConstructor;
 import nu.marginalia.index.forward.ForwardIndexConverter;
 import nu.marginalia.index.forward.ForwardIndexFileNames;
+import nu.marginalia.index.journal.IndexJournalFileNames;
 import nu.marginalia.index.journal.model.IndexJournalEntryData;
 import nu.marginalia.index.journal.model.IndexJournalEntryHeader;
 import nu.marginalia.index.journal.reader.IndexJournalReader;
 import nu.marginalia.index.journal.writer.IndexJournalWriter;
+import nu.marginalia.index.journal.writer.IndexJournalWriterPagingImpl;
 import nu.marginalia.index.query.limit.QueryLimits;
 import nu.marginalia.index.query.limit.QueryStrategy;
 import nu.marginalia.index.query.limit.SpecificationLimit;
@@ -52,6 +54,7 @@ import java.util.function.Function;
 
 import static nu.marginalia.linkdb.LinkdbFileNames.DOCDB_FILE_NAME;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.parallel.ExecutionMode.SAME_THREAD;
 
 @Execution(SAME_THREAD)
@@ -336,6 +339,42 @@ public class IndexQueryServiceIntegrationTest {
                 .expectDocumentsInOrder(d(1,1));
     }
 
+    @Test
+    public void testDeltaSegments() throws Exception {
+        var meta = new MockDocumentMeta(0, new DocumentMetadata(2, 0, 14, EnumSet.noneOf(DocumentFlags.class)));
+
+        new MockData()
+                .add(d(1, 1), meta, w("hello", WordFlags.Title), w("world", WordFlags.Title))
+                .add(d(2, 1), meta, w("hello", WordFlags.Title), w("world", WordFlags.Title))
+                .load();
+
+        // The delta replaces the documents of domain 2, and adds domain 3
+        new MockData()
+                .add(d(2, 2), meta, w("hello", WordFlags.Title), w("world", WordFlags.Title))
+                .add(d(3, 1), meta, w("hello", WordFlags.Title), w("world", WordFlags.Title))
+                .loadDelta();
+
+        var query = basicQuery(builder -> builder.query(justInclude("hello", "world")));
+
+        assertEquals(1, countDeltas());
+        assertEquals(3, statefulIndex.get().totalDocCount());
+        executeSearch(query)
+                .expectDocumentInAnyOrder(d(1, 1), d(2, 2), d(3, 1));
+
+        assertTrue(statefulIndex.compactDeltas());
+
+        assertEquals(0, countDeltas());
+        assertEquals(3, statefulIndex.get().totalDocCount());
+        executeSearch(query)
+                .expectDocumentInAnyOrder(d(1, 1), d(2, 2), d(3, 1));
+    }
+
+    private long countDeltas() throws IOException {
+        try (var files = Files.list(IndexLocations.getIndexDeltasPath(fileStorageService))) {
+            return files.count();
+        }
+    }
+
     static class ResultWrapper {
         private final List<MockDataDocument> actual;
 
@@ -471,17 +510,17 @@ public class IndexQueryServiceIntegrationTest {
         return new MockDataDocument(domainId, ordinal);
     }
 
-    private void constructIndex() throws SQLException, IOException {
-        createForwardIndex();
-        createFullReverseIndex();
-        createPrioReverseIndex();
+    private void constructIndex(Path outputDir) throws SQLException, IOException {
+        createForwardIndex(outputDir);
+        createFullReverseIndex(outputDir);
+        createPrioReverseIndex(outputDir);
     }
 
 
-    private void createFullReverseIndex() throws SQLException, IOException {
+    private void createFullReverseIndex(Path outputDir) throws SQLException, IOException {
 
-        Path outputFileDocs = ReverseIndexFullFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ReverseIndexFullFileNames.FileIdentifier.DOCS, ReverseIndexFullFileNames.FileVersion.NEXT);
-        Path outputFileWords = ReverseIndexFullFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ReverseIndexFullFileNames.FileIdentifier.WORDS, ReverseIndexFullFileNames.FileVersion.NEXT);
+        Path outputFileDocs = ReverseIndexFullFileNames.resolve(outputDir, ReverseIndexFullFileNames.FileIdentifier.DOCS, ReverseIndexFullFileNames.FileVersion.NEXT);
+        Path outputFileWords = ReverseIndexFullFileNames.resolve(outputDir, ReverseIndexFullFileNames.FileIdentifier.WORDS, ReverseIndexFullFileNames.FileVersion.NEXT);
         Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
         Path tmpDir = workDir.resolve("tmp");
 
@@ -491,10 +530,10 @@ public class IndexQueryServiceIntegrationTest {
                 .createReverseIndex(new FakeProcessHeartbeat(), "name", workDir);
     }
 
-    private void createPrioReverseIndex() throws SQLException, IOException {
+    private void createPrioReverseIndex(Path outputDir) throws SQLException, IOException {
 
-        Path outputFileDocs = ReverseIndexPrioFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ReverseIndexPrioFileNames.FileIdentifier.DOCS, ReverseIndexPrioFileNames.FileVersion.NEXT);
-        Path outputFileWords = ReverseIndexPrioFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ReverseIndexPrioFileNames.FileIdentifier.WORDS, ReverseIndexPrioFileNames.FileVersion.NEXT);
+        Path outputFileDocs = ReverseIndexPrioFileNames.resolve(outputDir, ReverseIndexPrioFileNames.FileIdentifier.DOCS, ReverseIndexPrioFileNames.FileVersion.NEXT);
+        Path outputFileWords = ReverseIndexPrioFileNames.resolve(outputDir, ReverseIndexPrioFileNames.FileIdentifier.WORDS, ReverseIndexPrioFileNames.FileVersion.NEXT);
         Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
         Path tmpDir = workDir.resolve("tmp");
 
@@ -504,11 +543,11 @@ public class IndexQueryServiceIntegrationTest {
                 .createReverseIndex(new FakeProcessHeartbeat(), "name", workDir);
     }
 
-    private void createForwardIndex() throws SQLException, IOException {
+    private void createForwardIndex(Path outputDir) throws SQLException, IOException {
 
         Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
-        Path outputFileDocsId = ForwardIndexFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ForwardIndexFileNames.FileIdentifier.DOC_ID, ForwardIndexFileNames.FileVersion.NEXT);
-        Path outputFileDocsData = ForwardIndexFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ForwardIndexFileNames.FileIdentifier.DOC_DATA, ForwardIndexFileNames.FileVersion.NEXT);
+        Path outputFileDocsId = ForwardIndexFileNames.resolve(outputDir, ForwardIndexFileNames.FileIdentifier.DOC_ID, ForwardIndexFileNames.FileVersion.NEXT);
+        Path outputFileDocsData = ForwardIndexFileNames.resolve(outputDir, ForwardIndexFileNames.FileIdentifier.DOC_DATA, ForwardIndexFileNames.FileVersion.NEXT);
 
         ForwardIndexConverter converter = new ForwardIndexConverter(processHeartbeat,
                 IndexJournalReader.paging(workDir),
@@ -539,6 +578,21 @@ public class IndexQueryServiceIntegrationTest {
         }
 
         void load() throws IOException, SQLException, URISyntaxException {
+            load(indexJournalWriter, IndexLocations.getCurrentIndex(fileStorageService));
+        }
+
+        /** Load the data as a delta segment on top of the current index */
+        void loadDelta() throws IOException, SQLException, URISyntaxException {
+            // Like the loader, start over with a fresh journal containing only the new data
+            Path constructionArea = IndexLocations.getIndexConstructionArea(fileStorageService);
+            for (Path journal : IndexJournalFileNames.findJournalFiles(constructionArea)) {
+                Files.delete(journal);
+            }
+
+            load(new IndexJournalWriterPagingImpl(constructionArea), IndexLocations.getIndexDeltaWriteArea(fileStorageService));
+        }
+
+        private void load(IndexJournalWriter journalWriter, Path outputDir) throws IOException, SQLException, URISyntaxException {
             allData.forEach((doc, words) -> {
 
                 var meta = metaByDoc.get(doc);
@@ -555,7 +609,7 @@ public class IndexQueryServiceIntegrationTest {
                     dataArray[2*i+1] = words.get(i).termMetadata;
                 }
                 var entry = new IndexJournalEntryData(dataArray);
-                indexJournalWriter.put(header, entry);
+                journalWriter.put(header, entry);
             });
 
             var linkdbWriter = new DocumentDbWriter(
@@ -577,8 +631,8 @@ public class IndexQueryServiceIntegrationTest {
             }
             linkdbWriter.close();
 
-            indexJournalWriter.close();
-            constructIndex();
+            journalWriter.close();
+            constructIndex(outputDir);
             documentDbReader.reconnect();
             statefulIndex.switchIndex();
         }
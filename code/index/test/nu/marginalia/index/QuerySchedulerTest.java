@@ -0,0 +1,71 @@
+package nu.marginalia.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuerySchedulerTest {
+
+    @Test
+    void testRoundRobin() throws InterruptedException {
+        var scheduler = new QueryScheduler("test", 1);
+
+        var laneA = scheduler.newLane();
+        var laneB = scheduler.newLane();
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(6);
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        // Occupy the worker while the tasks are submitted
+        laneA.submit(() -> {
+            started.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        for (int i = 1; i <= 3; i++) {
+            String id = Integer.toString(i);
+            laneA.submit(() -> { order.add("A" + id); done.countDown(); });
+        }
+        for (int i = 1; i <= 3; i++) {
+            String id = Integer.toString(i);
+            laneB.submit(() -> { order.add("B" + id); done.countDown(); });
+        }
+
+        assertEquals(3, laneA.pendingTasks());
+        assertEquals(3, laneB.pendingTasks());
+
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+
+        // The second query is not made to wait for all the tasks of the first
+        assertEquals(List.of("A1", "B1", "A2", "B2", "A3", "B3"), order);
+    }
+
+    @Test
+    void testFailingTaskDoesNotKillWorker() throws InterruptedException {
+        var scheduler = new QueryScheduler("test", 1);
+        var lane = scheduler.newLane();
+
+        CountDownLatch done = new CountDownLatch(1);
+
+        lane.submit(() -> { throw new IllegalStateException("test"); });
+        lane.submit(done::countDown);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,108 @@
+package nu.marginalia.index;
+
+import nu.marginalia.api.searchquery.model.results.SearchResultItem;
+import nu.marginalia.model.id.UrlIdCodec;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResultPriorityQueueTest {
+
+    @Test
+    public void testKeepsBestResults() {
+        var queue = new ResultPriorityQueue(10, 4);
+
+        List<SearchResultItem> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            items.add(forId(1, i, 100 - i));
+        }
+        queue.addAll(items);
+
+        assertEquals(10, queue.size());
+
+        List<Double> scores = new ArrayList<>();
+        for (var item : queue) {
+            scores.add(item.getScore());
+        }
+
+        assertEquals(List.of(1., 2., 3., 4., 5., 6., 7., 8., 9., 10.), scores);
+    }
+
+    @Test
+    public void testDeduplicatesDocuments() {
+        var queue = new ResultPriorityQueue(10, 4);
+
+        assertTrue(queue.addAll(List.of(forId(1, 1, 5.))));
+        assertFalse(queue.addAll(List.of(forId(1, 1, 1.))));
+
+        assertEquals(1, queue.size());
+        assertEquals(5., queue.iterator().next().getScore());
+    }
+
+    @Test
+    public void testScoreThreshold() {
+        var queue = new ResultPriorityQueue(2, 1);
+
+        assertEquals(Double.MAX_VALUE, queue.getScoreThreshold());
+
+        queue.addAll(List.of(forId(1, 1, 5.), forId(1, 2, 3.)));
+        assertEquals(5., queue.getScoreThreshold());
+
+        queue.addAll(List.of(forId(1, 3, 4.)));
+        assertEquals(4., queue.getScoreThreshold());
+
+        assertFalse(queue.addAll(List.of(forId(1, 4, 6.))));
+    }
+
+    @Test
+    public void testDeduplicatesDocumentsBelowThreshold() {
+        var queue = new ResultPriorityQueue(2, 1);
+
+        queue.addAll(List.of(forId(1, 1, 5.), forId(1, 2, 3.)));
+
+        // Rejected by the threshold, but still counts as seen
+        assertFalse(queue.addAll(List.of(forId(1, 3, 6.))));
+        assertFalse(queue.addAll(List.of(forId(1, 3, 1.))));
+
+        List<Double> scores = new ArrayList<>();
+        for (var item : queue) {
+            scores.add(item.getScore());
+        }
+        assertEquals(List.of(3., 5.), scores);
+    }
+
+    @Test
+    public void testOfferOnlyCreatesAcceptedItems() {
+        var queue = new ResultPriorityQueue(2, 1);
+
+        long id1 = UrlIdCodec.encodeId(1, 1);
+        long id2 = UrlIdCodec.encodeId(1, 2);
+        long id3 = UrlIdCodec.encodeId(1, 3);
+        long id4 = UrlIdCodec.encodeId(1, 4);
+
+        assertTrue(queue.offer(id1, 5., () -> forId(1, 1, 5.)));
+        assertTrue(queue.offer(id2, 3., () -> forId(1, 2, 3.)));
+
+        // Worse than the worst item in the full queue, and a duplicate
+        assertFalse(queue.offer(id3, 6., () -> fail("Item should not be created")));
+        assertFalse(queue.offer(id1, 1., () -> fail("Item should not be created")));
+
+        // id3 has been seen, even though it was rejected
+        assertFalse(queue.offer(id3, 4., () -> fail("Item should not be created")));
+        assertTrue(queue.offer(id4, 4., () -> forId(1, 4, 4.)));
+
+        List<Double> scores = new ArrayList<>();
+        for (var item : queue) {
+            scores.add(item.getScore());
+        }
+        assertEquals(List.of(3., 4.), scores);
+    }
+
+    SearchResultItem forId(int domain, int ordinal, double score) {
+        return new SearchResultItem(UrlIdCodec.encodeId(domain, ordinal), 0, 0, List.of(), 4, false, score);
+    }
+
+}
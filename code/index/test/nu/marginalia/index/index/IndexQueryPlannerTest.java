@@ -0,0 +1,128 @@
+package nu.marginalia.index.index;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static nu.marginalia.index.index.IndexQueryPlanner.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexQueryPlannerTest {
+    private static final int totalDocs = 1_000_000;
+
+    private final Map<Long, Integer> fullCounts = Map.of(
+            1L, 500_000,
+            2L, 1_000,
+            3L, 50_000,
+            4L, 0,
+            5L, 200
+    );
+    private final Map<Long, Integer> prioCounts = Map.of(
+            1L, 10_000,
+            2L, 100,
+            3L, 0,
+            5L, 20
+    );
+
+    private final IndexQueryPlanner planner = new IndexQueryPlanner(
+            term -> fullCounts.getOrDefault(term, 0),
+            term -> prioCounts.getOrDefault(term, 0),
+            totalDocs);
+
+    @Test
+    void testDrivesFromRarestTerm() {
+        var plans = planner.plan(List.of(path(1, 2, 3)), LongList.of(), LongList.of(), 1.);
+        var fullPlan = only(plans, IndexType.FULL);
+
+        assertEquals(2L, fullPlan.drivingTerm());
+        assertEquals(List.of(StepType.RETAIN, StepType.RETAIN, StepType.PARAMS),
+                fullPlan.steps().stream().map(PlannedStep::type).toList());
+
+        // The rarer of the remaining terms is the more selective filter, and should be applied first
+        assertEquals(3L, fullPlan.steps().get(0).termId());
+        assertEquals(1L, fullPlan.steps().get(1).termId());
+    }
+
+    @Test
+    void testSkipsPathsWithMissingTerms() {
+        var plans = planner.plan(List.of(path(1, 4), path(2, 5)), LongList.of(), LongList.of(), 1.);
+
+        assertFalse(plans.isEmpty());
+        for (var plan : plans) {
+            assertNotEquals(4L, plan.drivingTerm());
+            assertTrue(plan.estimatedYield() > 0);
+        }
+    }
+
+    @Test
+    void testSkipsPriorityQueryWithMissingTerm() {
+        // Term 3 is absent from the priority index, so only the full index is queried
+        var plans = planner.plan(List.of(path(2, 3)), LongList.of(), LongList.of(), 1.);
+
+        assertEquals(1, plans.size());
+        assertEquals(IndexType.FULL, plans.getFirst().index());
+    }
+
+    @Test
+    void testQueriesPriorityIndexWhenCheap() {
+        var plans = planner.plan(List.of(path(2, 5)), LongList.of(), LongList.of(), 1.);
+
+        assertEquals(2, plans.size());
+        only(plans, IndexType.FULL);
+        only(plans, IndexType.PRIORITY);
+
+        // The plans are sorted by cost, and the priority index is the cheaper one
+        assertEquals(IndexType.PRIORITY, plans.getFirst().index());
+    }
+
+    @Test
+    void testSelectiveParamsRunEarly() {
+        var unselective = only(planner.plan(List.of(path(5)), LongList.of(), LongList.of(2), 1.), IndexType.FULL);
+        assertEquals(List.of(StepType.REJECT, StepType.PARAMS),
+                unselective.steps().stream().map(PlannedStep::type).toList());
+
+        var selective = only(planner.plan(List.of(path(5)), LongList.of(), LongList.of(2), 0.01), IndexType.FULL);
+        assertEquals(List.of(StepType.PARAMS, StepType.REJECT),
+                selective.steps().stream().map(PlannedStep::type).toList());
+    }
+
+    @Test
+    void testSearchSetStep() {
+        // A search set containing every domain isn't filtered by
+        var anySet = only(planner.plan(List.of(path(5)), LongList.of(), LongList.of(2), 1., 1.), IndexType.FULL);
+        assertEquals(List.of(StepType.REJECT, StepType.PARAMS),
+                anySet.steps().stream().map(PlannedStep::type).toList());
+
+        // A selective search set is cheaper to apply than the parameter filter, and runs first
+        var smallSet = only(planner.plan(List.of(path(5)), LongList.of(), LongList.of(2), 0.5, 0.05), IndexType.FULL);
+        assertEquals(List.of(StepType.SEARCH_SET, StepType.PARAMS, StepType.REJECT),
+                smallSet.steps().stream().map(PlannedStep::type).toList());
+        assertTrue(smallSet.estimatedYield() < anySet.estimatedYield());
+    }
+
+    @Test
+    void testAdviceAndExcludes() {
+        var plans = planner.plan(List.of(path(2)), LongList.of(2, 3), LongList.of(5), 1.);
+        var prioPlan = only(plans, IndexType.PRIORITY);
+
+        // Advice terms that are already part of the path are not added again
+        assertEquals(List.of(StepType.ADVICE, StepType.REJECT, StepType.PARAMS),
+                prioPlan.steps().stream().map(PlannedStep::type).toList());
+        assertEquals(3L, prioPlan.steps().getFirst().termId());
+    }
+
+    private LongSet path(long... terms) {
+        return new LongOpenHashSet(new LongArrayList(terms));
+    }
+
+    private PlannedQuery only(List<PlannedQuery> plans, IndexType type) {
+        var matching = plans.stream().filter(p -> p.index() == type).toList();
+        assertEquals(1, matching.size());
+        return matching.getFirst();
+    }
+}
@@ -0,0 +1,229 @@
+package nu.marginalia.index.results;
+
+import nu.marginalia.api.searchquery.model.compiled.CompiledQuery;
+import nu.marginalia.api.searchquery.model.compiled.CompiledQueryLong;
+import nu.marginalia.api.searchquery.model.compiled.CompiledQueryParser;
+import nu.marginalia.api.searchquery.model.compiled.CqDataInt;
+import nu.marginalia.api.searchquery.model.compiled.CqDataLong;
+import nu.marginalia.api.searchquery.model.compiled.aggregate.CompiledQueryAggregates;
+import nu.marginalia.api.searchquery.model.results.ResultRankingContext;
+import nu.marginalia.api.searchquery.model.results.ResultRankingParameters;
+import nu.marginalia.api.searchquery.model.results.SearchResultItem;
+import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.index.ResultPriorityQueue;
+import nu.marginalia.index.ReverseIndexBlockMeta;
+import nu.marginalia.model.idx.DocumentMetadata;
+import nu.marginalia.model.idx.WordFlags;
+import nu.marginalia.model.idx.WordMetadata;
+import nu.marginalia.ranking.results.ResultValuator;
+import nu.marginalia.ranking.results.ScoringArena;
+import nu.marginalia.ranking.results.factors.TermCoherenceFactor;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexResultBlockMaxFilterTest {
+    static final int BLOCK_SIZE = 64;
+    static final int NUM_BLOCKS = 64;
+
+    static final long flagsFilterMask =
+            WordFlags.Title.asBit() | WordFlags.Subjects.asBit() | WordFlags.UrlDomain.asBit() | WordFlags.UrlPath.asBit() | WordFlags.ExternalLink.asBit();
+
+    final ResultValuator valuator = new ResultValuator(new TermCoherenceFactor());
+
+    @Test
+    void testSameResultsAsUnfilteredRanking() {
+        Random r = new Random(1);
+
+        int totalBlocksSkipped = 0;
+
+        for (String query : List.of("a", "a b", "a b c", "a | b", "a ( b | c ) d")) {
+            for (int trial = 0; trial < 20; trial++) {
+                var compiledQuery = CompiledQueryParser.parse(query);
+                var documents = new Documents(r, compiledQuery.size());
+                var context = rankingContext(r, compiledQuery.size());
+
+                var unfilteredHeap = new ResultPriorityQueue(10);
+                for (int block = 0; block < NUM_BLOCKS; block++) {
+                    documents.rankBlock(block, compiledQuery, context, unfilteredHeap);
+                }
+
+                var filteredHeap = new ResultPriorityQueue(10);
+                var filter = new IndexResultBlockMaxFilter(documents.blockMetas(), valuator, context, compiledQuery, filteredHeap);
+
+                for (int block = 0; block < NUM_BLOCKS; block++) {
+                    if (filter.test(documents.firstId(block), documents.lastId(block))) {
+                        documents.rankBlock(block, compiledQuery, context, filteredHeap);
+                    }
+                    else {
+                        totalBlocksSkipped++;
+                    }
+                }
+
+                assertEquals(results(unfilteredHeap), results(filteredHeap), "Results differ for '" + query + "'");
+            }
+        }
+
+        // The filter should actually reject blocks, or the test is meaningless
+        assertTrue(totalBlocksSkipped > 0);
+    }
+
+    @Test
+    void testRejectsOnlyUnqualifiedBlocksBeforeHeapIsFull() {
+        Random r = new Random(2);
+
+        var compiledQuery = CompiledQueryParser.parse("a b");
+        var documents = new Documents(r, compiledQuery.size());
+        var context = rankingContext(r, compiledQuery.size());
+
+        var heap = new ResultPriorityQueue(BLOCK_SIZE * NUM_BLOCKS);
+        var filter = new IndexResultBlockMaxFilter(documents.blockMetas(), valuator, context, compiledQuery, heap);
+
+        for (int block = 0; block < NUM_BLOCKS; block++) {
+            // Only blocks where no document can pass the preliminary checks may be rejected
+            if (!filter.test(documents.firstId(block), documents.lastId(block))) {
+                var heapForBlock = new ResultPriorityQueue(BLOCK_SIZE);
+                documents.rankBlock(block, compiledQuery, context, heapForBlock);
+                assertEquals(0, heapForBlock.size());
+            }
+        }
+    }
+
+    private List<Long> results(ResultPriorityQueue heap) {
+        List<Long> ret = new ArrayList<>();
+        for (var item : heap) {
+            ret.add(item.combinedId);
+        }
+        return ret;
+    }
+
+    private ResultRankingContext rankingContext(Random r, int querySize) {
+        int docCount = 100_000;
+
+        int[] counts = new int[querySize];
+        BitSet regularMask = new BitSet();
+
+        for (int i = 0; i < querySize; i++) {
+            counts[i] = r.nextInt(1, docCount);
+            regularMask.set(i);
+        }
+
+        return new ResultRankingContext(docCount,
+                ResultRankingParameters.sensibleDefaults(),
+                new BitSet(),
+                regularMask,
+                new CqDataInt(counts),
+                new CqDataInt(counts));
+    }
+
+    /** Documents with random term metadata, in blocks of varying quality */
+    class Documents {
+        final int querySize;
+
+        /** termMetas[doc][term] */
+        final long[][] termMetas;
+        final long[] docMetas;
+        final boolean[] hasPrioTerm;
+
+        Documents(Random r, int querySize) {
+            this.querySize = querySize;
+
+            int numDocs = BLOCK_SIZE * NUM_BLOCKS;
+
+            termMetas = new long[numDocs][querySize];
+            docMetas = new long[numDocs];
+            hasPrioTerm = new boolean[numDocs];
+
+            for (int block = 0; block < NUM_BLOCKS; block++) {
+                // A few blocks are dense, with good documents that have many positions and flags
+                // for each term, the rest only have the occasional position of each term
+                boolean dense = r.nextInt(8) == 0;
+
+                for (int doc = block * BLOCK_SIZE; doc < (block + 1) * BLOCK_SIZE; doc++) {
+                    for (int term = 0; term < querySize; term++) {
+                        if (dense) {
+                            termMetas[doc][term] = r.nextLong() | r.nextLong();
+                        }
+                        else if (r.nextInt(16) == 0) {
+                            termMetas[doc][term] = 1L << (WordMetadata.POSITIONS_SHIFT + r.nextInt(WordMetadata.POSITIONS_COUNT));
+                        }
+                    }
+
+                    docMetas[doc] = dense ? goodDocMetadata(r) : r.nextLong();
+                    hasPrioTerm[doc] = r.nextInt(16) == 0;
+                }
+            }
+        }
+
+        private long goodDocMetadata(Random r) {
+            return new DocumentMetadata(3, 0, 0, r.nextInt(200, 256), 0, 0, 0, (byte) 0).encode();
+        }
+
+        long firstId(int block) {
+            return (long) block * BLOCK_SIZE;
+        }
+
+        long lastId(int block) {
+            return (long) (block + 1) * BLOCK_SIZE - 1;
+        }
+
+        ReverseIndexBlockMeta[] blockMetas() {
+            var ret = new ReverseIndexBlockMeta[querySize];
+
+            for (int term = 0; term < querySize; term++) {
+                var summaries = LongArrayFactory.onHeapConfined(NUM_BLOCKS);
+                var lastIds = LongArrayFactory.onHeapConfined(NUM_BLOCKS);
+
+                for (int block = 0; block < NUM_BLOCKS; block++) {
+                    long summary = 0;
+                    for (long doc = firstId(block); doc <= lastId(block); doc++) {
+                        summary |= termMetas[(int) doc][term];
+                    }
+
+                    summaries.set(block, summary);
+                    lastIds.set(block, lastId(block));
+                }
+
+                ret[term] = ReverseIndexBlockMeta.forBlocks(summaries, lastIds);
+            }
+
+            return ret;
+        }
+
+        /** Rank the documents in the block the same way as IndexResultValuationContext */
+        void rankBlock(int block, CompiledQuery<String> compiledQuery, ResultRankingContext context, ResultPriorityQueue heap) {
+            ScoringArena arena = valuator.createArena(compiledQuery, IndexResultValuationContext.DOCUMENT_LENGTH, context);
+            CompiledQueryLong wordMetasQuery = new CompiledQueryLong(compiledQuery.root, new CqDataLong(arena.wordMetas));
+
+            for (int doc = (int) firstId(block); doc <= lastId(block); doc++) {
+                System.arraycopy(termMetas[doc], 0, arena.wordMetas, 0, querySize);
+
+                boolean allSynthetic = CompiledQueryAggregates.booleanAggregate(wordMetasQuery, WordFlags.Synthetic::isPresent);
+                int flagsCount = CompiledQueryAggregates.intMaxMinAggregate(wordMetasQuery, wordMeta -> Long.bitCount(wordMeta & flagsFilterMask));
+                int positionsCount = CompiledQueryAggregates.intMaxMinAggregate(wordMetasQuery, wordMeta -> Long.bitCount(WordMetadata.decodePositions(wordMeta)));
+
+                if (flagsCount == 0 && !allSynthetic && positionsCount == 0)
+                    continue;
+
+                double score = valuator.calculateSearchResultValue(arena, docMetas[doc], 0);
+                if (hasPrioTerm[doc]) {
+                    score *= IndexResultValuationContext.PRIORITY_TERM_FACTOR;
+                }
+
+                final int id = doc;
+                final double finalScore = score;
+
+                heap.offer(id, score, () -> {
+                    var item = new SearchResultItem(id, docMetas[id], 0, hasPrioTerm[id]);
+                    item.setScore(finalScore);
+                    return item;
+                });
+            }
+        }
+    }
+}
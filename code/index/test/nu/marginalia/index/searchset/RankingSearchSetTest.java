@@ -1,13 +1,16 @@
 package nu.marginalia.index.searchset;
 
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.model.id.UrlIdCodec;
 import org.junit.jupiter.api.Test;
+import org.roaringbitmap.RoaringBitmap;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.*;
 
 class RankingSearchSetTest {
 
@@ -15,7 +18,7 @@ class RankingSearchSetTest {
     public void testSerDes() throws IOException {
         Path p = Files.createTempFile(getClass().getSimpleName(), ".dat");
 
-        var bm = new IntOpenHashSet();
+        var bm = new RoaringBitmap();
         bm.add(1);
         bm.add(5);
         bm.add(7);
@@ -25,13 +28,87 @@ class RankingSearchSetTest {
         set.write();
 
         RankingSearchSet set2 = new RankingSearchSet("ACADEMIA", p);
-        assertTrue(set2.contains(1, 0));
-        assertTrue(set2.contains(5, 0));
-        assertTrue(set2.contains(7, 0));
-        assertTrue(set2.contains(9, 0));
+        assertTrue(set2.contains(1));
+        assertTrue(set2.contains(5));
+        assertTrue(set2.contains(7));
+        assertTrue(set2.contains(9));
+        assertFalse(set2.contains(2));
+        assertFalse(set2.containsAll());
+        assertEquals(4, set2.size());
 
         Files.delete(p);
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testDoesNotModifyBitmap() {
+        var bm = new RoaringBitmap();
+        bm.add(0L, 10_000L);
+
+        RankingSearchSet set = new RankingSearchSet("ACADEMIA", Path.of("/dev/null"), bm);
+        bm.add(20_000);
+
+        assertFalse(bm.hasRunCompression());
+        assertFalse(set.contains(20_000));
+        assertEquals(10_000, set.size());
+    }
+
+    @Test
+    public void testLegacyFormat() throws IOException {
+        Path p = Files.createTempFile(getClass().getSimpleName(), ".dat");
+
+        try (var ds = new DataOutputStream(Files.newOutputStream(p))) {
+            ds.writeInt(3);
+            ds.writeInt(1_000_000);
+        }
+
+        RankingSearchSet set = new RankingSearchSet("ACADEMIA", p);
+        assertTrue(set.contains(3));
+        assertTrue(set.contains(1_000_000));
+        assertFalse(set.contains(4));
+        assertEquals(2, set.size());
+
+        Files.delete(p);
+    }
+
+    @Test
+    public void testEmptySetContainsAll() throws IOException {
+        Path p = Files.createTempFile(getClass().getSimpleName(), ".dat");
+        Files.delete(p);
+
+        RankingSearchSet set = new RankingSearchSet("ACADEMIA", p);
+        assertTrue(set.containsAll());
+        assertTrue(set.contains(5));
+    }
+
+    @Test
+    public void testRetain() {
+        RankingSearchSet set = new RankingSearchSet("ACADEMIA", Path.of("/dev/null"), RoaringBitmap.bitmapOf(2, 5));
+
+        long[] ids = new long[] {
+                id(0, 1, 1),
+                id(0, 2, 1),
+                id(0, 2, 2),
+                id(0, 3, 1),
+                id(0, 5, 1),
+                id(3, 1, 1),
+                id(3, 5, 7),
+                id(3, 6, 1),
+        };
+
+        var buffer = new LongQueryBuffer(ids, ids.length);
+        set.retain(buffer);
+
+        assertArrayEquals(new long[] {
+                id(0, 2, 1),
+                id(0, 2, 2),
+                id(0, 5, 1),
+                id(3, 5, 7),
+        }, buffer.copyData());
+    }
+
+    private long id(int rank, int domainId, int ordinal) {
+        return UrlIdCodec.addRank(rank / 64f, UrlIdCodec.encodeId(domainId, ordinal));
+    }
+
+}
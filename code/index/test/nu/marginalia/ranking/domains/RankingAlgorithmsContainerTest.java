@@ -8,8 +8,6 @@ import nu.marginalia.ranking.domains.data.InvertedLinkGraphSource;
 import nu.marginalia.ranking.domains.data.LinkGraphSource;
 import nu.marginalia.ranking.domains.data.SimilarityGraphSource;
 import nu.marginalia.test.TestMigrationLoader;
-import org.jgrapht.Graph;
-import org.jgrapht.graph.DefaultWeightedEdge;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.parallel.Execution;
 import org.mockito.Mockito;
@@ -140,12 +138,11 @@ public class RankingAlgorithmsContainerTest {
         Assertions.assertFalse(graph.containsEdge(3, 2));
     }
     @Test
-    @SuppressWarnings("unchecked")
     public void testSimilarityGraphSource() {
 
         addSimilarity(1, 3, 0.5);
 
-        var graph = (Graph<Integer, DefaultWeightedEdge>) new SimilarityGraphSource(dataSource).getGraph();
+        var graph = new SimilarityGraphSource(dataSource).getGraph();
 
         Assertions.assertTrue(graph.containsVertex(1));
         Assertions.assertTrue(graph.containsVertex(2));
@@ -153,7 +150,7 @@ public class RankingAlgorithmsContainerTest {
 
         Assertions.assertTrue(graph.containsEdge(3, 1));
         Assertions.assertTrue(graph.containsEdge(1, 3));
-        Assertions.assertEquals(graph.getEdgeWeight(graph.getEdge(1, 3)), 0.5, 0.0001);
+        Assertions.assertEquals(graph.edgeWeight(1, 3), 0.5, 0.0001);
 
         Assertions.assertFalse(graph.containsEdge(1, 2));
         Assertions.assertFalse(graph.containsEdge(2, 3));
@@ -2,11 +2,9 @@ package nu.marginalia.ranking.domains;
 
 import lombok.SneakyThrows;
 import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.ranking.domains.csr.CsrGraph;
 import nu.marginalia.ranking.domains.data.GraphSource;
 import org.apache.commons.lang3.StringUtils;
-import org.jgrapht.Graph;
-import org.jgrapht.graph.DefaultDirectedGraph;
-import org.jgrapht.graph.DefaultEdge;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -43,8 +41,8 @@ public class TestGraphSourceForInvertedLinkData implements GraphSource {
 
     @SneakyThrows
     @Override
-    public Graph<Integer, ?> getGraph() {
-        Graph<Integer, ?> graph = new DefaultDirectedGraph<>(DefaultEdge.class);
+    public CsrGraph getGraph() {
+        CsrGraph.Builder graph = CsrGraph.directedBuilder();
         idToName = new HashMap<>();
 
         try (var stream = Files
@@ -80,7 +78,7 @@ public class TestGraphSourceForInvertedLinkData implements GraphSource {
             }
         }
 
-        return graph;
+        return graph.build();
     }
 
 }
@@ -1,11 +1,9 @@
 package nu.marginalia.ranking.domains;
 
 import lombok.SneakyThrows;
+import nu.marginalia.ranking.domains.csr.CsrGraph;
 import nu.marginalia.ranking.domains.data.GraphSource;
 import org.apache.commons.lang3.StringUtils;
-import org.jgrapht.Graph;
-import org.jgrapht.graph.DefaultUndirectedWeightedGraph;
-import org.jgrapht.graph.DefaultWeightedEdge;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -32,8 +30,8 @@ public class TestGraphSourceForSimilarityData implements GraphSource {
 
     @SneakyThrows
     @Override
-    public Graph<Integer, ?> getGraph() {
-        Graph<Integer, ?> graph = new DefaultUndirectedWeightedGraph<>(DefaultWeightedEdge.class);
+    public CsrGraph getGraph() {
+        CsrGraph.Builder graph = CsrGraph.undirectedWeightedBuilder();
         idToName = new HashMap<>();
 
         try (var stream = Files
@@ -63,13 +61,12 @@ public class TestGraphSourceForSimilarityData implements GraphSource {
                         int dest = Integer.parseInt(parts[1]);
                         double weight = Double.parseDouble(parts[2]);
                         if (graph.containsVertex(src) && graph.containsVertex(dest)) {
-                            graph.addEdge(src, dest);
-                            graph.setEdgeWeight(src, dest, weight);
+                            graph.addEdge(src, dest, weight);
                         }
                     });
         }
 
-        return graph;
+        return graph.build();
     }
 
 }
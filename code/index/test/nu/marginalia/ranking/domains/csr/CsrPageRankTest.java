@@ -0,0 +1,277 @@
+package nu.marginalia.ranking.domains.csr;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+class CsrPageRankTest {
+
+    @Test
+    public void testBuildGraph() {
+        var builder = CsrGraph.directedBuilder();
+        builder.addVertex(10);
+        builder.addVertex(5);
+        builder.addVertex(7);
+
+        builder.addEdge(10, 5);
+        builder.addEdge(10, 5);
+        builder.addEdge(5, 7);
+        builder.addEdge(7, 7);
+        builder.addEdge(7, 99); // unknown vertex
+
+        var graph = builder.build();
+
+        Assertions.assertEquals(3, graph.numVertices());
+        Assertions.assertEquals(3, graph.numEdges());
+        Assertions.assertFalse(graph.isWeighted());
+
+        Assertions.assertEquals(5, graph.domainId(0));
+        Assertions.assertEquals(7, graph.domainId(1));
+        Assertions.assertEquals(10, graph.domainId(2));
+        Assertions.assertEquals(-1, graph.vertexIndex(99));
+
+        Assertions.assertTrue(graph.containsEdge(10, 5));
+        Assertions.assertTrue(graph.containsEdge(5, 7));
+        Assertions.assertTrue(graph.containsEdge(7, 7));
+        Assertions.assertFalse(graph.containsEdge(5, 10));
+        Assertions.assertFalse(graph.containsEdge(7, 99));
+        Assertions.assertEquals(1., graph.edgeWeight(10, 5));
+        Assertions.assertEquals(0., graph.edgeWeight(5, 10));
+    }
+
+    @Test
+    public void testBuildGraphSparseIds() {
+        var builder = CsrGraph.directedBuilder();
+        builder.addVertex(Integer.MAX_VALUE);
+        builder.addVertex(0);
+        builder.addVertex(1_000_000);
+
+        builder.addEdge(0, Integer.MAX_VALUE);
+        builder.addEdge(Integer.MAX_VALUE, 1_000_000);
+        builder.addEdge(500, 1_000_000); // unknown vertex
+
+        var graph = builder.build();
+
+        Assertions.assertEquals(2, graph.numEdges());
+        Assertions.assertTrue(graph.containsEdge(0, Integer.MAX_VALUE));
+        Assertions.assertTrue(graph.containsEdge(Integer.MAX_VALUE, 1_000_000));
+        Assertions.assertFalse(graph.containsEdge(500, 1_000_000));
+    }
+
+    @Test
+    public void testBuildUndirectedWeightedGraph() {
+        var builder = CsrGraph.undirectedWeightedBuilder();
+        builder.addVertex(1);
+        builder.addVertex(2);
+        builder.addVertex(3);
+
+        builder.addEdge(1, 3, 0.5);
+        builder.addEdge(3, 1, 0.5);
+        builder.addEdge(2, 3, 0.25);
+
+        var graph = builder.build();
+
+        Assertions.assertEquals(4, graph.numEdges());
+        Assertions.assertTrue(graph.isWeighted());
+
+        Assertions.assertTrue(graph.containsEdge(1, 3));
+        Assertions.assertTrue(graph.containsEdge(3, 1));
+        Assertions.assertTrue(graph.containsEdge(3, 2));
+        Assertions.assertFalse(graph.containsEdge(1, 2));
+
+        Assertions.assertEquals(0.5, graph.edgeWeight(3, 1));
+        Assertions.assertEquals(0.25, graph.edgeWeight(3, 2));
+        Assertions.assertEquals(0.75, graph.outWeights()[graph.vertexIndex(3)]);
+    }
+
+    @Test
+    public void testEmptyGraph() {
+        var pageRank = new CsrPageRank(CsrGraph.directedBuilder().build(), List.of());
+
+        Assertions.assertEquals(0, pageRank.getScores().length);
+        Assertions.assertEquals(0, pageRank.topK(10).length);
+    }
+
+    @Test
+    public void testCycle() {
+        var builder = CsrGraph.directedBuilder();
+        for (int i = 0; i < 4; i++) {
+            builder.addVertex(i);
+            builder.addEdge(i, (i + 1) % 4);
+        }
+
+        var pageRank = new CsrPageRank(builder.build(), List.of());
+        for (double score : pageRank.getScores()) {
+            Assertions.assertEquals(0.25, score, 1e-9);
+        }
+    }
+
+    @Test
+    public void testPageRank() {
+        Random r = new Random(1);
+
+        for (int i = 0; i < 10; i++) {
+            var graph = randomGraph(r, 500, 3000, false);
+
+            var pageRank = new CsrPageRank(graph, List.of(), 0.85, 1000, 1e-12, new ForkJoinPool(4));
+            double[] expected = referencePageRank(graph, List.of());
+
+            assertScores(expected, pageRank.getScores());
+            Assertions.assertEquals(1., Arrays.stream(pageRank.getScores()).sum(), 1e-9);
+        }
+    }
+
+    @Test
+    public void testPersonalizedPageRank() {
+        Random r = new Random(2);
+
+        for (int i = 0; i < 10; i++) {
+            var graph = randomGraph(r, 500, 3000, false);
+            var influenceSet = List.of(graph.domainId(1), graph.domainId(17), graph.domainId(250), 1_000_000);
+
+            var pageRank = new CsrPageRank(graph, influenceSet, 0.85, 1000, 1e-12, new ForkJoinPool(4));
+            double[] expected = referencePageRank(graph, influenceSet);
+
+            assertScores(expected, pageRank.getScores());
+        }
+    }
+
+    @Test
+    public void testWeightedPageRank() {
+        Random r = new Random(3);
+
+        for (int i = 0; i < 10; i++) {
+            var graph = randomGraph(r, 500, 3000, true);
+            var influenceSet = List.of(graph.domainId(5));
+
+            assertScores(referencePageRank(graph, List.of()),
+                    new CsrPageRank(graph, List.of(), 0.85, 1000, 1e-12, new ForkJoinPool(3)).getScores());
+            assertScores(referencePageRank(graph, influenceSet),
+                    new CsrPageRank(graph, influenceSet, 0.85, 1000, 1e-12, new ForkJoinPool(3)).getScores());
+        }
+    }
+
+    @Test
+    public void testConvergence() {
+        var graph = randomGraph(new Random(4), 1000, 10000, false);
+
+        var pageRank = new CsrPageRank(graph, List.of());
+        Assertions.assertTrue(pageRank.getIterations() < CsrPageRank.MAX_ITERATIONS_DEFAULT);
+
+        var limited = new CsrPageRank(graph, List.of(), 0.85, 3, 1e-12, ForkJoinPool.commonPool());
+        Assertions.assertEquals(3, limited.getIterations());
+    }
+
+    @Test
+    public void testTopK() {
+        var graph = randomGraph(new Random(5), 2000, 5000, false);
+        var pageRank = new CsrPageRank(graph, List.of());
+        double[] scores = pageRank.getScores();
+
+        Integer[] expected = new Integer[scores.length];
+        for (int i = 0; i < expected.length; i++) expected[i] = i;
+        Arrays.sort(expected, Comparator.comparingDouble((Integer v) -> -scores[v]).thenComparingInt(v -> v));
+
+        for (int k : new int[] { 0, 1, 2, 10, 100, 1999, 2000, 5000 }) {
+            int[] topK = pageRank.topK(k);
+            Assertions.assertEquals(Math.min(k, scores.length), topK.length);
+
+            for (int i = 0; i < topK.length; i++) {
+                Assertions.assertEquals((int) expected[i], topK[i]);
+            }
+        }
+    }
+
+    /** Random graph with non-contiguous domain ids, some dangling vertices and duplicate edges */
+    private CsrGraph randomGraph(Random r, int numVertices, int numEdges, boolean weighted) {
+        var builder = weighted ? CsrGraph.undirectedWeightedBuilder() : CsrGraph.directedBuilder();
+
+        int[] ids = new int[numVertices];
+        for (int i = 0; i < numVertices; i++) {
+            ids[i] = 3 * i + r.nextInt(3);
+            builder.addVertex(ids[i]);
+        }
+
+        for (int i = 0; i < numEdges; i++) {
+            int source = ids[r.nextInt(numVertices - numVertices / 10)];
+            int dest = ids[r.nextInt(numVertices)];
+            builder.addEdge(source, dest, r.nextDouble());
+        }
+
+        return builder.build();
+    }
+
+    /** Straightforward power iteration over the edges of the graph */
+    private double[] referencePageRank(CsrGraph graph, List<Integer> influenceDomains) {
+        final double d = 0.85;
+        final int n = graph.numVertices();
+
+        Set<Integer> influenceSet = new HashSet<>();
+        for (int domainId : influenceDomains) {
+            if (graph.containsVertex(domainId))
+                influenceSet.add(graph.vertexIndex(domainId));
+        }
+
+        List<int[]> edges = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        double[] outWeight = new double[n];
+
+        for (int source = 0; source < n; source++) {
+            for (int dest = 0; dest < n; dest++) {
+                double w = graph.edgeWeight(graph.domainId(source), graph.domainId(dest));
+                if (w > 0) {
+                    edges.add(new int[] { source, dest });
+                    weights.add(w);
+                    outWeight[source] += w;
+                }
+            }
+        }
+
+        double[] scores = new double[n];
+        Arrays.fill(scores, 1.0 / n);
+
+        double teleport = 0;
+        for (int iter = 0; iter < 1000; iter++) {
+            teleport = 0;
+            for (int v = 0; v < n; v++) {
+                teleport += outWeight[v] > 0 ? (1 - d) * scores[v] : scores[v];
+            }
+
+            double[] next = new double[n];
+            for (int v = 0; v < n; v++) {
+                if (influenceSet.isEmpty())
+                    next[v] = teleport / n;
+                else if (influenceSet.contains(v))
+                    next[v] = teleport / influenceSet.size();
+            }
+
+            for (int i = 0; i < edges.size(); i++) {
+                int[] e = edges.get(i);
+                next[e[1]] += d * scores[e[0]] * weights.get(i) / outWeight[e[0]];
+            }
+
+            scores = next;
+        }
+
+        if (!influenceSet.isEmpty()) {
+            teleport = 0;
+            for (int v = 0; v < n; v++) {
+                teleport += outWeight[v] > 0 ? (1 - d) * scores[v] : scores[v];
+            }
+            for (int v : influenceSet) {
+                scores[v] -= teleport / influenceSet.size();
+            }
+        }
+
+        return scores;
+    }
+
+    private void assertScores(double[] expected, double[] actual) {
+        Assertions.assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assertions.assertEquals(expected[i], actual[i], 1e-9, "vertex " + i);
+        }
+    }
+}
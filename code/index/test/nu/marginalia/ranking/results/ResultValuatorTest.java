@@ -2,7 +2,9 @@ package nu.marginalia.ranking.results;
 
 import nu.marginalia.api.searchquery.model.compiled.CompiledQuery;
 import nu.marginalia.api.searchquery.model.compiled.CompiledQueryLong;
+import nu.marginalia.api.searchquery.model.compiled.CompiledQueryParser;
 import nu.marginalia.api.searchquery.model.compiled.CqDataInt;
+import nu.marginalia.api.searchquery.model.compiled.CqDataLong;
 import nu.marginalia.api.searchquery.model.results.ResultRankingContext;
 import nu.marginalia.api.searchquery.model.results.ResultRankingParameters;
 import nu.marginalia.api.searchquery.model.results.SearchResultKeywordScore;
@@ -19,6 +21,8 @@ import org.mockito.Mockito;
 
 import java.util.*;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.when;
 
 class ResultValuatorTest {
@@ -81,6 +85,109 @@ class ResultValuatorTest {
         System.out.println(highCountSubject);
     }
 
+    @Test
+    void evaluateTermsWithArena() {
+        ResultRankingContext context = new ResultRankingContext(100000,
+                ResultRankingParameters.sensibleDefaults(),
+                new BitSet(),
+                new BitSet(),
+                frequencyData,
+                frequencyData);
+
+        long docMeta = docMetadata(0, 2010, 5, EnumSet.noneOf(DocumentFlags.class));
+
+        var arena = valuator.createArena(CompiledQuery.just("bob"), 10_000, context);
+
+        for (var wordMetas : List.of(titleOnlyLowCountSet, highCountNoTitleSet, highCountSubjectSet)) {
+            arena.wordMetas[0] = wordMetas.at(0);
+
+            assertEquals(valuator.calculateSearchResultValue(wordMetas, docMeta, 0, 10_000, context, null),
+                    valuator.calculateSearchResultValue(arena, docMeta, 0));
+        }
+    }
+
+    @Test
+    void scoreLowerBoundIsSound() {
+        Random r = new Random(1);
+
+        for (String query : List.of("a", "a b", "a b c", "a | b", "a ( b | c ) d")) {
+            var compiledQuery = CompiledQueryParser.parse(query);
+            int querySize = compiledQuery.size();
+
+            for (int trial = 0; trial < 500; trial++) {
+                var context = randomRankingContext(r, querySize);
+                var arena = valuator.createArena(compiledQuery, 5000, context);
+
+                // Term metadata bounds of varying density, like the block summaries of the reverse index
+                long[] bound = new long[querySize];
+                for (int i = 0; i < querySize; i++) {
+                    bound[i] = switch (r.nextInt(3)) {
+                        case 0 -> r.nextLong() | r.nextLong();
+                        case 1 -> r.nextLong();
+                        default -> r.nextLong() & r.nextLong();
+                    };
+                }
+
+                System.arraycopy(bound, 0, arena.wordMetas, 0, querySize);
+                double lowerBound = valuator.calculateScoreLowerBound(arena);
+
+                assertEquals(valuator.calculateScoreLowerBound(new CompiledQueryLong(compiledQuery.root, new CqDataLong(bound)), 5000, context),
+                        lowerBound);
+
+                // Every document whose term metadata is a subset of the bound must score no better than the bound
+                for (int doc = 0; doc < 100; doc++) {
+                    for (int i = 0; i < querySize; i++) {
+                        arena.wordMetas[i] = bound[i] & (r.nextBoolean() ? ~0L : r.nextLong()) & (r.nextBoolean() ? ~0L : r.nextLong());
+                    }
+
+                    long docMeta = r.nextLong();
+                    int features = r.nextBoolean() ? 0 : r.nextInt();
+
+                    double score = valuator.calculateSearchResultValue(arena, docMeta, features);
+
+                    assertTrue(lowerBound <= score, "Bound " + lowerBound + " is better than score " + score
+                            + " for query '" + query + "' with " + context.params);
+                }
+            }
+        }
+    }
+
+    private ResultRankingContext randomRankingContext(Random r, int querySize) {
+        var params = ResultRankingParameters.sensibleDefaults();
+
+        params.shortDocumentPenalty = r.nextDouble(-5, 5);
+        params.domainRankBonus = r.nextDouble(-0.1, 0.1);
+        params.qualityPenalty = r.nextDouble(-0.1, 0.1);
+        params.shortSentenceThreshold = r.nextInt(4);
+        params.shortSentencePenalty = r.nextDouble(-5, 5);
+        params.bm25FullWeight = r.nextDouble(-1, 2);
+        params.bm25NgramWeight = r.nextDouble(-1, 2);
+        params.bm25PrioWeight = r.nextDouble(-1, 2);
+        params.tcfJaccardWeight = r.nextDouble(-3, 3);
+        params.tcfOverlapWeight = r.nextDouble(-3, 3);
+        params.temporalBias = ResultRankingParameters.TemporalBias.values()[r.nextInt(3)];
+
+        int docCount = 100_000;
+
+        int[] counts = new int[querySize];
+        BitSet regularMask = new BitSet();
+        BitSet ngramsMask = new BitSet();
+
+        for (int i = 0; i < querySize; i++) {
+            counts[i] = r.nextInt(1, docCount + 1);
+
+            if (r.nextBoolean()) regularMask.set(i);
+            else ngramsMask.set(i);
+        }
+
+        return new ResultRankingContext(docCount,
+                params,
+                ngramsMask,
+                regularMask,
+                new CqDataInt(counts),
+                new CqDataInt(counts));
+    }
+
     private long docMetadata(int topology,
                              int year,
                              int quality,
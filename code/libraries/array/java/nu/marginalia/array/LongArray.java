@@ -24,6 +24,17 @@ public interface LongArray extends LongArrayBase, LongArrayTransformations, Long
     /** Force any changes to be written to the backing store */
     void force();
 
+    /** Load the range [start, end) into physical memory, if the array is memory mapped.
+     * This advises the kernel that the range will be needed, and then touches each page.
+     * Does nothing for arrays that aren't memory mapped. */
+    default void preload(long start, long end) {
+        var segment = getMemorySegment();
+
+        if (segment.isMapped() && start < end) {
+            segment.asSlice(start * WORD_SIZE, (end - start) * WORD_SIZE).load();
+        }
+    }
+
     /** Close the array and release any resources */
     void close();
 }
@@ -36,124 +36,139 @@ public interface LongArraySearch extends LongArrayBase {
         return fromIndex + sz * low;
     }
 
-    default void retain(LongQueryBuffer buffer, long boundary, long searchStart, long searchEnd) {
+    /** Number of entries that are scanned linearly by seekN before
+     * it switches to galloping search */
+    int SEEK_WINDOW = 16;
+
+    /** Find the first position p in [pos, end), in steps of sz, for which
+     * get(p) >= key, assuming the range is sorted.
+     * <p></p>
+     * The nearest entries are scanned linearly, since this is where the key
+     * most likely is found when intersecting lists of similar density.  The first few
+     * are checked one by one, and the rest of the window is checked with vector
+     * instructions if they are available.  After that, the search gallops ahead
+     * in exponentially increasing steps and finishes with a binary search, which keeps
+     * the cost logarithmic in the distance to the key when intersecting a sparse list
+     * with a dense one.
+     *
+     * @return the position of the first entry greater than or equal to key,
+     * or a value greater than or equal to end if no such entry exists
+     */
+    default long seekN(int sz, long key, long pos, long end) {
+        final long scalarEnd = Math.min(end, pos + 4L * sz);
+        final long windowEnd = Math.min(end, pos + (long) sz * SEEK_WINDOW);
+
+        for (; pos < scalarEnd; pos += sz) {
+            if (get(pos) >= key)
+                return pos;
+        }
 
-        if (searchStart >= searchEnd) return;
+        if (VectorAlgos.isAvailable) {
+            pos = VectorAlgos.seekN(getMemorySegment(), sz, key, pos, windowEnd);
+        }
 
-        long bv = buffer.currentValue();
-        long av = get(searchStart);
-        long pos = searchStart;
+        for (; pos < windowEnd; pos += sz) {
+            if (get(pos) >= key)
+                return pos;
+        }
 
-        while (bv <= boundary && buffer.hasMore()) {
-            if (bv < av) {
-                if (!buffer.rejectAndAdvance()) break;
-                bv = buffer.currentValue();
-                continue;
-            }
-            else if (bv == av) {
-                if (!buffer.retainAndAdvance()) break;
-                bv = buffer.currentValue();
-                continue;
-            }
+        if (pos >= end)
+            return pos;
 
-            if (++pos < searchEnd) {
-                av = get(pos);
+        // All values before lo are less than key
+        long lo = pos;
+        long hi;
+
+        for (long step = (long) sz * SEEK_WINDOW;; step *= 2) {
+            hi = lo + step;
+
+            if (hi >= end) {
+                hi = end;
+                break;
             }
-            else {
+            if (get(hi - sz) >= key) {
                 break;
             }
+
+            lo = hi;
+        }
+
+        long ret = binarySearchN(sz, key, lo, hi);
+        if (get(ret) >= key) {
+            return ret;
         }
+
+        return hi;
+    }
+
+    default void retain(LongQueryBuffer buffer, long boundary, long searchStart, long searchEnd) {
+        retainN(buffer, 1, boundary, searchStart, searchEnd);
     }
 
     default void retainN(LongQueryBuffer buffer, int sz, long boundary, long searchStart, long searchEnd) {
 
         if (searchStart >= searchEnd) return;
 
-        long bv = buffer.currentValue();
-        long av = get(searchStart);
         long pos = searchStart;
+        long av = get(pos);
 
-        while (bv <= boundary && buffer.hasMore()) {
-            if (bv < av) {
-                if (!buffer.rejectAndAdvance()) break;
-                bv = buffer.currentValue();
-                continue;
-            }
-            else if (bv == av) {
-                if (!buffer.retainAndAdvance()) break;
-                bv = buffer.currentValue();
-                continue;
-            }
-
-            pos += sz;
+        while (buffer.hasMore()) {
+            long bv = buffer.currentValue();
 
-            if (pos < searchEnd) {
-                av = get(pos);
-            }
-            else {
+            if (bv > boundary)
                 break;
-            }
-        }
-    }
-    default void reject(LongQueryBuffer buffer, long boundary, long searchStart, long searchEnd) {
 
-        if (searchStart >= searchEnd) return;
+            if (av < bv) {
+                pos = seekN(sz, bv, pos + sz, searchEnd);
 
-        long bv = buffer.currentValue();
-        long av = get(searchStart);
-        long pos = searchStart;
+                if (pos >= searchEnd)
+                    break;
 
-        while (bv <= boundary && buffer.hasMore()) {
-            if (bv < av) {
-                if (!buffer.retainAndAdvance()) break;
-                bv = buffer.currentValue();
-                continue;
-            }
-            else if (bv == av) {
-                if (!buffer.rejectAndAdvance()) break;
-                bv = buffer.currentValue();
-                continue;
+                av = get(pos);
             }
 
-            if (++pos < searchEnd) {
-                av = get(pos);
+            if (bv == av) {
+                if (!buffer.retainAndAdvance()) break;
             }
             else {
-                break;
+                if (!buffer.rejectAndAdvance()) break;
             }
         }
+    }
 
+    default void reject(LongQueryBuffer buffer, long boundary, long searchStart, long searchEnd) {
+        rejectN(buffer, 1, boundary, searchStart, searchEnd);
     }
 
     default void rejectN(LongQueryBuffer buffer, int sz, long boundary, long searchStart, long searchEnd) {
 
         if (searchStart >= searchEnd) return;
 
-        long bv = buffer.currentValue();
-        long av = get(searchStart);
         long pos = searchStart;
+        long av = get(pos);
 
-        while (bv <= boundary && buffer.hasMore()) {
-            if (bv < av) {
-                if (!buffer.retainAndAdvance()) break;
-                bv = buffer.currentValue();
-                continue;
-            }
-            else if (bv == av) {
-                if (!buffer.rejectAndAdvance()) break;
-                bv = buffer.currentValue();
-                continue;
-            }
+        while (buffer.hasMore()) {
+            long bv = buffer.currentValue();
+
+            if (bv > boundary)
+                break;
+
+            if (av < bv) {
+                pos = seekN(sz, bv, pos + sz, searchEnd);
+
+                if (pos >= searchEnd)
+                    break;
 
-            pos += sz;
-            if (pos < searchEnd) {
                 av = get(pos);
             }
+
+            if (bv == av) {
+                if (!buffer.rejectAndAdvance()) break;
+            }
             else {
-                break;
+                if (!buffer.retainAndAdvance()) break;
             }
         }
-
     }
 
 
@@ -0,0 +1,57 @@
+package nu.marginalia.array.algo;
+
+import nu.marginalia.array.vector.VectorKernels;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.foreign.MemorySegment;
+
+/** This class provides vectorized implementations of the search kernels
+ *  used when intersecting sorted lists of document ids.
+ *  <p></p>
+ *  The implementations are built on the incubating Vector API, which is only
+ *  available when the JVM is started with <code>--add-modules=jdk.incubator.vector</code>.
+ *  They can also be disabled by setting the system property <code>system.noVectorAlgos</code>
+ *  to true.
+ *  <p></p>
+ *  isAvailable is a boolean flag that indicates whether the vectorized
+ *  implementations are available.  This flag must be checked before calling
+ *  any of the vectorized functions.
+ * */
+public class VectorAlgos {
+    /** Indicates whether the vectorized implementations are available */
+    public static final boolean isAvailable;
+
+    private static final Logger logger = LoggerFactory.getLogger(VectorAlgos.class);
+
+    static {
+        boolean available = false;
+
+        if (!Boolean.getBoolean("system.noVectorAlgos")
+          && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+        {
+            try {
+                // Below 4 lanes there is nothing to gain over the scalar code,
+                // as the 128 bit entries would not fit more than one per vector
+                available = VectorKernels.laneCount() >= 4;
+            }
+            catch (LinkageError e) {
+                logger.info("Failed to load vector kernels", e);
+            }
+        }
+
+        isAvailable = available;
+    }
+
+    /** Find the first position p in [pos, end), stepping by sz, for which
+     * segment[p] >= key, assuming the keys in the range are sorted.  The
+     * search is done in whole vectors, and may stop before the end of the range
+     * without a match, in which case the position where it stopped is returned,
+     * and the remainder must be checked by the caller.
+     *
+     * @param sz the entry size, only 1 and 2 are vectorized, for other sizes pos is returned
+     */
+    public static long seekN(MemorySegment segment, int sz, long key, long pos, long end) {
+        return VectorKernels.seekN(segment, sz, key, pos, end);
+    }
+}
@@ -0,0 +1,121 @@
+package nu.marginalia.array.page;
+
+import nu.marginalia.array.LongArray;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.foreign.Arena;
+import java.util.Random;
+
+/** This benchmark simulates the intersection of a document list with a
+ * posting list in index querying, comparing the vectorized and scalar
+ * retainN with the previous element-by-element implementation.
+ * <p></p>
+ * The vectorized and scalar variants are selected by the JVM flags of the fork.
+ */
+public class IntersectionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class IntersectionState {
+
+        /** Average gap between the values in the buffer, relative to the posting list */
+        @Param({"1", "16", "256"})
+        int sparseness;
+
+        int size = 1024*1024;
+        int bufferSize = 512;
+
+        long[] bufferValues = new long[bufferSize];
+        LongArray postings = UnsafeLongArray.onHeap(Arena.ofShared(), 2L * size);
+        LongQueryBuffer buffer = new LongQueryBuffer(bufferSize);
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random r = new Random(1);
+
+            // [key, value] entries, as in the reverse index documents b-trees
+            long key = 0;
+            for (int i = 0; i < size; i++) {
+                key += r.nextInt(1, 8);
+                postings.set(2L * i, key);
+                postings.set(2L * i + 1, i);
+            }
+
+            long value = 0;
+            for (int i = 0; i < bufferSize; i++) {
+                value += r.nextLong(1, 8L * sparseness);
+                bufferValues[i] = value;
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void resetBuffer() {
+            buffer.reset();
+            buffer.data.set(0, bufferValues);
+        }
+    }
+
+    @Fork(value = 1, warmups = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int retainVectorized(IntersectionState state) {
+        var buffer = state.buffer;
+        state.postings.retainN(buffer, 2, Long.MAX_VALUE, 0, state.postings.size());
+        buffer.finalizeFiltering();
+        return buffer.size();
+    }
+
+    @Fork(value = 1, warmups = 1, jvmArgsAppend = "-Dsystem.noVectorAlgos=true")
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int retainScalar(IntersectionState state) {
+        var buffer = state.buffer;
+        state.postings.retainN(buffer, 2, Long.MAX_VALUE, 0, state.postings.size());
+        buffer.finalizeFiltering();
+        return buffer.size();
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int retainBaseline(IntersectionState state) {
+        var buffer = state.buffer;
+        retainNBaseline(state.postings, buffer, 2, Long.MAX_VALUE, 0, state.postings.size());
+        buffer.finalizeFiltering();
+        return buffer.size();
+    }
+
+    /** The previous implementation of LongArraySearch.retainN, kept as a baseline */
+    private static void retainNBaseline(LongArray array, LongQueryBuffer buffer, int sz, long boundary, long searchStart, long searchEnd) {
+
+        if (searchStart >= searchEnd) return;
+
+        long bv = buffer.currentValue();
+        long av = array.get(searchStart);
+        long pos = searchStart;
+
+        while (bv <= boundary && buffer.hasMore()) {
+            if (bv < av) {
+                if (!buffer.rejectAndAdvance()) break;
+                bv = buffer.currentValue();
+                continue;
+            }
+            else if (bv == av) {
+                if (!buffer.retainAndAdvance()) break;
+                bv = buffer.currentValue();
+                continue;
+            }
+
+            pos += sz;
+
+            if (pos < searchEnd) {
+                av = array.get(pos);
+            }
+            else {
+                break;
+            }
+        }
+    }
+}
@@ -86,4 +86,35 @@ class LongArraySearchTest {
             assertEquals(buffer.data.get(i), j);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void seekN() {
+        for (int sz = 1; sz <= 2; sz++) {
+            for (int key = 0; key < 3 * 1024 / sz; key++) {
+                long ret = segmentArray.seekN(sz, key, 0, segmentArray.size());
+
+                // Invariant check
+                assertTrue(ret >= segmentArray.size() || segmentArray.get(ret) >= key);
+                assertTrue(ret == 0 || segmentArray.get(ret - sz) < key);
+                assertEquals(0, ret % sz);
+            }
+        }
+    }
+
+    @Test
+    void retainSparse() {
+        // Buffer that is much sparser than the array, to exercise the galloping search
+        long[] vals = new long[64];
+        for (int i = 0; i < vals.length; i++) { vals[i] = 47L * i; }
+        var buffer = new LongQueryBuffer(vals, vals.length);
+
+        segmentArray.retainN(buffer, 2, Long.MAX_VALUE, 0, segmentArray.size());
+        buffer.finalizeFiltering();
+
+        // The array has 3*i at every position, so keys at even positions are divisible by 6
+        for (int i = 0; i < buffer.size(); i++) {
+            assertEquals(0, buffer.data.get(i) % 6);
+        }
+        assertEquals(11, buffer.size());
+    }
+}
@@ -0,0 +1,57 @@
+package nu.marginalia.array.vector;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+/** Vector API implementations of the functions in VectorAlgos.
+ * <p></p>
+ * This class must not be loaded unless the jdk.incubator.vector module
+ * is present, always go through VectorAlgos.  It's in a subproject of its own
+ * so that only this code is compiled with the incubating module.
+ */
+public class VectorKernels {
+    private static final VectorSpecies<Long> species = LongVector.SPECIES_PREFERRED;
+    private static final int lanes = species.length();
+
+    /** Mask selecting the keys of 128 bit [key, value]-entries */
+    private static final VectorMask<Long> evenLanes = VectorMask.fromLong(species, 0x5555_5555_5555_5555L);
+
+    private static final ByteOrder byteOrder = ByteOrder.nativeOrder();
+
+    public static int laneCount() {
+        return lanes;
+    }
+
+    public static long seekN(MemorySegment segment, int sz, long key, long pos, long end) {
+        // Since the data is sorted, the lanes with values less than key form a prefix of the vector,
+        // so the number of such lanes is the distance to the first value that is greater than or equal to key
+
+        if (sz == 1) {
+            for (; pos + lanes <= end; pos += lanes) {
+                var vector = LongVector.fromMemorySegment(species, segment, pos * Long.BYTES, byteOrder);
+                int lessThan = vector.compare(VectorOperators.LT, key).trueCount();
+
+                if (lessThan < lanes)
+                    return pos + lessThan;
+            }
+        }
+        else if (sz == 2) {
+            final int keysPerVector = lanes / 2;
+
+            for (; pos + lanes <= end; pos += lanes) {
+                var vector = LongVector.fromMemorySegment(species, segment, pos * Long.BYTES, byteOrder);
+                int lessThan = vector.compare(VectorOperators.LT, key, evenLanes).trueCount();
+
+                if (lessThan < keysPerVector)
+                    return pos + 2L * lessThan;
+            }
+        }
+
+        return pos;
+    }
+}
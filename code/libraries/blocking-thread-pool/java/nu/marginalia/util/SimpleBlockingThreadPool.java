@@ -23,16 +23,25 @@ public class SimpleBlockingThreadPool {
     private final Logger logger = LoggerFactory.getLogger(SimpleBlockingThreadPool.class);
 
     public SimpleBlockingThreadPool(String name, int poolSize, int queueSize) {
+        this(Thread.ofPlatform().daemon(true), name, poolSize, queueSize);
+    }
+
+    private SimpleBlockingThreadPool(Thread.Builder threadBuilder, String name, int poolSize, int queueSize) {
         tasks = new ArrayBlockingQueue<>(queueSize);
 
         for (int i = 0; i < poolSize; i++) {
-            Thread worker = new Thread(this::worker, name  + "[" + i + "]");
-            worker.setDaemon(true);
-            worker.start();
+            Thread worker = threadBuilder.name(name  + "[" + i + "]").start(this::worker);
             workers.add(worker);
         }
 
     }
+
+    /** Create a pool with virtual threads as workers.  This is useful when the tasks
+     * spend most of their time blocking, as the pool can then be much larger than
+     * would be reasonable with platform threads. */
+    public static SimpleBlockingThreadPool virtual(String name, int poolSize, int queueSize) {
+        return new SimpleBlockingThreadPool(Thread.ofVirtual(), name, poolSize, queueSize);
+    }
     public void submit(Task task) throws InterruptedException {
         tasks.put(task);
     }
@@ -126,6 +135,11 @@ public class SimpleBlockingThreadPool {
         return taskCount.get();
     }
 
+    /** The number of tasks waiting for a worker */
+    public int getQueueSize() {
+        return tasks.size();
+    }
+
     public boolean isTerminated() {
         return shutDown && getActiveCount() == 0;
     }
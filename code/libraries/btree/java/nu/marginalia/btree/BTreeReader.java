@@ -4,6 +4,7 @@ import nu.marginalia.array.LongArray;
 import nu.marginalia.array.page.LongQueryBuffer;
 import nu.marginalia.btree.model.BTreeContext;
 import nu.marginalia.btree.model.BTreeHeader;
+import nu.marginalia.btree.model.BTreeIndexLayout;
 
 import static java.lang.Math.min;
 
@@ -14,12 +15,19 @@ public class BTreeReader {
 
     public final BTreeContext ctx;
     private final BTreeHeader header;
+    private final long[] layerOffsets;
+    /** Set if the index pages are in the fixed fanout layout */
+    private final FixedFanoutPage fixedFanoutPage;
 
     private final long dataBlockEnd;
 
     public BTreeReader(LongArray file, BTreeContext ctx, long offset) {
         this.ctx = ctx;
         this.header = new BTreeHeader(file, offset);
+        this.layerOffsets = header.getRelativeLayerOffsets(ctx);
+        this.fixedFanoutPage = header.indexLayout() == BTreeIndexLayout.FIXED_FANOUT
+                ? new FixedFanoutPage(ctx.blockSizeBits())
+                : null;
 
         dataBlockEnd = (long) ctx.entrySize * header.numEntries();
         index = file.range(header.indexOffsetLongs(), header.dataOffsetLongs());
@@ -43,6 +51,18 @@ public class BTreeReader {
         return header.numEntries();
     }
 
+    /** Returns the last key of a full data block, as recorded in the lowest index layer,
+     * or Long.MAX_VALUE for the last block if it is not full.  The BTree must have an index.
+     */
+    public long lastKeyInBlock(long block) {
+        assert header.layers() > 0 : "BTree has no index";
+
+        final long pageStart = layerOffsets[0] + block / ctx.pageSize() * ctx.pageSize();
+        final long child = block % ctx.pageSize();
+
+        return indexPageKey(pageStart, child);
+    }
+
     /** Keeps all items in buffer that exist in the btree */
     public void retainEntries(LongQueryBuffer buffer) {
         BTreePointer pointer = new BTreePointer(header);
@@ -54,10 +74,8 @@ public class BTreeReader {
         else while (buffer.hasMore()) {
             long val = buffer.currentValue();
 
-            pointer.walkToData(val);
+            pointer.seekToData(val);
             pointer.retainData(buffer);
-
-            pointer.resetToRoot();
         }
     }
 
@@ -72,10 +90,8 @@ public class BTreeReader {
         else while (buffer.hasMore()) {
             long val = buffer.currentValue();
 
-            pointer.walkToData(val);
+            pointer.seekToData(val);
             pointer.rejectData(buffer);
-
-            pointer.resetToRoot();
         }
     }
 
@@ -85,11 +101,41 @@ public class BTreeReader {
      * @return file offset of entry matching keyRaw, negative if absent
      */
     public long findEntry(final long key) {
-        BTreePointer ip = new BTreePointer(header);
+        // Walk the index without a BTreePointer, as this is called once per term in the reverse index
+        long pointerOffset = 0;
 
-        ip.walkToData(key);
+        for (int layer = header.layers() - 1; layer >= 0; layer--) {
+            final long pageStart = layerOffsets[layer] + pointerOffset;
+
+            pointerOffset = ctx.pageSize() * (pointerOffset + searchIndexPage(pageStart, key));
+        }
 
-        return ip.findData(key);
+        return findDataInBlock(pointerOffset, key);
+    }
+
+    /** Locate multiple entries in btree.  The keys are assumed to be sorted.
+     * <p></p>
+     * The index is traversed once for the whole batch; for each key only the layers below the
+     * lowest index node shared with the previous key are searched, and consecutive keys that fall
+     * in the same data block don't touch the index at all. Since the returned offsets are ascending,
+     * reading data associated with the entries in key order is a forward scan.
+     *
+     * @return file offsets of entries matching the keys, negative where absent
+     */
+    public long[] findEntries(long[] keys) {
+        assert(isSorted(keys)) : "The input array keys is assumed to be sorted";
+
+        long[] ret = new long[keys.length];
+
+        BTreePointer pointer = new BTreePointer(header);
+
+        for (int i = 0; i < keys.length; i++) {
+            pointer.seekToData(keys[i]);
+
+            ret[i] = pointer.findData(keys[i]);
+        }
+
+        return ret;
     }
 
     public void readData(LongArray buf, int n, long pos) {
@@ -146,26 +192,75 @@ public class BTreeReader {
         long[] ret = new long[keys.length];
 
         for (int i = 0; i < keys.length; i++) {
-            pointer.walkToData(keys[i]);
+            pointer.seekToData(keys[i]);
 
             long dataAddress = pointer.findData(keys[i]);
             if (dataAddress >= 0) {
                 ret[i] = data.get(dataAddress + offset);
             }
-
-            pointer.resetToRoot();
         }
 
         return ret;
     }
 
-    private class BTreePointer {
-        private final long[] layerOffsets;
+    /** Search an index page for the child whose subtree may contain key
+     *
+     * @return the position of the child among the children of the page
+     */
+    private long searchIndexPage(long pageStart, long key) {
+        if (fixedFanoutPage != null) {
+            return fixedFanoutPage.search(index, pageStart, key);
+        }
+
+        return index.binarySearch(key, pageStart, pageStart + ctx.pageSize()) - pageStart;
+    }
+
+    /** Returns the largest key in the subtree of the child of an index page */
+    private long indexPageKey(long pageStart, long child) {
+        if (fixedFanoutPage != null) {
+            return index.get(pageStart + fixedFanoutPage.positionOf((int) child));
+        }
+
+        return index.get(pageStart + child);
+    }
+
+    /** Find the data entry matching key in the data block starting at the entry blockStart
+     *
+     * @return file offset of entry matching keyRaw, negative if absent
+     */
+    private long findDataInBlock(long blockStart, long key) {
+        final long searchStart = blockStart * ctx.entrySize;
+        final long remainingTotal = dataBlockEnd - blockStart * ctx.entrySize;
+        final long remainingBlock;
+
+        if (layerOffsets.length == 0) {
+            remainingBlock = remainingTotal;
+        }
+        else {
+            remainingBlock = (long) ctx.pageSize() * ctx.entrySize;
+        }
+
+        long searchEnd = searchStart + min(remainingTotal, remainingBlock);
+
+        long ret = data.binarySearchN(ctx.entrySize, key, searchStart, searchEnd);
+        if (data.get(ret) == key) {
+            return ret;
+        }
+        else {
+            return -1 - ret;
+        }
+    }
 
+    private class BTreePointer {
         private int layer;
         private long pointerOffset;
         private long maxValueInBlock;
 
+        // For each index layer, the offset of the node that was chosen in the layer below it
+        // on the way to the current data block, and the largest key under that node
+        private final long[] childOffsets = new long[layerOffsets.length];
+        private final long[] childMaxValues = new long[layerOffsets.length];
+
         public String toString() {
             return getClass().getSimpleName() + "[" +
                 "layer = " + layer + " ," +
@@ -175,7 +270,6 @@ public class BTreeReader {
         public BTreePointer(BTreeHeader header) {
             layer = header.layers() - 1;
             pointerOffset = 0;
-            layerOffsets = header.getRelativeLayerOffsets(ctx);
             maxValueInBlock = Long.MAX_VALUE;
         }
 
@@ -190,11 +284,16 @@ public class BTreeReader {
 
             final long searchStart = layerOffsets[layer] + pointerOffset;
 
-            final long nextLayerOffset = index.binarySearch(key, searchStart, searchStart + ctx.pageSize()) - searchStart;
+            final long nextLayerOffset = searchIndexPage(searchStart, key);
+
+            maxValueInBlock = indexPageKey(searchStart, nextLayerOffset);
 
-            layer --;
-            maxValueInBlock = index.get(searchStart + nextLayerOffset);
             pointerOffset = ctx.pageSize() * (pointerOffset + nextLayerOffset);
+
+            childOffsets[layer] = pointerOffset;
+            childMaxValues[layer] = maxValueInBlock;
+
+            layer --;
         }
 
         /** Move the pointer to the data layer associated with key */
@@ -204,6 +303,28 @@ public class BTreeReader {
             }
         }
 
+        /** Move the pointer to the data layer associated with key, which must not be smaller than
+         * the key the pointer was last moved to.  The pointer backs up only as far as the lowest
+         * index node whose subtree contains key, and walks down from there.
+         */
+        public void seekToData(long key) {
+            if (isDataLayer()) {
+                for (int l = 0; l < layerOffsets.length; l++) {
+                    if (key <= childMaxValues[l]) {
+                        layer = l - 1;
+                        pointerOffset = childOffsets[l];
+                        maxValueInBlock = childMaxValues[l];
+
+                        walkToData(key);
+                        return;
+                    }
+                }
+            }
+
+            resetToRoot();
+            walkToData(key);
+        }
+
         public boolean isDataLayer() {
             return layer < 0;
         }
@@ -217,26 +338,7 @@ public class BTreeReader {
                 throw new IllegalStateException("Looking for data in an index layer");
             }
 
-            final long searchStart = pointerOffset * ctx.entrySize;
-            final long remainingTotal = dataBlockEnd - pointerOffset * ctx.entrySize;
-            final long remainingBlock;
-
-            if (layerOffsets.length == 0) {
-                remainingBlock = remainingTotal;
-            }
-            else {
-                remainingBlock = (long) ctx.pageSize() * ctx.entrySize;
-            }
-
-            long searchEnd = searchStart + min(remainingTotal, remainingBlock);
-
-            long ret = data.binarySearchN(ctx.entrySize, key, searchStart, searchEnd);
-            if (data.get(ret) == key) {
-                return ret;
-            }
-            else {
-                return -1 - ret;
-            }
+            return findDataInBlock(pointerOffset, key);
         }
 
         /** Retain any data entry matching the current key
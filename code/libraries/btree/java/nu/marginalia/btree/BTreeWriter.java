@@ -3,6 +3,7 @@ package nu.marginalia.btree;
 import nu.marginalia.array.LongArray;
 import nu.marginalia.btree.model.BTreeContext;
 import nu.marginalia.btree.model.BTreeHeader;
+import nu.marginalia.btree.model.BTreeIndexLayout;
 
 import java.io.IOException;
 
@@ -26,7 +27,7 @@ public class BTreeWriter {
         BTreeHeader header = makeHeader(ctx, offset, numEntries);
 
         // Write the header
-        map.set(offset, ((long) header.layers() << 32L) | ((long)header.numEntries() & 0xFFFF_FFFFL));
+        map.set(offset, header.encodeFirstWord());
         map.set(offset+1, header.indexOffsetLongs());
         map.set(offset+2, header.dataOffsetLongs());
 
@@ -83,7 +84,7 @@ public class BTreeWriter {
             dataOffset += ctx.indexLayerSize(numEntries, layer);
         }
 
-        return new BTreeHeader(numLayers, numEntries, indexOffset, dataOffset);
+        return new BTreeHeader(numLayers, numEntries, indexOffset, dataOffset, ctx.indexLayout);
     }
 
     private void writeIndex(BTreeHeader header) {
@@ -97,6 +98,10 @@ public class BTreeWriter {
         for (int layer = 0; layer < header.layers(); layer++,
                 indexedDataStepSize*=ctx.pageSize()) {
             writeIndexLayer(header, indexedDataStepSize, layer);
+
+            if (header.indexLayout() == BTreeIndexLayout.FIXED_FANOUT) {
+                permuteIndexLayer(header, layer);
+            }
         }
 
     }
@@ -152,5 +157,22 @@ public class BTreeWriter {
         }
     }
 
+    /** Rearrange each page of a sorted index layer into the fixed fanout layout,
+     * see {@link FixedFanoutPage} */
+    private void permuteIndexLayer(BTreeHeader header, int layer) {
+        final int pageSize = ctx.pageSize();
+        final long layerStart = header.indexOffsetLongs() + header.relativeIndexLayerOffset(ctx, layer);
+        final long layerEnd = layerStart + ctx.indexLayerSize(header.numEntries(), layer);
+
+        final FixedFanoutPage page = new FixedFanoutPage(ctx.blockSizeBits());
 
+        long[] sorted = new long[pageSize];
+        long[] permuted = new long[pageSize];
+
+        for (long pageStart = layerStart; pageStart < layerEnd; pageStart += pageSize) {
+            map.get(pageStart, pageStart + pageSize, sorted);
+            page.permute(sorted, permuted);
+            map.set(pageStart, permuted);
+        }
+    }
 }
@@ -0,0 +1,122 @@
+package nu.marginalia.btree;
+
+import nu.marginalia.array.LongArray;
+
+/** The arrangement of the keys of an index page in the {@link nu.marginalia.btree.model.BTreeIndexLayout#FIXED_FANOUT}
+ * layout.
+ * <p></p>
+ * The first pageSize - 1 keys of the page form an implicit, complete search tree stored breadth first,
+ * where each node holds {@link #NODE_KEYS} consecutive keys and has {@link #FANOUT} children.  The root
+ * has fewer keys when the page size isn't a power of the fanout.  The last key of the page stays in the
+ * last position.
+ * <p></p>
+ * A node is two cache lines at most, and its keys are scanned without branching, so a search within
+ * a {@link nu.marginalia.btree.model.BTreeBlockSize#BS_2048} page, which holds 256 keys, is two dependent
+ * memory accesses rather than the eight of a binary search.
+ * <p></p>
+ * Since the tree is complete, the number of keys smaller than the search key falls out of the
+ * node positions visited on the way down, in the same way as for the data layer of the b-tree.
+ */
+class FixedFanoutPage {
+    static final int FANOUT_BITS = 4;
+    static final int FANOUT = 1 << FANOUT_BITS;
+    static final int NODE_KEYS = FANOUT - 1;
+
+    private final int pageSize;
+    private final int levels;
+
+    /** The fanout of the root, the other levels have FANOUT */
+    private final int rootFanout;
+
+    /** The position of the first node of each level within the page */
+    private final int[] levelStart;
+
+    FixedFanoutPage(int pageBits) {
+        pageSize = 1 << pageBits;
+        levels = (pageBits + FANOUT_BITS - 1) / FANOUT_BITS;
+        rootFanout = 1 << (pageBits - FANOUT_BITS * (levels - 1));
+
+        levelStart = new int[levels];
+
+        int nodes = 1;
+        int keys = rootFanout - 1;
+        for (int level = 1; level < levels; level++) {
+            levelStart[level] = levelStart[level - 1] + nodes * keys;
+
+            nodes *= (level == 1) ? rootFanout : FANOUT;
+            keys = NODE_KEYS;
+        }
+    }
+
+    private int fanout(int level) {
+        return level == 0 ? rootFanout : FANOUT;
+    }
+
+    /** Returns the number of keys in the page that are smaller than key, that is the
+     * position of the lower bound of key in sorted order, or pageSize - 1 if there is no
+     * such key among the first pageSize - 1 keys.
+     */
+    long search(LongArray index, long pageStart, long key) {
+        long node = 0;
+
+        for (int level = 0; level < levels; level++) {
+            final int keys = fanout(level) - 1;
+            final long nodeStart = pageStart + levelStart[level] + node * keys;
+
+            int smaller = 0;
+            for (int i = 0; i < keys; i++) {
+                smaller += index.get(nodeStart + i) < key ? 1 : 0;
+            }
+
+            node = node * fanout(level) + smaller;
+        }
+
+        return node;
+    }
+
+    /** Returns the position in the page of the key with the given position in sorted order */
+    int positionOf(int rank) {
+        if (rank == pageSize - 1) {
+            return rank;
+        }
+
+        // Each key separates two subtrees, and a key at level d is followed in sorted order
+        // by a subtree holding FANOUT^(levels - 1 - d) - 1 keys, so the trailing zeroes
+        // of rank + 1 give the level of the key
+        final int m = rank + 1;
+        final int height = Math.min(Integer.numberOfTrailingZeros(m) / FANOUT_BITS, levels - 1);
+        final int level = levels - 1 - height;
+
+        final int q = (m >>> (FANOUT_BITS * height)) - 1;
+        final int node = q / fanout(level);
+        final int idx = q % fanout(level);
+
+        return levelStart[level] + node * (fanout(level) - 1) + idx;
+    }
+
+    /** Rearrange a page of sorted keys */
+    void permute(long[] sorted, long[] permuted) {
+        permuted[pageSize - 1] = sorted[pageSize - 1];
+
+        permute(sorted, permuted, 0, 0, 0);
+    }
+
+    /** Place the keys of the subtree of a node by an in-order traversal
+     *
+     * @return the position in sorted of the next key to place
+     */
+    private int permute(long[] sorted, long[] permuted, int pos, int level, int node) {
+        if (level >= levels)
+            return pos;
+
+        final int keys = fanout(level) - 1;
+        final int nodeStart = levelStart[level] + node * keys;
+
+        for (int i = 0; i < keys; i++) {
+            pos = permute(sorted, permuted, pos, level + 1, node * fanout(level) + i);
+            permuted[nodeStart + i] = sorted[pos++];
+        }
+
+        return permute(sorted, permuted, pos, level + 1, node * fanout(level) + keys);
+    }
+}
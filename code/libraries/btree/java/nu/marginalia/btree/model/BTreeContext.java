@@ -6,6 +6,7 @@ import nu.marginalia.btree.BTreeWriter;
 public class BTreeContext {
     public final int maxLayers;
     public final int entrySize;
+    public final BTreeIndexLayout indexLayout;
     private final int blockSizeBits;
     private final int pageSize;
 
@@ -29,8 +30,18 @@ public class BTreeContext {
      *
      */
     public BTreeContext(int maxLayers, int entrySize, BTreeBlockSize blockSize) {
+        this(maxLayers, entrySize, blockSize, BTreeIndexLayout.SORTED);
+    }
+
+    /**
+     * @param indexLayout       The layout of the index pages of BTrees written with this context.  This
+     *                          is recorded in the header of each BTree, so a reader can read BTrees of either
+     *                          layout regardless of its context.
+     */
+    public BTreeContext(int maxLayers, int entrySize, BTreeBlockSize blockSize, BTreeIndexLayout indexLayout) {
         this.maxLayers = maxLayers;
         this.entrySize = entrySize;
+        this.indexLayout = indexLayout;
         this.blockSizeBits = blockSize.blockSizeBits;
         this.pageSize = 1 << blockSizeBits;
     }
@@ -68,4 +79,8 @@ public class BTreeContext {
         return pageSize;
     }
 
+    public int blockSizeBits() {
+        return blockSizeBits;
+    }
+
 }
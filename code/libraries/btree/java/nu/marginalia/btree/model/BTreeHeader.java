@@ -10,11 +10,13 @@ import nu.marginalia.array.LongArray;
  * @param numEntries The number of entries in the BTree
  * @param indexOffsetLongs The offset of the index data in longs from the start of the BTree
  * @param dataOffsetLongs The offset of the data in longs from the start of the BTree
+ * @param indexLayout The layout of the index pages
  */
 public record BTreeHeader(int layers,
                           int numEntries,
                           long indexOffsetLongs,
-                          long dataOffsetLongs) {
+                          long dataOffsetLongs,
+                          BTreeIndexLayout indexLayout) {
 
     public BTreeHeader {
         assert (layers >= 0);
@@ -27,12 +29,19 @@ public record BTreeHeader(int layers,
     public static final int BTreeHeaderSizeLongs = 3;
 
     public BTreeHeader(long a, long b, long c) {
-        this((int)(a >>> 32), (int)(a & 0xFFFF_FFFFL), b, c);
+        this((int)((a >>> 32) & 0xFFFF), (int)(a & 0xFFFF_FFFFL), b, c,
+                BTreeIndexLayout.values()[(int) (a >>> 48)]);
     }
     public BTreeHeader(LongArray array, long offset) {
         this(array.get(offset), array.get(offset+1), array.get(offset+2));
     }
 
+    /** The first long of the header, the layout is stored above the layer count so that
+     * BTrees written before there was a choice of layout read as SORTED */
+    public long encodeFirstWord() {
+        return ((long) indexLayout.ordinal() << 48) | ((long) layers << 32) | ((long) numEntries & 0xFFFF_FFFFL);
+    }
+
     public long[] getRelativeLayerOffsets(BTreeContext ctx) {
         long[] layerOffsets = new long[layers()];
         for (int i = 0; i < layers(); i++) {
@@ -0,0 +1,13 @@
+package nu.marginalia.btree.model;
+
+/** The order of the keys within each page of the index layers of a BTree.
+ * The data layer is always sorted. */
+public enum BTreeIndexLayout {
+    /** The keys of each index page are sorted, and the page is binary searched */
+    SORTED,
+
+    /** The keys of each index page form an implicit search tree of cache line sized nodes with a
+     * fixed fanout, so the search within a page is a few dependent memory accesses,
+     * see nu.marginalia.btree.FixedFanoutPage */
+    FIXED_FANOUT
+}
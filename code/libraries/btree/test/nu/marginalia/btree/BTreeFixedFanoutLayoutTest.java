@@ -0,0 +1,141 @@
+package nu.marginalia.btree;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.btree.model.BTreeBlockSize;
+import nu.marginalia.btree.model.BTreeContext;
+import nu.marginalia.btree.model.BTreeHeader;
+import nu.marginalia.btree.model.BTreeIndexLayout;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Verifies that b-trees with the fixed fanout index layout give the same answers as
+ * b-trees with the sorted layout, for a variety of block sizes and tree heights. */
+class BTreeFixedFanoutLayoutTest {
+
+    @Test
+    void testPermute() {
+        for (int pageBits = 1; pageBits <= 11; pageBits++) {
+            var page = new FixedFanoutPage(pageBits);
+            int pageSize = 1 << pageBits;
+
+            long[] sorted = new long[pageSize];
+            for (int i = 0; i < pageSize; i++) {
+                sorted[i] = 10L * i;
+            }
+
+            long[] permuted = new long[pageSize];
+            page.permute(sorted, permuted);
+
+            var array = LongArray.allocate(pageSize);
+            array.set(0, permuted);
+
+            for (int rank = 0; rank < pageSize; rank++) {
+                assertEquals(sorted[rank], permuted[page.positionOf(rank)], "pageBits=" + pageBits);
+                assertEquals(rank, page.search(array, 0, sorted[rank]), "pageBits=" + pageBits);
+                assertEquals(Math.min(rank + 1, pageSize - 1), page.search(array, 0, sorted[rank] + 1), "pageBits=" + pageBits);
+            }
+        }
+    }
+
+    @Test
+    void testHeaderRoundtrip() throws IOException {
+        var ctx = new BTreeContext(5, 1, BTreeBlockSize.BS_16, BTreeIndexLayout.FIXED_FANOUT);
+        var array = LongArray.allocate(4096);
+        long[] data = generateItems(500, new Random(1));
+
+        write(ctx, array, data);
+
+        var header = new BTreeHeader(array, 0);
+        assertEquals(BTreeIndexLayout.FIXED_FANOUT, header.indexLayout());
+        assertEquals(500, header.numEntries());
+        assertEquals(BTreeWriter.makeHeader(ctx, 0, 500).layers(), header.layers());
+    }
+
+    @Test
+    void testSameAnswersAsSorted() throws IOException {
+        Random r = new Random(1);
+
+        for (int bs = 1; bs <= 7; bs++) {
+            for (int n : new int[] { 10, 100, 1000, 10_000 }) {
+                var sortedCtx = new BTreeContext(16, 2, BTreeBlockSize.fromBitCount(bs), BTreeIndexLayout.SORTED);
+                var fixedFanoutCtx = new BTreeContext(16, 2, BTreeBlockSize.fromBitCount(bs), BTreeIndexLayout.FIXED_FANOUT);
+
+                long[] data = generateItems(n, r);
+
+                var sortedArray = LongArray.allocate(sortedCtx.calculateSize(n));
+                var fixedFanoutArray = LongArray.allocate(fixedFanoutCtx.calculateSize(n));
+
+                write(sortedCtx, sortedArray, data);
+                write(fixedFanoutCtx, fixedFanoutArray, data);
+
+                var sortedReader = new BTreeReader(sortedArray, sortedCtx, 0);
+                var fixedFanoutReader = new BTreeReader(fixedFanoutArray, fixedFanoutCtx, 0);
+
+                String desc = "bs=" + bs + ", n=" + n;
+
+                // Half of the keys are present, with some beyond either end of the data
+                long[] keys = new long[2 * n + 2];
+                for (int i = 0; i < n; i++) {
+                    keys[2 * i] = data[i];
+                    keys[2 * i + 1] = data[i] + 1;
+                }
+                keys[2 * n] = 0;
+                keys[2 * n + 1] = Long.MAX_VALUE - 1;
+                Arrays.sort(keys);
+
+                for (long key : keys) {
+                    assertEquals(sortedReader.findEntry(key), fixedFanoutReader.findEntry(key), desc);
+                }
+
+                assertArrayEquals(sortedReader.findEntries(keys), fixedFanoutReader.findEntries(keys), desc);
+                assertArrayEquals(sortedReader.queryData(keys, 1), fixedFanoutReader.queryData(keys, 1), desc);
+
+                var retainSorted = new LongQueryBuffer(keys, keys.length);
+                var retainFixedFanout = new LongQueryBuffer(keys, keys.length);
+                sortedReader.retainEntries(retainSorted);
+                fixedFanoutReader.retainEntries(retainFixedFanout);
+                retainSorted.finalizeFiltering();
+                retainFixedFanout.finalizeFiltering();
+                assertArrayEquals(retainSorted.copyData(), retainFixedFanout.copyData(), desc);
+                assertArrayEquals(data, retainFixedFanout.copyData(), desc);
+
+                var rejectSorted = new LongQueryBuffer(keys, keys.length);
+                var rejectFixedFanout = new LongQueryBuffer(keys, keys.length);
+                sortedReader.rejectEntries(rejectSorted);
+                fixedFanoutReader.rejectEntries(rejectFixedFanout);
+                rejectSorted.finalizeFiltering();
+                rejectFixedFanout.finalizeFiltering();
+                assertArrayEquals(rejectSorted.copyData(), rejectFixedFanout.copyData(), desc);
+
+                if (sortedReader.getHeader().layers() > 0) {
+                    for (int block = 0; block < (n + (1 << bs) - 1) >> bs; block++) {
+                        assertEquals(sortedReader.lastKeyInBlock(block), fixedFanoutReader.lastKeyInBlock(block), desc + ", block=" + block);
+                    }
+                }
+            }
+        }
+    }
+
+    private void write(BTreeContext ctx, LongArray array, long[] data) throws IOException {
+        new BTreeWriter(array, ctx).write(0, data.length, slice -> {
+            for (int i = 0; i < data.length; i++) {
+                slice.set((long) ctx.entrySize * i, data[i]);
+                for (int j = 1; j < ctx.entrySize; j++) {
+                    slice.set((long) ctx.entrySize * i + j, -data[i]);
+                }
+            }
+        });
+    }
+
+    private long[] generateItems(int n, Random r) {
+        // Even keys, so that key + 1 is never present
+        return LongStream.generate(() -> 2 * r.nextLong(1, Long.MAX_VALUE / 4)).distinct().limit(n).sorted().toArray();
+    }
+}
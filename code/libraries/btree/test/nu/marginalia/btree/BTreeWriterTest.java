@@ -11,6 +11,7 @@ import org.junit.jupiter.api.Test;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.StringJoiner;
 import java.util.stream.Collectors;
@@ -189,6 +190,37 @@ class BTreeWriterTest {
         }
     }
 
+    @Test
+    public void testFindEntries() throws IOException {
+        for (int bs = 2; bs <= 4; bs++) {
+            var ctx = new BTreeContext(5, 1, BTreeBlockSize.fromBitCount(bs));
+            long[] data = generateItems64(500);
+
+            LongArray array = LongArray.allocate(22000);
+            writeLongEntrySize1(data, ctx, array);
+
+            var reader = new BTreeReader(array, ctx, 0);
+
+            // Every other item, interspersed with absent keys
+            long[] keys = new long[data.length];
+            for (int i = 0; i < data.length; i++) {
+                keys[i] = (i % 2 == 0) ? data[i] : data[i] + 1;
+            }
+
+            long[] offsets = reader.findEntries(keys);
+
+            for (int i = 0; i < keys.length; i++) {
+                if (Arrays.binarySearch(data, keys[i]) >= 0) {
+                    assertEquals(reader.findEntry(keys[i]), offsets[i]);
+                    assertTrue(offsets[i] >= 0);
+                }
+                else {
+                    assertTrue(offsets[i] < 0);
+                }
+            }
+        }
+    }
+
     public int[] generateItems32(int n) {
         return IntStream.generate(() -> (int) (Integer.MAX_VALUE * Math.random())).distinct().limit(n).sorted().toArray();
     }
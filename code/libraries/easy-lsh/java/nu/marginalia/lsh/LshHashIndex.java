@@ -0,0 +1,266 @@
+package nu.marginalia.lsh;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Set of 64 bit LSH hashes that answers whether it contains a hash within a small
+ * Hamming distance of another, without comparing against every hash in the set.
+ * <p></p>
+ * The hash is split into maxDistance + 1 bands of bits. Two hashes that differ in at most
+ * maxDistance bits must be identical in at least one of the bands, so it's enough to compare
+ * against the hashes that share a band with the query.  Each band has its own hash table,
+ * keyed on the bits of the band.
+ * <p></p>
+ * The index is safe for concurrent use.  The tables of each band are split into segments
+ * with their own locks, and {@link #add(long)} locks the segment of each band of the hash
+ * in band order, so that checking for and adding a hash is atomic with regard to every hash
+ * that could be near it.
+ *
+ * @see EasyLSH
+ */
+public class LshHashIndex {
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private final int maxDistance;
+    private final int[] bandShift;
+    private final long[] bandMask;
+
+    /** bandSegments[band][segment] */
+    private final Segment[][] bandSegments;
+    private final int segmentMask;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** Zero is used to mark empty slots in the tables, so it's kept outside of them */
+    private volatile boolean containsZero = false;
+
+    /** Create an index for use by a single thread at a time, e.g. for deduplicating one domain
+     *
+     * @param maxDistance the largest Hamming distance considered near
+     */
+    public LshHashIndex(int maxDistance) {
+        this(maxDistance, 1);
+    }
+
+    /** Create an index that is striped for use by many threads at once,
+     * e.g. shared across all domains being processed
+     *
+     * @param maxDistance the largest Hamming distance considered near
+     */
+    public static LshHashIndex concurrent(int maxDistance) {
+        return new LshHashIndex(maxDistance, 64);
+    }
+
+    LshHashIndex(int maxDistance, int segments) {
+        if (maxDistance < 0 || maxDistance > 15)
+            throw new IllegalArgumentException("maxDistance must be between 0 and 15");
+        if (Integer.bitCount(segments) != 1)
+            throw new IllegalArgumentException("segments must be a power of 2");
+
+        this.maxDistance = maxDistance;
+
+        int bands = maxDistance + 1;
+
+        bandShift = new int[bands];
+        bandMask = new long[bands];
+        bandSegments = new Segment[bands][segments];
+        segmentMask = segments - 1;
+
+        // Spread the 64 bits as evenly as possible over the bands
+        int start = 0;
+        for (int band = 0; band < bands; band++) {
+            int width = (64 - start) / (bands - band);
+
+            bandShift[band] = start;
+            bandMask[band] = width == 64 ? ~0L : (1L << width) - 1;
+
+            for (int i = 0; i < segments; i++) {
+                bandSegments[band][i] = new Segment(INITIAL_SEGMENT_CAPACITY);
+            }
+
+            start += width;
+        }
+    }
+
+    /** Add the hash to the index, unless the index already contains a hash
+     * within maxDistance of it.
+     *
+     * @return true if the hash was added, false if there was a near hash
+     */
+    public boolean add(long hash) {
+        int bands = bandShift.length;
+
+        long[] keys = new long[bands];
+        Segment[] segments = new Segment[bands];
+
+        for (int band = 0; band < bands; band++) {
+            keys[band] = bandKey(hash, band);
+            segments[band] = segment(band, keys[band]);
+        }
+
+        int locked = 0;
+        try {
+            for (; locked < bands; locked++) {
+                segments[locked].lock();
+            }
+
+            if (isNearZero(hash)) {
+                return false;
+            }
+
+            for (int band = 0; band < bands; band++) {
+                if (segments[band].containsNear(this, band, keys[band], hash)) {
+                    return false;
+                }
+            }
+
+            if (hash == 0) {
+                containsZero = true;
+            }
+            else {
+                for (int band = 0; band < bands; band++) {
+                    segments[band].insert(this, band, keys[band], hash);
+                }
+            }
+
+            size.incrementAndGet();
+
+            return true;
+        }
+        finally {
+            while (--locked >= 0) {
+                segments[locked].unlock();
+            }
+        }
+    }
+
+    /** Returns true if the index contains a hash within maxDistance of the hash */
+    public boolean containsNear(long hash) {
+        if (isNearZero(hash)) {
+            return true;
+        }
+
+        for (int band = 0; band < bandShift.length; band++) {
+            long key = bandKey(hash, band);
+            Segment segment = segment(band, key);
+
+            segment.lock();
+            try {
+                if (segment.containsNear(this, band, key, hash)) {
+                    return true;
+                }
+            }
+            finally {
+                segment.unlock();
+            }
+        }
+
+        return false;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public void clear() {
+        for (var segments : bandSegments) {
+            for (var segment : segments) {
+                segment.lock();
+                try {
+                    segment.clear();
+                }
+                finally {
+                    segment.unlock();
+                }
+            }
+        }
+
+        containsZero = false;
+        size.set(0);
+    }
+
+    private boolean isNearZero(long hash) {
+        return containsZero && Long.bitCount(hash) <= maxDistance;
+    }
+
+    private long bandKey(long hash, int band) {
+        return (hash >>> bandShift[band]) & bandMask[band];
+    }
+
+    private Segment segment(int band, long key) {
+        return bandSegments[band][(int) (mix(key) >>> 32) & segmentMask];
+    }
+
+    /** The finalization mix of murmur3, to spread the band keys over the tables */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /** Open addressing table of the hashes whose band key falls in the segment.
+     * All access must be done while holding the lock. */
+    private static final class Segment extends ReentrantLock {
+        private long[] table;
+        private int size;
+
+        Segment(int capacity) {
+            table = new long[capacity];
+        }
+
+        boolean containsNear(LshHashIndex index, int band, long key, long hash) {
+            final int mask = table.length - 1;
+
+            for (int slot = (int) mix(key) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                long entry = table[slot];
+
+                if (index.bandKey(entry, band) == key
+                 && Long.bitCount(entry ^ hash) <= index.maxDistance)
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        void insert(LshHashIndex index, int band, long key, long hash) {
+            if (2 * (size + 1) > table.length) {
+                grow(index, band);
+            }
+
+            put(key, hash);
+            size++;
+        }
+
+        private void put(long key, long hash) {
+            final int mask = table.length - 1;
+
+            int slot = (int) mix(key) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            table[slot] = hash;
+        }
+
+        private void grow(LshHashIndex index, int band) {
+            long[] oldTable = table;
+            table = new long[2 * oldTable.length];
+
+            for (long entry : oldTable) {
+                if (entry != 0) {
+                    put(index.bandKey(entry, band), entry);
+                }
+            }
+        }
+
+        void clear() {
+            table = new long[INITIAL_SEGMENT_CAPACITY];
+            size = 0;
+        }
+    }
+}
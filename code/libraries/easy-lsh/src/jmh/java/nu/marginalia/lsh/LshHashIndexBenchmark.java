@@ -0,0 +1,111 @@
+package nu.marginalia.lsh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** This benchmark compares looking for a near duplicate among n previously seen hashes
+ * with the LshHashIndex against the linear scan the document deduplicator used to do,
+ * as well as the cost of building the index with n hashes.
+ */
+public class LshHashIndexBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class HashState {
+        @Param({"10000", "100000", "1000000"})
+        int size;
+
+        long[] hashes;
+        long[] queries;
+        LshHashIndex index;
+
+        int queryIdx = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random r = new Random(1);
+
+            hashes = new long[size];
+            for (int i = 0; i < size; i++) {
+                hashes[i] = r.nextLong();
+            }
+
+            // Half of the queries are near duplicates, half are new documents
+            queries = new long[1024];
+            for (int i = 0; i < queries.length; i++) {
+                if ((i & 1) == 0) {
+                    queries[i] = hashes[r.nextInt(size)] ^ (1L << r.nextInt(64));
+                }
+                else {
+                    queries[i] = r.nextLong();
+                }
+            }
+
+            index = new LshHashIndex(1);
+            for (long hash : hashes) {
+                index.add(hash);
+            }
+        }
+
+        long nextQuery() {
+            return queries[queryIdx++ & (queries.length - 1)];
+        }
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean linearScan(HashState state) {
+        long query = state.nextQuery();
+
+        for (long hash : state.hashes) {
+            if (EasyLSH.hammingDistance(query, hash) < 2) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean indexLookup(HashState state) {
+        return state.index.containsNear(state.nextQuery());
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int indexBuild(HashState state) {
+        var index = new LshHashIndex(1);
+
+        for (long hash : state.hashes) {
+            index.add(hash);
+        }
+
+        return index.size();
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int concurrentIndexBuild(HashState state) {
+        var index = LshHashIndex.concurrent(1);
+
+        for (long hash : state.hashes) {
+            index.add(hash);
+        }
+
+        return index.size();
+    }
+}
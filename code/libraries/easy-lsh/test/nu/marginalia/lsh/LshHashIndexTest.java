@@ -0,0 +1,129 @@
+package nu.marginalia.lsh;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LshHashIndexTest {
+
+    @Test
+    void testNearHashes() {
+        var index = new LshHashIndex(1);
+
+        long hash = 0x1234_5678_9abc_def0L;
+        assertTrue(index.add(hash));
+
+        assertFalse(index.add(hash));
+        assertFalse(index.add(hash ^ 1));
+        assertFalse(index.add(hash ^ (1L << 63)));
+        assertTrue(index.containsNear(hash ^ (1L << 40)));
+
+        assertFalse(index.containsNear(hash ^ 3));
+        assertTrue(index.add(hash ^ 3));
+
+        assertEquals(2, index.size());
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertFalse(index.containsNear(hash));
+    }
+
+    @Test
+    void testZeroHash() {
+        var index = new LshHashIndex(1);
+
+        assertTrue(index.add(0));
+        assertFalse(index.add(0));
+        assertFalse(index.add(1L << 17));
+        assertTrue(index.add(3));
+
+        assertTrue(index.containsNear(1L << 17));
+        assertTrue(index.containsNear(2));
+        assertFalse(index.containsNear(0xF0));
+    }
+
+    @Test
+    void testMatchesBruteForce() {
+        for (int maxDistance : new int[] { 0, 1, 3 }) {
+            Random r = new Random(maxDistance);
+
+            var index = new LshHashIndex(maxDistance, 4);
+            List<Long> added = new ArrayList<>();
+
+            for (int i = 0; i < 20_000; i++) {
+                long hash;
+                if (!added.isEmpty() && r.nextBoolean()) {
+                    // Flip a few bits of a previous hash
+                    hash = added.get(r.nextInt(added.size()));
+                    for (int j = r.nextInt(maxDistance + 3); j > 0; j--) {
+                        hash ^= 1L << r.nextInt(64);
+                    }
+                }
+                else {
+                    hash = r.nextLong();
+                }
+
+                boolean expectNear = false;
+                for (long other : added) {
+                    if (EasyLSH.hammingDistance(hash, other) <= maxDistance) {
+                        expectNear = true;
+                        break;
+                    }
+                }
+
+                assertEquals(expectNear, index.containsNear(hash));
+                assertEquals(!expectNear, index.add(hash));
+
+                if (!expectNear) {
+                    added.add(hash);
+                }
+            }
+
+            assertEquals(added.size(), index.size());
+        }
+    }
+
+    @Test
+    void testConcurrentAdd() throws Exception {
+        var index = LshHashIndex.concurrent(1);
+
+        // The threads race to add either of a pair of hashes within distance 1
+        // of each other, and exactly one hash of each pair may be added
+        Random r = new Random(1);
+        long[] groups = new long[10_000];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = r.nextLong();
+        }
+
+        AtomicInteger addedCount = new AtomicInteger();
+
+        try (var executor = Executors.newFixedThreadPool(8)) {
+            List<Future<?>> tasks = new ArrayList<>();
+
+            for (int t = 0; t < 8; t++) {
+                final long flip = t % 2;
+                tasks.add(executor.submit(() -> {
+                    for (long group : groups) {
+                        if (index.add(group ^ flip)) {
+                            addedCount.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+
+            for (var task : tasks) {
+                task.get();
+            }
+        }
+
+        assertEquals(groups.length, addedCount.get());
+        assertEquals(groups.length, index.size());
+    }
+}
@@ -5,51 +5,87 @@ import com.google.inject.Singleton;
 import it.unimi.dsi.fastutil.longs.Long2IntOpenCustomHashMap;
 import it.unimi.dsi.fastutil.longs.LongHash;
 import nu.marginalia.LanguageModels;
+import nu.marginalia.term_frequency_dict.LongIntHashTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+/** Lexicon of known n-grams, used to find segments of sentences that are n-grams.
+ * <p></p>
+ * A lexicon loaded from the language models is read-only, and is a {@link LongIntHashTable}
+ * that is memory mapped and probed directly.  Files in the legacy format are loaded into
+ * memory instead, and can be converted with {@link nu.marginalia.term_frequency_dict.LanguageModelConverterMain}.
+ * <p></p>
+ * A lexicon created with the no-argument constructor is used to count the n-grams, and
+ * keeps the counts in a hash map until they are saved.
+ */
 @Singleton
 public class NgramLexicon {
+    private static final Logger logger = LoggerFactory.getLogger(NgramLexicon.class);
+
+    /** The counts of a read-only lexicon */
+    private final LongIntHashTable table;
+
+    /** The counts of a lexicon that is being built */
     private final Long2IntOpenCustomHashMap counts;
 
-    private int size;
     private static final HasherGroup orderedHasher = HasherGroup.ordered();
 
     @Inject
     public NgramLexicon(LanguageModels models) {
-        try (var dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(models.segments)))) {
+        try {
+            if (LongIntHashTable.isHashTableFile(models.segments)) {
+                table = LongIntHashTable.mmap(models.segments);
+            }
+            else {
+                logger.warn("{} is in the legacy format, loading it into memory", models.segments);
+                table = loadLegacy(models.segments);
+            }
+            counts = null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public NgramLexicon() {
+        table = null;
+        counts = new Long2IntOpenCustomHashMap(new KeyIsAlreadyHashStrategy());
+        counts.defaultReturnValue(0);
+    }
+
+    /** Load a file in the legacy format, a count followed by records of
+     * a hash and a count, into an in-memory hash table */
+    public static LongIntHashTable loadLegacy(Path file) throws IOException {
+        try (var dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
             long size = dis.readInt();
-            counts = new Long2IntOpenCustomHashMap(
-                    (int) size,
-                    new KeyIsAlreadyHashStrategy()
-            );
-            counts.defaultReturnValue(0);
+            var builder = LongIntHashTable.Builder.inMemory(size);
 
             try {
                 for (int i = 0; i < size; i++) {
-                    counts.put(dis.readLong(), dis.readInt());
+                    builder.put(dis.readLong(), dis.readInt());
                 }
             }
             catch (IOException ex) {
                 ex.printStackTrace();
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+
+            return builder.build();
         }
     }
 
-    public NgramLexicon() {
-        counts = new Long2IntOpenCustomHashMap(100_000_000, new KeyIsAlreadyHashStrategy());
-        counts.defaultReturnValue(0);
+    private int getCount(long hash) {
+        if (table != null)
+            return table.get(hash);
+        else
+            return counts.get(hash);
     }
 
     public List<String[]> findSegmentsStrings(int minLength,
@@ -89,7 +125,7 @@ public class NgramLexicon {
 
         // Slide the window and look for matches
         for (;;) {
-            if (counts.get(hash) > 0) {
+            if (getCount(hash) > 0) {
                 positions.add(Arrays.copyOfRange(parts, i - length, i));
             }
 
@@ -124,7 +160,7 @@ public class NgramLexicon {
 
         // Slide the window and look for matches
         for (;;) {
-            int ct = counts.get(hash);
+            int ct = getCount(hash);
 
             if (ct > 0) {
                 positions.add(new SentenceSegment(i - length, length, ct));
@@ -142,10 +178,11 @@ public class NgramLexicon {
     }
 
     public void incOrderedTitle(long hashOrdered) {
+        requireMutable();
+
         int value = counts.get(hashOrdered);
 
         if (value <= 0) {
-            size ++;
             value = -value;
         }
 
@@ -155,6 +192,8 @@ public class NgramLexicon {
     }
 
     public void incOrderedBody(long hashOrdered) {
+        requireMutable();
+
         int value = counts.get(hashOrdered);
 
         if (value <= 0) value --;
@@ -163,31 +202,34 @@ public class NgramLexicon {
         counts.put(hashOrdered, value);
     }
 
+    /** Save the n-grams that have been seen in a title as a {@link LongIntHashTable} */
     public void saveCounts(Path file) throws IOException {
-        try (var dos = new DataOutputStream(Files.newOutputStream(file,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING,
-                StandardOpenOption.WRITE))) {
-
-            dos.writeInt(size);
-
-            counts.forEach((k, v) -> {
-                try {
-                    if (v > 0) {
-                        dos.writeLong(k);
-                        dos.writeInt(v);
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
-        }
+        requireMutable();
+
+        long entries = counts.values().intStream().filter(v -> v > 0).count();
+        var builder = LongIntHashTable.Builder.toFile(file, entries);
+
+        counts.forEach((k, v) -> {
+            if (v > 0) {
+                builder.put(k, v);
+            }
+        });
+
+        builder.build().close();
     }
 
     public void clear() {
+        requireMutable();
+
         counts.clear();
     }
 
+    private void requireMutable() {
+        if (counts == null) {
+            throw new IllegalStateException("The lexicon is read-only");
+        }
+    }
+
     public record SentenceSegment(int start, int length, int count) {
         public String[] project(String... parts) {
             return Arrays.copyOfRange(parts, start, start + length);
@@ -0,0 +1,64 @@
+package nu.marginalia.term_frequency_dict;
+
+import nu.marginalia.WmsaHome;
+import nu.marginalia.segmentation.NgramLexicon;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/** One-off tool that converts the term frequency dictionary and the n-gram lexicon
+ * from their legacy formats into {@link LongIntHashTable} files, which are memory
+ * mapped instead of loaded into memory.
+ * <p></p>
+ * Without arguments, the files of the language models in the WMSA home directory are
+ * converted in place.  Alternatively, a single file can be converted with
+ * <code>tfreq|ngrams input-file output-file</code>.  Files that are already
+ * converted are left as they are.
+ */
+public class LanguageModelConverterMain {
+
+    public static void main(String... args) throws IOException {
+        if (args.length == 0) {
+            var models = WmsaHome.getLanguageModels();
+
+            convert("tfreq", models.termFrequencies, models.termFrequencies);
+            convert("ngrams", models.segments, models.segments);
+        }
+        else if (args.length == 3) {
+            convert(args[0], Path.of(args[1]), Path.of(args[2]));
+        }
+        else {
+            System.err.println("Usage: LanguageModelConverterMain [tfreq|ngrams input-file output-file]");
+            System.exit(1);
+        }
+    }
+
+    private static void convert(String type, Path input, Path output) throws IOException {
+        if (LongIntHashTable.isHashTableFile(input)) {
+            System.out.println(input + " is already converted");
+            if (!input.equals(output)) {
+                Files.copy(input, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return;
+        }
+
+        LongIntHashTable table = switch (type) {
+            case "tfreq" -> TermFrequencyDict.loadLegacy(input);
+            case "ngrams" -> NgramLexicon.loadLegacy(input);
+            default -> throw new IllegalArgumentException("Unknown file type " + type + ", expected tfreq or ngrams");
+        };
+
+        // Write to a temporary file first, as the output may be the input
+        Path tmpFile = output.resolveSibling(output.getFileName() + ".tmp");
+
+        try (table) {
+            table.writeTo(tmpFile);
+        }
+
+        Files.move(tmpFile, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        System.out.println("Converted " + input + " to " + output + ", " + table.size() + " entries");
+    }
+}
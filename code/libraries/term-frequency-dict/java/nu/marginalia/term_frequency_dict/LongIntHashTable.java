@@ -0,0 +1,201 @@
+package nu.marginalia.term_frequency_dict;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Read-only open addressing hash table from long keys to int values, stored in a
+ * {@link LongArray} so that it can be memory mapped and probed straight from disk,
+ * without loading it onto the heap first.
+ * <p></p>
+ * The array holds a header of {@link #HEADER_SIZE} longs, the magic number, the capacity
+ * and the number of entries, followed by capacity slots of a key and a value each.  The
+ * capacity is a power of two, and the table is filled to at most half of it.  Collisions
+ * are resolved by linear probing.  Absent keys have the value 0, so an entry with the value
+ * 0 is never stored, and a slot with the value 0 is empty.
+ * <p></p>
+ * The hash function and layout are part of the file format; if either changes, the
+ * files need to be re-generated.
+ *
+ * @see Builder
+ */
+public class LongIntHashTable implements AutoCloseable {
+    public static final long MAGIC = 0x4C49_4854_4142_3031L; // "LIHTAB01"
+    public static final int HEADER_SIZE = 4;
+
+    private final LongArray array;
+    private final long mask;
+    private final long size;
+
+    private LongIntHashTable(LongArray array) {
+        if (array.size() < HEADER_SIZE || array.get(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a hash table");
+        }
+
+        long capacity = array.get(1);
+        if (Long.bitCount(capacity) != 1 || array.size() < HEADER_SIZE + 2 * capacity) {
+            throw new IllegalArgumentException("Corrupt hash table, capacity " + capacity + " in array of size " + array.size());
+        }
+
+        this.array = array;
+        this.mask = capacity - 1;
+        this.size = array.get(2);
+    }
+
+    /** Memory map a hash table file for reading.  The table may be shared between threads. */
+    public static LongIntHashTable mmap(Path file) throws IOException {
+        LongArray array = LongArrayFactory.mmapForReadingShared(file);
+        try {
+            return new LongIntHashTable(array);
+        }
+        catch (IllegalArgumentException ex) {
+            array.close();
+            throw new IOException(file + ": " + ex.getMessage());
+        }
+    }
+
+    /** Returns true if the file starts with the magic number of a hash table file */
+    public static boolean isHashTableFile(Path file) throws IOException {
+        if (Files.size(file) < 8L * HEADER_SIZE)
+            return false;
+
+        try (LongArray array = LongArrayFactory.mmapForReadingConfined(file)) {
+            return array.get(0) == MAGIC;
+        }
+    }
+
+    /** Get the value of the key, or 0 if the key is absent */
+    public int get(long key) {
+        for (long slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long pos = HEADER_SIZE + 2 * slot;
+            long value = array.get(pos + 1);
+
+            if (value == 0)
+                return 0;
+            if (array.get(pos) == key)
+                return (int) value;
+        }
+    }
+
+    /** Write a copy of the table to a new file.  Any existing file is replaced. */
+    public void writeTo(Path file) throws IOException {
+        var builder = Builder.toFile(file, size);
+
+        for (long slot = 0; slot <= mask; slot++) {
+            long pos = HEADER_SIZE + 2 * slot;
+            long value = array.get(pos + 1);
+
+            if (value != 0) {
+                builder.put(array.get(pos), (int) value);
+            }
+        }
+
+        builder.build().close();
+    }
+
+    /** The number of entries in the table */
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        array.close();
+    }
+
+    /** The finalizer of MurmurHash3, the keys are often hashes already, but not necessarily good ones */
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /** The number of longs needed for a table with room for the given number of entries */
+    private static long arraySize(long capacity) {
+        return HEADER_SIZE + 2 * capacity;
+    }
+
+    private static long capacityFor(long expectedEntries) {
+        long capacity = 16;
+        while (capacity < 2 * expectedEntries) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    /** Builds a hash table.  The number of entries must be known, or at least
+     * bounded, in advance, as the table is not resized.
+     */
+    public static class Builder {
+        private final LongArray array;
+        private final long capacity;
+        private final long maxEntries;
+        private long size = 0;
+
+        private Builder(LongArray array, long capacity, long maxEntries) {
+            this.array = array;
+            this.capacity = capacity;
+            this.maxEntries = maxEntries;
+        }
+
+        /** Build a table in memory, for at most maxEntries entries */
+        public static Builder inMemory(long maxEntries) {
+            long capacity = capacityFor(maxEntries);
+            return new Builder(LongArrayFactory.onHeapShared(arraySize(capacity)), capacity, maxEntries);
+        }
+
+        /** Build a table in a new file, for at most maxEntries entries.  Any existing file is replaced. */
+        public static Builder toFile(Path file, long maxEntries) throws IOException {
+            long capacity = capacityFor(maxEntries);
+
+            // The mapping is zero-filled only if the file is created anew
+            Files.deleteIfExists(file);
+
+            return new Builder(LongArrayFactory.mmapForWritingConfined(file, arraySize(capacity)), capacity, maxEntries);
+        }
+
+        /** Set the value of the key.  Entries with the value 0 are not stored, as
+         * 0 is what the table returns for absent keys. */
+        public void put(long key, int value) {
+            if (value == 0)
+                return;
+
+            long mask = capacity - 1;
+            for (long slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+                long pos = HEADER_SIZE + 2 * slot;
+
+                if (array.get(pos + 1) == 0) {
+                    if (size >= maxEntries) {
+                        throw new IllegalStateException("Hash table is full, capacity " + maxEntries);
+                    }
+
+                    array.set(pos, key);
+                    array.set(pos + 1, value);
+                    size++;
+                    return;
+                }
+
+                if (array.get(pos) == key) {
+                    array.set(pos + 1, value);
+                    return;
+                }
+            }
+        }
+
+        /** Write the header and return the table.  The builder may not be used afterwards. */
+        public LongIntHashTable build() {
+            array.set(0, MAGIC);
+            array.set(1, capacity);
+            array.set(2, size);
+            array.force();
+
+            return new LongIntHashTable(array);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package nu.marginalia.term_frequency_dict;
 
 import ca.rmen.porterstemmer.PorterStemmer;
-import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import lombok.SneakyThrows;
 import nu.marginalia.LanguageModels;
 import nu.marginalia.array.LongArray;
@@ -18,11 +17,15 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 
 /** Dictionary with term frequency information for (stemmed) words.
- *
+ * <p></p>
+ * The dictionary file is a {@link LongIntHashTable}, which is memory mapped and probed
+ * directly, and is what the term frequency exporter writes.  Files in the legacy format, a flat
+ * list of pairs of hash and count, are loaded into memory instead, and can be converted with
+ * {@link LanguageModelConverterMain}.
  */
 @Singleton
 public class TermFrequencyDict {
-    private final Long2IntOpenHashMap wordRates;
+    private final LongIntHashTable wordRates;
     private static final Logger logger = LoggerFactory.getLogger(TermFrequencyDict.class);
     private static final PorterStemmer ps = new PorterStemmer();
 
@@ -35,24 +38,29 @@ public class TermFrequencyDict {
 
     @SneakyThrows
     public TermFrequencyDict(Path file) {
+        if (LongIntHashTable.isHashTableFile(file)) {
+            wordRates = LongIntHashTable.mmap(file);
+        }
+        else {
+            logger.warn("{} is in the legacy format, loading it into memory", file);
+            wordRates = loadLegacy(file);
+        }
 
-        wordRates = load(file);
         logger.info("Read {} N-grams frequencies", wordRates.size());
     }
 
-    private static Long2IntOpenHashMap load(Path file) throws IOException {
+    /** Load a file in the legacy format into an in-memory hash table */
+    public static LongIntHashTable loadLegacy(Path file) throws IOException {
         try (LongArray array = LongArrayFactory.mmapForReadingConfined(file)) {
 
-            int size = (int) Files.size(file) / 16;
-            var ret = new Long2IntOpenHashMap(size, 0.5f);
-
-            ret.defaultReturnValue(0);
+            long size = Files.size(file) / 16;
+            var builder = LongIntHashTable.Builder.inMemory(size);
 
-            for (int i = 0; i < size; i++) {
-                ret.put(array.get(2 * i), (int) array.get(2 * i + 1));
+            for (long i = 0; i < size; i++) {
+                builder.put(array.get(2 * i), (int) array.get(2 * i + 1));
             }
 
-            return ret;
+            return builder.build();
         }
     }
 
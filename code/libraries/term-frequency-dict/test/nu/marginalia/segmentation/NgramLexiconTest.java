@@ -1,8 +1,13 @@
 package nu.marginalia.segmentation;
 
+import nu.marginalia.LanguageModels;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -41,4 +46,58 @@ class NgramLexiconTest {
         }
 
     }
-}
\ No newline at end of file
+
+    @Test
+    void saveAndLoad() throws IOException {
+        addNgram("hello", "world");
+        addNgram("hello", "world");
+        addNgram("rye", "bread");
+        lexicon.incOrderedBody(HasherGroup.ordered().rollingHash(new String[] { "rye", "world" }));
+
+        Path file = Files.createTempFile(getClass().getSimpleName(), ".bin");
+        try {
+            lexicon.saveCounts(file);
+
+            var loaded = new NgramLexicon(modelsWithSegments(file));
+            var segments = loaded.findSegmentOffsets(2, "hello", "world", "rye", "bread");
+
+            assertEquals(List.of(
+                    new NgramLexicon.SentenceSegment(0, 2, 2),
+                    new NgramLexicon.SentenceSegment(2, 2, 1)
+            ), segments);
+
+            // Only n-grams seen in a title are saved
+            assertEquals(0, loaded.findSegmentOffsets(2, "rye", "world").size());
+
+            assertThrows(IllegalStateException.class, () -> loaded.incOrderedTitle(1));
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void loadLegacy() throws IOException {
+        long hash = HasherGroup.ordered().rollingHash(new String[] { "rye", "bread" });
+
+        Path file = Files.createTempFile(getClass().getSimpleName(), ".bin");
+        try {
+            try (var dos = new DataOutputStream(Files.newOutputStream(file))) {
+                dos.writeInt(1);
+                dos.writeLong(hash);
+                dos.writeInt(3);
+            }
+
+            var loaded = new NgramLexicon(modelsWithSegments(file));
+            assertEquals(List.of(new NgramLexicon.SentenceSegment(1, 2, 3)),
+                    loaded.findSegmentOffsets(2, "hello", "rye", "bread"));
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private LanguageModels modelsWithSegments(Path segments) {
+        return new LanguageModels(null, null, null, null, null, null, segments);
+    }
+}
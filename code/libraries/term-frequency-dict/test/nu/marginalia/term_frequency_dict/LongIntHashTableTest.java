@@ -0,0 +1,172 @@
+package nu.marginalia.term_frequency_dict;
+
+import nu.marginalia.array.LongArrayFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongIntHashTableTest {
+    Path tempDir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory(getClass().getSimpleName());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (var files = Files.list(tempDir)) {
+            for (var file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(tempDir);
+    }
+
+    @Test
+    public void testInMemory() {
+        var expected = randomEntries(new Random(1), 10_000);
+
+        var builder = LongIntHashTable.Builder.inMemory(expected.size());
+        expected.forEach(builder::put);
+
+        try (var table = builder.build()) {
+            assertEquals(expected.size(), table.size());
+            assertContains(expected, table);
+        }
+    }
+
+    @Test
+    public void testSpecialKeysAndValues() {
+        var builder = LongIntHashTable.Builder.inMemory(5);
+        builder.put(0, 5);
+        builder.put(~0L, -7);
+        builder.put(Long.MIN_VALUE, Integer.MAX_VALUE);
+        builder.put(1, 0); // not stored
+        builder.put(2, 3);
+        builder.put(2, 4); // replaces
+
+        try (var table = builder.build()) {
+            assertEquals(4, table.size());
+            assertEquals(5, table.get(0));
+            assertEquals(-7, table.get(~0L));
+            assertEquals(Integer.MAX_VALUE, table.get(Long.MIN_VALUE));
+            assertEquals(0, table.get(1));
+            assertEquals(4, table.get(2));
+            assertEquals(0, table.get(3));
+        }
+    }
+
+    @Test
+    public void testFull() {
+        var builder = LongIntHashTable.Builder.inMemory(2);
+        builder.put(1, 1);
+        builder.put(2, 1);
+        builder.put(2, 2);
+
+        assertThrows(IllegalStateException.class, () -> builder.put(3, 1));
+    }
+
+    @Test
+    public void testFileRoundTrip() throws IOException {
+        var expected = randomEntries(new Random(2), 10_000);
+        Path file = tempDir.resolve("table.dat");
+
+        var builder = LongIntHashTable.Builder.toFile(file, expected.size());
+        expected.forEach(builder::put);
+        builder.build().close();
+
+        assertTrue(LongIntHashTable.isHashTableFile(file));
+
+        try (var table = LongIntHashTable.mmap(file)) {
+            assertEquals(expected.size(), table.size());
+            assertContains(expected, table);
+
+            // Copy over an existing, larger file, which should be replaced
+            Path copy = tempDir.resolve("copy.dat");
+            Files.write(copy, new byte[1 << 20]);
+            table.writeTo(copy);
+
+            try (var copyTable = LongIntHashTable.mmap(copy)) {
+                assertContains(expected, copyTable);
+            }
+        }
+    }
+
+    @Test
+    public void testNotAHashTable() throws IOException {
+        Path file = tempDir.resolve("junk.dat");
+        Files.write(file, new byte[64]);
+
+        assertFalse(LongIntHashTable.isHashTableFile(file));
+        assertThrows(IOException.class, () -> LongIntHashTable.mmap(file));
+    }
+
+    @Test
+    public void testConvertLegacyTermFrequencies() throws IOException {
+        var expected = randomEntries(new Random(3), 1000);
+        expected.put(TermFrequencyDict.DOC_COUNT_KEY, 12345);
+
+        Path legacyFile = tempDir.resolve("tfreq.bin");
+        try (var array = LongArrayFactory.mmapForWritingConfined(legacyFile, 2L * expected.size())) {
+            long i = 0;
+            for (var entry : expected.entrySet()) {
+                array.set(i++, entry.getKey());
+                array.set(i++, entry.getValue());
+            }
+        }
+
+        assertFalse(LongIntHashTable.isHashTableFile(legacyFile));
+
+        var legacyDict = new TermFrequencyDict(legacyFile);
+        assertEquals(12345, legacyDict.docCount());
+
+        Path convertedFile = tempDir.resolve("tfreq-converted.bin");
+        LanguageModelConverterMain.main("tfreq", legacyFile.toString(), convertedFile.toString());
+
+        assertTrue(LongIntHashTable.isHashTableFile(convertedFile));
+        try (var table = LongIntHashTable.mmap(convertedFile)) {
+            assertContains(expected, table);
+        }
+
+        var dict = new TermFrequencyDict(convertedFile);
+        assertEquals(12345, dict.docCount());
+        for (var entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), dict.getTermFreqHash(entry.getKey()));
+        }
+    }
+
+    private Map<Long, Integer> randomEntries(Random r, int n) {
+        Map<Long, Integer> ret = new HashMap<>();
+        while (ret.size() < n) {
+            int value = r.nextInt();
+            if (value != 0) {
+                ret.put(r.nextLong(), value);
+            }
+        }
+        return ret;
+    }
+
+    private void assertContains(Map<Long, Integer> expected, LongIntHashTable table) {
+        for (var entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), table.get(entry.getKey()));
+        }
+
+        Random r = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            long key = r.nextLong();
+            if (!expected.containsKey(key)) {
+                assertEquals(0, table.get(key));
+            }
+        }
+    }
+}
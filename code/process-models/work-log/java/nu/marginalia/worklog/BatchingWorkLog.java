@@ -33,7 +33,15 @@ public interface BatchingWorkLog extends AutoCloseable {
     /** Mark the current batch as finished and increment
      * the batch number counter
      */
-    void logFinishedBatch() throws IOException;
+    default void logFinishedBatch() throws IOException {
+        logFinishedBatch(1);
+    }
+
+    /** Mark the current batch as finished and increment the batch number
+     * counter by batchCount, for when the items of the batch have been written
+     * into several batch files in parallel.  The batch numbers are committed together.
+     */
+    void logFinishedBatch(int batchCount) throws IOException;
 
     int getBatchNumber();
 
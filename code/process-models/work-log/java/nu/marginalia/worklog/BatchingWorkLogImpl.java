@@ -48,6 +48,7 @@ public class BatchingWorkLogImpl implements BatchingWorkLog {
             writeLogEntry(new CommentLine(" Format: "));
             writeLogEntry(new CommentLine(" " + AddItem.MARKER + " ID\tsignifies adding an item to the current batch"));
             writeLogEntry(new CommentLine(" " + FinishBatch.MARKER + "\tsignifies finalizing the current batch and switching to the next"));
+            writeLogEntry(new CommentLine(" " + FinishBatch.MARKER + " N\tsignifies finalizing the current batch, which spans N batch numbers"));
             writeLogEntry(new CommentLine(" " + CrashMarker.MARKER + "\tdiscard contents from the current batch and start over, written after a crash"));
             writeLogEntry(new CommentLine("Upon a crash, items that have re-process until their batch is finalized"));
         }
@@ -57,7 +58,7 @@ public class BatchingWorkLogImpl implements BatchingWorkLog {
         item.write(this);
     }
 
-    void writeLine(String line) throws IOException {
+    synchronized void writeLine(String line) throws IOException {
         writer.write(line.getBytes(StandardCharsets.UTF_8));
         writer.write('\n');
         writer.flush();
@@ -79,13 +80,16 @@ public class BatchingWorkLogImpl implements BatchingWorkLog {
     }
 
     @Override
-    public void logFinishedBatch() throws IOException {
-        writeLogEntry(new FinishBatch());
-        incrementBatch();
+    public void logFinishedBatch(int batchCount) throws IOException {
+        if (batchCount < 1)
+            throw new IllegalArgumentException("batchCount must be positive");
+
+        writeLogEntry(new FinishBatch(batchCount));
+        incrementBatch(batchCount);
     }
 
-    void incrementBatch() {
-        batchNumber++;
+    void incrementBatch(int batchCount) {
+        batchNumber += batchCount;
 
         // Transfer all items from the current batch to the committed items' batch
         committedItems.addAll(currentBatchItems);
@@ -139,7 +143,7 @@ interface WorkLogItem {
         return switch (lineParts.tag()) {
             case CommentLine.MARKER -> new CommentLine(lineParts.arg());
             case AddItem.MARKER -> new AddItem(lineParts.arg());
-            case FinishBatch.MARKER -> new FinishBatch();
+            case FinishBatch.MARKER -> FinishBatch.parse(lineParts.arg());
             case CrashMarker.MARKER -> new CrashMarker();
             default -> throw new WorkLogParseException(line);
         };
@@ -183,19 +187,36 @@ record BlankLine() implements WorkLogItem {
     }
 }
 
-record FinishBatch() implements WorkLogItem {
+record FinishBatch(int batchCount) implements WorkLogItem {
     final static char MARKER = 'F';
 
+    static FinishBatch parse(String arg) {
+        if (arg.isEmpty())
+            return new FinishBatch(1);
+
+        try {
+            return new FinishBatch(Integer.parseInt(arg));
+        }
+        catch (NumberFormatException ex) {
+            throw new WorkLogParseException(MARKER + " " + arg);
+        }
+    }
+
     @Override
     public void replay(BatchingWorkLogImpl bwl) {
-        bwl.incrementBatch();
+        bwl.incrementBatch(batchCount);
     }
 
     @Override
     public void write(BatchingWorkLogImpl bwl) throws IOException {
         bwl.writeLine("# " + LocalDateTime.now());
         bwl.writeLine("# finalizing batchNumber = " + bwl.getBatchNumber());
-        bwl.writeLine(Character.toString(MARKER));
+
+        // The marker is written on a single line, so that all the batch numbers are committed at once
+        if (batchCount == 1)
+            bwl.writeLine(Character.toString(MARKER));
+        else
+            bwl.writeLine(MARKER + " " + batchCount);
     }
 
 
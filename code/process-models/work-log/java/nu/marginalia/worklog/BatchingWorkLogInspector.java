@@ -14,9 +14,11 @@ public class BatchingWorkLogInspector {
      */
     public static int getValidBatches(Path file) throws IOException {
         try (var linesStream = Files.lines(file)) {
-            return (int) linesStream.map(WorkLogItem::parse)
+            return linesStream.map(WorkLogItem::parse)
                     .filter(FinishBatch.class::isInstance)
-                    .count();
+                    .map(FinishBatch.class::cast)
+                    .mapToInt(FinishBatch::batchCount)
+                    .sum();
         }
     }
 }
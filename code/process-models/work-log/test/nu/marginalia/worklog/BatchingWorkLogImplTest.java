@@ -71,4 +71,31 @@ class BatchingWorkLogImplTest {
 
         Files.readAllLines(fileName).forEach(System.out::println);
     }
+
+    @Test
+    public void testMultiBatchFinish() throws IOException {
+        Files.delete(fileName);
+
+        try (var wl = new BatchingWorkLogImpl(fileName)) {
+            wl.logItem("1");
+            wl.logFinishedBatch();
+            wl.logItem("2");
+            wl.logItem("3");
+            wl.logFinishedBatch(4);
+            wl.logItem("4");
+
+            assertEquals(5, wl.getBatchNumber());
+            assertEquals(5, BatchingWorkLogInspector.getValidBatches(fileName));
+        }
+
+        try (var wl = new BatchingWorkLogImpl(fileName)) {
+            assertEquals(5, wl.getBatchNumber());
+            assertTrue(wl.isItemCommitted("1"));
+            assertTrue(wl.isItemCommitted("2"));
+            assertTrue(wl.isItemCommitted("3"));
+            assertFalse(wl.isItemCommitted("4"));
+
+            assertThrows(IllegalArgumentException.class, () -> wl.logFinishedBatch(0));
+        }
+    }
 }
\ No newline at end of file
@@ -1,5 +1,13 @@
 package nu.marginalia.mqapi.index;
 
-public record CreateIndexRequest(IndexName indexName)
+/** Request to construct one of the indexes from the index journal.
+ *
+ * @param delta if true, the index is built as a delta segment on top of the
+ *              current index, rather than as a replacement for it
+ */
+public record CreateIndexRequest(IndexName indexName, boolean delta)
 {
+    public CreateIndexRequest(IndexName indexName) {
+        this(indexName, false);
+    }
 }
@@ -8,4 +8,13 @@ import java.util.List;
 @AllArgsConstructor
 public class LoadRequest {
     public List<FileStorageId> inputProcessDataStorageIds;
+
+    /** If true, the loaded domains replace their earlier versions in the current
+     * document database and link graph, rather than the data being loaded from scratch.
+     * This goes with building the index as a delta segment, see CreateIndexRequest. */
+    public boolean delta;
+
+    public LoadRequest(List<FileStorageId> inputProcessDataStorageIds) {
+        this(inputProcessDataStorageIds, false);
+    }
 }
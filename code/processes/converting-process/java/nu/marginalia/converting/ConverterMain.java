@@ -44,6 +44,7 @@ import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 import static nu.marginalia.mqapi.ProcessInboxNames.CONVERTER_INBOX;
@@ -127,22 +128,43 @@ public class ConverterMain extends ProcessMainClass {
         }
     }
 
+    /** Convert the crawl data in a pipeline of three stages, connected by bounded queues:
+     * <ul>
+     *     <li>read, which locates the crawl data of each domain in the crawler log and opens it</li>
+     *     <li>process, a pool of threads that process the domains</li>
+     *     <li>write, a number of writer threads that each write a shard of the current batch</li>
+     * </ul>
+     */
     public void convert(int totalDomains, WorkDir crawlDir, WorkDir processedDir) throws Exception {
 
+        final boolean conserveMemory = Boolean.getBoolean("system.conserveMemory");
 
-        final int defaultPoolSize = Boolean.getBoolean("system.conserveMemory")
+        final int defaultPoolSize = conserveMemory
                 ? Math.clamp(Runtime.getRuntime().availableProcessors() / 2, 1, 4)   // <-- conserve memory
                 : Math.clamp(Runtime.getRuntime().availableProcessors() - 2, 1, 32); // <-- a more liberal pool size
 
         final int maxPoolSize = Integer.getInteger("converter.poolSize", defaultPoolSize);
+        final int readQueueSize = Integer.getInteger("converter.readQueueSize", 2);
+
+        final int writerShards = Integer.getInteger("converter.writerShards", conserveMemory ? 1 : 4);
+        final int writerQueueSize = Integer.getInteger("converter.writerQueueSize", writerShards);
 
         try (BatchingWorkLog batchingWorkLog = new BatchingWorkLogImpl(processedDir.getLogFile());
-             ConverterWriter converterWriter = new ConverterWriter(batchingWorkLog, processedDir.getDir()))
+             ConverterWriter converterWriter = new ConverterWriter(batchingWorkLog, processedDir.getDir(), writerShards, writerQueueSize);
+             ConverterPipelineMonitor monitor = new ConverterPipelineMonitor(heartbeat))
         {
-            var pool = new SimpleBlockingThreadPool("ConverterThread", maxPoolSize, 2);
+            var pool = new SimpleBlockingThreadPool("ConverterThread", maxPoolSize, readQueueSize);
+
+            LongAdder readDomains = new LongAdder();
+            LongAdder convertedDomains = new LongAdder();
+
+            monitor.addStage("read", readDomains::sum, () -> 0, 0);
+            monitor.addStage("process", convertedDomains::sum, pool::getQueueSize, readQueueSize);
+            monitor.addStage("write", converterWriter::getItemsWritten, converterWriter::getQueueSize, converterWriter.getQueueCapacity());
+            monitor.start();
 
             AtomicInteger processedDomains = new AtomicInteger(0);
-            logger.info("Processing {} domains", totalDomains);
+            logger.info("Processing {} domains with {} writer shards", totalDomains, writerShards);
 
             // Advance the progress bar to the current position if this is a resumption
             processedDomains.set(batchingWorkLog.size());
@@ -151,6 +173,8 @@ public class ConverterMain extends ProcessMainClass {
             for (var domain : WorkLog.iterableMap(crawlDir.getLogFile(),
                     new CrawlDataLocator(crawlDir.getDir(), batchingWorkLog)))
             {
+                readDomains.increment();
+
                 pool.submit(() -> {
                     try {
                         ConverterBatchWritableIf writable = processor.createWritable(domain);
@@ -160,6 +184,7 @@ public class ConverterMain extends ProcessMainClass {
                         logger.info("Error in processing", ex);
                     }
                     finally {
+                        convertedDomains.increment();
                         heartbeat.setProgress(processedDomains.incrementAndGet() / (double) totalDomains);
                     }
                 });
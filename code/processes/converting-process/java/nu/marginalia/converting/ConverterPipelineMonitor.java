@@ -0,0 +1,135 @@
+package nu.marginalia.converting;
+
+import nu.marginalia.process.control.ProcessAdHocTaskHeartbeat;
+import nu.marginalia.process.control.ProcessHeartbeat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/** Reports the throughput and input queue occupancy of each stage of the
+ * converter pipeline, through one task heartbeat per stage.  The progress
+ * of the heartbeat is the occupancy of the queue, so a stage that is falling
+ * behind shows up as a full bar.
+ */
+class ConverterPipelineMonitor implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ConverterPipelineMonitor.class);
+
+    private final int reportIntervalSeconds = Integer.getInteger("converter.monitorIntervalSeconds", 10);
+
+    private final ProcessHeartbeat heartbeat;
+    private final List<Stage> stages = new ArrayList<>();
+    private final Thread monitorThread;
+
+    private volatile boolean running = true;
+
+    ConverterPipelineMonitor(ProcessHeartbeat heartbeat) {
+        this.heartbeat = heartbeat;
+        this.monitorThread = Thread.ofPlatform()
+                .daemon(true)
+                .name(getClass().getSimpleName())
+                .unstarted(this::run);
+    }
+
+    /** Add a stage to monitor.  Must be called before start().
+     *
+     * @param name the name of the stage
+     * @param completed the number of items the stage has completed
+     * @param queued the number of items waiting for the stage
+     * @param queueCapacity the capacity of the queue, or 0 if the stage isn't fed by a queue
+     */
+    void addStage(String name, LongSupplier completed, IntSupplier queued, int queueCapacity) {
+        stages.add(new Stage(name, completed, queued, queueCapacity,
+                heartbeat.createAdHocTaskHeartbeat("pipeline-" + name)));
+    }
+
+    void start() {
+        monitorThread.start();
+    }
+
+    private void run() {
+        long lastReportTime = System.nanoTime();
+
+        while (running) {
+            try {
+                TimeUnit.SECONDS.sleep(reportIntervalSeconds);
+            }
+            catch (InterruptedException ex) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            double elapsedSeconds = (now - lastReportTime) / 1e9;
+            lastReportTime = now;
+
+            var summary = new StringJoiner(", ");
+            for (var stage : stages) {
+                summary.add(stage.report(elapsedSeconds));
+            }
+
+            logger.info("Pipeline: {}", summary);
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+
+        monitorThread.interrupt();
+        if (monitorThread.isAlive()) {
+            monitorThread.join();
+        }
+
+        for (var stage : stages) {
+            stage.taskHeartbeat.close();
+        }
+    }
+
+    private static class Stage {
+        private final String name;
+        private final LongSupplier completed;
+        private final IntSupplier queued;
+        private final int queueCapacity;
+        private final ProcessAdHocTaskHeartbeat taskHeartbeat;
+
+        private long lastCompleted = 0;
+
+        Stage(String name,
+              LongSupplier completed,
+              IntSupplier queued,
+              int queueCapacity,
+              ProcessAdHocTaskHeartbeat taskHeartbeat)
+        {
+            this.name = name;
+            this.completed = completed;
+            this.queued = queued;
+            this.queueCapacity = queueCapacity;
+            this.taskHeartbeat = taskHeartbeat;
+        }
+
+        String report(double elapsedSeconds) {
+            long completedNow = completed.getAsLong();
+            double rate = (completedNow - lastCompleted) / elapsedSeconds;
+            lastCompleted = completedNow;
+
+            String status;
+            if (queueCapacity > 0) {
+                int queuedNow = queued.getAsInt();
+                status = String.format(Locale.ROOT, "%s %.1f/s, queue %d/%d", name, rate, queuedNow, queueCapacity);
+                taskHeartbeat.progress(status, queuedNow, queueCapacity);
+            }
+            else {
+                status = String.format(Locale.ROOT, "%s %.1f/s", name, rate);
+                taskHeartbeat.progress(status, 0, 1);
+            }
+
+            return status;
+        }
+    }
+}
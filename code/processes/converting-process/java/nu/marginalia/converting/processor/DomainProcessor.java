@@ -15,6 +15,7 @@ import nu.marginalia.crawling.io.SerializableCrawlDataStream;
 import nu.marginalia.crawling.model.*;
 import nu.marginalia.geoip.GeoIpDictionary;
 import nu.marginalia.geoip.sources.AsnTable;
+import nu.marginalia.lsh.LshHashIndex;
 import nu.marginalia.model.crawl.DomainIndexingState;
 import nu.marginalia.converting.model.ProcessedDomain;
 import nu.marginalia.model.EdgeDomain;
@@ -33,12 +34,19 @@ import java.util.regex.Pattern;
 
 public class DomainProcessor {
     private static final int SIDELOAD_THRESHOLD = Integer.getInteger("converter.sideloadThreshold", 10_000);
+
+    /** When set, documents are deduplicated across all domains, and not only within each domain,
+     * which finds mirrors, at the cost of keeping the hash of every document in memory */
+    private static final boolean CROSS_DOMAIN_DEDUPLICATION = Boolean.getBoolean("converter.crossDomainDeduplication");
     private final DocumentProcessor documentProcessor;
     private final SiteWords siteWords;
     private final AnchorTagsSource anchorTagsSource;
     private final AnchorTextKeywords anchorTextKeywords;
     private final GeoIpDictionary geoIpDictionary;
 
+    @Nullable
+    private final LshHashIndex sharedDeduplicationIndex;
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     @Inject
@@ -54,6 +62,10 @@ public class DomainProcessor {
         this.anchorTagsSource = anchorTagsSourceFactory.create();
         this.geoIpDictionary = geoIpDictionary;
 
+        this.sharedDeduplicationIndex = CROSS_DOMAIN_DEDUPLICATION
+                ? LshDocumentDeduplicator.createSharedIndex()
+                : null;
+
         geoIpDictionary.waitReady();
     }
 
@@ -86,7 +98,7 @@ public class DomainProcessor {
         private final DocumentDecorator documentDecorator;
         private final Set<String> processedUrls = new HashSet<>();
         private final DomainLinks externalDomainLinks;
-        private final LshDocumentDeduplicator deduplicator = new LshDocumentDeduplicator();
+        private final LshDocumentDeduplicator deduplicator = createDeduplicator();
         private static final ProcessingIterator.Factory iteratorFactory = ProcessingIterator.factory(8,
                 Integer.getInteger("java.util.concurrent.ForkJoinPool.common.parallelism", Runtime.getRuntime().availableProcessors())
         );
@@ -128,9 +140,7 @@ public class DomainProcessor {
                     taskConsumer.accept(() -> {
                         var processedDoc = documentProcessor.process(doc, domain.domain, externalDomainLinks, documentDecorator);
 
-                        synchronized (deduplicator) {
-                            deduplicator.markIfDuplicate(processedDoc);
-                        }
+                        deduplicator.markIfDuplicate(processedDoc);
 
                         if (processedDoc.isProcessedFully()) {
                             // This is a bit sketchy, but we need to set the size and topology to something
@@ -187,7 +197,7 @@ public class DomainProcessor {
 
         // Process Documents
 
-        try (var deduplicator = new LshDocumentDeduplicator()) {
+        try (var deduplicator = createDeduplicator()) {
             while (dataStream.hasNext()) {
                 if (!(dataStream.next() instanceof CrawledDocument doc))
                     continue;
@@ -215,6 +225,14 @@ public class DomainProcessor {
         return ret;
     }
 
+    private LshDocumentDeduplicator createDeduplicator() {
+        if (sharedDeduplicationIndex != null) {
+            return new LshDocumentDeduplicator(sharedDeduplicationIndex);
+        }
+
+        return new LshDocumentDeduplicator();
+    }
+
     private void processDomain(CrawledDomain crawledDomain,
                                           ProcessedDomain domain,
                                           DocumentDecorator decorator)
@@ -1,19 +1,43 @@
 package nu.marginalia.converting.processor.logic;
 
-import gnu.trove.list.array.TLongArrayList;
+import nu.marginalia.lsh.LshHashIndex;
 import nu.marginalia.model.crawl.UrlIndexingState;
 import nu.marginalia.converting.model.ProcessedDocument;
 import nu.marginalia.lsh.EasyLSH;
 
 /** Deduplicates documents based on their LSH
+ * <p></p>
+ * This is safe for concurrent use.  The hashes are normally kept per domain, but
+ * an index may be shared between deduplicators to find duplicates across domains,
+ * such as mirrors.
  *
  * @see EasyLSH
+ * @see LshHashIndex
  */
 public class LshDocumentDeduplicator implements AutoCloseable {
 
-    private final TLongArrayList hashCodes = new TLongArrayList(1000);
     private static final int DISTANCE_THRESHOLD = 2;
 
+    private final LshHashIndex hashCodes;
+    private final boolean sharedIndex;
+
+    public LshDocumentDeduplicator() {
+        this.hashCodes = new LshHashIndex(DISTANCE_THRESHOLD - 1);
+        this.sharedIndex = false;
+    }
+
+    /** Create a deduplicator that finds duplicates among the hashes of a shared index,
+     * see {@link #createSharedIndex()}.  The index is not cleared when the deduplicator is closed.
+     */
+    public LshDocumentDeduplicator(LshHashIndex sharedIndex) {
+        this.hashCodes = sharedIndex;
+        this.sharedIndex = true;
+    }
+
+    public static LshHashIndex createSharedIndex() {
+        return LshHashIndex.concurrent(DISTANCE_THRESHOLD - 1);
+    }
+
     public void markIfDuplicate(ProcessedDocument document) {
         if (!document.isProcessedFully()) {
             return;
@@ -23,21 +47,16 @@ public class LshDocumentDeduplicator implements AutoCloseable {
             return;
         }
 
-        long hashCode = document.details.hashCode;
-
-        for (int i = 0; i < hashCodes.size(); i++) {
-            if (EasyLSH.hammingDistance(hashCode, hashCodes.get(i)) < DISTANCE_THRESHOLD) {
-                document.state = UrlIndexingState.DISQUALIFIED;
-                document.stateReason = "Duplicate";
-                return;
-            }
+        if (!hashCodes.add(document.details.hashCode)) {
+            document.state = UrlIndexingState.DISQUALIFIED;
+            document.stateReason = "Duplicate";
         }
-
-        hashCodes.add(hashCode);
     }
 
     @Override
     public void close() throws Exception {
-        hashCodes.clear(1);
+        if (!sharedIndex) {
+            hashCodes.clear();
+        }
     }
 }
@@ -6,14 +6,30 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Writes the converted domains into batches of parquet files, keeping track of
+ * the batches in the {@link BatchingWorkLog}.
+ * <p></p>
+ * The domains are written by a number of writer threads, each with its own shard
+ * of the batch, so that a large domain doesn't hold up the writing of the others.
+ * The shard writers write batch files with consecutive batch numbers, which are all
+ * committed together when the batch is switched.
+ */
 public class ConverterWriter implements AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(ConverterWriter.class);
@@ -23,21 +39,41 @@ public class ConverterWriter implements AutoCloseable {
 
     private final Duration switchInterval
             = Duration.of(10, ChronoUnit.MINUTES);
-    private final ArrayBlockingQueue<ConverterBatchWritableIf> domainData
-            = new ArrayBlockingQueue<>(1);
+    private final ArrayBlockingQueue<ConverterBatchWritableIf> domainData;
+
+    private final List<Thread> workerThreads = new ArrayList<>();
+    private final ConverterBatchWriter[] shardWriters;
 
-    private final Thread workerThread;
+    /** Held by the writer threads while writing, and exclusively when switching batches */
+    private final ReadWriteLock batchLock = new ReentrantReadWriteLock();
+    private final IntervalAction switcher = new IntervalAction(this::switchBatch, switchInterval);
 
-    private ConverterBatchWriter currentWriter;
+    /** Guards against two writer threads writing the same item */
+    private final Set<String> itemsInFlight = ConcurrentHashMap.newKeySet();
+    private final LongAdder itemsWritten = new LongAdder();
 
     volatile boolean running = true;
 
-    public ConverterWriter(BatchingWorkLog workLog, Path basePath) {
+    public ConverterWriter(BatchingWorkLog workLog, Path basePath) throws IOException {
+        this(workLog, basePath, 1, 1);
+    }
+
+    public ConverterWriter(BatchingWorkLog workLog, Path basePath, int shardCount, int queueSize) throws IOException {
         this.workLog = workLog;
         this.basePath = basePath;
 
-        workerThread = new Thread(this::writerThread, getClass().getSimpleName());
-        workerThread.start();
+        domainData = new ArrayBlockingQueue<>(queueSize);
+        shardWriters = new ConverterBatchWriter[shardCount];
+
+        openShardWriters();
+
+        for (int i = 0; i < shardCount; i++) {
+            final int shard = i;
+
+            var workerThread = new Thread(() -> writerThread(shard), getClass().getSimpleName() + "[" + i + "]");
+            workerThread.start();
+            workerThreads.add(workerThread);
+        }
     }
 
     @SneakyThrows
@@ -48,12 +84,22 @@ public class ConverterWriter implements AutoCloseable {
         domainData.put(domain);
     }
 
-    @SneakyThrows
-    private void writerThread() {
-        IntervalAction switcher = new IntervalAction(this::switchBatch, switchInterval);
+    /** The number of domains waiting to be written */
+    public int getQueueSize() {
+        return domainData.size();
+    }
 
-        currentWriter = new ConverterBatchWriter(basePath, workLog.getBatchNumber());
+    public int getQueueCapacity() {
+        return domainData.size() + domainData.remainingCapacity();
+    }
 
+    /** The number of domains written since the writer was created */
+    public long getItemsWritten() {
+        return itemsWritten.sum();
+    }
+
+    @SneakyThrows
+    private void writerThread(int shard) {
         while (running || !domainData.isEmpty()) {
             // poll with a timeout so we have an
             // opportunity to check the running condition
@@ -67,15 +113,33 @@ public class ConverterWriter implements AutoCloseable {
 
             String id = data.id();
 
-            if (workLog.isItemCommitted(id) || workLog.isItemInCurrentBatch(id)) {
-                logger.warn("Skipping already logged item {}", id);
+            if (!itemsInFlight.add(id)) {
+                logger.warn("Skipping already queued item {}", id);
                 data.close();
                 continue;
             }
 
-            currentWriter.write(data);
+            try {
+                if (workLog.isItemCommitted(id) || workLog.isItemInCurrentBatch(id)) {
+                    logger.warn("Skipping already logged item {}", id);
+                    data.close();
+                    continue;
+                }
+
+                batchLock.readLock().lock();
+                try {
+                    shardWriters[shard].write(data);
+                    workLog.logItem(id);
+                }
+                finally {
+                    batchLock.readLock().unlock();
+                }
+            }
+            finally {
+                itemsInFlight.remove(id);
+            }
 
-            workLog.logItem(id);
+            itemsWritten.increment();
 
             switcher.tick();
         }
@@ -83,29 +147,50 @@ public class ConverterWriter implements AutoCloseable {
 
     @SneakyThrows
     public boolean switchBatch() {
-        if (workLog.isCurrentBatchEmpty()) {
-            // Nothing to commit
-            return false;
+        batchLock.writeLock().lock();
+        try {
+            if (workLog.isCurrentBatchEmpty()) {
+                // Nothing to commit
+                return false;
+            }
+
+            // order matters here
+            closeShardWriters();
+            workLog.logFinishedBatch(shardWriters.length);
+            logger.info("Switching to batch {}", workLog.getBatchNumber());
+            openShardWriters();
+
+            return true;
+        }
+        finally {
+            batchLock.writeLock().unlock();
         }
+    }
 
+    private void openShardWriters() throws IOException {
+        int batchNumber = workLog.getBatchNumber();
 
-        // order matters here
-        currentWriter.close();
-        workLog.logFinishedBatch();
-        logger.info("Switching to batch {}", workLog.getBatchNumber());
-        currentWriter = new ConverterBatchWriter(basePath, workLog.getBatchNumber());
+        for (int i = 0; i < shardWriters.length; i++) {
+            shardWriters[i] = new ConverterBatchWriter(basePath, batchNumber + i);
+        }
+    }
 
-        return true;
+    private void closeShardWriters() throws IOException {
+        for (var writer : shardWriters) {
+            writer.close();
+        }
     }
 
     @Override
     public void close() throws Exception {
         running = false;
-        workerThread.join();
+        for (var workerThread : workerThreads) {
+            workerThread.join();
+        }
 
         // order matters here
-        currentWriter.close();
-        workLog.logFinishedBatch();
+        closeShardWriters();
+        workLog.logFinishedBatch(shardWriters.length);
     }
 }
 
@@ -122,7 +207,7 @@ class IntervalAction {
 
     /** Execute the provided action if enough time has passed
      * since the last successful invocation */
-    public void tick() {
+    public synchronized void tick() {
         var now = Instant.now();
         if (nextActionInstant == null) {
             nextActionInstant = now.plus(interval);
@@ -0,0 +1,106 @@
+package nu.marginalia.converting.writer;
+
+import nu.marginalia.io.processed.ProcessedDataFileNames;
+import nu.marginalia.worklog.BatchingWorkLogImpl;
+import nu.marginalia.worklog.BatchingWorkLogInspector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConverterWriterTest {
+    Path tempDir;
+    Path logFile;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory(getClass().getSimpleName());
+        logFile = tempDir.resolve("processor.log");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (var files = Files.list(tempDir)) {
+            for (var file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(tempDir);
+    }
+
+    @Test
+    public void testShardedWrite() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+
+        try (var workLog = new BatchingWorkLogImpl(logFile)) {
+            try (var writer = new ConverterWriter(workLog, tempDir, 4, 2)) {
+                for (int i = 0; i < 100; i++) {
+                    writer.accept(new TestWritable("item" + i, writes));
+                }
+
+                // Already queued or written, and should be skipped
+                writer.accept(new TestWritable("item0", writes));
+                writer.accept(null);
+            }
+
+            assertEquals(100, writes.get());
+            assertEquals(4, workLog.getBatchNumber());
+
+            for (int i = 0; i < 100; i++) {
+                assertTrue(workLog.isItemCommitted("item" + i));
+            }
+        }
+
+        // All shards are committed at once
+        assertEquals(4, BatchingWorkLogInspector.getValidBatches(logFile));
+        for (int batch = 0; batch < 4; batch++) {
+            assertTrue(Files.exists(ProcessedDataFileNames.documentFileName(tempDir, batch)));
+            assertTrue(Files.exists(ProcessedDataFileNames.domainFileName(tempDir, batch)));
+            assertTrue(Files.exists(ProcessedDataFileNames.domainLinkFileName(tempDir, batch)));
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+
+        try (var workLog = new BatchingWorkLogImpl(logFile);
+             var writer = new ConverterWriter(workLog, tempDir, 2, 2))
+        {
+            writer.accept(new TestWritable("a", writes));
+            writer.accept(new TestWritable("b", writes));
+        }
+
+        // Resuming with a different number of shards continues after the committed batches
+        try (var workLog = new BatchingWorkLogImpl(logFile)) {
+            assertEquals(2, workLog.getBatchNumber());
+
+            try (var writer = new ConverterWriter(workLog, tempDir, 3, 2)) {
+                writer.accept(new TestWritable("a", writes));
+                writer.accept(new TestWritable("c", writes));
+            }
+
+            assertEquals(5, workLog.getBatchNumber());
+            assertTrue(workLog.isItemCommitted("c"));
+        }
+
+        assertEquals(3, writes.get());
+        assertEquals(5, BatchingWorkLogInspector.getValidBatches(logFile));
+    }
+
+    record TestWritable(String id, AtomicInteger writes) implements ConverterBatchWritableIf {
+        @Override
+        public void write(ConverterBatchWriter writer) {
+            writes.incrementAndGet();
+        }
+
+        @Override
+        public void close() {}
+    }
+}
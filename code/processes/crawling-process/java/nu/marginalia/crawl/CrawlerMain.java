@@ -11,8 +11,10 @@ import nu.marginalia.WmsaHome;
 import nu.marginalia.atags.source.AnchorTagsSource;
 import nu.marginalia.atags.source.AnchorTagsSourceFactory;
 import nu.marginalia.crawl.retreival.CrawlDataReference;
+import nu.marginalia.crawl.retreival.CrawlPolitenessScheduler;
 import nu.marginalia.crawl.retreival.DomainProber;
 import nu.marginalia.crawl.retreival.fetcher.HttpFetcherImpl;
+import nu.marginalia.crawl.retreival.fetcher.warc.WarcBufferPool;
 import nu.marginalia.crawl.retreival.fetcher.warc.WarcRecorder;
 import nu.marginalia.crawl.spec.CrawlSpecProvider;
 import nu.marginalia.crawl.spec.DbCrawlSpecProvider;
@@ -67,6 +69,9 @@ public class CrawlerMain extends ProcessMainClass {
     private final int node;
     private final SimpleBlockingThreadPool pool;
 
+    /** Schedules the fetches across domains when crawling with virtual threads, otherwise null */
+    private final CrawlPolitenessScheduler scheduler;
+
     private final Map<String, String> processingIds = new ConcurrentHashMap<>();
 
     private final AbortMonitor abortMonitor = AbortMonitor.getInstance();
@@ -96,9 +101,20 @@ public class CrawlerMain extends ProcessMainClass {
         this.gson = gson;
         this.node = processConfiguration.node();
 
-        pool = new SimpleBlockingThreadPool("CrawlerPool",
-                Integer.getInteger("crawler.poolSize", 256),
-                1);
+        if (Boolean.getBoolean("crawler.virtualThreads")) {
+            // Each domain is crawled by a virtual thread that waits for its turn with the scheduler,
+            // so many more domains can be in flight than with platform threads sleeping out the crawl delay
+            pool = SimpleBlockingThreadPool.virtual("CrawlerPool",
+                    Integer.getInteger("crawler.poolSize", 4096),
+                    1);
+            scheduler = new CrawlPolitenessScheduler();
+        }
+        else {
+            pool = new SimpleBlockingThreadPool("CrawlerPool",
+                    Integer.getInteger("crawler.poolSize", 256),
+                    1);
+            scheduler = null;
+        }
 
         fetcher = new HttpFetcherImpl(userAgent,
                 new Dispatcher(),
@@ -196,6 +212,7 @@ public class CrawlerMain extends ProcessMainClass {
             logger.warn("Exception in crawler", ex);
         }
         finally {
+            logger.info("Response buffers: {}", WarcBufferPool.stats());
             heartbeat.shutDown();
         }
     }
@@ -242,7 +259,7 @@ public class CrawlerMain extends ProcessMainClass {
             }
 
             try (var warcRecorder = new WarcRecorder(newWarcFile); // write to a temp file for now
-                 var retriever = new CrawlerRetreiver(fetcher, domainProber, specification, warcRecorder);
+                 var retriever = new CrawlerRetreiver(fetcher, domainProber, specification, warcRecorder, scheduler);
                  CrawlDataReference reference = getReference())
             {
                 Thread.currentThread().setName("crawling:" + domain);
@@ -268,7 +285,12 @@ public class CrawlerMain extends ProcessMainClass {
                 warcArchiver.consumeWarc(newWarcFile, domain);
 
                 workLog.setJobToFinished(domain, parquetFile.toString(), size);
-                heartbeat.setProgress(tasksDone.incrementAndGet() / (double) totalTasks);
+                int done = tasksDone.incrementAndGet();
+                heartbeat.setProgress(done / (double) totalTasks);
+
+                if (done % 1000 == 0) {
+                    logger.info("Response buffers: {}", WarcBufferPool.stats());
+                }
 
                 logger.info("Fetched {}", domain);
             } catch (Exception e) {
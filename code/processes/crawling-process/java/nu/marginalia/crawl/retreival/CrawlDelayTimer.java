@@ -2,6 +2,8 @@ package nu.marginalia.crawl.retreival;
 
 import lombok.SneakyThrows;
 
+import javax.annotation.Nullable;
+
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 
@@ -16,8 +18,27 @@ public class CrawlDelayTimer {
 
     private final long delayTime;
 
+    /** When crawling with a {@link CrawlPolitenessScheduler}, the delays are handed to the scheduler,
+     * and waited for before the next fetch instead of slept right away */
+    @Nullable
+    private final CrawlPolitenessScheduler.Slot slot;
+
     public CrawlDelayTimer(long delayTime) {
+        this(delayTime, null);
+    }
+
+    public CrawlDelayTimer(long delayTime, @Nullable CrawlPolitenessScheduler.Slot slot) {
         this.delayTime = delayTime;
+        this.slot = slot;
+    }
+
+    /** Call before fetching a document, and close the returned permit after the fetch.
+     * Without a scheduler this returns right away. */
+    public CrawlPolitenessScheduler.Permit awaitFetchPermit() throws InterruptedException {
+        if (slot == null)
+            return CrawlPolitenessScheduler.Permit.NONE;
+
+        return slot.awaitFetch();
     }
 
     /** Call when we've gotten an HTTP 429 response.  This will wait a moment, and then
@@ -27,7 +48,12 @@ public class CrawlDelayTimer {
 
         int delay = ex.retryAfter();
 
-        Thread.sleep(Math.clamp(delay, 100, 5000));
+        if (slot != null) {
+            slot.backOff(Math.clamp(delay, 100, 5000));
+        }
+        else {
+            Thread.sleep(Math.clamp(delay, 100, 5000));
+        }
     }
 
     @SneakyThrows
@@ -38,7 +64,7 @@ public class CrawlDelayTimer {
             if (spentTime > sleepTime)
                 return;
 
-            Thread.sleep(min(sleepTime - spentTime, 5000));
+            sleepTime = min(sleepTime - spentTime, 5000);
         }
         else {
             // When no crawl delay is specified, lean toward twice the fetch+process time,
@@ -52,12 +78,19 @@ public class CrawlDelayTimer {
             if (spentTime > sleepTime)
                 return;
 
-            Thread.sleep(sleepTime - spentTime);
+            sleepTime = sleepTime - spentTime;
         }
 
         if (slowDown) {
             // Additional delay when the server is signalling it wants slower requests
-            Thread.sleep( DEFAULT_CRAWL_DELAY_MIN_MS);
+            sleepTime += DEFAULT_CRAWL_DELAY_MIN_MS;
+        }
+
+        if (slot != null) {
+            slot.delayNextFetch(sleepTime);
+        }
+        else {
+            Thread.sleep(sleepTime);
         }
     }
 }
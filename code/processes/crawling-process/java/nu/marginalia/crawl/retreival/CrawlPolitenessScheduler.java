@@ -0,0 +1,161 @@
+package nu.marginalia.crawl.retreival;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/** Schedules the fetches of all domains being crawled, so that the crawl delay and
+ * rate limiting of a host are respected, and so that servers hosting many domains
+ * aren't hit by all of them at once.
+ * <p></p>
+ * Each domain being crawled gets a {@link Slot}, which holds the time its host may be
+ * fetched from next.  Domains that resolve to the same IP address share its state, which
+ * allows at most crawler.maxConcurrentFetchesPerIp concurrent fetches, started at least
+ * crawler.ipFetchSpacingMs apart.  An HTTP 429 response backs off both the host and the IP.
+ * <p></p>
+ * The waiting is done by sleeping in the crawling thread, which is intended to be a virtual
+ * thread, so that thousands of domains can be waiting for their turn at once.
+ */
+public class CrawlPolitenessScheduler {
+    private static final int MAX_CONCURRENT_FETCHES_PER_IP = Integer.getInteger("crawler.maxConcurrentFetchesPerIp", 2);
+    private static final long IP_FETCH_SPACING_MS = Long.getLong("crawler.ipFetchSpacingMs", 250);
+
+    private final int maxConcurrentFetchesPerIp;
+    private final long ipFetchSpacingMs;
+
+    private final ConcurrentHashMap<String, IpState> ipStates = new ConcurrentHashMap<>();
+
+    public CrawlPolitenessScheduler() {
+        this(MAX_CONCURRENT_FETCHES_PER_IP, IP_FETCH_SPACING_MS);
+    }
+
+    public CrawlPolitenessScheduler(int maxConcurrentFetchesPerIp, long ipFetchSpacingMs) {
+        this.maxConcurrentFetchesPerIp = maxConcurrentFetchesPerIp;
+        this.ipFetchSpacingMs = ipFetchSpacingMs;
+    }
+
+    /** Create a slot for crawling a domain.  The slot must be closed when the crawl is done.
+     *
+     * @param ip the resolved IP address of the domain, or an empty string if it's not known,
+     *           in which case only the host is scheduled
+     */
+    public Slot createSlot(String ip) {
+        if (ip == null || ip.isEmpty()) {
+            return new Slot(null, null);
+        }
+
+        var state = ipStates.compute(ip, (k, v) -> {
+            if (v == null) v = new IpState(maxConcurrentFetchesPerIp);
+            v.users++;
+            return v;
+        });
+
+        return new Slot(ip, state);
+    }
+
+    /** The number of IP addresses with domains currently being crawled */
+    public int activeIpCount() {
+        return ipStates.size();
+    }
+
+    private void releaseIp(String ip) {
+        ipStates.computeIfPresent(ip, (k, v) -> --v.users == 0 ? null : v);
+    }
+
+    private static void sleepUntil(long timeMs) throws InterruptedException {
+        long waitTime = timeMs - System.currentTimeMillis();
+        if (waitTime > 0) {
+            Thread.sleep(waitTime);
+        }
+    }
+
+    private static class IpState {
+        final Semaphore fetchPermits;
+
+        /** The earliest time the next fetch may start, guarded by the instance */
+        long nextFetchMs = 0;
+
+        /** The number of slots using the state, guarded by the map */
+        int users = 0;
+
+        IpState(int maxConcurrentFetches) {
+            fetchPermits = new Semaphore(maxConcurrentFetches, true);
+        }
+
+        synchronized long reserveStartTime(long spacingMs) {
+            long start = Math.max(System.currentTimeMillis(), nextFetchMs);
+            nextFetchMs = start + spacingMs;
+            return start;
+        }
+
+        synchronized void backOff(long untilMs) {
+            nextFetchMs = Math.max(nextFetchMs, untilMs);
+        }
+    }
+
+    /** The scheduling state of a domain being crawled */
+    public class Slot implements AutoCloseable {
+        private final String ip;
+        private final IpState ipState;
+
+        /** The earliest time the next fetch from the host may start */
+        private volatile long nextFetchMs = 0;
+        private boolean closed = false;
+
+        private Slot(String ip, IpState ipState) {
+            this.ip = ip;
+            this.ipState = ipState;
+        }
+
+        /** Wait until a fetch from the host is allowed, and return a permit that
+         * must be closed once the fetch is done. */
+        public Permit awaitFetch() throws InterruptedException {
+            sleepUntil(nextFetchMs);
+
+            if (ipState == null) {
+                return Permit.NONE;
+            }
+
+            ipState.fetchPermits.acquire();
+            try {
+                sleepUntil(ipState.reserveStartTime(ipFetchSpacingMs));
+            }
+            catch (InterruptedException ex) {
+                ipState.fetchPermits.release();
+                throw ex;
+            }
+
+            return ipState.fetchPermits::release;
+        }
+
+        /** Delay the next fetch from the host, e.g. because of its crawl delay */
+        public void delayNextFetch(long delayMs) {
+            nextFetchMs = System.currentTimeMillis() + delayMs;
+        }
+
+        /** Back off from the host and its IP address, e.g. after an HTTP 429 response */
+        public void backOff(long delayMs) {
+            long until = System.currentTimeMillis() + delayMs;
+
+            nextFetchMs = Math.max(nextFetchMs, until);
+            if (ipState != null) {
+                ipState.backOff(until);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (ipState != null && !closed) {
+                closed = true;
+                releaseIp(ip);
+            }
+        }
+    }
+
+    /** Permission to fetch a document, released when closed */
+    public interface Permit extends AutoCloseable {
+        Permit NONE = () -> {};
+
+        @Override
+        void close();
+    }
+}
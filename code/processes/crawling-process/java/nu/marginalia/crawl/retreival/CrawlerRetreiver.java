@@ -20,6 +20,7 @@ import org.jsoup.Jsoup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -47,16 +48,33 @@ public class CrawlerRetreiver implements AutoCloseable {
     private final CrawlerRevisitor crawlerRevisitor;
 
     private final SitemapFetcher sitemapFetcher;
+
+    @Nullable
+    private final CrawlPolitenessScheduler scheduler;
+
     int errorCount = 0;
 
     public CrawlerRetreiver(HttpFetcher fetcher,
                             DomainProber domainProber,
                             CrawlSpecRecord specs,
                             WarcRecorder warcRecorder)
+    {
+        this(fetcher, domainProber, specs, warcRecorder, null);
+    }
+
+    /** Create a retriever that schedules its fetches with the scheduler, which is
+     * shared between all domains being crawled, or sleeps between fetches on its own
+     * if the scheduler is null */
+    public CrawlerRetreiver(HttpFetcher fetcher,
+                            DomainProber domainProber,
+                            CrawlSpecRecord specs,
+                            WarcRecorder warcRecorder,
+                            @Nullable CrawlPolitenessScheduler scheduler)
     {
         this.warcRecorder = warcRecorder;
         this.fetcher = fetcher;
         this.domainProber = domainProber;
+        this.scheduler = scheduler;
 
         domain = specs.domain;
 
@@ -106,6 +124,21 @@ public class CrawlerRetreiver implements AutoCloseable {
 
     private int crawlDomain(CrawlDataReference oldCrawlData, DomainProber.ProbeResult probeResult, DomainLinks domainLinks) throws IOException, InterruptedException {
         String ip = findIp(domain);
+
+        if (scheduler == null) {
+            return crawlDomain(oldCrawlData, probeResult, domainLinks, ip, null);
+        }
+
+        try (var slot = scheduler.createSlot(ip)) {
+            return crawlDomain(oldCrawlData, probeResult, domainLinks, ip, slot);
+        }
+    }
+
+    private int crawlDomain(CrawlDataReference oldCrawlData,
+                            DomainProber.ProbeResult probeResult,
+                            DomainLinks domainLinks,
+                            String ip,
+                            @Nullable CrawlPolitenessScheduler.Slot slot) throws IOException, InterruptedException {
         EdgeUrl rootUrl;
 
         warcRecorder.writeWarcinfoHeader(ip, new EdgeDomain(domain), probeResult);
@@ -118,7 +151,7 @@ public class CrawlerRetreiver implements AutoCloseable {
         }
 
         final SimpleRobotRules robotsRules = fetcher.fetchRobotRules(rootUrl.domain, warcRecorder);
-        final CrawlDelayTimer delayTimer = new CrawlDelayTimer(robotsRules.getCrawlDelay());
+        final CrawlDelayTimer delayTimer = new CrawlDelayTimer(robotsRules.getCrawlDelay(), slot);
 
         sniffRootDocument(rootUrl);
 
@@ -251,13 +284,16 @@ public class CrawlerRetreiver implements AutoCloseable {
 
         // Fetch the document, retrying if we get a rate limit exception
         for (int i = 0; i <= HTTP_429_RETRY_LIMIT; i++) {
-            try {
+            try (var permit = timer.awaitFetchPermit()) {
                 fetchedDoc = fetcher.fetchContent(top, warcRecorder, contentTags);
                 break;
             }
             catch (RateLimitException ex) {
                 timer.waitRetryDelay(ex);
             }
+            catch (InterruptedException ex) {
+                throw ex;
+            }
             catch (Exception ex) {
                 logger.warn("Failed to fetch {}", top, ex);
                 fetchedDoc = new HttpFetchResult.ResultException(ex);
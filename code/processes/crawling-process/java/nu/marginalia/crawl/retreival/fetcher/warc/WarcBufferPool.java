@@ -0,0 +1,110 @@
+package nu.marginalia.crawl.retreival.fetcher.warc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Pool of direct byte buffers used by {@link WarcInputBuffer} to hold HTTP responses
+ * while they are being recorded, so that responses don't need to go through a temporary
+ * file unless they are very large.
+ * <p></p>
+ * At most crawler.warcBufferPoolChunks direct chunks are allocated; when they are all
+ * in use, heap chunks are handed out instead, so that a burst of concurrent fetches can't
+ * exhaust the direct memory.  A response spills to a temporary file once it grows
+ * beyond crawler.warcBufferSpillThreshold bytes.
+ */
+public class WarcBufferPool {
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    static final int SPILL_THRESHOLD = Integer.getInteger("crawler.warcBufferSpillThreshold", 2 * 1024 * 1024);
+    private static final int MAX_DIRECT_CHUNKS = Integer.getInteger("crawler.warcBufferPoolChunks", 1024);
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> freeChunks = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger directChunks = new AtomicInteger();
+
+    private static final LongAdder responses = new LongAdder();
+    private static final LongAdder spilledResponses = new LongAdder();
+    private static final LongAdder bytesBuffered = new LongAdder();
+    private static final LongAdder bytesSpilled = new LongAdder();
+    private static final LongAdder bytesCopied = new LongAdder();
+
+    private WarcBufferPool() {}
+
+    /** Take an empty chunk from the pool, allocating one if necessary */
+    static ByteBuffer take() {
+        ByteBuffer chunk = freeChunks.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+
+        if (directChunks.incrementAndGet() <= MAX_DIRECT_CHUNKS) {
+            return ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+
+        directChunks.decrementAndGet();
+        return ByteBuffer.allocate(CHUNK_SIZE);
+    }
+
+    /** Return a chunk to the pool.  Heap chunks are left to the garbage collector. */
+    static void give(ByteBuffer chunk) {
+        if (chunk.isDirect()) {
+            freeChunks.offer(chunk.clear());
+        }
+    }
+
+    static void recordResponse(long size, boolean spilled) {
+        responses.increment();
+        bytesBuffered.add(size);
+
+        if (spilled) {
+            spilledResponses.increment();
+            bytesSpilled.add(size);
+        }
+    }
+
+    static void recordCopy(long n) {
+        bytesCopied.add(n);
+    }
+
+    public static Stats stats() {
+        return new Stats(responses.sum(),
+                spilledResponses.sum(),
+                bytesBuffered.sum(),
+                bytesSpilled.sum(),
+                bytesCopied.sum(),
+                directChunks.get());
+    }
+
+    /** Statistics of the response buffering since the process started
+     *
+     * @param responses the number of responses buffered
+     * @param spilledResponses the number of responses that spilled to disk
+     * @param bytesBuffered the total size of the responses
+     * @param bytesSpilled the total size of the responses that spilled to disk
+     * @param bytesCopied the number of bytes copied out of the buffers into the WARC records
+     * @param directChunks the number of direct chunks allocated by the pool
+     */
+    public record Stats(long responses,
+                        long spilledResponses,
+                        long bytesBuffered,
+                        long bytesSpilled,
+                        long bytesCopied,
+                        int directChunks)
+    {
+        public double spillRate() {
+            return responses == 0 ? 0. : spilledResponses / (double) responses;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d responses, %.2f%% spilled (%d MB of %d MB), %d MB copied, %d direct chunks",
+                    responses,
+                    100 * spillRate(),
+                    bytesSpilled >> 20,
+                    bytesBuffered >> 20,
+                    bytesCopied >> 20,
+                    directChunks);
+        }
+    }
+}
@@ -2,14 +2,21 @@ package nu.marginalia.crawl.retreival.fetcher.warc;
 
 import okhttp3.Headers;
 import okhttp3.Response;
-import org.apache.commons.io.input.BOMInputStream;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.GzipSource;
+import okio.Okio;
 import org.netpreserve.jwarc.WarcTruncationReason;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Objects;
-import java.util.zip.GZIPInputStream;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 /** Input buffer for temporary storage of a HTTP response
  *  This may be in-memory or on-disk, at the discretion of
@@ -33,9 +40,8 @@ public abstract class WarcInputBuffer implements AutoCloseable {
     public final Headers headers() { return headers; }
 
     /** Create a buffer for a response.
-     *  If the response is small and not compressed, it will be stored in memory.
-     *  Otherwise, it will be stored in a temporary file, with compression transparently handled
-     *  and suppressed from the headers.
+     *  The response is held in pooled memory chunks, and only spills over into a temporary file
+     *  if it is large. Compression is transparently handled and suppressed from the headers.
      *  If an error occurs, a buffer will be created with no content and an error status.
      */
     static WarcInputBuffer forResponse(Response rsp) {
@@ -43,55 +49,11 @@ public abstract class WarcInputBuffer implements AutoCloseable {
             return new ErrorBuffer();
 
         try {
-            String contentLengthHeader = Objects.requireNonNullElse(rsp.header("Content-Length"), "-1");
-            int contentLength = Integer.parseInt(contentLengthHeader);
-            String contentEncoding = rsp.header("Content-Encoding");
-
-            if (contentEncoding == null && contentLength > 0 && contentLength < 8192) {
-                // If the content is small and not compressed, we can just read it into memory
-                return new MemoryBuffer(rsp, contentLength);
-            }
-            else {
-                // Otherwise, we unpack it into a file and read it from there
-                return new FileBuffer(rsp);
-            }
+            return new PooledBuffer(rsp);
         }
         catch (Exception ex) {
             return new ErrorBuffer(rsp);
         }
-
-    }
-
-    /** Copy an input stream to an output stream, with a maximum size and time limit */
-    protected void copy(InputStream is, OutputStream os) {
-        long startTime = System.currentTimeMillis();
-        long size = 0;
-
-        byte[] buffer = new byte[8192];
-
-        // Gobble up the BOM if it's there
-        is = new BOMInputStream(is);
-
-        while (true) {
-            try {
-                int n = is.read(buffer);
-                if (n < 0) break;
-                size += n;
-                os.write(buffer, 0, n);
-
-                if (size > WarcRecorder.MAX_SIZE) {
-                    truncationReason = WarcTruncationReason.LENGTH;
-                    break;
-                }
-
-                if (System.currentTimeMillis() - startTime > WarcRecorder.MAX_TIME) {
-                    truncationReason = WarcTruncationReason.TIME;
-                    break;
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
     }
 
 }
@@ -122,64 +84,185 @@ class ErrorBuffer extends WarcInputBuffer {
     public void close() throws Exception {}
 }
 
-/** Buffer for when we have the response in memory */
-class MemoryBuffer extends WarcInputBuffer {
-    byte[] data;
-    public MemoryBuffer(Response response, int size) {
-        super(response.headers());
+/** Buffer for when we have the response in pooled memory chunks, or in a
+ * file if it's too big for that.  See {@link WarcBufferPool} */
+class PooledBuffer extends WarcInputBuffer {
+    private static final ByteString UTF8_BOM = ByteString.of((byte) 0xEF, (byte) 0xBB, (byte) 0xBF);
 
-        var outputStream = new ByteArrayOutputStream(size);
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private Path spillFile;
+    private FileChannel spillChannel;
+    private boolean spillFailed = false;
+    private int size = 0;
 
-        copy(response.body().byteStream(), outputStream);
+    public PooledBuffer(Response response) throws IOException {
+        super(suppressContentEncoding(response.headers()));
 
-        data = outputStream.toByteArray();
-    }
-    @Override
-    public InputStream read() throws IOException {
-        return new ByteArrayInputStream(data);
+        if (response.body() == null) {
+            truncationReason = WarcTruncationReason.DISCONNECT;
+            return;
+        }
+
+        try {
+            BufferedSource source = response.body().source();
+
+            if ("gzip".equals(response.header("Content-Encoding"))) {
+                source = Okio.buffer(new GzipSource(source));
+            }
+
+            copy(source);
+        }
+        catch (Exception ex) {
+            truncationReason = WarcTruncationReason.UNSPECIFIED;
+        }
+        finally {
+            WarcBufferPool.recordResponse(size, spillFile != null);
+        }
     }
 
-    @Override
-    public int size() {
-        return data.length;
+    /** Copy the source into the buffer, with a maximum size and time limit */
+    private void copy(BufferedSource source) throws IOException {
+        long startTime = System.currentTimeMillis();
+
+        ByteBuffer chunk = WarcBufferPool.take();
+        chunks.add(chunk);
+
+        try {
+            // Gobble up the BOM if it's there
+            if (source.request(UTF8_BOM.size()) && source.rangeEquals(0, UTF8_BOM)) {
+                source.skip(UTF8_BOM.size());
+            }
+
+            while (true) {
+                if (!chunk.hasRemaining()) {
+                    if (spillChannel == null && size >= WarcBufferPool.SPILL_THRESHOLD) {
+                        startSpill();
+                    }
+
+                    if (spillChannel != null) {
+                        writeFully(chunk.flip());
+                        chunk.clear();
+                    }
+                    else {
+                        chunk = WarcBufferPool.take();
+                        chunks.add(chunk);
+                    }
+                }
+
+                int n = source.read(chunk);
+                if (n < 0) break;
+                size += n;
+
+                if (size > WarcRecorder.MAX_SIZE) {
+                    truncationReason = WarcTruncationReason.LENGTH;
+                    break;
+                }
+
+                if (System.currentTimeMillis() - startTime > WarcRecorder.MAX_TIME) {
+                    truncationReason = WarcTruncationReason.TIME;
+                    break;
+                }
+            }
+        }
+        finally {
+            finish(chunk);
+        }
     }
 
-    @Override
-    public void close() throws Exception {
+    /** Move the chunks filled so far to a temporary file, keeping only the last one,
+     * through which the rest of the response is written.  If this fails, the response
+     * stays in the chunks and the spill file is removed. */
+    private void startSpill() throws IOException {
+        Path file = Files.createTempFile("rsp", ".html");
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        }
+        catch (IOException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+
+        spillFile = file;
+        spillChannel = channel;
 
+        ByteBuffer last = chunks.removeLast();
+        try {
+            // Write duplicates, so that the chunks are left as they were if this fails
+            for (var chunk : chunks) {
+                writeFully(chunk.duplicate().flip());
+            }
+            releaseChunks();
+        }
+        catch (IOException ex) {
+            abandonSpill();
+            throw ex;
+        }
+        finally {
+            chunks.add(last);
+        }
     }
-}
 
-/** Buffer for when we have the response in a file */
-class FileBuffer extends WarcInputBuffer {
-    private final Path tempFile;
+    private void abandonSpill() {
+        FileChannel channel = spillChannel;
+        Path file = spillFile;
 
-    public FileBuffer(Response response) throws IOException {
-        super(suppressContentEncoding(response.headers()));
+        spillChannel = null;
+        spillFile = null;
 
-        this.tempFile = Files.createTempFile("rsp", ".html");
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            // Nothing to be done, the file is deleted regardless
+        }
 
-        if (response.body() == null) {
-            truncationReason = WarcTruncationReason.DISCONNECT;
-            return;
+        try {
+            Files.deleteIfExists(file);
         }
+        catch (IOException ex) {
+            file.toFile().deleteOnExit();
+        }
+    }
 
-        if ("gzip".equals(response.header("Content-Encoding"))) {
-            try (var out = Files.newOutputStream(tempFile)) {
-                copy(new GZIPInputStream(response.body().byteStream()), out);
-            }
-            catch (Exception ex) {
-                truncationReason = WarcTruncationReason.UNSPECIFIED;
+    private void finish(ByteBuffer chunk) throws IOException {
+        if (spillChannel == null) {
+            for (var c : chunks) {
+                c.flip();
             }
+            return;
         }
-        else {
-            try (var out = Files.newOutputStream(tempFile)) {
-                copy(response.body().byteStream(), out);
+
+        try {
+            // After a failed write, the file holds a prefix of the response that
+            // the chunk doesn't continue, so it's left as it is
+            if (!spillFailed) {
+                writeFully(chunk.flip());
             }
-            catch (Exception ex) {
-                truncationReason = WarcTruncationReason.UNSPECIFIED;
+        }
+        finally {
+            size = (int) spillChannel.position();
+            spillChannel.close();
+            spillChannel = null;
+            releaseChunks();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        try {
+            while (buffer.hasRemaining()) {
+                spillChannel.write(buffer);
             }
         }
+        catch (IOException ex) {
+            spillFailed = true;
+            throw ex;
+        }
+    }
+
+    private void releaseChunks() {
+        chunks.forEach(WarcBufferPool::give);
+        chunks.clear();
     }
 
     private static Headers suppressContentEncoding(Headers headers) {
@@ -200,25 +283,68 @@ class FileBuffer extends WarcInputBuffer {
         return builder.build();
     }
 
+    boolean isSpilled() {
+        return spillFile != null;
+    }
 
+    @Override
     public InputStream read() throws IOException {
-        return Files.newInputStream(tempFile);
+        if (spillFile != null) {
+            return Files.newInputStream(spillFile);
+        }
+
+        return new ChunkInputStream(chunks.iterator());
     }
 
+    @Override
     public int size() {
-        try {
-            long fileSize = Files.size(tempFile);
-            if (fileSize > Integer.MAX_VALUE) {
-                throw new IllegalStateException("File too large");
-            }
-            return (int) fileSize;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return size;
     }
 
     @Override
     public void close() throws Exception {
-        Files.deleteIfExists(tempFile);
+        releaseChunks();
+
+        if (spillFile != null) {
+            Files.deleteIfExists(spillFile);
+        }
     }
-}
\ No newline at end of file
+
+    /** Reads the chunks without consuming them */
+    private static class ChunkInputStream extends InputStream {
+        private final Iterator<ByteBuffer> chunks;
+        private ByteBuffer current = ByteBuffer.allocate(0);
+
+        ChunkInputStream(Iterator<ByteBuffer> chunks) {
+            this.chunks = chunks;
+        }
+
+        private boolean advance() {
+            while (!current.hasRemaining()) {
+                if (!chunks.hasNext())
+                    return false;
+                current = chunks.next().duplicate();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() {
+            if (!advance())
+                return -1;
+            return current.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!advance())
+                return -1;
+
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            return n;
+        }
+    }
+}
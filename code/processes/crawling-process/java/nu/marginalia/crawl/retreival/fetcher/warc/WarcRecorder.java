@@ -95,7 +95,6 @@ public class WarcRecorder implements AutoCloseable {
             byte[] responseHeaders = WarcProtocolReconstructor.getResponseHeader(response, inputBuffer.size()).getBytes(StandardCharsets.UTF_8);
 
             ResponseDataBuffer responseDataBuffer = new ResponseDataBuffer(inputBuffer.size() + responseHeaders.length);
-            InputStream inputStream = inputBuffer.read();
 
             ip = IpInterceptingNetworkInterceptor.getIpFromResponse(response);
 
@@ -104,21 +103,26 @@ public class WarcRecorder implements AutoCloseable {
 
             int dataStart = responseDataBuffer.pos();
 
-            for (;;) {
-                int remainingLength = responseDataBuffer.remaining();
-                if (remainingLength == 0)
-                    break;
+            // Copy the buffered response into the record, digesting it on the way
+            try (InputStream inputStream = inputBuffer.read()) {
+                for (;;) {
+                    int remainingLength = responseDataBuffer.remaining();
+                    if (remainingLength == 0)
+                        break;
 
-                int startPos = responseDataBuffer.pos();
+                    int startPos = responseDataBuffer.pos();
 
-                int n = responseDataBuffer.readFrom(inputStream, remainingLength);
-                if (n < 0)
-                    break;
+                    int n = responseDataBuffer.readFrom(inputStream, remainingLength);
+                    if (n < 0)
+                        break;
 
-                responseDataBuffer.updateDigest(responseDigestBuilder, startPos, n);
-                responseDataBuffer.updateDigest(payloadDigestBuilder, startPos, n);
+                    responseDataBuffer.updateDigest(responseDigestBuilder, startPos, n);
+                    responseDataBuffer.updateDigest(payloadDigestBuilder, startPos, n);
+                }
             }
 
+            WarcBufferPool.recordCopy(responseDataBuffer.pos() - dataStart);
+
             // It looks like this might be the same as requestUri, but it's not;
             // it's the URI after resolving redirects.
             final URI responseUri = response.request().url().uri();
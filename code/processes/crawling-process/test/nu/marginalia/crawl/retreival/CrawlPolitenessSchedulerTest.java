@@ -0,0 +1,138 @@
+package nu.marginalia.crawl.retreival;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrawlPolitenessSchedulerTest {
+
+    @Test
+    void testLimitsConcurrentFetchesPerIp() throws Exception {
+        var scheduler = new CrawlPolitenessScheduler(2, 0);
+
+        AtomicInteger concurrentFetches = new AtomicInteger();
+        AtomicInteger maxConcurrentFetches = new AtomicInteger();
+
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> tasks = new ArrayList<>();
+
+            for (int i = 0; i < 20; i++) {
+                tasks.add(executor.submit(() -> {
+                    try (var slot = scheduler.createSlot("127.0.0.1")) {
+                        for (int j = 0; j < 3; j++) {
+                            try (var permit = slot.awaitFetch()) {
+                                int cnt = concurrentFetches.incrementAndGet();
+                                maxConcurrentFetches.accumulateAndGet(cnt, Math::max);
+                                Thread.sleep(5);
+                                concurrentFetches.decrementAndGet();
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (var task : tasks) {
+                task.get();
+            }
+        }
+
+        assertEquals(2, maxConcurrentFetches.get());
+        assertEquals(0, scheduler.activeIpCount());
+    }
+
+    @Test
+    void testIpFetchSpacing() throws Exception {
+        var scheduler = new CrawlPolitenessScheduler(10, 50);
+
+        try (var slotA = scheduler.createSlot("127.0.0.1");
+             var slotB = scheduler.createSlot("127.0.0.1"))
+        {
+            assertEquals(1, scheduler.activeIpCount());
+
+            long start = System.currentTimeMillis();
+            slotA.awaitFetch().close();
+            slotB.awaitFetch().close();
+            slotA.awaitFetch().close();
+
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+
+        assertEquals(0, scheduler.activeIpCount());
+    }
+
+    @Test
+    void testHostDelay() throws Exception {
+        var scheduler = new CrawlPolitenessScheduler(10, 0);
+
+        try (var slot = scheduler.createSlot("127.0.0.1");
+             var otherSlot = scheduler.createSlot("127.0.0.1"))
+        {
+            slot.delayNextFetch(100);
+
+            // Other hosts on the same IP are not affected by the crawl delay
+            long start = System.currentTimeMillis();
+            otherSlot.awaitFetch().close();
+            assertTrue(System.currentTimeMillis() - start < 100);
+
+            slot.awaitFetch().close();
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+    }
+
+    @Test
+    void testBackOffAppliesToIp() throws Exception {
+        var scheduler = new CrawlPolitenessScheduler(10, 0);
+
+        try (var slot = scheduler.createSlot("127.0.0.1");
+             var otherSlot = scheduler.createSlot("127.0.0.1");
+             var unrelatedSlot = scheduler.createSlot("127.0.0.2"))
+        {
+            long start = System.currentTimeMillis();
+            slot.backOff(100);
+
+            unrelatedSlot.awaitFetch().close();
+            assertTrue(System.currentTimeMillis() - start < 100);
+
+            otherSlot.awaitFetch().close();
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+    }
+
+    @Test
+    void testUnknownIp() throws Exception {
+        var scheduler = new CrawlPolitenessScheduler(1, 1000);
+
+        try (var slot = scheduler.createSlot("")) {
+            long start = System.currentTimeMillis();
+            slot.awaitFetch().close();
+            slot.awaitFetch().close();
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        }
+
+        assertEquals(0, scheduler.activeIpCount());
+    }
+
+    @Test
+    void testTimerUsesScheduler() throws Exception {
+        var scheduler = new CrawlPolitenessScheduler(10, 0);
+
+        try (var slot = scheduler.createSlot("127.0.0.1")) {
+            var timer = new CrawlDelayTimer(100, slot);
+
+            // The delay is handed to the scheduler rather than slept
+            long start = System.currentTimeMillis();
+            timer.waitFetchDelay(0);
+            assertTrue(System.currentTimeMillis() - start < 100);
+
+            timer.awaitFetchPermit().close();
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+    }
+}
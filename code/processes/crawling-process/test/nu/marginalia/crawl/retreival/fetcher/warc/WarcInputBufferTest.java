@@ -0,0 +1,126 @@
+package nu.marginalia.crawl.retreival.fetcher.warc;
+
+import okhttp3.*;
+import org.junit.jupiter.api.Test;
+import org.netpreserve.jwarc.WarcTruncationReason;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WarcInputBufferTest {
+
+    @Test
+    void testSmallResponse() throws Exception {
+        byte[] body = "<html>hello</html>".getBytes();
+
+        try (var buffer = WarcInputBuffer.forResponse(response(body, Headers.of()))) {
+            assertInstanceOf(PooledBuffer.class, buffer);
+            assertFalse(((PooledBuffer) buffer).isSpilled());
+
+            assertEquals(WarcTruncationReason.NOT_TRUNCATED, buffer.truncationReason());
+            assertEquals(body.length, buffer.size());
+            assertArrayEquals(body, readAll(buffer));
+
+            // The buffer may be read more than once
+            assertArrayEquals(body, readAll(buffer));
+        }
+    }
+
+    @Test
+    void testBomIsRemoved() throws Exception {
+        byte[] body = new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'a', 'b', 'c' };
+
+        try (var buffer = WarcInputBuffer.forResponse(response(body, Headers.of()))) {
+            assertArrayEquals("abc".getBytes(), readAll(buffer));
+        }
+    }
+
+    @Test
+    void testGzipResponse() throws Exception {
+        byte[] body = randomText(200_000);
+
+        var headers = Headers.of("Content-Encoding", "gzip", "Content-Type", "text/html");
+        try (var buffer = WarcInputBuffer.forResponse(response(gzip(body), headers))) {
+            assertEquals(body.length, buffer.size());
+            assertArrayEquals(body, readAll(buffer));
+
+            assertNull(buffer.headers().get("Content-Encoding"));
+            assertEquals("text/html", buffer.headers().get("Content-Type"));
+        }
+    }
+
+    @Test
+    void testBadGzipResponse() throws Exception {
+        var headers = Headers.of("Content-Encoding", "gzip");
+        try (var buffer = WarcInputBuffer.forResponse(response(randomText(1000), headers))) {
+            assertEquals(WarcTruncationReason.UNSPECIFIED, buffer.truncationReason());
+        }
+    }
+
+    @Test
+    void testLargeResponseSpills() throws Exception {
+        byte[] body = randomText(WarcBufferPool.SPILL_THRESHOLD + 3 * WarcBufferPool.CHUNK_SIZE + 17);
+
+        var statsBefore = WarcBufferPool.stats();
+
+        try (var buffer = WarcInputBuffer.forResponse(response(body, Headers.of()))) {
+            assertTrue(((PooledBuffer) buffer).isSpilled());
+
+            assertEquals(body.length, buffer.size());
+            assertArrayEquals(body, readAll(buffer));
+        }
+
+        var statsAfter = WarcBufferPool.stats();
+        assertEquals(1, statsAfter.spilledResponses() - statsBefore.spilledResponses());
+        assertEquals(body.length, statsAfter.bytesSpilled() - statsBefore.bytesSpilled());
+    }
+
+    @Test
+    void testOversizedResponseIsTruncated() throws Exception {
+        byte[] body = randomText(WarcRecorder.MAX_SIZE + 2 * WarcBufferPool.CHUNK_SIZE);
+
+        try (var buffer = WarcInputBuffer.forResponse(response(body, Headers.of()))) {
+            assertEquals(WarcTruncationReason.LENGTH, buffer.truncationReason());
+            assertTrue(buffer.size() > WarcRecorder.MAX_SIZE);
+            assertTrue(buffer.size() < body.length);
+        }
+    }
+
+    private static Response response(byte[] body, Headers headers) {
+        return new Response.Builder()
+                .request(new Request.Builder().url("https://www.marginalia.nu/").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .headers(headers)
+                .body(ResponseBody.create(body, MediaType.get("text/html")))
+                .build();
+    }
+
+    private static byte[] readAll(WarcInputBuffer buffer) throws IOException {
+        try (var is = buffer.read()) {
+            return is.readAllBytes();
+        }
+    }
+
+    private static byte[] randomText(int size) {
+        Random r = new Random(size);
+        byte[] ret = new byte[size];
+        for (int i = 0; i < size; i++) {
+            ret[i] = (byte) ('a' + r.nextInt(26));
+        }
+        return ret;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        var baos = new ByteArrayOutputStream();
+        try (var gzos = new GZIPOutputStream(baos)) {
+            gzos.write(data);
+        }
+        return baos.toByteArray();
+    }
+}
@@ -97,19 +97,25 @@ public class IndexConstructorMain extends ProcessMainClass {
     private void run(CreateIndexInstructions instructions) throws SQLException, IOException {
         heartbeat.start();
 
+        // A delta segment is built from the same journal, but is put in its own area rather than
+        // replacing the live index, and is picked up alongside the live index on the next switch
+        Path outputDir = instructions.delta
+                ? IndexLocations.getIndexDeltaWriteArea(fileStorageService)
+                : IndexLocations.getCurrentIndex(fileStorageService);
+
         switch (instructions.name) {
-            case FORWARD      -> createForwardIndex();
-            case REVERSE_FULL -> createFullReverseIndex();
-            case REVERSE_PRIO -> createPrioReverseIndex();
+            case FORWARD      -> createForwardIndex(outputDir);
+            case REVERSE_FULL -> createFullReverseIndex(outputDir);
+            case REVERSE_PRIO -> createPrioReverseIndex(outputDir);
         }
 
         heartbeat.shutDown();
     }
 
-    private void createFullReverseIndex() throws SQLException, IOException {
+    private void createFullReverseIndex(Path outputDir) throws SQLException, IOException {
 
-        Path outputFileDocs = ReverseIndexFullFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ReverseIndexFullFileNames.FileIdentifier.DOCS, ReverseIndexFullFileNames.FileVersion.NEXT);
-        Path outputFileWords = ReverseIndexFullFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ReverseIndexFullFileNames.FileIdentifier.WORDS, ReverseIndexFullFileNames.FileVersion.NEXT);
+        Path outputFileDocs = ReverseIndexFullFileNames.resolve(outputDir, ReverseIndexFullFileNames.FileIdentifier.DOCS, ReverseIndexFullFileNames.FileVersion.NEXT);
+        Path outputFileWords = ReverseIndexFullFileNames.resolve(outputDir, ReverseIndexFullFileNames.FileIdentifier.WORDS, ReverseIndexFullFileNames.FileVersion.NEXT);
         Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
         Path tmpDir = workDir.resolve("tmp");
 
@@ -125,10 +131,10 @@ public class IndexConstructorMain extends ProcessMainClass {
 
     }
 
-    private void createPrioReverseIndex() throws SQLException, IOException {
+    private void createPrioReverseIndex(Path outputDir) throws SQLException, IOException {
 
-        Path outputFileDocs = ReverseIndexPrioFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ReverseIndexPrioFileNames.FileIdentifier.DOCS, ReverseIndexPrioFileNames.FileVersion.NEXT);
-        Path outputFileWords = ReverseIndexPrioFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ReverseIndexPrioFileNames.FileIdentifier.WORDS, ReverseIndexPrioFileNames.FileVersion.NEXT);
+        Path outputFileDocs = ReverseIndexPrioFileNames.resolve(outputDir, ReverseIndexPrioFileNames.FileIdentifier.DOCS, ReverseIndexPrioFileNames.FileVersion.NEXT);
+        Path outputFileWords = ReverseIndexPrioFileNames.resolve(outputDir, ReverseIndexPrioFileNames.FileIdentifier.WORDS, ReverseIndexPrioFileNames.FileVersion.NEXT);
         Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
         Path tmpDir = workDir.resolve("tmp");
 
@@ -160,11 +166,11 @@ public class IndexConstructorMain extends ProcessMainClass {
         return r -> WordMetadata.hasAnyFlags(r, highPriorityFlags);
     }
 
-    private void createForwardIndex() throws IOException {
+    private void createForwardIndex(Path outputDir) throws IOException {
 
         Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
-        Path outputFileDocsId = ForwardIndexFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ForwardIndexFileNames.FileIdentifier.DOC_ID, ForwardIndexFileNames.FileVersion.NEXT);
-        Path outputFileDocsData = ForwardIndexFileNames.resolve(IndexLocations.getCurrentIndex(fileStorageService), ForwardIndexFileNames.FileIdentifier.DOC_DATA, ForwardIndexFileNames.FileVersion.NEXT);
+        Path outputFileDocsId = ForwardIndexFileNames.resolve(outputDir, ForwardIndexFileNames.FileIdentifier.DOC_ID, ForwardIndexFileNames.FileVersion.NEXT);
+        Path outputFileDocsData = ForwardIndexFileNames.resolve(outputDir, ForwardIndexFileNames.FileIdentifier.DOC_DATA, ForwardIndexFileNames.FileVersion.NEXT);
 
         ForwardIndexConverter converter = new ForwardIndexConverter(heartbeat,
                 IndexJournalReader.paging(workDir),
@@ -188,11 +194,13 @@ public class IndexConstructorMain extends ProcessMainClass {
     private static class CreateIndexInstructions {
 
         public final IndexName name;
+        public final boolean delta;
         private final MqSingleShotInbox inbox;
         private final MqMessage message;
 
-        private CreateIndexInstructions(IndexName name, MqSingleShotInbox inbox, MqMessage message) {
+        private CreateIndexInstructions(IndexName name, boolean delta, MqSingleShotInbox inbox, MqMessage message) {
             this.name = name;
+            this.delta = delta;
             this.inbox = inbox;
             this.message = message;
         }
@@ -216,7 +224,7 @@ public class IndexConstructorMain extends ProcessMainClass {
         var payload = gson.fromJson(msg.payload(), CreateIndexRequest.class);
         var name = payload.indexName();
 
-        return new CreateIndexInstructions(name, inbox, msg);
+        return new CreateIndexInstructions(name, payload.delta(), inbox, msg);
     }
 
     private Optional<MqMessage> getMessage(MqSingleShotInbox inbox, String expectedFunction) throws SQLException, InterruptedException {
@@ -4,8 +4,10 @@ import com.google.gson.Gson;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import gnu.trove.set.TIntSet;
 import lombok.Getter;
 import lombok.SneakyThrows;
+import nu.marginalia.IndexLocations;
 import nu.marginalia.ProcessConfiguration;
 import nu.marginalia.ProcessConfigurationModule;
 import nu.marginalia.service.ProcessMainClass;
@@ -26,6 +28,7 @@ import nu.marginalia.service.module.DatabaseModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -36,6 +39,8 @@ import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import static nu.marginalia.linkdb.LinkdbFileNames.DOCDB_FILE_NAME;
+import static nu.marginalia.linkdb.LinkdbFileNames.DOMAIN_LINKS_FILE_NAME;
 import static nu.marginalia.mqapi.ProcessInboxNames.LOADER_INBOX;
 
 public class LoaderMain extends ProcessMainClass {
@@ -108,13 +113,30 @@ public class LoaderMain extends ProcessMainClass {
 
         DomainIdRegistry domainIdRegistry = domainService.getOrCreateDomainIds(inputData);
 
+        // In a delta load, the documents and links of the loaded domains replace those of the
+        // current document database and link graph, and those of every other domain are kept
+        Path liveDocDb = IndexLocations.getLinkdbLivePath(fileStorageService).resolve(DOCDB_FILE_NAME);
+        Path liveLinks = IndexLocations.getLinkdbLivePath(fileStorageService).resolve(DOMAIN_LINKS_FILE_NAME);
+
+        boolean copyDocuments = instructions.isDelta() && Files.exists(liveDocDb);
+        boolean copyLinks = instructions.isDelta() && Files.exists(liveLinks);
+
+        TIntSet replacedDomains = instructions.isDelta() ? domainService.getLoadedDomainIds(domainIdRegistry, inputData) : null;
+
         try {
             var results = ForkJoinPool.commonPool()
                     .invokeAll(
                         List.of(
-                            () -> linksService.loadLinks(domainIdRegistry, heartbeat, inputData),
+                            () -> linksService.loadLinks(domainIdRegistry, heartbeat, inputData,
+                                    copyLinks ? liveLinks : null, replacedDomains),
                             () -> keywordLoaderService.loadKeywords(domainIdRegistry, heartbeat, inputData),
-                            () -> documentLoaderService.loadDocuments(domainIdRegistry, heartbeat, inputData),
+                            () -> {
+                                documentLoaderService.loadDocuments(domainIdRegistry, heartbeat, inputData);
+                                if (copyDocuments) {
+                                    documentLoaderService.copyDocuments(liveDocDb, replacedDomains, heartbeat);
+                                }
+                                return true;
+                            },
                             () -> domainService.loadDomainMetadata(domainIdRegistry, heartbeat, inputData)
                         )
             );
@@ -143,11 +165,14 @@ public class LoaderMain extends ProcessMainClass {
     private static class LoadRequest {
         @Getter
         private final LoaderInputData inputData;
+        @Getter
+        private final boolean delta;
         private final MqMessage message;
         private final MqSingleShotInbox inbox;
 
-        LoadRequest(LoaderInputData inputData, MqMessage message, MqSingleShotInbox inbox) {
+        LoadRequest(LoaderInputData inputData, boolean delta, MqMessage message, MqSingleShotInbox inbox) {
             this.inputData = inputData;
+            this.delta = delta;
             this.message = message;
             this.inbox = inbox;
         }
@@ -181,7 +206,7 @@ public class LoaderMain extends ProcessMainClass {
                 inputSources.add(fileStorageService.getStorage(storageId).asPath());
             }
 
-            return new LoadRequest(new LoaderInputData(inputSources), msg, inbox);
+            return new LoadRequest(new LoaderInputData(inputSources), request.delta, msg, inbox);
         }
         catch (Exception ex) {
             inbox.sendResponse(msg, new MqInboxResponse("FAILED", MqMessageState.ERR));
@@ -2,6 +2,7 @@ package nu.marginalia.loading.documents;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import gnu.trove.set.TIntSet;
 import lombok.SneakyThrows;
 import nu.marginalia.io.processed.DocumentRecordParquetFileReader;
 import nu.marginalia.linkdb.docs.DocumentDbWriter;
@@ -57,6 +58,26 @@ public class DocumentLoaderService {
         return true;
     }
 
+    /** Copy the documents of every domain that isn't in the input data from the previous
+     * document database, for a delta load where the loaded domains replace their documents
+     * and the rest are kept.
+     */
+    public boolean copyDocuments(Path previousDocDb,
+                                 TIntSet replacedDomains,
+                                 ProcessHeartbeat processHeartbeat) throws SQLException
+    {
+        try (var taskHeartbeat = processHeartbeat.createAdHocTaskHeartbeat("DOCUMENTS-COPY")) {
+            taskHeartbeat.progress("COPY", 0, 1);
+
+            logger.info("Copying documents from {}", previousDocDb);
+            documentDbWriter.copyDocuments(previousDocDb, replacedDomains.toArray());
+
+            taskHeartbeat.progress("COPY", 1, 1);
+        }
+
+        return true;
+    }
+
     private void loadDocumentsFromFile(DomainIdRegistry domainIdRegistry, Path file)
             throws SQLException, IOException
     {
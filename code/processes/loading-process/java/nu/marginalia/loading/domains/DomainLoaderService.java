@@ -3,6 +3,8 @@ package nu.marginalia.loading.domains;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.zaxxer.hikari.HikariDataSource;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import nu.marginalia.ProcessConfiguration;
 import nu.marginalia.io.processed.DomainLinkRecordParquetFileReader;
 import nu.marginalia.io.processed.DomainRecordParquetFileReader;
@@ -86,6 +88,18 @@ public class DomainLoaderService {
         return ret;
     }
 
+    /** Returns the ids of the domains whose documents are in the input data, as opposed to the
+     * domains that are only linked to */
+    public TIntSet getLoadedDomainIds(DomainIdRegistry domainIdRegistry, LoaderInputData inputData) throws IOException {
+        TIntSet ret = new TIntHashSet();
+
+        for (var domainWithIp : readBasicDomainInformation(inputData)) {
+            ret.add(domainIdRegistry.getDomainId(domainWithIp.domain));
+        }
+
+        return ret;
+    }
+
     Collection<DomainWithIp> readBasicDomainInformation(LoaderInputData inputData) throws IOException {
         final Set<DomainWithIp> domainsAll = new HashSet<>(100_000);
 
@@ -2,8 +2,10 @@ package nu.marginalia.loading.links;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import gnu.trove.set.TIntSet;
 import lombok.SneakyThrows;
 import nu.marginalia.io.processed.DomainLinkRecordParquetFileReader;
+import nu.marginalia.linkgraph.io.DomainLinksLoader;
 import nu.marginalia.linkgraph.io.DomainLinksWriter;
 import nu.marginalia.loading.LoaderInputData;
 import nu.marginalia.loading.domains.DomainIdRegistry;
@@ -27,13 +29,26 @@ public class DomainLinksLoaderService {
         this.domainLinkDbWriter = domainLinkDbWriter;
     }
 
+    /** Load the links of the input data, and in a delta load, the links of every domain
+     * that isn't in the input data from the previous links file.
+     *
+     * @param previousLinksFile the links file the loaded links replace, or null
+     * @param replacedDomains the domains whose links in previousLinksFile are replaced
+     */
     public boolean loadLinks(DomainIdRegistry domainIdRegistry,
                              ProcessHeartbeat heartbeat,
-                             LoaderInputData inputData) throws IOException {
+                             LoaderInputData inputData,
+                             Path previousLinksFile,
+                             TIntSet replacedDomains) throws IOException {
 
         try (var task = heartbeat.createAdHocTaskHeartbeat("LINKS")) {
             var linkFiles = inputData.listDomainLinkFiles();
 
+            if (previousLinksFile != null) {
+                task.progress("COPY", 0, 1);
+                copyLinks(previousLinksFile, replacedDomains);
+            }
+
             int processed = 0;
 
             for (var file : linkFiles) {
@@ -43,12 +58,30 @@ public class DomainLinksLoaderService {
             }
 
             task.progress("LOAD", processed, linkFiles.size());
+
+            // Build the link graph here rather than in the index service, so that it
+            // can be memory mapped there as-is
+            task.progress("GRAPH", 0, 1);
+            domainLinkDbWriter.finish();
+            task.progress("GRAPH", 1, 1);
         }
 
         logger.info("Finished");
         return true;
     }
 
+    private void copyLinks(Path previousLinksFile, TIntSet replacedDomains) throws IOException {
+        logger.info("Copying links from {}", previousLinksFile);
+
+        try (var loader = new DomainLinksLoader(previousLinksFile)) {
+            while (loader.next()) {
+                if (!replacedDomains.contains(loader.getSource())) {
+                    domainLinkDbWriter.write(loader.getSource(), loader.getDest());
+                }
+            }
+        }
+    }
+
     private void loadLinksFromFile(DomainIdRegistry domainIdRegistry, Path file) throws IOException {
         try (var domainStream = DomainLinkRecordParquetFileReader.stream(file);
              var linkLoader = new LinkLoader(domainIdRegistry))
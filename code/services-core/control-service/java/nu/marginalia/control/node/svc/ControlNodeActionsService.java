@@ -248,6 +248,7 @@ public class ControlNodeActionsService {
     private Object triggerLoadSelected(Request request, Response response) throws SQLException {
         int nodeId = Integer.parseInt(request.params("id"));
         String[] values = request.queryParamsValues("source");
+        boolean isDelta = "on".equalsIgnoreCase(request.queryParams("delta"));
 
         if (values.length == 0) {
             throw new ControlValidationError("No source specified", "At least one source storage must be specified", "..");
@@ -257,7 +258,7 @@ public class ControlNodeActionsService {
 
         changeActiveStorage(nodeId, FileStorageType.PROCESSED_DATA, ids.toArray(new FileStorageId[0]));
 
-        crawlClient.loadProcessedData(nodeId, ids);
+        crawlClient.loadProcessedData(nodeId, ids, isDelta);
 
         return "";
     }